@@ -1,19 +1,25 @@
 package org.lockard.xyztilecache;
 
-import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import org.lockard.xyztilecache.cache.OffHeapTileCache;
+import org.lockard.xyztilecache.cache.ParentTileSynthesizer;
 import org.lockard.xyztilecache.config.XyzConfiguration;
 import org.lockard.xyztilecache.model.BoundingBox;
+import org.lockard.xyztilecache.model.CachedTile;
 import org.lockard.xyztilecache.model.Layer;
-import org.lockard.xyztilecache.model.LayerChangedEvent;
 import org.lockard.xyztilecache.model.Preload;
 import org.lockard.xyztilecache.model.Tile;
 import org.lockard.xyztilecache.service.PmtilesDownloader;
@@ -40,19 +46,16 @@ public class XyzTileCacheApplication {
 
   private final XyzConfiguration configuration;
   private final LayerStore layerStore;
-  private final LoadingCache<Tile, byte[]> tileCache;
   private final PreloadService preloadService;
   private final PmtilesDownloader pmtilesDownloader;
 
   public XyzTileCacheApplication(
       final XyzConfiguration configuration,
       final LayerStore layerStore,
-      final LoadingCache<Tile, byte[]> tileCache,
       final PreloadService preloadService,
       final PmtilesDownloader pmtilesDownloader) {
     this.configuration = configuration;
     this.layerStore = layerStore;
-    this.tileCache = tileCache;
     this.preloadService = preloadService;
     this.pmtilesDownloader = pmtilesDownloader;
   }
@@ -61,21 +64,55 @@ public class XyzTileCacheApplication {
     SpringApplication.run(XyzTileCacheApplication.class, args);
   }
 
+  /**
+   * The raster tile cache. Asynchronous so a cold miss only parks a future in the map: Caffeine
+   * never holds a hash-bin lock while a loader waits on disk or an upstream, and concurrent
+   * requests for the same tile join the one in-flight load. With {@code xyz.offHeapCacheBytes}
+   * set, heap misses fall through to the off-heap tier before the disk or upstream; layers with
+   * underzoom synthesis build a missing tile from its cached children before either.
+   *
+   * <p>Each entry expires when its layer's {@code tileExpirationMinutes} say it does, counted from
+   * when the bytes were fetched, so time-sensitive layers stay correct without bypassing memory.
+   * With {@code xyz.tileCacheRefreshSeconds} set, an expiring entry read after that long is
+   * re-fetched in the background while the current bytes keep being served.
+   *
+   * <p>Layer changes never scan the cache: keys carry the layer's generation ({@link Tile}), so a
+   * source change or removal leaves the old entries unreachable and they are evicted by weight.
+   */
   @Bean
-  static LoadingCache<Tile, byte[]> tileCache(
-      CacheLoader<Tile, byte[]> cacheLoader,
+  static AsyncLoadingCache<Tile, CachedTile> asyncTileCache(
+      AsyncCacheLoader<Tile, CachedTile> cacheLoader,
+      OffHeapTileCache offHeapTileCache,
+      ParentTileSynthesizer parentTileSynthesizer,
       XyzConfiguration configuration,
       MeterRegistry meterRegistry) {
-    LoadingCache<Tile, byte[]> cache =
+    Caffeine<Tile, CachedTile> builder =
         Caffeine.newBuilder()
             .maximumWeight(configuration.getTileCacheBytes())
-            .<Tile, byte[]>weigher((k, v) -> v.length)
-            .recordStats()
-            .build(cacheLoader);
+            .<Tile, CachedTile>weigher((k, v) -> v.data().length)
+            .expireAfter(
+                Expiry.<Tile, CachedTile>writing(
+                    (tile, cached) -> cached.timeToLive(System.currentTimeMillis())))
+            // Disk reads in the loaders block; keep them off the common fork-join pool.
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .recordStats();
+    if (configuration.getTileCacheRefreshSeconds() > 0) {
+      builder.refreshAfterWrite(Duration.ofSeconds(configuration.getTileCacheRefreshSeconds()));
+    }
+    AsyncLoadingCache<Tile, CachedTile> cache =
+        builder.buildAsync(
+            offHeapTileCache.tiered(parentTileSynthesizer.synthesizing(cacheLoader)));
     CaffeineCacheMetrics.monitor(meterRegistry, cache, "xyz_tile_cache");
     return cache;
   }
 
+  /** Blocking view of {@link #asyncTileCache} for callers that run on their own threads. */
+  @Bean
+  static LoadingCache<Tile, CachedTile> tileCache(
+      AsyncLoadingCache<Tile, CachedTile> asyncTileCache) {
+    return asyncTileCache.synchronous();
+  }
+
   // ── Lifecycle / events ────────────────────────────────────────────────────
 
   @EventListener(ApplicationReadyEvent.class)
@@ -91,14 +128,6 @@ public class XyzTileCacheApplication {
     initializeLayerDownloads();
   }
 
-  @EventListener
-  void onLayerChanged(LayerChangedEvent event) {
-    if (event.kind() == LayerChangedEvent.Kind.UPDATED_ACL) {
-      return;
-    }
-    tileCache.asMap().keySet().removeIf(t -> t.layerId().equals(event.layerName()));
-  }
-
   // ── Bounding-box preload ──────────────────────────────────────────────────
 
   void initializeBoundingBoxes() {
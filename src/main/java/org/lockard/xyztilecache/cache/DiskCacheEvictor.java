@@ -0,0 +1,259 @@
+package org.lockard.xyztilecache.cache;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.Layer;
+import org.lockard.xyztilecache.model.LayerChangedEvent;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.pmtiles.PmtilesReader;
+import org.lockard.xyztilecache.store.LayerStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the on-disk tile cache of upstream-backed layers under {@code xyz.maxDiskBytes} (all
+ * layers together) and {@code xyz.maxDiskBytesByLayer} (one layer). Every {@code
+ * xyz.diskEvictionSeconds} the layers' {@link org.lockard.xyztilecache.model.LayerRuntimeState}
+ * byte counters are checked against the caps; only a layer (or, for the global cap, every layer)
+ * that is over is walked, and its least recently used tiles are deleted until it is back under
+ * 90% of the cap. The walk keeps only the oldest tiles that together free enough — at most
+ * {@value #MAX_CANDIDATES_PER_PASS} of them, in a max-heap — rather than every tile of the layer;
+ * whatever that leaves over the cap goes in the next pass.
+ *
+ * <p>Recency comes from an access index instead of atime, which is often disabled and costs a
+ * metadata write per read: tile requests are recorded per layer, keyed by PMTiles tile id, at most
+ * once per {@link #ACCESS_RESOLUTION_MILLIS}, in a size-bounded Caffeine cache whose frequency
+ * sketch keeps the popular tiles. A tile not in the index falls back to its mtime, i.e. when it was
+ * written. Tiles held by the in-memory cache are never evicted.
+ *
+ * <p>LOCAL and vector layers are skipped (their disk is the source, not a cache), and so is
+ * everything in offline mode. Tiles are listed and deleted through the {@link TileStore}, so
+ * packed layers are capped the same way as layers stored as files.
+ */
+@Component
+public class DiskCacheEvictor {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DiskCacheEvictor.class);
+
+  static final String EVICTIONS = "xyz_disk_evictions";
+  static final long ACCESS_RESOLUTION_MILLIS = 60_000L;
+  private static final int MAX_TRACKED_TILES_PER_LAYER = 1_000_000;
+  private static final double LOW_WATER_MARK = 0.9;
+  static final int MAX_CANDIDATES_PER_PASS = 200_000;
+
+  private final XyzConfiguration configuration;
+  private final LayerStore layerStore;
+  private final AsyncLoadingCache<Tile, CachedTile> tileCache;
+  private final TileStore tiles;
+  private final MeterRegistry meterRegistry;
+  private final Map<String, Cache<Long, Long>> accessByLayer = new ConcurrentHashMap<>();
+
+  public DiskCacheEvictor(
+      final XyzConfiguration configuration,
+      final LayerStore layerStore,
+      final AsyncLoadingCache<Tile, CachedTile> tileCache,
+      final TileStore tiles,
+      final MeterRegistry meterRegistry) {
+    this.configuration = configuration;
+    this.layerStore = layerStore;
+    this.tileCache = tileCache;
+    this.tiles = tiles;
+    this.meterRegistry = meterRegistry;
+  }
+
+  public boolean isEnabled() {
+    return !configuration.isOffline()
+        && (configuration.getMaxDiskBytes() > 0
+            || configuration.getMaxDiskBytesByLayer().values().stream().anyMatch(v -> v > 0));
+  }
+
+  /** Notes a request for {@code tile}; cheap enough for the serving path. */
+  public void recordAccess(final Tile tile) {
+    if (!isEnabled()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Cache<Long, Long> layer =
+        accessByLayer.computeIfAbsent(
+            tile.layerId(),
+            id -> Caffeine.newBuilder().maximumSize(MAX_TRACKED_TILES_PER_LAYER).build());
+    long id = tileId(tile);
+    Long last = layer.getIfPresent(id);
+    if (last == null || now - last >= ACCESS_RESOLUTION_MILLIS) {
+      layer.put(id, now);
+    }
+  }
+
+  @Scheduled(
+      initialDelayString = "${xyz.diskEvictionSeconds:60}000",
+      fixedDelayString = "${xyz.diskEvictionSeconds:60}000")
+  void scheduledEviction() {
+    if (isEnabled()) {
+      evict();
+    }
+  }
+
+  /** One pass: per-layer caps first, then the global cap across what is left. */
+  synchronized void evict() {
+    List<Layer> layers = evictableLayers();
+    for (Layer layer : layers) {
+      Long cap = configuration.getMaxDiskBytesByLayer().get(layer.effectiveId());
+      long used = layerStore.getRuntimeState(layer.effectiveId()).getCachedTilesSize();
+      if (cap != null && cap > 0 && used > cap) {
+        evict(List.of(layer), used - (long) (cap * LOW_WATER_MARK));
+      }
+    }
+    long cap = configuration.getMaxDiskBytes();
+    if (cap <= 0) {
+      return;
+    }
+    long used =
+        layers.stream()
+            .mapToLong(l -> layerStore.getRuntimeState(l.effectiveId()).getCachedTilesSize())
+            .sum();
+    if (used > cap) {
+      evict(layers, used - (long) (cap * LOW_WATER_MARK));
+    }
+  }
+
+  private void evict(final List<Layer> layers, final long bytesToFree) {
+    Candidates candidates = new Candidates(bytesToFree);
+    for (Layer layer : layers) {
+      collectCandidates(layer.effectiveId(), candidates);
+    }
+    long freed = 0;
+    int deleted = 0;
+    for (Candidate candidate : candidates.oldestFirst()) {
+      if (freed >= bytesToFree) {
+        break;
+      }
+      long size;
+      try {
+        size = tiles.delete(candidate.tile());
+      } catch (IOException e) {
+        LOGGER.debug("Failed to evict {}.", candidate.tile(), e);
+        continue;
+      }
+      if (size < 0) {
+        continue;
+      }
+      String layerId = candidate.tile().layerId();
+      layerStore.getRuntimeState(layerId).tileDeleted(candidate.tile(), size);
+      Cache<Long, Long> access = accessByLayer.get(layerId);
+      if (access != null) {
+        access.invalidate(tileId(candidate.tile()));
+      }
+      evictionCounter(layerId).increment();
+      freed += size;
+      deleted++;
+    }
+    LOGGER.info("Evicted {} tile(s) ({} bytes) from the disk cache.", deleted, freed);
+  }
+
+  /** A cached tile, its size, and when it was last requested (or written, if never requested). */
+  record Candidate(Tile tile, long size, long lastUsed) {}
+
+  /**
+   * The least recently used tiles seen so far that together free at least {@code bytesToFree},
+   * and no more than {@link #MAX_CANDIDATES_PER_PASS} of them: a max-heap on {@code lastUsed}
+   * whose most recent tile is dropped as soon as the others are enough without it.
+   */
+  static final class Candidates {
+    private final long bytesToFree;
+    private final PriorityQueue<Candidate> heap =
+        new PriorityQueue<>(Comparator.comparingLong(Candidate::lastUsed).reversed());
+    private long bytes;
+
+    Candidates(final long bytesToFree) {
+      this.bytesToFree = bytesToFree;
+    }
+
+    void offer(final Candidate candidate) {
+      Candidate newest = heap.peek();
+      if (bytes >= bytesToFree && newest != null && candidate.lastUsed() >= newest.lastUsed()) {
+        return;
+      }
+      heap.add(candidate);
+      bytes += candidate.size();
+      while (!heap.isEmpty()
+          && (heap.size() > MAX_CANDIDATES_PER_PASS
+              || bytes - heap.peek().size() >= bytesToFree)) {
+        bytes -= heap.poll().size();
+      }
+    }
+
+    List<Candidate> oldestFirst() {
+      List<Candidate> sorted = new ArrayList<>(heap);
+      sorted.sort(Comparator.comparingLong(Candidate::lastUsed));
+      return sorted;
+    }
+  }
+
+  private void collectCandidates(final String layerId, final Candidates candidates) {
+    Cache<Long, Long> access = accessByLayer.get(layerId);
+    long generation = layerStore.getGeneration(layerId);
+    // The map view records no statistics; a getIfPresent per tile on disk would skew the hit rate.
+    Map<Tile, CompletableFuture<CachedTile>> inMemory = tileCache.asMap();
+    try {
+      tiles.forEach(
+          layerId,
+          entry -> {
+            // Stored tiles are at generation 0; the cache holds them under the layer's current one.
+            if (inMemory.containsKey(entry.tile().withGeneration(generation))) {
+              return;
+            }
+            long lastUsed = entry.writtenAt();
+            Long accessed = access != null ? access.getIfPresent(tileId(entry.tile())) : null;
+            if (accessed != null && accessed > lastUsed) {
+              lastUsed = accessed;
+            }
+            candidates.offer(new Candidate(entry.tile(), entry.size(), lastUsed));
+          });
+    } catch (IOException e) {
+      LOGGER.warn("Failed to scan the disk cache of layer {}.", layerId, e);
+    }
+  }
+
+  private List<Layer> evictableLayers() {
+    return layerStore.getLayers().values().stream()
+        .filter(
+            layer ->
+                layer.sourceType() != Layer.SourceType.LOCAL
+                    && layer.sourceType() != Layer.SourceType.VECTOR_PMTILES)
+        .toList();
+  }
+
+  private Counter evictionCounter(final String layerId) {
+    return Counter.builder(EVICTIONS)
+        .description("Tiles deleted from the disk cache to stay under its size cap.")
+        .tag("layer", layerId)
+        .register(meterRegistry);
+  }
+
+  /** The old source's access history means nothing for the new one. */
+  @EventListener
+  void onLayerChanged(final LayerChangedEvent event) {
+    if (event.kind() != LayerChangedEvent.Kind.UPDATED_ACL) {
+      accessByLayer.remove(event.layerName());
+    }
+  }
+
+  private static long tileId(final Tile tile) {
+    return PmtilesReader.tileId(tile.z(), tile.x(), tile.y());
+  }
+}
@@ -0,0 +1,473 @@
+package org.lockard.xyztilecache.cache;
+
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+import org.lockard.xyztilecache.XyzUtil;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.BoundingBox;
+import org.lockard.xyztilecache.model.Layer;
+import org.lockard.xyztilecache.model.LayerChangedEvent;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.store.LayerStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * The default {@link TileStore}: one file per tile at {@code
+ * {baseTileDirectory}/{layerId}/{z}/{x}/{y}.{ext}}, with the extension taken from the layer. A
+ * tile written under {@code png} before the layer's extension changed is still found. Dot-files in
+ * the layer directory (tombstones, pack files, temp files of writes in progress, …) are not tiles
+ * and are skipped when iterating.
+ *
+ * <p>With {@code xyz.presenceIndex}, which tiles are on disk is also kept in memory (see {@link
+ * TilePresence}), so looking up a tile that is not there costs no {@code stat}. The index assumes
+ * this store is the only writer of the tile directory: it is off by default, and must stay off
+ * when another instance shares {@code baseTileDirectory} or tiles are copied in by hand. Each
+ * layer's index is saved to {@value #PRESENCE_FILE} in its directory at shutdown and loaded (then
+ * deleted, so a crash is noticed) at startup; without one the layer is walked in the background.
+ * Until then, lookups for the layer go to the disk as before.
+ */
+@Component
+public class FileSystemTileStore implements TileStore {
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemTileStore.class);
+
+  static final String TEMP_SUFFIX = ".tmp";
+  static final String PRESENCE_FILE = ".presence";
+
+  private final XyzConfiguration configuration;
+  private final LayerStore layerStore;
+
+  /** Null outside the application context: {@link #deleteLayer} then deletes in place. */
+  @Nullable private final TileReaper reaper;
+
+  /** Null unless {@code xyz.presenceIndex} is set. */
+  @Nullable private final TilePresence presence;
+
+  public FileSystemTileStore(final XyzConfiguration configuration, final LayerStore layerStore) {
+    this(configuration, layerStore, null);
+  }
+
+  @Autowired
+  public FileSystemTileStore(
+      final XyzConfiguration configuration,
+      final LayerStore layerStore,
+      @Nullable final TileReaper reaper) {
+    this.configuration = configuration;
+    this.layerStore = layerStore;
+    this.reaper = reaper;
+    this.presence = configuration.isPresenceIndex() ? new TilePresence() : null;
+  }
+
+  @Override
+  public Optional<StoredTile> get(final Tile tile) throws IOException {
+    if (isKnownAbsent(tile)) {
+      return Optional.empty();
+    }
+    Path path = toPath(tile);
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      return Optional.of(
+          new StoredTile(Files.readAllBytes(path), attributes.lastModifiedTime().toMillis()));
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public boolean exists(final Tile tile) {
+    return !isKnownAbsent(tile) && Files.exists(toPath(tile));
+  }
+
+  /**
+   * Writes the tile to a dot-file next to it and renames that into place, so a reader sees the old
+   * tile or the new one and never a partial write, and a crash mid-write leaves no truncated tile
+   * behind (just a temp file, see {@link #deleteTempFiles}). There is no fsync: a tile lost or
+   * emptied by a power cut is fetched again. The tile's directories are only created when the
+   * write fails for want of them, so writing into an existing column costs no extra {@code stat}.
+   */
+  @Override
+  public long put(final Tile tile, final byte[] data, final long writtenAt) throws IOException {
+    boolean absent = isKnownAbsent(tile);
+    Path path = toPath(tile);
+    if (presence != null) {
+      // Marked before the file appears, so a reader never finds it on disk but absent here.
+      presence.add(tile);
+    }
+    long replaced;
+    try {
+      replaced = absent ? -1 : Files.size(path);
+    } catch (NoSuchFileException e) {
+      replaced = -1;
+    }
+    Path tmp =
+        path.resolveSibling(
+            "."
+                + path.getFileName()
+                + "."
+                + Long.toHexString(ThreadLocalRandom.current().nextLong())
+                + TEMP_SUFFIX);
+    try {
+      Files.write(tmp, data);
+    } catch (NoSuchFileException e) {
+      Files.createDirectories(path.getParent());
+      Files.write(tmp, data);
+    }
+    try {
+      // The mtime is the tile's writtenAt, which its ETag is derived from in every tier.
+      Files.setLastModifiedTime(tmp, FileTime.fromMillis(writtenAt));
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+    return replaced;
+  }
+
+  @Override
+  public long delete(final Tile tile) throws IOException {
+    if (isKnownAbsent(tile)) {
+      return -1;
+    }
+    Path path = toPath(tile);
+    try {
+      long size = Files.size(path);
+      if (!Files.deleteIfExists(path)) {
+        return -1;
+      }
+      if (presence != null) {
+        presence.remove(tile);
+      }
+      return size;
+    } catch (NoSuchFileException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Removes the whole layer directory, bookkeeping files included. With a {@link TileReaper} the
+   * directory is only renamed aside here, so this returns at once and new tiles for the layer
+   * start from an empty directory.
+   */
+  @Override
+  public void deleteLayer(final String layerId) throws IOException {
+    Path layerDir = layerDirectory(layerId);
+    if (presence != null) {
+      presence.clear(layerId);
+    }
+    if (!Files.exists(layerDir)) {
+      return;
+    }
+    if (reaper != null) {
+      reaper.purge(layerDir);
+      return;
+    }
+    try (var paths = Files.walk(layerDir)) {
+      paths
+          .sorted(Comparator.reverseOrder())
+          .forEach(
+              p -> {
+                try {
+                  Files.delete(p);
+                } catch (IOException e) {
+                  LOGGER.warn("Failed to delete {}", p, e);
+                }
+              });
+    }
+  }
+
+  /**
+   * Lists only the zoom and column directories inside the range, so a small bounding box does not
+   * walk the whole layer.
+   */
+  @Override
+  public void forEach(
+      final String layerId,
+      final int minZoom,
+      final int maxZoom,
+      @Nullable final BoundingBox bbox,
+      final Visitor visitor)
+      throws IOException {
+    Path layerDir = layerDirectory(layerId);
+    for (Path zDir : list(layerDir)) {
+      int z = parse(zDir.getFileName().toString());
+      if (z < minZoom || z > maxZoom || !Files.isDirectory(zDir)) {
+        continue;
+      }
+      XyzUtil.TileRange range = bbox != null ? XyzUtil.calculateTileRange(bbox, z) : null;
+      for (Path xDir : list(zDir)) {
+        int x = parse(xDir.getFileName().toString());
+        if (x < 0
+            || (range != null && (x < range.xMin() || x > range.xMax()))
+            || !Files.isDirectory(xDir)) {
+          continue;
+        }
+        for (Path file : list(xDir)) {
+          Tile tile = toTile(layerId, layerDir, file);
+          if (tile == null
+              || (range != null && (tile.y() < range.yMin() || tile.y() > range.yMax()))) {
+            continue;
+          }
+          BasicFileAttributes attributes;
+          try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+          } catch (NoSuchFileException e) {
+            continue;
+          }
+          if (attributes.isRegularFile()) {
+            visitor.visit(new FileEntry(tile, file, attributes));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes the temp files of writes that never completed — left by a crash — from the layer's
+   * tile directories, if last modified before {@code olderThanMillis}. Returns how many.
+   */
+  public int deleteTempFiles(final String layerId, final long olderThanMillis) throws IOException {
+    int deleted = 0;
+    for (Path zDir : list(layerDirectory(layerId))) {
+      if (parse(zDir.getFileName().toString()) < 0 || !Files.isDirectory(zDir)) {
+        continue;
+      }
+      for (Path xDir : list(zDir)) {
+        if (parse(xDir.getFileName().toString()) < 0 || !Files.isDirectory(xDir)) {
+          continue;
+        }
+        for (Path file : list(xDir)) {
+          String name = file.getFileName().toString();
+          if (!name.startsWith(".") || !name.endsWith(TEMP_SUFFIX)) {
+            continue;
+          }
+          try {
+            if (Files.getLastModifiedTime(file).toMillis() < olderThanMillis
+                && Files.deleteIfExists(file)) {
+              deleted++;
+            }
+          } catch (NoSuchFileException e) {
+            // Renamed into place or deleted meanwhile.
+          }
+        }
+      }
+    }
+    return deleted;
+  }
+
+  // ── Presence index ──────────────────────────────────────────────────
+
+  @EventListener(ApplicationStartedEvent.class)
+  void loadPresenceInBackground() {
+    if (presence == null) {
+      return;
+    }
+    for (Layer layer : layerStore.getLayers().values()) {
+      startLoadingPresence(layer.effectiveId());
+    }
+  }
+
+  /**
+   * A layer added at runtime may come with tiles (an import, a GeoTIFF tiled outside the store),
+   * so it is walked too. The index left behind when a layer of the same id was removed says it is
+   * empty; it is reset first, so nothing is reported missing before the walk has seen it.
+   */
+  @EventListener
+  void onLayerChanged(final LayerChangedEvent event) {
+    if (presence != null && event.kind() == LayerChangedEvent.Kind.ADDED) {
+      presence.reset(event.layerName());
+      startLoadingPresence(event.layerName());
+    }
+  }
+
+  private void startLoadingPresence(final String layerId) {
+    Thread.ofVirtual().name("tile-presence-" + layerId).start(() -> loadPresence(layerId));
+  }
+
+  /**
+   * Fills the layer's presence index from its saved copy, or else by walking its tiles, and marks
+   * it complete. Tiles written or deleted meanwhile are tracked as they happen.
+   */
+  void loadPresence(final String layerId) {
+    Path file = layerDirectory(layerId).resolve(PRESENCE_FILE);
+    try {
+      boolean restored = false;
+      if (Files.exists(file)) {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+          presence.read(layerId, in);
+          restored = true;
+        } catch (IOException e) {
+          LOGGER.warn("Failed to read the presence index of layer {}; walking it.", layerId, e);
+        }
+        Files.deleteIfExists(file);
+      }
+      if (!restored) {
+        forEach(layerId, entry -> presence.add(entry.tile()));
+      }
+      presence.markComplete(layerId);
+      LOGGER.debug("Presence index of layer {} is {}.", layerId, restored ? "loaded" : "built");
+    } catch (IOException e) {
+      LOGGER.warn("Failed to build the presence index of layer {}.", layerId, e);
+    }
+  }
+
+  /** Saves the index of every layer it is complete for, for the next startup. */
+  @PreDestroy
+  void savePresence() {
+    if (presence == null) {
+      return;
+    }
+    for (Layer layer : layerStore.getLayers().values()) {
+      String layerId = layer.effectiveId();
+      Path layerDir = layerDirectory(layerId);
+      if (!presence.isComplete(layerId) || !Files.isDirectory(layerDir)) {
+        continue;
+      }
+      Path file = layerDir.resolve(PRESENCE_FILE);
+      Path tmp = file.resolveSibling(PRESENCE_FILE + TEMP_SUFFIX);
+      try {
+        try (var out =
+            new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+          presence.write(layerId, out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        LOGGER.warn("Failed to save the presence index of layer {}.", layerId, e);
+      }
+    }
+  }
+
+  /** Whether the presence index knows the tile is not on disk. */
+  private boolean isKnownAbsent(final Tile tile) {
+    return presence != null && presence.isAbsent(tile);
+  }
+
+  @Override
+  public Optional<Path> file(final Tile tile) {
+    if (isKnownAbsent(tile)) {
+      return Optional.empty();
+    }
+    Path path = toPath(tile);
+    return Files.isRegularFile(path) ? Optional.of(path) : Optional.empty();
+  }
+
+  /**
+   * Where the tile is (or would be) stored: under the layer's extension, unless only a {@code png}
+   * file exists for it.
+   */
+  public Path toPath(final Tile tile) {
+    Layer layer = layerStore.getLayers().get(tile.layerId());
+    String ext = layer != null ? layer.tileFileExtension() : "png";
+    Path preferred = tilePath(tile, ext);
+    if (ext.equals("png") || isKnownAbsent(tile) || Files.exists(preferred)) {
+      return preferred;
+    }
+    Path pngFallback = tilePath(tile, "png");
+    return Files.exists(pngFallback) ? pngFallback : preferred;
+  }
+
+  /** The tile stored at {@code {layerDir}/{z}/{x}/{y}.{ext}}, or null for anything else. */
+  static Tile toTile(final String layerId, final Path layerDir, final Path path) {
+    Path relative = layerDir.relativize(path);
+    if (relative.getNameCount() != 3) {
+      return null;
+    }
+    String file = relative.getFileName().toString();
+    int dot = file.indexOf('.');
+    if (file.startsWith(".") || dot < 0) {
+      return null;
+    }
+    try {
+      int z = Integer.parseInt(relative.getName(0).toString());
+      int x = Integer.parseInt(relative.getName(1).toString());
+      int y = Integer.parseInt(file.substring(0, dot));
+      return new Tile(layerId, x, y, z);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private record FileEntry(Tile tile, Path path, BasicFileAttributes attributes)
+      implements Entry {
+    @Override
+    public long size() {
+      return attributes.size();
+    }
+
+    @Override
+    public long writtenAt() {
+      return attributes.lastModifiedTime().toMillis();
+    }
+
+    @Override
+    public byte[] read() throws IOException {
+      return Files.readAllBytes(path);
+    }
+
+    @Override
+    public byte[] read(final long position, final int length) throws IOException {
+      ByteBuffer buffer =
+          ByteBuffer.allocate((int) Math.max(0, Math.min(length, attributes.size() - position)));
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        int read = 0;
+        while (buffer.hasRemaining() && read >= 0) {
+          read = channel.read(buffer, position + buffer.position());
+        }
+      }
+      return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+  }
+
+  private Path layerDirectory(final String layerId) {
+    return Paths.get(configuration.getBaseTileDirectory(), layerId);
+  }
+
+  private Path tilePath(final Tile tile, final String ext) {
+    return Paths.get(
+        configuration.getBaseTileDirectory(),
+        tile.layerId(),
+        String.valueOf(tile.z()),
+        String.valueOf(tile.x()),
+        tile.y() + "." + ext);
+  }
+
+  private static List<Path> list(final Path dir) throws IOException {
+    try (Stream<Path> children = Files.list(dir)) {
+      return children.toList();
+    } catch (NoSuchFileException e) {
+      return List.of();
+    }
+  }
+
+  private static int parse(final String name) {
+    try {
+      return Integer.parseInt(name);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
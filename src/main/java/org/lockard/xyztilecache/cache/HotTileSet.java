@@ -0,0 +1,229 @@
+package org.lockard.xyztilecache.cache;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.store.LayerStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Carries the in-memory cache's hot set across restarts. With {@code xyz.hotSetBytes} set, the keys
+ * of the hottest tiles (per Caffeine's eviction policy) that fit in that many bytes are written to
+ * {@code {baseTileDirectory}/.hot-tiles} every {@code xyz.hotSetSnapshotSeconds} and at shutdown.
+ * On startup they are read back from disk into the cache in the background, hottest first — never
+ * from the upstream, so an expired or missing tile is simply skipped.
+ *
+ * <p>Only keys are stored; the bytes are already on disk. As a health indicator this reports
+ * {@code OUT_OF_SERVICE} until the restore has finished, so including it in the readiness group
+ * keeps traffic away until the cache is warm.
+ */
+@Component("hotTileSet")
+public class HotTileSet implements HealthIndicator {
+  private static final Logger LOGGER = LoggerFactory.getLogger(HotTileSet.class);
+
+  static final String SNAPSHOT_FILE = ".hot-tiles";
+  private static final int MAGIC = 0x58485331; // "XHS1"
+
+  private final AsyncLoadingCache<Tile, CachedTile> tileCache;
+  private final XyzConfiguration configuration;
+  private final LayerStore layerStore;
+  private final OfflineCacheLoader diskTiles;
+  private volatile boolean restored;
+
+  public HotTileSet(
+      final AsyncLoadingCache<Tile, CachedTile> tileCache,
+      final XyzConfiguration configuration,
+      final LayerStore layerStore,
+      final TileStore tiles) {
+    this.tileCache = tileCache;
+    this.configuration = configuration;
+    this.layerStore = layerStore;
+    this.diskTiles = new OfflineCacheLoader(configuration, layerStore, tiles);
+    this.restored = !isEnabled();
+  }
+
+  public boolean isEnabled() {
+    return configuration.getHotSetBytes() > 0;
+  }
+
+  @Override
+  public Health health() {
+    return restored ? Health.up().build() : Health.outOfService().build();
+  }
+
+  /** Starts the restore once the context is up, before the application reports ready. */
+  @EventListener(ApplicationStartedEvent.class)
+  void restoreInBackground() {
+    if (!isEnabled()) {
+      return;
+    }
+    Thread.ofVirtual().name("hot-tile-restore").start(this::restore);
+  }
+
+  /** Loads the snapshot's tiles from disk into the cache, up to {@code xyz.hotSetBytes}. */
+  void restore() {
+    try {
+      List<Tile> tiles = readSnapshot();
+      long budget = configuration.getHotSetBytes();
+      long loadedBytes = 0;
+      int loaded = 0;
+      for (Tile saved : tiles) {
+        if (loadedBytes >= budget) {
+          break;
+        }
+        Tile tile = saved.withGeneration(layerStore.getGeneration(saved.layerId()));
+        // Through the map view, so warming the cache does not count a miss per tile.
+        if (!layerStore.getLayers().containsKey(tile.layerId())
+            || tileCache.asMap().containsKey(tile)) {
+          continue;
+        }
+        CachedTile cached;
+        try {
+          cached = diskTiles.load(tile);
+        } catch (Exception e) {
+          // Gone, expired or unreadable: leave it to the next request.
+          continue;
+        }
+        var entry = CompletableFuture.completedFuture(cached);
+        if (tileCache.asMap().putIfAbsent(tile, entry) == null) {
+          loadedBytes += cached.data().length;
+          loaded++;
+        }
+      }
+      LOGGER.info("Restored {} hot tile(s) ({} bytes) into the tile cache.", loaded, loadedBytes);
+    } catch (NoSuchFileException e) {
+      LOGGER.debug("No hot tile snapshot to restore.");
+    } catch (IOException e) {
+      LOGGER.warn("Failed to read the hot tile snapshot.", e);
+    } finally {
+      restored = true;
+    }
+  }
+
+  @Scheduled(
+      initialDelayString = "${xyz.hotSetSnapshotSeconds:300}000",
+      fixedDelayString = "${xyz.hotSetSnapshotSeconds:300}000")
+  void scheduledSnapshot() {
+    // A snapshot taken before the restore finished would drop the tiles not yet read back.
+    if (restored) {
+      snapshot();
+    }
+  }
+
+  @PreDestroy
+  void snapshotOnShutdown() {
+    if (restored) {
+      snapshot();
+    }
+  }
+
+  /** Writes the keys of the hottest tiles that fit in {@code xyz.hotSetBytes}, hottest first. */
+  synchronized void snapshot() {
+    if (!isEnabled()) {
+      return;
+    }
+    Map<Tile, CachedTile> hottest =
+        tileCache
+            .synchronous()
+            .policy()
+            .eviction()
+            .map(eviction -> eviction.hottestWeighted(configuration.getHotSetBytes()))
+            .orElse(Map.of());
+    Path file = snapshotPath();
+    Path tmp = file.resolveSibling(SNAPSHOT_FILE + ".tmp");
+    try {
+      Files.createDirectories(file.getParent());
+      try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        writeSnapshot(out, hottest.keySet());
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      LOGGER.debug("Wrote {} hot tile key(s) to {}.", hottest.size(), file);
+    } catch (IOException e) {
+      LOGGER.warn("Failed to write the hot tile snapshot.", e);
+    }
+  }
+
+  /**
+   * {@code int magic, int layerCount, UTF layerId[layerCount], int tileCount}, then per tile {@code
+   * short layerIndex, byte z, int x, int y}.
+   */
+  static void writeSnapshot(final DataOutputStream out, final Iterable<Tile> tiles)
+      throws IOException {
+    Map<String, Integer> layerIndex = new HashMap<>();
+    List<String> layers = new ArrayList<>();
+    int count = 0;
+    for (Tile tile : tiles) {
+      if (layerIndex.putIfAbsent(tile.layerId(), layers.size()) == null) {
+        layers.add(tile.layerId());
+      }
+      count++;
+    }
+    out.writeInt(MAGIC);
+    out.writeInt(layers.size());
+    for (String layer : layers) {
+      out.writeUTF(layer);
+    }
+    out.writeInt(count);
+    for (Tile tile : tiles) {
+      out.writeShort(layerIndex.get(tile.layerId()));
+      out.writeByte(tile.z());
+      out.writeInt(tile.x());
+      out.writeInt(tile.y());
+    }
+  }
+
+  static List<Tile> readSnapshot(final DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a hot tile snapshot.");
+    }
+    String[] layers = new String[in.readInt()];
+    for (int i = 0; i < layers.length; i++) {
+      layers[i] = in.readUTF();
+    }
+    int count = in.readInt();
+    List<Tile> tiles = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      String layer = layers[in.readUnsignedShort()];
+      int z = in.readUnsignedByte();
+      int x = in.readInt();
+      int y = in.readInt();
+      tiles.add(new Tile(layer, x, y, z));
+    }
+    return tiles;
+  }
+
+  private List<Tile> readSnapshot() throws IOException {
+    try (var in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath())))) {
+      return readSnapshot(in);
+    }
+  }
+
+  private Path snapshotPath() {
+    return Paths.get(configuration.getBaseTileDirectory(), SNAPSHOT_FILE);
+  }
+}
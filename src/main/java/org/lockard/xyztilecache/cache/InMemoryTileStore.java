@@ -0,0 +1,99 @@
+package org.lockard.xyztilecache.cache;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.lockard.xyztilecache.XyzUtil;
+import org.lockard.xyztilecache.model.BoundingBox;
+import org.lockard.xyztilecache.model.Tile;
+import org.springframework.lang.Nullable;
+
+/**
+ * A {@link TileStore} on the heap, for tests and for benchmarking the other stores against one
+ * with no I/O at all. Not a bean: nothing is persisted.
+ */
+public class InMemoryTileStore implements TileStore {
+
+  private final Map<Tile, StoredTile> tiles = new ConcurrentHashMap<>();
+
+  @Override
+  public Optional<StoredTile> get(final Tile tile) {
+    return Optional.ofNullable(tiles.get(key(tile)));
+  }
+
+  @Override
+  public boolean exists(final Tile tile) {
+    return tiles.containsKey(key(tile));
+  }
+
+  @Override
+  public long put(final Tile tile, final byte[] data, final long writtenAt) {
+    StoredTile previous = tiles.put(key(tile), new StoredTile(data.clone(), writtenAt));
+    return previous != null ? previous.data().length : -1;
+  }
+
+  @Override
+  public long delete(final Tile tile) {
+    StoredTile previous = tiles.remove(key(tile));
+    return previous != null ? previous.data().length : -1;
+  }
+
+  @Override
+  public void deleteLayer(final String layerId) {
+    tiles.keySet().removeIf(tile -> tile.layerId().equals(layerId));
+  }
+
+  @Override
+  public void forEach(
+      final String layerId,
+      final int minZoom,
+      final int maxZoom,
+      @Nullable final BoundingBox bbox,
+      final Visitor visitor)
+      throws IOException {
+    for (Map.Entry<Tile, StoredTile> e : Map.copyOf(tiles).entrySet()) {
+      Tile tile = e.getKey();
+      if (!tile.layerId().equals(layerId) || tile.z() < minZoom || tile.z() > maxZoom) {
+        continue;
+      }
+      if (bbox != null) {
+        XyzUtil.TileRange range = XyzUtil.calculateTileRange(bbox, tile.z());
+        if (tile.x() < range.xMin()
+            || tile.x() > range.xMax()
+            || tile.y() < range.yMin()
+            || tile.y() > range.yMax()) {
+          continue;
+        }
+      }
+      StoredTile stored = e.getValue();
+      visitor.visit(
+          new Entry() {
+            @Override
+            public Tile tile() {
+              return tile;
+            }
+
+            @Override
+            public long size() {
+              return stored.data().length;
+            }
+
+            @Override
+            public long writtenAt() {
+              return stored.writtenAt();
+            }
+
+            @Override
+            public byte[] read() {
+              return stored.data().clone();
+            }
+          });
+    }
+  }
+
+  /** Stores address tiles by position only, whatever generation the caller's key carries. */
+  private static Tile key(final Tile tile) {
+    return tile.withGeneration(0);
+  }
+}
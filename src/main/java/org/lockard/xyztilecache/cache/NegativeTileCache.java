@@ -0,0 +1,399 @@
+package org.lockard.xyztilecache.cache;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.LayerChangedEvent;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.pmtiles.PmtilesReader;
+import org.lockard.xyztilecache.store.LayerStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers tiles a source authoritatively does not have (HTTP 404, empty body, or a LOCAL /
+ * offline disk miss) so repeat requests are answered without a network round trip or a stat().
+ *
+ * <p>Entries are kept per layer in an open-addressing table from the PMTiles Hilbert tile id to
+ * its expiry (two longs a slot, nothing boxed) and expire after {@code xyz.negativeCacheMinutes}.
+ * A lookup, made for every tile request, takes no lock; recording a miss locks only its layer.
+ * A layer holds at most {@code xyz.negativeCacheMaxTiles}; when full, the expired entries go and,
+ * if that is not enough, those that expire soonest. Each miss is also appended as a 16-byte
+ * tombstone (tile id, expiry) to {@code {layer}/.tombstones}, through a channel kept open per
+ * layer, so the set survives restarts. The log is rewritten with only its live entries when
+ * loaded, and again whenever fewer than half of its records are still live.
+ */
+@Component
+@DependsOn("layerStore")
+public class NegativeTileCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(NegativeTileCache.class);
+
+  static final String TOMBSTONE_FILE = ".tombstones";
+
+  /** Records a log may have before it is considered for compaction at all. */
+  static final int COMPACT_MIN_RECORDS = 1024;
+
+  /** Largest per-layer cap honoured, so a layer's table stays within a few hundred MiB. */
+  private static final long MAX_TILES_LIMIT = 1 << 24;
+
+  private final XyzConfiguration configuration;
+  private final LayerStore layerStore;
+  private final Map<String, LayerTombstones> byLayer = new ConcurrentHashMap<>();
+
+  public NegativeTileCache(final XyzConfiguration configuration, final LayerStore layerStore) {
+    this.configuration = configuration;
+    this.layerStore = layerStore;
+  }
+
+  @PostConstruct
+  void loadTombstones() {
+    if (!isEnabled()) {
+      return;
+    }
+    layerStore.getLayers().keySet().forEach(this::loadLayer);
+  }
+
+  @PreDestroy
+  void close() {
+    byLayer.values().forEach(LayerTombstones::close);
+  }
+
+  public boolean isEnabled() {
+    return configuration.getNegativeCacheMinutes() > 0;
+  }
+
+  /** True if the tile was recorded missing and its tombstone has not yet expired. */
+  public boolean isKnownMissing(final Tile tile) {
+    LayerTombstones layer = byLayer.get(tile.layerId());
+    return layer != null && layer.contains(tileId(tile), System.currentTimeMillis());
+  }
+
+  /**
+   * Records an authoritative miss for {@code tile}, in memory and as an on-disk tombstone. A miss
+   * from before the layer's source changed says nothing about the new source and is ignored.
+   */
+  public void recordMissing(final Tile tile) {
+    if (!isEnabled()
+        || !layerStore.getLayers().containsKey(tile.layerId())
+        || tile.generation() != layerStore.getGeneration(tile.layerId())) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long expiresAt = now + configuration.getNegativeCacheMinutes() * 60_000L;
+    layerTombstones(tile.layerId()).record(tileId(tile), expiresAt, now);
+  }
+
+  /** Drops every negative entry for a layer, e.g. after tiles were imported into it. */
+  public void clearLayer(final String layerId) {
+    LayerTombstones layer = byLayer.remove(layerId);
+    if (layer != null) {
+      layer.close();
+    }
+    try {
+      Files.deleteIfExists(tombstonePath(layerId));
+    } catch (IOException e) {
+      LOGGER.warn("Failed to delete tombstones for layer {}.", layerId, e);
+    }
+  }
+
+  /** Number of live negative entries for a layer. */
+  public long size(final String layerId) {
+    LayerTombstones layer = byLayer.get(layerId);
+    return layer != null ? layer.liveCount(System.currentTimeMillis()) : 0;
+  }
+
+  /**
+   * A new layer or a changed source invalidates what the old source did not have; a removed layer
+   * has nothing left to remember.
+   */
+  @EventListener
+  void onLayerChanged(LayerChangedEvent event) {
+    if (event.kind() == LayerChangedEvent.Kind.UPDATED_ACL) {
+      return;
+    }
+    clearLayer(event.layerName());
+  }
+
+  private LayerTombstones layerTombstones(final String layerId) {
+    return byLayer.computeIfAbsent(layerId, LayerTombstones::new);
+  }
+
+  private void loadLayer(final String layerId) {
+    Path file = tombstonePath(layerId);
+    if (!Files.isRegularFile(file)) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    LayerTombstones layer = layerTombstones(layerId);
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      while (true) {
+        long id = in.readLong();
+        long expiresAt = in.readLong();
+        if (expiresAt > now) {
+          layer.put(id, expiresAt, now);
+        }
+      }
+    } catch (EOFException e) {
+      // End of log; a torn trailing record from a crash is simply dropped.
+    } catch (IOException e) {
+      LOGGER.warn("Failed to read tombstones for layer {}.", layerId, e);
+      return;
+    }
+    layer.compact(now);
+    LOGGER.debug("Loaded {} tombstone(s) for layer {}.", layer.liveCount(now), layerId);
+  }
+
+  private Path tombstonePath(final String layerId) {
+    return Paths.get(configuration.getBaseTileDirectory(), layerId, TOMBSTONE_FILE);
+  }
+
+  private static long tileId(final Tile tile) {
+    return PmtilesReader.tileId(tile.z(), tile.x(), tile.y());
+  }
+
+  /**
+   * One layer's tombstones: the table, kept at most three quarters full, and the log they are
+   * appended to. Lookups take no lock: they read whichever table is current, whose slots are only
+   * ever filled in (an id, then its expiry, released) or re-armed while it is current; removing
+   * entries or growing builds a new table and swaps it in whole. Changes are serialized on this.
+   */
+  private final class LayerTombstones {
+    private final String layerId;
+    private final int maxTiles;
+    private volatile Table table = new Table(16);
+    private int size;
+    private FileChannel log;
+    private long logRecords;
+    private long compactAt = COMPACT_MIN_RECORDS;
+    private boolean closed;
+
+    LayerTombstones(final String layerId) {
+      this.layerId = layerId;
+      this.maxTiles =
+          (int) Math.min(MAX_TILES_LIMIT, Math.max(1, configuration.getNegativeCacheMaxTiles()));
+    }
+
+    boolean contains(final long id, final long now) {
+      Table current = table;
+      return current.expiry(current.slot(id)) > now;
+    }
+
+    /** Remembers the miss and appends its tombstone, unless it was already known. */
+    synchronized void record(final long id, final long expiresAt, final long now) {
+      if (closed) {
+        return;
+      }
+      int slot = table.slot(id);
+      if (table.expiry(slot) > now) {
+        // Already known (a concurrent load recorded it first); the tombstone is on disk.
+        return;
+      }
+      store(id, expiresAt, now);
+      append(id, expiresAt, now);
+    }
+
+    /** Remembers the miss without logging it: it is being read back from the log. */
+    synchronized void put(final long id, final long expiresAt, final long now) {
+      store(id, expiresAt, now);
+    }
+
+    synchronized long liveCount(final long now) {
+      return table.liveCount(now);
+    }
+
+    /** Rewrites the log with only the live entries. */
+    synchronized void compact(final long now) {
+      closeLog();
+      Path file = tombstonePath(layerId);
+      Path tmp = file.resolveSibling(TOMBSTONE_FILE + ".tmp");
+      Table current = table;
+      long written = 0;
+      try {
+        try (var out =
+            new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+          for (int i = 0; i < current.ids.length; i++) {
+            if (current.expiries[i] > now) {
+              out.writeLong(current.ids[i]);
+              out.writeLong(current.expiries[i]);
+              written++;
+            }
+          }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logRecords = written;
+      } catch (IOException e) {
+        LOGGER.warn("Failed to compact tombstones for layer {}.", layerId, e);
+      }
+      compactAt = logRecords + Math.max(COMPACT_MIN_RECORDS, written);
+    }
+
+    synchronized void close() {
+      closed = true;
+      closeLog();
+    }
+
+    /** Sets the id's expiry, first making room for it if it is new. */
+    private void store(final long id, final long expiresAt, final long now) {
+      int slot = table.slot(id);
+      if (table.expiry(slot) == 0) {
+        if (size >= maxTiles) {
+          evict(now);
+        }
+        if ((size + 1) * 4L > table.ids.length * 3L) {
+          rebuild(table.ids.length * 2, 0);
+        }
+        slot = table.slot(id);
+        table.ids[slot] = id;
+        size++;
+      }
+      table.setExpiry(slot, expiresAt);
+    }
+
+    /**
+     * Drops the expired entries and, if more than three quarters of the cap are still live, those
+     * expiring soonest down to that; so the next eviction is a quarter of the cap away.
+     */
+    private void evict(final long now) {
+      int keep = Math.min(maxTiles - 1, maxTiles - maxTiles / 4);
+      long cutoff = now;
+      if (table.liveCount(now) > keep) {
+        long[] live = new long[size];
+        int n = 0;
+        for (long expiresAt : table.expiries) {
+          if (expiresAt > now) {
+            live[n++] = expiresAt;
+          }
+        }
+        Arrays.sort(live, 0, n);
+        cutoff = live[n - keep - 1];
+      }
+      rebuild(table.ids.length, cutoff);
+    }
+
+    /** Swaps in a table of {@code capacity} slots holding the entries expiring after cutoff. */
+    private void rebuild(final int capacity, final long cutoff) {
+      Table old = table;
+      Table rebuilt = new Table(capacity);
+      size = 0;
+      for (int i = 0; i < old.ids.length; i++) {
+        if (old.expiries[i] > cutoff) {
+          int slot = rebuilt.slot(old.ids[i]);
+          rebuilt.ids[slot] = old.ids[i];
+          rebuilt.expiries[slot] = old.expiries[i];
+          size++;
+        }
+      }
+      table = rebuilt;
+    }
+
+    private void append(final long id, final long expiresAt, final long now) {
+      try {
+        if (log == null) {
+          Path file = tombstonePath(layerId);
+          Files.createDirectories(file.getParent());
+          log =
+              FileChannel.open(
+                  file,
+                  StandardOpenOption.CREATE,
+                  StandardOpenOption.WRITE,
+                  StandardOpenOption.APPEND);
+        }
+        ByteBuffer record = ByteBuffer.allocate(16).putLong(id).putLong(expiresAt).flip();
+        while (record.hasRemaining()) {
+          log.write(record);
+        }
+      } catch (IOException e) {
+        LOGGER.debug("Failed to persist tombstone for layer {}.", layerId, e);
+        return;
+      }
+      if (++logRecords >= compactAt) {
+        long live = liveCount(now);
+        if (live * 2 < logRecords) {
+          compact(now);
+        } else {
+          compactAt = logRecords + Math.max(COMPACT_MIN_RECORDS, live);
+        }
+      }
+    }
+
+    private void closeLog() {
+      if (log == null) {
+        return;
+      }
+      try {
+        log.close();
+      } catch (IOException e) {
+        LOGGER.debug("Failed to close the tombstone log of layer {}.", layerId, e);
+      }
+      log = null;
+    }
+  }
+
+  /**
+   * Open-addressing table from tile id to expiry, two longs a slot; expiry 0 marks a free slot.
+   * Expiries are written with release and read with acquire semantics, so a reader that finds one
+   * also sees the id it belongs to.
+   */
+  private static final class Table {
+    private static final VarHandle EXPIRY = MethodHandles.arrayElementVarHandle(long[].class);
+
+    final long[] ids;
+    final long[] expiries;
+    private final int shift;
+
+    Table(final int capacity) {
+      ids = new long[capacity];
+      expiries = new long[capacity];
+      shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    /** The slot holding {@code id}, or the free slot it would go in. */
+    int slot(final long id) {
+      int mask = ids.length - 1;
+      int i = (int) (id * 0x9E3779B97F4A7C15L >>> shift);
+      while (expiry(i) != 0 && ids[i] != id) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    long expiry(final int slot) {
+      return (long) EXPIRY.getAcquire(expiries, slot);
+    }
+
+    void setExpiry(final int slot, final long expiresAt) {
+      EXPIRY.setRelease(expiries, slot, expiresAt);
+    }
+
+    long liveCount(final long now) {
+      long live = 0;
+      for (int i = 0; i < expiries.length; i++) {
+        if (expiry(i) > now) {
+          live++;
+        }
+      }
+      return live;
+    }
+  }
+}
@@ -0,0 +1,417 @@
+package org.lockard.xyztilecache.cache;
+
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.Tile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * A second in-memory tier for raster tiles whose bytes live off-heap in {@link MemorySegment}
+ * slabs, so {@code xyz.offHeapCacheBytes} can run to many gigabytes without the GC ever scanning
+ * or copying tile payloads. The heap only holds a {@code Tile -> long} index and each slot's small
+ * {@link CachedTile} metadata (content type, ETag, timestamps).
+ *
+ * <p>Memory is carved into {@link #SLAB_BYTES} slabs, allocated lazily up to the budget. Each slab
+ * serves one power-of-two size class from {@link #MIN_SLOT_BYTES} upwards (memcached-style), so a
+ * slot never fragments. When a class is full its slots are evicted in CLOCK order; a class with no
+ * slabs at all takes one from the class holding the most. Layer changes need nothing here: the
+ * layer's old {@link Tile} generation is never asked for again, so its slots stay unreferenced and
+ * are the first the CLOCK hand reuses.
+ *
+ * <p>Writes are serialised under one lock — they happen at disk/upstream load rate. Reads are
+ * lock-free: each slot carries a seqlock stamp that writers make odd while a slot is being
+ * rewritten, and a reader that sees the stamp move (or the key change) treats the read as a miss.
+ *
+ * <p>Plugged in by wrapping the heap cache's loader with {@link #tiered}: a heap miss consults this
+ * tier before disk or upstream, and whatever the loader returns is copied in.
+ */
+@Component
+public class OffHeapTileCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapTileCache.class);
+
+  static final int SLAB_BYTES = 16 << 20;
+  static final int MIN_SLOT_BYTES = 512;
+  private static final int SIZE_CLASSES =
+      Integer.numberOfTrailingZeros(SLAB_BYTES / MIN_SLOT_BYTES) + 1;
+
+  private final int maxSlabs;
+  private final Arena arena;
+
+  private final Map<Tile, Long> index = new ConcurrentHashMap<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Slab[] slabs;
+  private int slabCount;
+  private final List<List<Integer>> classSlabs = new ArrayList<>(SIZE_CLASSES);
+  private final int[] clockSlab = new int[SIZE_CLASSES];
+  private final int[] clockSlot = new int[SIZE_CLASSES];
+  private long usedBytes;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public OffHeapTileCache(final XyzConfiguration configuration, final MeterRegistry meterRegistry) {
+    this.maxSlabs =
+        (int) Math.min(Integer.MAX_VALUE, configuration.getOffHeapCacheBytes() / SLAB_BYTES);
+    this.slabs = new Slab[maxSlabs];
+    this.arena = maxSlabs > 0 ? Arena.ofShared() : null;
+    for (int i = 0; i < SIZE_CLASSES; i++) {
+      classSlabs.add(new ArrayList<>());
+    }
+    if (maxSlabs > 0) {
+      registerMeters(meterRegistry);
+      LOGGER.info(
+          "Off-heap tile cache enabled: {} MiB in {} slab(s).",
+          (long) maxSlabs * SLAB_BYTES >> 20,
+          maxSlabs);
+    }
+  }
+
+  public boolean isEnabled() {
+    return maxSlabs > 0;
+  }
+
+  /**
+   * Wraps {@code loader} so that misses in the heap cache are served from this tier when possible
+   * and successful loads are copied into it. Returns {@code loader} unchanged when disabled.
+   */
+  public AsyncCacheLoader<Tile, CachedTile> tiered(
+      final AsyncCacheLoader<Tile, CachedTile> loader) {
+    if (!isEnabled()) {
+      return loader;
+    }
+    return new AsyncCacheLoader<>() {
+      @Override
+      public CompletableFuture<CachedTile> asyncLoad(final Tile tile, final Executor executor)
+          throws Exception {
+        CachedTile hit = get(tile);
+        if (hit != null) {
+          return CompletableFuture.completedFuture(hit);
+        }
+        return loader.asyncLoad(tile, executor).thenApply(cached -> copyIn(tile, cached));
+      }
+
+      // A refresh must reach the real loader; this tier holds the same bytes as the heap entry.
+      @Override
+      public CompletableFuture<CachedTile> asyncReload(
+          final Tile tile, final CachedTile oldValue, final Executor executor) throws Exception {
+        return loader
+            .asyncReload(tile, oldValue, executor)
+            .thenApply(cached -> cached == oldValue ? cached : copyIn(tile, cached));
+      }
+    };
+  }
+
+  private CachedTile copyIn(final Tile tile, final CachedTile cached) {
+    put(tile, cached);
+    return cached;
+  }
+
+  /** The tile with its bytes copied onto the heap, or null on a miss or an expired entry. */
+  public CachedTile get(final Tile tile) {
+    Long handle = index.get(tile);
+    CachedTile cached = handle == null ? null : read(tile, handle);
+    if (cached == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return cached;
+  }
+
+  /** Copies the tile's bytes off-heap, evicting older tiles of the same size class if needed. */
+  public void put(final Tile tile, final CachedTile cached) {
+    final byte[] data = cached.data();
+    if (!isEnabled() || data.length > SLAB_BYTES) {
+      return;
+    }
+    int sizeClass = sizeClass(data.length);
+    lock.lock();
+    try {
+      Long previous = index.remove(tile);
+      if (previous != null) {
+        release(previous, true);
+      }
+      long handle = allocate(sizeClass);
+      Slab slab = slabs[slabIndex(handle)];
+      int slot = slot(handle);
+      slab.stamps.incrementAndGet(slot);
+      MemorySegment.copy(
+          data, 0, slab.segment, ValueLayout.JAVA_BYTE, slab.offset(slot), data.length);
+      slab.keys[slot] = tile;
+      slab.lengths[slot] = data.length;
+      slab.contentTypes[slot] = cached.contentType();
+      slab.etags[slot] = cached.etag();
+      slab.fetchedAt[slot] = cached.fetchedAt();
+      slab.expiresAt[slot] = cached.expiresAt();
+      slab.referenced[slot] = false;
+      slab.stamps.incrementAndGet(slot);
+      usedBytes += data.length;
+      index.put(tile, handle);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Number of tiles currently held. */
+  public long size() {
+    return index.size();
+  }
+
+  /** Payload bytes currently held (excluding slot rounding). */
+  public long usedBytes() {
+    lock.lock();
+    try {
+      return usedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @PreDestroy
+  void close() {
+    if (arena == null) {
+      return;
+    }
+    lock.lock();
+    try {
+      index.clear();
+      arena.close();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // ── Reads ─────────────────────────────────────────────────────────────────
+
+  private CachedTile read(final Tile tile, final long handle) {
+    Slab slab = slabs[slabIndex(handle)];
+    int slot = slot(handle);
+    try {
+      long stamp = slab.stamps.get(slot);
+      if ((stamp & 1) != 0 || !tile.equals(slab.keys[slot])) {
+        return null;
+      }
+      int length = slab.lengths[slot];
+      String contentType = slab.contentTypes[slot];
+      String etag = slab.etags[slot];
+      long fetchedAt = slab.fetchedAt[slot];
+      long expiresAt = slab.expiresAt[slot];
+      if (length < 0 || length > slab.slotBytes) {
+        return null;
+      }
+      byte[] data = new byte[length];
+      MemorySegment.copy(slab.segment, ValueLayout.JAVA_BYTE, slab.offset(slot), data, 0, length);
+      VarHandle.acquireFence();
+      if (slab.stamps.get(slot) != stamp) {
+        return null;
+      }
+      CachedTile cached = new CachedTile(data, contentType, fetchedAt, etag, expiresAt);
+      if (cached.isExpired(System.currentTimeMillis())) {
+        return null;
+      }
+      slab.referenced[slot] = true;
+      return cached;
+    } catch (IllegalStateException e) {
+      // The arena was closed during shutdown.
+      return null;
+    }
+  }
+
+  // ── Allocation / eviction (lock held) ─────────────────────────────────────
+
+  private long allocate(final int sizeClass) {
+    List<Integer> owned = classSlabs.get(sizeClass);
+    for (int slabIndex : owned) {
+      Slab slab = slabs[slabIndex];
+      if (slab.freeTop > 0) {
+        return handle(slabIndex, slab.free[--slab.freeTop]);
+      }
+    }
+    if (slabCount < maxSlabs) {
+      int slabIndex = slabCount++;
+      slabs[slabIndex] = new Slab(arena.allocate(SLAB_BYTES, Long.BYTES), slotBytes(sizeClass));
+      owned.add(slabIndex);
+      Slab slab = slabs[slabIndex];
+      return handle(slabIndex, slab.free[--slab.freeTop]);
+    }
+    if (!owned.isEmpty()) {
+      return evictClock(sizeClass);
+    }
+    return stealSlab(sizeClass);
+  }
+
+  /** Second-chance sweep over the class's slots; the first unreferenced one is reused. */
+  private long evictClock(final int sizeClass) {
+    List<Integer> owned = classSlabs.get(sizeClass);
+    while (true) {
+      if (clockSlab[sizeClass] >= owned.size()) {
+        clockSlab[sizeClass] = 0;
+        clockSlot[sizeClass] = 0;
+      }
+      int slabIndex = owned.get(clockSlab[sizeClass]);
+      Slab slab = slabs[slabIndex];
+      int slot = clockSlot[sizeClass];
+      if (++clockSlot[sizeClass] >= slab.slots) {
+        clockSlot[sizeClass] = 0;
+        clockSlab[sizeClass]++;
+      }
+      if (slab.keys[slot] == null) {
+        continue;
+      }
+      if (slab.referenced[slot]) {
+        slab.referenced[slot] = false;
+        continue;
+      }
+      long handle = handle(slabIndex, slot);
+      index.remove(slab.keys[slot], handle);
+      release(handle, false);
+      evictions.increment();
+      return handle;
+    }
+  }
+
+  /** Moves a whole slab from the largest class to {@code sizeClass}, evicting its tiles. */
+  private long stealSlab(final int sizeClass) {
+    int victimClass = 0;
+    for (int c = 1; c < SIZE_CLASSES; c++) {
+      if (classSlabs.get(c).size() > classSlabs.get(victimClass).size()) {
+        victimClass = c;
+      }
+    }
+    List<Integer> victims = classSlabs.get(victimClass);
+    int slabIndex = victims.remove(victims.size() - 1);
+    Slab old = slabs[slabIndex];
+    for (int slot = 0; slot < old.slots; slot++) {
+      Tile key = old.keys[slot];
+      if (key != null) {
+        long handle = handle(slabIndex, slot);
+        index.remove(key, handle);
+        release(handle, false);
+        evictions.increment();
+      }
+    }
+    // Readers holding the old Slab see its keys cleared; readers of the new one see null keys
+    // until a slot is rewritten under a fresh stamp.
+    Slab slab = new Slab(old.segment, slotBytes(sizeClass));
+    slabs[slabIndex] = slab;
+    classSlabs.get(sizeClass).add(slabIndex);
+    return handle(slabIndex, slab.free[--slab.freeTop]);
+  }
+
+  private void release(final long handle, final boolean toFreeList) {
+    Slab slab = slabs[slabIndex(handle)];
+    int slot = slot(handle);
+    if (slab.keys[slot] == null) {
+      return;
+    }
+    slab.stamps.incrementAndGet(slot);
+    slab.keys[slot] = null;
+    slab.etags[slot] = null;
+    usedBytes -= slab.lengths[slot];
+    slab.stamps.incrementAndGet(slot);
+    if (toFreeList) {
+      slab.free[slab.freeTop++] = slot;
+    }
+  }
+
+  private void registerMeters(final MeterRegistry registry) {
+    Gauge.builder("xyz_offheap_tile_cache_size", index, Map::size)
+        .description("Tiles held in the off-heap tile cache.")
+        .register(registry);
+    Gauge.builder("xyz_offheap_tile_cache_bytes", this, OffHeapTileCache::usedBytes)
+        .description("Payload bytes held in the off-heap tile cache.")
+        .baseUnit("bytes")
+        .register(registry);
+    FunctionCounter.builder("xyz_offheap_tile_cache_gets", hits, LongAdder::sum)
+        .tag("result", "hit")
+        .register(registry);
+    FunctionCounter.builder("xyz_offheap_tile_cache_gets", misses, LongAdder::sum)
+        .tag("result", "miss")
+        .register(registry);
+    FunctionCounter.builder("xyz_offheap_tile_cache_evictions", evictions, LongAdder::sum)
+        .register(registry);
+  }
+
+  static int sizeClass(final int length) {
+    int slotBytes = Math.max(MIN_SLOT_BYTES, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+    return Integer.numberOfTrailingZeros(slotBytes / MIN_SLOT_BYTES);
+  }
+
+  private static int slotBytes(final int sizeClass) {
+    return MIN_SLOT_BYTES << sizeClass;
+  }
+
+  private static long handle(final int slabIndex, final int slot) {
+    return ((long) slabIndex << 32) | slot;
+  }
+
+  private static int slabIndex(final long handle) {
+    return (int) (handle >>> 32);
+  }
+
+  private static int slot(final long handle) {
+    return (int) handle;
+  }
+
+  /** One {@link #SLAB_BYTES} segment divided into equal slots of a single size class. */
+  private static final class Slab {
+    final MemorySegment segment;
+    final int slotBytes;
+    final int slots;
+    final Tile[] keys;
+    final int[] lengths;
+    final String[] contentTypes;
+    final String[] etags;
+    final long[] fetchedAt;
+    final long[] expiresAt;
+    final boolean[] referenced;
+    final AtomicLongArray stamps;
+    final int[] free;
+    int freeTop;
+
+    Slab(final MemorySegment segment, final int slotBytes) {
+      this.segment = segment;
+      this.slotBytes = slotBytes;
+      this.slots = SLAB_BYTES / slotBytes;
+      this.keys = new Tile[slots];
+      this.lengths = new int[slots];
+      this.contentTypes = new String[slots];
+      this.etags = new String[slots];
+      this.fetchedAt = new long[slots];
+      this.expiresAt = new long[slots];
+      this.referenced = new boolean[slots];
+      this.stamps = new AtomicLongArray(slots);
+      this.free = new int[slots];
+      // Hand out low slots first so a lightly used slab touches as few pages as possible.
+      for (int i = 0; i < slots; i++) {
+        free[i] = slots - 1 - i;
+      }
+      this.freeTop = slots;
+    }
+
+    long offset(final int slot) {
+      return (long) slot * slotBytes;
+    }
+  }
+}
@@ -1,65 +1,143 @@
 package org.lockard.xyztilecache.cache;
 
 import com.github.benmanes.caffeine.cache.CacheLoader;
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.nio.file.Paths;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Optional;
 import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
 import org.lockard.xyztilecache.model.Layer;
 import org.lockard.xyztilecache.model.Tile;
 import org.lockard.xyztilecache.store.LayerStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
 
 @Component
 @ConditionalOnProperty(name = "xyz.offline", havingValue = "true")
-public class OfflineCacheLoader implements CacheLoader<Tile, byte[]> {
+public class OfflineCacheLoader implements CacheLoader<Tile, CachedTile> {
   private static final Logger LOGGER = LoggerFactory.getLogger(OfflineCacheLoader.class);
 
+  /** Enough leading bytes to tell PNG, JPEG, GIF and WebP apart. */
+  public static final int HEADER_BYTES = 12;
+
   protected final XyzConfiguration configuration;
   protected final LayerStore layerStore;
 
+  /**
+   * Null when this loader is only the disk tier of {@link OnlineCacheLoader}: there a disk miss
+   * just means "go upstream", not that the tile does not exist.
+   */
+  @Nullable private final NegativeTileCache negativeTiles;
+
+  private final TileStore tiles;
+
   public OfflineCacheLoader(final XyzConfiguration configuration, final LayerStore layerStore) {
+    this(configuration, layerStore, new FileSystemTileStore(configuration, layerStore), null);
+  }
+
+  public OfflineCacheLoader(
+      final XyzConfiguration configuration, final LayerStore layerStore, final TileStore tiles) {
+    this(configuration, layerStore, tiles, null);
+  }
+
+  @Autowired
+  public OfflineCacheLoader(
+      final XyzConfiguration configuration,
+      final LayerStore layerStore,
+      final TileStore tiles,
+      @Nullable final NegativeTileCache negativeTiles) {
     this.configuration = configuration;
     this.layerStore = layerStore;
+    this.tiles = tiles;
+    this.negativeTiles = negativeTiles;
   }
 
   @Override
-  public byte[] load(final Tile tile) throws Exception {
+  public CachedTile load(final Tile tile) throws Exception {
     LOGGER.debug("Loading tile {} from local file cache.", tile);
     final Layer layer = requireLayer(tile);
-    final File file = toFile(tile);
-    final int expirationMinutes = layer.tileExpirationMinutes();
-    // In offline mode there is no source to refresh from, so a stale tile beats a 404 and the
-    // expiration check is skipped entirely.
-    if (!configuration.isOffline() && expirationMinutes > 0 && file.exists()) {
-      final long ageMs = System.currentTimeMillis() - file.lastModified();
-      if (ageMs > expirationMinutes * 60_000L) {
-        LOGGER.debug("Tile {} has expired ({} mins old), evicting.", tile, ageMs / 60_000);
-        throw new TileExpiredException(readBytes(file));
+    final Optional<TileStore.StoredTile> stored = tiles.get(tile);
+    if (stored.isEmpty()) {
+      if (negativeTiles != null) {
+        // Offline, the disk is the only source: remember the miss so the next request for this
+        // tile is answered without another stat().
+        negativeTiles.recordMissing(tile);
       }
+      throw new FileNotFoundException("Tile %s is not on disk.".formatted(tile));
+    }
+    // In offline mode there is no source to refresh from, so a stale tile beats a 404 and the
+    // tile never expires.
+    final int expirationMinutes = configuration.isOffline() ? 0 : layer.tileExpirationMinutes();
+    final CachedTile cached =
+        CachedTile.of(stored.get().data(), stored.get().writtenAt(), expirationMinutes);
+    if (cached.isExpired(System.currentTimeMillis())) {
+      LOGGER.debug("Tile {} has expired (fetched at {}), evicting.", tile, cached.fetchedAt());
+      throw new TileExpiredException(cached);
     }
-    return readBytes(file);
+    return cached;
   }
 
-  private static byte[] readBytes(final File file) throws java.io.IOException {
-    try (final var fis = new FileInputStream(file);
-        final var bis = new BufferedInputStream(fis)) {
-      return bis.readAllBytes();
+  /**
+   * A fresh tile file, resolved with one stat and a short header read instead of a full copy.
+   * {@code header} holds up to {@link #HEADER_BYTES} leading bytes for content-type sniffing.
+   */
+  public record DiskTile(Path path, long size, long lastModified, byte[] header) {}
+
+  /**
+   * Looks up a tile on disk without reading its body. Empty when the file is missing or, outside
+   * offline mode, older than the layer's {@code tileExpirationMinutes} — those still go through
+   * {@link #load} so the caller can refresh them. Also empty for a tile the {@link TileStore}
+   * does not keep as a file of its own; {@link #load} reads those.
+   */
+  public Optional<DiskTile> peek(final Tile tile) throws IOException {
+    final Layer layer = requireLayer(tile);
+    final Optional<Path> file = tiles.file(tile);
+    if (file.isEmpty()) {
+      return Optional.empty();
+    }
+    final Path path = file.get();
+    final BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    }
+    final long lastModified = attributes.lastModifiedTime().toMillis();
+    final int expirationMinutes = layer.tileExpirationMinutes();
+    if (!configuration.isOffline()
+        && expirationMinutes > 0
+        && System.currentTimeMillis() - lastModified > expirationMinutes * 60_000L) {
+      return Optional.empty();
     }
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      while (header.hasRemaining() && channel.read(header) > 0) {
+        // keep reading until the header is full or the file ends
+      }
+    }
+    return Optional.of(
+        new DiskTile(
+            path,
+            attributes.size(),
+            lastModified,
+            Arrays.copyOf(header.array(), header.position())));
   }
 
-  public File toFile(final Tile tile) {
-    String ext = requireLayer(tile).tileFileExtension();
-    File preferred = tilePath(tile, ext);
-    if (preferred.exists() || ext.equals("png")) {
-      return preferred;
-    }
-    File pngFallback = tilePath(tile, "png");
-    return pngFallback.exists() ? pngFallback : preferred;
+  /** Whether the tile is on disk at all, fresh or not. */
+  public boolean exists(final Tile tile) throws IOException {
+    return tiles.exists(tile);
   }
 
   private Layer requireLayer(final Tile tile) {
@@ -69,14 +147,4 @@ public class OfflineCacheLoader implements CacheLoader<Tile, byte[]> {
     }
     return layer;
   }
-
-  private File tilePath(final Tile tile, final String ext) {
-    return Paths.get(
-            configuration.getBaseTileDirectory(),
-            tile.layerId(),
-            String.valueOf(tile.z()),
-            String.valueOf(tile.x()),
-            tile.y() + "." + ext)
-        .toFile();
-  }
 }
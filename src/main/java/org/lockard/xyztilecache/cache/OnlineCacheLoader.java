@@ -1,24 +1,42 @@
 package org.lockard.xyztilecache.cache;
 
-import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Tag;
 import io.micrometer.core.instrument.Tags;
 import io.micrometer.core.instrument.Timer;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Clock;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
 import org.lockard.xyztilecache.model.Layer;
+import org.lockard.xyztilecache.model.LayerChangedEvent;
 import org.lockard.xyztilecache.model.LayerRuntimeState;
 import org.lockard.xyztilecache.model.LocalLayer;
 import org.lockard.xyztilecache.model.Tile;
@@ -30,14 +48,21 @@ import org.lockard.xyztilecache.store.LayerStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
 
 @Component
 @ConditionalOnProperty(name = "xyz.offline", havingValue = "false", matchIfMissing = true)
-public class OnlineCacheLoader implements CacheLoader<Tile, byte[]> {
+public class OnlineCacheLoader implements AsyncCacheLoader<Tile, CachedTile> {
   private static final Logger LOGGER = LoggerFactory.getLogger(OnlineCacheLoader.class);
 
   static final String UPSTREAM_FETCH_TIMER = "xyz_upstream_fetch_seconds";
+  static final String BULKHEAD_ACTIVE = "xyz_upstream_bulkhead_active";
+  static final String BULKHEAD_QUEUED = "xyz_upstream_bulkhead_queued";
+  static final String BULKHEAD_REJECTIONS = "xyz_upstream_bulkhead_rejections";
+  static final String HEDGES = "xyz_upstream_hedges";
 
   private final XyzConfiguration configuration;
   private final LayerStore layerStore;
@@ -50,152 +75,305 @@ public class OnlineCacheLoader implements CacheLoader<Tile, byte[]> {
 
   private final MeterRegistry meterRegistry;
 
-  private final ConcurrentMap<String, CountDownLatch> retryLatches = new ConcurrentHashMap<>();
+  private final NegativeTileCache negativeTiles;
+
+  private final ConcurrentMap<String, CompletableFuture<Void>> retryProbes =
+      new ConcurrentHashMap<>();
+
+  private final Set<Tile> refreshing = ConcurrentHashMap.newKeySet();
+
+  private final Semaphore refreshPermits;
+
+  private final Map<String, UpstreamBulkhead> bulkheads = new ConcurrentHashMap<>();
+
+  private final UpstreamHedging hedging;
+
+  private final UpstreamEndpoints endpoints = new UpstreamEndpoints(Clock.systemUTC());
 
   public OnlineCacheLoader(
       final XyzConfiguration configuration,
       final TileWriter tileWriter,
       final LayerStore layerStore,
-      final MeterRegistry meterRegistry) {
+      final MeterRegistry meterRegistry,
+      final NegativeTileCache negativeTiles,
+      final TileStore tiles) {
     this.configuration = configuration;
     this.layerStore = layerStore;
-    offlineCacheLoader = new OfflineCacheLoader(configuration, layerStore);
+    offlineCacheLoader = new OfflineCacheLoader(configuration, layerStore, tiles);
     this.tileWriter = tileWriter;
     this.meterRegistry = meterRegistry;
+    this.negativeTiles = negativeTiles;
+    this.refreshPermits = new Semaphore(Math.max(1, configuration.getRefreshConcurrency()));
+    this.hedging = new UpstreamHedging(configuration);
     httpClient =
         HttpClient.newBuilder()
             .followRedirects(HttpClient.Redirect.NORMAL)
             .connectTimeout(Duration.of(configuration.getTileTimeoutSeconds(), ChronoUnit.SECONDS))
+            .version(configuration.getUpstreamHttpVersion())
             .build();
   }
 
+  /**
+   * Resolves a tile without holding a thread or a cache hash-bin while the upstream responds: the
+   * disk lookup runs on {@code executor} and the source fetch on the {@link HttpClient}'s own
+   * non-blocking machinery. Failures complete the future exceptionally with the same exception
+   * types the synchronous loader used to throw, so callers unwrap one {@link CompletionException}.
+   */
   @Override
-  public byte[] load(final Tile tile) throws InterruptedException, IOException, URISyntaxException {
+  public CompletableFuture<CachedTile> asyncLoad(final Tile tile, final Executor executor) {
     final Layer layer = layerStore.getLayers().get(tile.layerId());
     if (layer == null) {
-      throw new IOException("Layer %s is not configured.".formatted(tile.layerId()));
+      return CompletableFuture.failedFuture(
+          new IOException("Layer %s is not configured.".formatted(tile.layerId())));
+    }
+    return CompletableFuture.supplyAsync(() -> readFromDisk(tile), executor)
+        .thenCompose(
+            disk ->
+                disk.fresh() != null
+                    ? CompletableFuture.completedFuture(disk.fresh())
+                    : loadFromSource(tile, layer, disk));
+  }
+
+  /**
+   * Background refresh of an in-memory entry ({@code xyz.tileCacheRefreshSeconds}). The disk copy
+   * was written together with the entry, so only the source can produce anything newer: go
+   * straight upstream, and keep {@code oldValue} — until it expires — whenever that is not possible
+   * or fails. Tiles that never expire are left alone.
+   */
+  @Override
+  public CompletableFuture<CachedTile> asyncReload(
+      final Tile tile, final CachedTile oldValue, final Executor executor) {
+    final Layer layer = layerStore.getLayers().get(tile.layerId());
+    if (oldValue.expiresAt() == 0
+        || layer == null
+        || layer instanceof LocalLayer
+        || layer instanceof VectorPmtilesLayer
+        || configuration.isOffline()) {
+      return CompletableFuture.completedFuture(oldValue);
     }
+    LayerRuntimeState state = layerStore.getRuntimeState(layer.effectiveId());
+    if (state.requestStrategy() != Layer.RequestStrategy.PROCEED) {
+      return CompletableFuture.completedFuture(oldValue);
+    }
+    return loadTileOnline(tile, layer, state)
+        .exceptionally(
+            error -> {
+              LOGGER.debug("Refresh of tile {} failed; keeping the cached copy.", tile, error);
+              return oldValue;
+            });
+  }
+
+  /**
+   * Result of the disk lookup: a fresh tile, an expired one kept as a fallback, or neither — in
+   * which case {@code absent} tells a plain miss apart from a read error.
+   */
+  private record DiskLookup(CachedTile fresh, CachedTile stale, boolean absent) {}
 
-    byte[] staleBytes = null;
+  private DiskLookup readFromDisk(final Tile tile) {
     try {
-      final var fileBytes = offlineCacheLoader.load(tile);
+      final var cached = offlineCacheLoader.load(tile);
       LOGGER.debug("Tile {} found in local file cache.", tile);
-      return fileBytes;
+      return new DiskLookup(cached, null, false);
     } catch (TileExpiredException e) {
       // Keep the expired bytes around: if the source turns out to be unavailable, serving stale
       // beats answering 404/503 for a tile we actually have.
-      staleBytes = e.staleData();
       LOGGER.debug("Tile {} on disk is expired; refreshing from source.", tile);
+      return new DiskLookup(null, e.staleTile(), false);
+    } catch (FileNotFoundException e) {
+      LOGGER.debug("Tile {} not in local file cache.", tile);
+      return new DiskLookup(null, null, true);
     } catch (Exception e) {
       LOGGER.debug("Failed to load tile {} from local file cache.", tile, e);
+      return new DiskLookup(null, null, false);
     }
+  }
 
+  private CompletableFuture<CachedTile> loadFromSource(
+      final Tile tile, final Layer layer, final DiskLookup disk) {
+    final CachedTile staleTile = disk.stale();
     if (layer instanceof LocalLayer) {
-      throw new IOException("Tile %s not present for LOCAL layer.".formatted(tile));
+      if (disk.absent()) {
+        // Nothing but the disk can ever produce a LOCAL tile, so the miss is authoritative.
+        negativeTiles.recordMissing(tile);
+      }
+      return CompletableFuture.failedFuture(
+          new IOException("Tile %s not present for LOCAL layer.".formatted(tile)));
     }
 
     if (layer instanceof VectorPmtilesLayer) {
-      throw new IOException(
-          "VECTOR_PMTILES layers are not served through the raster tile cache: %s"
-              .formatted(layer));
+      return CompletableFuture.failedFuture(
+          new IOException(
+              "VECTOR_PMTILES layers are not served through the raster tile cache: %s"
+                  .formatted(layer)));
     }
 
     if (configuration.isOffline()) {
-      throw new IOException("Offline mode is enabled; tile %s not in local cache.".formatted(tile));
+      return CompletableFuture.failedFuture(
+          new IOException("Offline mode is enabled; tile %s not in local cache.".formatted(tile)));
+    }
+
+    if (staleTile == null && negativeTiles.isKnownMissing(tile)) {
+      // Callers that bypass the handler (preloads) still must not re-ask for a known-missing tile.
+      return CompletableFuture.failedFuture(
+          new UpstreamTileNotFoundException("Tile %s is known to be missing.".formatted(tile)));
     }
 
     String layerId = layer.effectiveId();
     LayerRuntimeState state = layerStore.getRuntimeState(layerId);
     final var requestStrategy = state.requestStrategy();
+    if (staleTile != null
+        && configuration.isStaleWhileRevalidate()
+        && requestStrategy == Layer.RequestStrategy.PROCEED) {
+      CompletableFuture<CachedTile> refresh = refreshInBackground(tile, layer, state);
+      return CompletableFuture.failedFuture(
+          new StaleTileException(
+              staleTile,
+              new IOException("Tile %s is being refreshed in the background.".formatted(tile)),
+              refresh));
+    }
     if (requestStrategy == Layer.RequestStrategy.PROCEED) {
-      return loadOnlineOrStale(tile, layer, state, staleBytes);
+      return loadOnlineOrStale(tile, layer, state, staleTile);
     }
     if (requestStrategy == Layer.RequestStrategy.BLOCK) {
-      throw blockedOrStale(layerId, staleBytes);
+      return CompletableFuture.failedFuture(blockedOrStale(layerId, staleTile));
     }
 
-    // RETRY: one thread probes the source; concurrent callers wait on a latch and then re-read
+    // RETRY: one load probes the source; concurrent loads chain onto the probe and then re-read
     // the state so they get a clean PROCEED / BLOCK answer instead of a false "blocked".
-    CountDownLatch ourLatch = new CountDownLatch(1);
-    CountDownLatch existing = retryLatches.putIfAbsent(layerId, ourLatch);
+    CompletableFuture<Void> ourProbe = new CompletableFuture<>();
+    CompletableFuture<Void> existing = retryProbes.putIfAbsent(layerId, ourProbe);
     if (existing == null) {
       LOGGER.info("Retrying source for layer {}.", layerId);
-      try {
-        return loadOnlineOrStale(tile, layer, state, staleBytes);
-      } finally {
-        retryLatches.remove(layerId);
-        ourLatch.countDown();
-      }
-    }
-    try {
-      existing.await(configuration.getTileTimeoutSeconds() + 1L, TimeUnit.SECONDS);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-      throw new InterruptedException("Interrupted while waiting for retry of layer " + layerId);
-    }
-    Layer.RequestStrategy after = state.requestStrategy();
-    if (after == Layer.RequestStrategy.PROCEED) {
-      return loadOnlineOrStale(tile, layer, state, staleBytes);
+      return loadOnlineOrStale(tile, layer, state, staleTile)
+          .whenComplete(
+              (data, error) -> {
+                retryProbes.remove(layerId, ourProbe);
+                ourProbe.complete(null);
+              });
     }
-    throw blockedOrStale(layerId, staleBytes);
+    return existing
+        .copy()
+        .completeOnTimeout(null, configuration.getTileTimeoutSeconds() + 1L, TimeUnit.SECONDS)
+        .thenCompose(
+            ignored -> {
+              Layer.RequestStrategy after = state.requestStrategy();
+              if (after == Layer.RequestStrategy.PROCEED) {
+                return loadOnlineOrStale(tile, layer, state, staleTile);
+              }
+              return CompletableFuture.failedFuture(blockedOrStale(layerId, staleTile));
+            });
   }
 
   /**
    * Fetches from the source; if the fetch fails (not an authoritative 404) and expired disk bytes
-   * exist, throws {@link StaleTileException} so the handler serves them without caching.
+   * exist, fails with {@link StaleTileException} so the handler serves them without caching.
    */
-  private byte[] loadOnlineOrStale(
-      final Tile tile, final Layer layer, final LayerRuntimeState state, final byte[] staleBytes)
-      throws InterruptedException, IOException, URISyntaxException {
-    try {
-      return loadTileOnline(tile, layer, state);
-    } catch (UpstreamTileNotFoundException e) {
-      // The source authoritatively has no tile; don't resurrect a stale copy.
-      throw e;
-    } catch (IOException | URISyntaxException e) {
-      if (staleBytes != null) {
-        LOGGER.debug("Upstream failed for {}; serving stale disk tile.", tile);
-        throw new StaleTileException(staleBytes, e);
-      }
-      throw e;
+  private CompletableFuture<CachedTile> loadOnlineOrStale(
+      final Tile tile,
+      final Layer layer,
+      final LayerRuntimeState state,
+      final CachedTile staleTile) {
+    return loadTileOnline(tile, layer, state)
+        .exceptionallyCompose(
+            error -> {
+              Throwable cause = unwrap(error);
+              // The source authoritatively has no tile; don't resurrect a stale copy.
+              if (!(cause instanceof UpstreamTileNotFoundException)
+                  && (cause instanceof IOException || cause instanceof URISyntaxException)
+                  && staleTile != null) {
+                LOGGER.debug("Upstream failed for {}; serving stale disk tile.", tile);
+                return CompletableFuture.failedFuture(new StaleTileException(staleTile, cause));
+              }
+              return CompletableFuture.failedFuture(cause);
+            });
+  }
+
+  /**
+   * Stale-while-revalidate: refreshes an expired tile off the request path. At most one refresh
+   * per tile is in flight and at most {@code xyz.refreshConcurrency} overall; a refresh that finds
+   * no free permit is skipped, and the next request for the tile tries again. Only used while the
+   * layer's breaker is closed; otherwise the regular BLOCK / RETRY handling applies, which still
+   * falls back to the stale tile.
+   *
+   * <p>Returns the refresh, or null if none was started. The fresh tile is handed back rather than
+   * left to the disk write, which is queued and may be dropped: the caller puts it in the
+   * in-memory cache, so requests in the meantime neither read the old file again nor start
+   * refreshes of their own.
+   */
+  @Nullable
+  private CompletableFuture<CachedTile> refreshInBackground(
+      final Tile tile, final Layer layer, final LayerRuntimeState state) {
+    if (!refreshing.add(tile)) {
+      return null;
     }
+    if (!refreshPermits.tryAcquire()) {
+      refreshing.remove(tile);
+      return null;
+    }
+    LOGGER.debug("Tile {} is expired; serving it stale and refreshing in the background.", tile);
+    return loadTileOnline(tile, layer, state)
+        .whenComplete(
+            (cached, error) -> {
+              refreshing.remove(tile);
+              refreshPermits.release();
+              if (error != null) {
+                LOGGER.debug("Background refresh of tile {} failed.", tile, unwrap(error));
+              }
+            });
   }
 
-  private IOException blockedOrStale(final String layerId, final byte[] staleBytes) {
+  private IOException blockedOrStale(final String layerId, final CachedTile staleTile) {
     UpstreamUnavailableException blocked =
         new UpstreamUnavailableException(
             "Source for layer %s is temporarily blocked.".formatted(layerId));
-    return staleBytes != null ? new StaleTileException(staleBytes, blocked) : blocked;
+    return staleTile != null ? new StaleTileException(staleTile, blocked) : blocked;
   }
 
-  private byte[] loadTileOnline(final Tile tile, final Layer layer, final LayerRuntimeState state)
-      throws InterruptedException, IOException, URISyntaxException {
+  private CompletableFuture<CachedTile> loadTileOnline(
+      final Tile tile, final Layer layer, final LayerRuntimeState state) {
     LOGGER.debug("Loading tile {} from an online source.", tile);
-    final byte[] tileData;
     Timer.Sample sample = Timer.start(meterRegistry);
-    try {
-      tileData = getTileFromSource(tile, layer);
-    } catch (UpstreamTileNotFoundException e) {
-      // The source answered; a missing tile is not a source failure.
-      state.sourceSucceeded();
-      sample.stop(upstreamTimer(layer.effectiveId(), "not_found"));
-      throw e;
-    } catch (InterruptedException | IOException | URISyntaxException e) {
-      state.sourceFailed();
-      sample.stop(upstreamTimer(layer.effectiveId(), "failure"));
-      throw e;
-    }
-
-    if (tileData != null && tileData.length > 0) {
-      state.sourceSucceeded();
-      sample.stop(upstreamTimer(layer.effectiveId(), "success"));
-      tileWriter.storeTile(tile, tileData);
-      return tileData;
-    }
-    // Empty body: the source answered but has no tile — also not a source failure.
-    state.sourceSucceeded();
-    sample.stop(upstreamTimer(layer.effectiveId(), "not_found"));
-    throw new UpstreamTileNotFoundException("Empty tile body for %s.".formatted(tile));
+    return getTileFromSource(tile, layer)
+        .handle(
+            (tileData, error) -> {
+              if (error != null) {
+                Throwable cause = unwrap(error);
+                if (cause instanceof UpstreamBulkheadFullException) {
+                  // Shed locally before reaching the source; says nothing about its health.
+                  sample.stop(upstreamTimer(layer.effectiveId(), "rejected"));
+                } else if (cause instanceof UpstreamTileNotFoundException) {
+                  // The source answered; a missing tile is not a source failure.
+                  state.sourceSucceeded();
+                  negativeTiles.recordMissing(tile);
+                  sample.stop(upstreamTimer(layer.effectiveId(), "not_found"));
+                } else {
+                  state.sourceFailed();
+                  sample.stop(upstreamTimer(layer.effectiveId(), "failure"));
+                }
+                throw new CompletionException(cause);
+              }
+              if (tileData != null && tileData.length > 0) {
+                state.sourceSucceeded();
+                sample.stop(upstreamTimer(layer.effectiveId(), "success"));
+                long fetchedAt = CachedTile.fetchTime();
+                tileWriter.storeTile(tile, tileData, fetchedAt);
+                return CachedTile.of(tileData, fetchedAt, layer.tileExpirationMinutes());
+              }
+              // Empty body: the source answered but has no tile — also not a source failure.
+              state.sourceSucceeded();
+              negativeTiles.recordMissing(tile);
+              sample.stop(upstreamTimer(layer.effectiveId(), "not_found"));
+              throw new CompletionException(
+                  new UpstreamTileNotFoundException("Empty tile body for %s.".formatted(tile)));
+            });
+  }
+
+  private static Throwable unwrap(Throwable error) {
+    Throwable cause = error;
+    while (cause instanceof CompletionException && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    return cause;
   }
 
   private Timer upstreamTimer(String layerId, String outcome) {
@@ -226,14 +404,46 @@ public class OnlineCacheLoader implements CacheLoader<Tile, byte[]> {
         .format(java.time.format.DateTimeFormatter.ofPattern(pattern));
   }
 
-  private byte[] getTileFromSource(Tile tile, Layer layer)
-      throws InterruptedException, IOException, URISyntaxException {
+  private CompletableFuture<byte[]> getTileFromSource(Tile tile, Layer layer) {
     final var url = buildTileUrl(tile, layer);
     LOGGER.debug("Tile url for {}: {}", tile, url);
-    final var requestBuilder =
-        HttpRequest.newBuilder(new URI(url))
-            .GET()
-            .timeout(Duration.of(configuration.getTileTimeoutSeconds(), ChronoUnit.SECONDS));
+    final var candidates = endpoints.order(layer.effectiveId(), UpstreamEndpoints.expand(url));
+    return fetchFromEndpoint(layer, candidates, 0)
+        .thenApply(
+            response -> {
+              if (response.statusCode() == 404) {
+                throw new CompletionException(
+                    new UpstreamTileNotFoundException(
+                        "Upstream returned HTTP 404 for tile " + tile));
+              }
+              if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                throw new CompletionException(
+                    new IOException(
+                        "Upstream returned HTTP " + response.statusCode() + " for tile " + tile));
+              }
+              return response.body();
+            });
+  }
+
+  /**
+   * Fetches from {@code candidates[index]}; on a transport error, 429 or 5xx, marks that endpoint
+   * unhealthy and moves on to the next candidate, so the caller only sees a failure once every
+   * endpoint has failed.
+   */
+  private CompletableFuture<HttpResponse<byte[]>> fetchFromEndpoint(
+      final Layer layer, final List<UpstreamEndpoints.Candidate> candidates, final int index) {
+    final var candidate = candidates.get(index);
+    final URI uri;
+    final HttpRequest.Builder requestBuilder;
+    try {
+      uri = new URI(candidate.url());
+      requestBuilder =
+          HttpRequest.newBuilder(uri)
+              .GET()
+              .timeout(Duration.of(configuration.getTileTimeoutSeconds(), ChronoUnit.SECONDS));
+    } catch (URISyntaxException e) {
+      return CompletableFuture.failedFuture(e);
+    }
     final var layerHeaders = layer.headers();
     layerHeaders.forEach(requestBuilder::header);
     // User-Agent needed for some sources to respond properly
@@ -241,14 +451,246 @@ public class OnlineCacheLoader implements CacheLoader<Tile, byte[]> {
         "User-Agent",
         "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/113.0.0.0 Safari/537.36");
 
-    var response = httpClient.send(requestBuilder.build(), HttpResponse.BodyHandlers.ofByteArray());
-    if (response.statusCode() == 404) {
-      throw new UpstreamTileNotFoundException("Upstream returned HTTP 404 for tile " + tile);
+    final String layerId = layer.effectiveId();
+    final var sent = sendHedged(layerId, uri, requestBuilder.build());
+    if (candidates.size() == 1) {
+      return sent;
+    }
+    final long startedAt = System.nanoTime();
+    return sent.handle(
+            (response, error) -> {
+              Throwable cause = error == null ? null : unwrap(error);
+              if (cause == null && !isEndpointFailure(response.statusCode())) {
+                endpoints.succeeded(
+                    layerId, candidate.key(), (System.nanoTime() - startedAt) / 1_000_000);
+                return CompletableFuture.completedFuture(response);
+              }
+              // A full bulkhead is local back-pressure, not a sign the endpoint is unwell.
+              if (!(cause instanceof UpstreamBulkheadFullException)) {
+                endpoints.failed(layerId, candidate.key());
+              }
+              if (index + 1 < candidates.size()) {
+                LOGGER.debug(
+                    "Endpoint {} of layer {} failed; trying the next one.",
+                    candidate.key(),
+                    layerId);
+                return fetchFromEndpoint(layer, candidates, index + 1);
+              }
+              return cause != null
+                  ? CompletableFuture.<HttpResponse<byte[]>>failedFuture(cause)
+                  : CompletableFuture.completedFuture(response);
+            })
+        .thenCompose(Function.identity());
+  }
+
+  private static boolean isEndpointFailure(final int statusCode) {
+    return statusCode == 429 || statusCode >= 500;
+  }
+
+  // ── Hedging ───────────────────────────────────────────────────────────────
+
+  /**
+   * Sends {@code request} and, if it has not answered within the layer's hedge delay and the
+   * layer's hedge budget allows, an identical second one. The first response wins and the other
+   * request is cancelled; the fetch only fails once every request sent has failed.
+   */
+  private CompletableFuture<HttpResponse<byte[]>> sendHedged(
+      final String layerId, final URI uri, final HttpRequest request) {
+    final Supplier<CompletableFuture<HttpResponse<byte[]>>> send =
+        () ->
+            sendThroughBulkhead(
+                uri, () -> httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()));
+    final long startedAt = System.nanoTime();
+    final long delay = hedging.delayMillis(layerId);
+    hedging.primarySent(layerId);
+    final CompletableFuture<HttpResponse<byte[]>> primary = send.get();
+    final CompletableFuture<HttpResponse<byte[]>> result;
+    if (delay <= 0) {
+      result = primary;
+    } else {
+      result = new CompletableFuture<>();
+      final AtomicInteger pending = new AtomicInteger(1);
+      final AtomicReference<CompletableFuture<HttpResponse<byte[]>>> hedge =
+          new AtomicReference<>();
+      primary.whenComplete((response, error) -> settle(result, pending, response, error));
+      CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+          .execute(
+              () -> {
+                // pending == 0 means the primary already failed for good; don't resurrect it.
+                if (result.isDone()
+                    || pending.getAndUpdate(p -> p == 0 ? 0 : p + 1) == 0
+                    || !hedging.tryAcquire(layerId)) {
+                  return;
+                }
+                LOGGER.debug("Hedging request {} after {} ms.", request.uri(), delay);
+                hedgeCounter(layerId, "sent").increment();
+                CompletableFuture<HttpResponse<byte[]>> second = send.get();
+                hedge.set(second);
+                second.whenComplete(
+                    (response, error) -> {
+                      if (settle(result, pending, response, error) && error == null) {
+                        hedgeCounter(layerId, "won").increment();
+                      }
+                    });
+                if (result.isDone()) {
+                  second.cancel(true);
+                }
+              });
+      result.whenComplete(
+          (response, error) -> {
+            primary.cancel(true);
+            CompletableFuture<HttpResponse<byte[]>> second = hedge.get();
+            if (second != null) {
+              second.cancel(true);
+            }
+          });
+    }
+    return result.whenComplete(
+        (response, error) -> {
+          if (error == null) {
+            hedging.recordLatency(layerId, (System.nanoTime() - startedAt) / 1_000_000);
+          }
+        });
+  }
+
+  /** Completes {@code result} with the first response, or with the last failure. */
+  private static <T> boolean settle(
+      final CompletableFuture<T> result,
+      final AtomicInteger pending,
+      final T response,
+      final Throwable error) {
+    if (error == null) {
+      return result.complete(response);
+    }
+    return pending.decrementAndGet() == 0 && result.completeExceptionally(error);
+  }
+
+  private Counter hedgeCounter(final String layerId, final String outcome) {
+    return Counter.builder(HEDGES)
+        .description("Hedged upstream requests sent, and how many answered first.")
+        .tags(Tags.of(Tag.of("layer", layerId), Tag.of("outcome", outcome)))
+        .register(meterRegistry);
+  }
+
+  /** A changed or removed source invalidates the latencies, budget and health learned for it. */
+  @EventListener
+  void onLayerChanged(final LayerChangedEvent event) {
+    if (event.kind() != LayerChangedEvent.Kind.UPDATED_ACL) {
+      hedging.forget(event.layerName());
+      endpoints.forget(event.layerName());
+    }
+  }
+
+  // ── Bulkheads ─────────────────────────────────────────────────────────────
+
+  private <T> CompletableFuture<T> sendThroughBulkhead(
+      final URI uri, final Supplier<CompletableFuture<T>> send) {
+    if (configuration.getUpstreamMaxConcurrentPerHost() <= 0 || uri.getAuthority() == null) {
+      return send.get();
+    }
+    return bulkheads.computeIfAbsent(uri.getAuthority(), this::newBulkhead).submit(send);
+  }
+
+  /**
+   * True if fetching {@code tile} would only use spare upstream capacity: at least one endpoint it
+   * may be fetched from is healthy, and no healthy endpoint's host has fetches queued or more than
+   * half of its slots busy. Used to keep speculative work from competing with client requests, or
+   * from spending an endpoint's backoff on a last-resort attempt.
+   */
+  public boolean hasIdleCapacity(final Tile tile) {
+    final Layer layer = layerStore.getLayers().get(tile.layerId());
+    if (layer == null || layer instanceof LocalLayer || layer instanceof VectorPmtilesLayer) {
+      return false;
+    }
+    final int maxConcurrent = configuration.getUpstreamMaxConcurrentPerHost();
+    boolean anyHealthy = false;
+    for (UpstreamEndpoints.Candidate candidate :
+        UpstreamEndpoints.expand(buildTileUrl(tile, layer))) {
+      if (!endpoints.isHealthy(layer.effectiveId(), candidate.key())) {
+        continue;
+      }
+      anyHealthy = true;
+      if (maxConcurrent <= 0) {
+        continue;
+      }
+      final String host;
+      try {
+        host = new URI(candidate.url()).getAuthority();
+      } catch (URISyntaxException e) {
+        return false;
+      }
+      final UpstreamBulkhead bulkhead = host == null ? null : bulkheads.get(host);
+      if (bulkhead != null && (bulkhead.queued() > 0 || bulkhead.active() * 2 > maxConcurrent)) {
+        return false;
+      }
+    }
+    return anyHealthy;
+  }
+
+  private UpstreamBulkhead newBulkhead(final String host) {
+    UpstreamBulkhead bulkhead =
+        new UpstreamBulkhead(
+            host,
+            configuration.getUpstreamMaxConcurrentPerHost(),
+            configuration.getUpstreamMaxQueuedPerHost());
+    Gauge.builder(BULKHEAD_ACTIVE, bulkhead, UpstreamBulkhead::active)
+        .description("Upstream fetches in flight to this host.")
+        .tag("host", host)
+        .register(meterRegistry);
+    Gauge.builder(BULKHEAD_QUEUED, bulkhead, UpstreamBulkhead::queued)
+        .description("Upstream fetches waiting for a free slot to this host.")
+        .tag("host", host)
+        .register(meterRegistry);
+    FunctionCounter.builder(BULKHEAD_REJECTIONS, bulkhead, UpstreamBulkhead::rejections)
+        .description("Upstream fetches refused because this host's queue was full.")
+        .tag("host", host)
+        .register(meterRegistry);
+    return bulkhead;
+  }
+
+  // ── Connection pre-warming ────────────────────────────────────────────────
+
+  /**
+   * Opens a connection to each upstream host once the application is up, so the first tile
+   * requests don't pay for DNS, TCP and TLS. Best effort: the responses are discarded and failures
+   * neither log above debug nor touch the circuit breakers.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  void prewarmConnections() {
+    if (!configuration.isPrewarmUpstreamConnections()) {
+      return;
+    }
+    Set<URI> origins = new LinkedHashSet<>();
+    for (Layer layer : layerStore.getLayers().values()) {
+      if (layer instanceof LocalLayer || layer instanceof VectorPmtilesLayer) {
+        continue;
+      }
+      try {
+        String url = buildTileUrl(new Tile(layer.effectiveId(), 0, 0, 0), layer);
+        for (UpstreamEndpoints.Candidate candidate : UpstreamEndpoints.expand(url)) {
+          URI sample = new URI(candidate.url());
+          if (sample.getScheme() != null && sample.getAuthority() != null) {
+            origins.add(new URI(sample.getScheme(), sample.getAuthority(), "/", null, null));
+          }
+        }
+      } catch (URISyntaxException | RuntimeException e) {
+        LOGGER.debug("Not pre-warming layer {}: {}", layer.effectiveId(), e.getMessage());
+      }
     }
-    if (response.statusCode() < 200 || response.statusCode() >= 300) {
-      throw new IOException(
-          "Upstream returned HTTP " + response.statusCode() + " for tile " + tile);
+    for (URI origin : origins) {
+      HttpRequest request =
+          HttpRequest.newBuilder(origin)
+              .method("HEAD", HttpRequest.BodyPublishers.noBody())
+              .timeout(Duration.of(configuration.getTileTimeoutSeconds(), ChronoUnit.SECONDS))
+              .build();
+      httpClient
+          .sendAsync(request, HttpResponse.BodyHandlers.discarding())
+          .whenComplete(
+              (response, error) ->
+                  LOGGER.debug(
+                      "Pre-warmed connection to {}: {}",
+                      origin,
+                      error != null ? unwrap(error).toString() : response.statusCode()));
     }
-    return response.body();
   }
 }
@@ -0,0 +1,220 @@
+package org.lockard.xyztilecache.cache;
+
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.lockard.xyztilecache.XyzUtil;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.BoundingBox;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.pmtiles.PmtilesReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * A {@link TileStore} that keeps each layer's tiles in one {@link TilePack}, {@code
+ * {baseTileDirectory}/{layerId}/.tiles.pack}, instead of one file per tile. Tiles are keyed by
+ * their PMTiles tile id. {@link RoutingTileStore} sends the layers listed in {@code
+ * xyz.packedStorageLayers} here.
+ *
+ * <p>Only writes create a pack; reads and deletes in a layer without one find nothing. Deleting
+ * a layer closes its pack, so readers still holding it see an empty pack rather than errors.
+ *
+ * <p>Every {@code xyz.packCompactionSeconds} each open pack's index is checkpointed, and packs
+ * that are more than half garbage (replaced or deleted tiles) are compacted. Indexes are also
+ * checkpointed at shutdown, so a clean restart replays nothing.
+ */
+@Component
+public class PackedTileStore implements TileStore {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PackedTileStore.class);
+
+  private static final double COMPACTION_GARBAGE_RATIO = 0.5;
+
+  private final XyzConfiguration configuration;
+  private final Map<String, TilePack> packs = new ConcurrentHashMap<>();
+
+  public PackedTileStore(final XyzConfiguration configuration) {
+    this.configuration = configuration;
+  }
+
+  @Override
+  public Optional<StoredTile> get(final Tile tile) throws IOException {
+    TilePack pack = existingPack(tile.layerId());
+    return pack == null ? Optional.empty() : pack.get(tileId(tile));
+  }
+
+  @Override
+  public boolean exists(final Tile tile) throws IOException {
+    TilePack pack = existingPack(tile.layerId());
+    return pack != null && pack.entry(tileId(tile)).isPresent();
+  }
+
+  @Override
+  public long put(final Tile tile, final byte[] data, final long writtenAt) throws IOException {
+    return pack(tile.layerId()).put(tileId(tile), data, writtenAt);
+  }
+
+  @Override
+  public long delete(final Tile tile) throws IOException {
+    TilePack pack = existingPack(tile.layerId());
+    return pack == null ? -1 : pack.delete(tileId(tile));
+  }
+
+  /** Iterates a snapshot of the layer's index; no tile bytes are read unless asked for. */
+  @Override
+  public void forEach(
+      final String layerId,
+      final int minZoom,
+      final int maxZoom,
+      @Nullable final BoundingBox bbox,
+      final Visitor visitor)
+      throws IOException {
+    TilePack pack = existingPack(layerId);
+    if (pack == null) {
+      return;
+    }
+    Map<Integer, XyzUtil.TileRange> ranges = new HashMap<>();
+    for (Map.Entry<Long, TilePack.Entry> e : pack.entries().entrySet()) {
+      int[] zxy = PmtilesReader.tileCoordinates(e.getKey());
+      int z = zxy[0];
+      if (z < minZoom || z > maxZoom) {
+        continue;
+      }
+      if (bbox != null) {
+        XyzUtil.TileRange range =
+            ranges.computeIfAbsent(z, zoom -> XyzUtil.calculateTileRange(bbox, zoom));
+        if (zxy[1] < range.xMin()
+            || zxy[1] > range.xMax()
+            || zxy[2] < range.yMin()
+            || zxy[2] > range.yMax()) {
+          continue;
+        }
+      }
+      Tile tile = new Tile(layerId, zxy[1], zxy[2], z);
+      TilePack.Entry entry = e.getValue();
+      visitor.visit(
+          new Entry() {
+            @Override
+            public Tile tile() {
+              return tile;
+            }
+
+            @Override
+            public long size() {
+              return entry.length();
+            }
+
+            @Override
+            public long writtenAt() {
+              return entry.writtenAt();
+            }
+
+            @Override
+            public byte[] read() throws IOException {
+              return pack.get(e.getKey())
+                  .orElseThrow(() -> new NoSuchFileException(tile.toString()))
+                  .data();
+            }
+          });
+    }
+  }
+
+  /** Closes the layer's pack and deletes it with its index. */
+  @Override
+  public void deleteLayer(final String layerId) {
+    TilePack pack = packs.remove(layerId);
+    if (pack != null) {
+      try {
+        pack.close();
+      } catch (IOException e) {
+        LOGGER.debug("Failed to close the tile pack of layer {}.", layerId, e);
+      }
+    }
+    Path dir = layerDirectory(layerId);
+    try {
+      Files.deleteIfExists(dir.resolve(TilePack.PACK_FILE));
+      Files.deleteIfExists(dir.resolve(TilePack.INDEX_FILE));
+    } catch (IOException e) {
+      LOGGER.warn("Failed to delete the tile pack of layer {}.", layerId, e);
+    }
+  }
+
+  @Scheduled(
+      initialDelayString = "${xyz.packCompactionSeconds:300}000",
+      fixedDelayString = "${xyz.packCompactionSeconds:300}000")
+  void maintain() {
+    packs.forEach(
+        (layerId, pack) -> {
+          try {
+            if (pack.garbageRatio() > COMPACTION_GARBAGE_RATIO) {
+              pack.compact();
+            } else {
+              pack.checkpoint();
+            }
+          } catch (IOException e) {
+            LOGGER.warn("Maintenance of the tile pack of layer {} failed.", layerId, e);
+          }
+        });
+  }
+
+  @PreDestroy
+  void close() {
+    packs.forEach(
+        (layerId, pack) -> {
+          try {
+            pack.close();
+          } catch (IOException e) {
+            LOGGER.warn("Failed to close the tile pack of layer {}.", layerId, e);
+          }
+        });
+    packs.clear();
+  }
+
+  private TilePack pack(final String layerId) throws IOException {
+    return pack(layerId, true);
+  }
+
+  /** The layer's pack, or null if nothing was ever written to the layer. */
+  @Nullable
+  private TilePack existingPack(final String layerId) throws IOException {
+    return pack(layerId, false);
+  }
+
+  @Nullable
+  private TilePack pack(final String layerId, final boolean create) throws IOException {
+    try {
+      return packs.computeIfAbsent(
+          layerId,
+          id -> {
+            try {
+              return create
+                  ? TilePack.open(layerDirectory(id))
+                  : TilePack.openExisting(layerDirectory(id));
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private Path layerDirectory(final String layerId) {
+    return Paths.get(configuration.getBaseTileDirectory(), layerId);
+  }
+
+  private static long tileId(final Tile tile) {
+    return PmtilesReader.tileId(tile.z(), tile.x(), tile.y());
+  }
+}
@@ -0,0 +1,240 @@
+package org.lockard.xyztilecache.cache;
+
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import javax.imageio.ImageIO;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.Layer;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.model.VectorPmtilesLayer;
+import org.lockard.xyztilecache.store.LayerStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+/**
+ * Underzoom synthesis: for layers listed in {@code xyz.underzoomSynthesisLayers}, a tile missing
+ * from disk whose four children at {@code z + 1} are all in memory (and fresh) is built by
+ * downsampling them in-process instead of being fetched upstream or answered 404. With {@code
+ * xyz.underzoomSynthesisFromDisk}, children not in memory are read from disk as well. The result
+ * is persisted through {@link TileWriter}, so repeated requests — and the next zoom level up — find
+ * it on disk. Only direct children are considered; if any is missing the normal loader runs, and
+ * the tile is not tried again for {@link #RETRY_AFTER}.
+ *
+ * <p>Plugged in by wrapping the cache loader with {@link #synthesizing}, like the off-heap tier.
+ */
+@Component
+public class ParentTileSynthesizer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ParentTileSynthesizer.class);
+
+  static final Duration RETRY_AFTER = Duration.ofSeconds(30);
+  private static final int MAX_REMEMBERED_FAILURES = 100_000;
+
+  private final XyzConfiguration configuration;
+  private final LayerStore layerStore;
+  private final TileWriter tileWriter;
+  private final OfflineCacheLoader diskTiles;
+  private final ObjectProvider<AsyncLoadingCache<Tile, CachedTile>> tileCache;
+
+  /** Tiles that could not be synthesized lately, so a miss costs one lookup. */
+  private final Cache<Tile, Boolean> recentFailures =
+      Caffeine.newBuilder()
+          .expireAfterWrite(RETRY_AFTER)
+          .maximumSize(MAX_REMEMBERED_FAILURES)
+          .build();
+
+  public ParentTileSynthesizer(
+      final XyzConfiguration configuration,
+      final LayerStore layerStore,
+      final TileWriter tileWriter,
+      final TileStore tiles,
+      final ObjectProvider<AsyncLoadingCache<Tile, CachedTile>> tileCache) {
+    this.configuration = configuration;
+    this.layerStore = layerStore;
+    this.tileWriter = tileWriter;
+    this.diskTiles = new OfflineCacheLoader(configuration, layerStore, tiles);
+    this.tileCache = tileCache;
+  }
+
+  /** Wraps {@code loader} so eligible misses are synthesized before it is consulted. */
+  public AsyncCacheLoader<Tile, CachedTile> synthesizing(
+      final AsyncCacheLoader<Tile, CachedTile> loader) {
+    if (configuration.getUnderzoomSynthesisLayers().isEmpty()) {
+      return loader;
+    }
+    return new AsyncCacheLoader<>() {
+      @Override
+      public CompletableFuture<CachedTile> asyncLoad(final Tile tile, final Executor executor)
+          throws Exception {
+        if (!isEnabled(tile) || recentFailures.getIfPresent(tile) != null) {
+          return loader.asyncLoad(tile, executor);
+        }
+        return CompletableFuture.supplyAsync(() -> synthesize(tile), executor)
+            .thenCompose(
+                synthesized -> {
+                  if (synthesized.isPresent()) {
+                    return CompletableFuture.completedFuture(synthesized.get());
+                  }
+                  try {
+                    return loader.asyncLoad(tile, executor);
+                  } catch (Exception e) {
+                    return CompletableFuture.failedFuture(e);
+                  }
+                });
+      }
+
+      @Override
+      public CompletableFuture<CachedTile> asyncReload(
+          final Tile tile, final CachedTile oldValue, final Executor executor) throws Exception {
+        return loader.asyncReload(tile, oldValue, executor);
+      }
+    };
+  }
+
+  private boolean isEnabled(final Tile tile) {
+    Layer layer = layerStore.getLayers().get(tile.layerId());
+    return layer != null
+        && !(layer instanceof VectorPmtilesLayer)
+        && tile.z() < layer.maxZoom()
+        && configuration.getUnderzoomSynthesisLayers().contains(tile.layerId());
+  }
+
+  /** The parent built from its children, or empty (and remembered) if it cannot be built. */
+  Optional<CachedTile> synthesize(final Tile tile) {
+    Optional<CachedTile> synthesized = build(tile);
+    if (synthesized.isEmpty()) {
+      recentFailures.put(tile, Boolean.TRUE);
+    }
+    return synthesized;
+  }
+
+  private Optional<CachedTile> build(final Tile tile) {
+    try {
+      Tile[] childTiles = new Tile[4];
+      byte[][] children = new byte[4][];
+      boolean fromDisk = configuration.isUnderzoomSynthesisFromDisk();
+      for (int i = 0; i < 4; i++) {
+        childTiles[i] =
+            new Tile(
+                tile.layerId(),
+                2 * tile.x() + (i & 1),
+                2 * tile.y() + (i >> 1),
+                tile.z() + 1,
+                tile.generation());
+        children[i] = inMemory(childTiles[i]);
+        if (children[i] == null && !fromDisk) {
+          return Optional.empty();
+        }
+      }
+      if (diskTiles.exists(tile)) {
+        // Present (if perhaps expired): the regular loader serves or refreshes it.
+        return Optional.empty();
+      }
+      String contentType = null;
+      for (int i = 0; i < 4; i++) {
+        if (children[i] == null) {
+          Optional<byte[]> data = freshTile(childTiles[i]);
+          if (data.isEmpty()) {
+            return Optional.empty();
+          }
+          children[i] = data.get();
+        }
+        String childType = CachedTile.detectContentType(children[i]);
+        if (contentType == null || contentType.equals(childType)) {
+          contentType = childType;
+        } else {
+          contentType = "image/png";
+        }
+      }
+      byte[] data = downsample(children, "image/jpeg".equals(contentType));
+      LOGGER.debug("Synthesized tile {} from its four children.", tile);
+      long synthesizedAt = CachedTile.fetchTime();
+      tileWriter.storeTile(tile, data, synthesizedAt);
+      Layer layer = layerStore.getLayers().get(tile.layerId());
+      int expirationMinutes =
+          configuration.isOffline() || layer == null ? 0 : layer.tileExpirationMinutes();
+      return Optional.of(CachedTile.of(data, synthesizedAt, expirationMinutes));
+    } catch (IOException | RuntimeException e) {
+      LOGGER.debug("Could not synthesize tile {} from its children.", tile, e);
+      return Optional.empty();
+    }
+  }
+
+  /** The tile's bytes if it is loaded in the in-memory cache and not expired, else null. */
+  private byte[] inMemory(final Tile tile) {
+    AsyncLoadingCache<Tile, CachedTile> cache = tileCache.getIfAvailable();
+    // Through the map view, which records no statistics: peeking at a child is no cache request.
+    CompletableFuture<CachedTile> cached = cache == null ? null : cache.asMap().get(tile);
+    if (cached == null || !cached.isDone() || cached.isCompletedExceptionally()) {
+      return null;
+    }
+    CachedTile child = cached.join();
+    return child.isExpired(System.currentTimeMillis()) ? null : child.data();
+  }
+
+  /** The tile's bytes if it is on disk (file or pack) and not expired. */
+  private Optional<byte[]> freshTile(final Tile tile) throws IOException {
+    try {
+      return Optional.of(diskTiles.load(tile).data());
+    } catch (FileNotFoundException | TileExpiredException e) {
+      return Optional.empty();
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Draws the four children, ordered top-left, top-right, bottom-left, bottom-right, into one tile
+   * of the first child's size with bilinear filtering. JPEG children stay JPEG; anything else
+   * (including mixed formats) becomes PNG so transparency survives.
+   */
+  static byte[] downsample(final byte[][] children, final boolean jpeg) throws IOException {
+    BufferedImage[] images = new BufferedImage[children.length];
+    for (int i = 0; i < children.length; i++) {
+      images[i] = ImageIO.read(new ByteArrayInputStream(children[i]));
+      if (images[i] == null) {
+        throw new IOException("No image reader for child tile " + i + ".");
+      }
+    }
+    int width = images[0].getWidth();
+    int height = images[0].getHeight();
+    BufferedImage parent =
+        new BufferedImage(
+            width, height, jpeg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+    Graphics2D graphics = parent.createGraphics();
+    try {
+      graphics.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      for (int i = 0; i < images.length; i++) {
+        int left = (i & 1) * width / 2;
+        int top = (i >> 1) * height / 2;
+        graphics.drawImage(images[i], left, top, width / 2, height / 2, null);
+      }
+    } finally {
+      graphics.dispose();
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (!ImageIO.write(parent, jpeg ? "jpeg" : "png", out)) {
+      throw new IOException("No image writer for the synthesized tile.");
+    }
+    return out.toByteArray();
+  }
+}
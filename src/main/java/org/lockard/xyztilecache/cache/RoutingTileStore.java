@@ -0,0 +1,103 @@
+package org.lockard.xyztilecache.cache;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.BoundingBox;
+import org.lockard.xyztilecache.model.Tile;
+import org.springframework.context.annotation.Primary;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * The {@link TileStore} everything else is wired with. Layers listed in {@code
+ * xyz.packedStorageLayers} go to the {@link PackedTileStore}, all others to the {@link
+ * FileSystemTileStore}.
+ *
+ * <p>A layer that is switched to packed storage keeps its existing tile files: reads fall back to
+ * them, iteration covers both, and a file is deleted once its tile is rewritten into the pack.
+ */
+@Primary
+@Component
+public class RoutingTileStore implements TileStore {
+
+  private final XyzConfiguration configuration;
+  private final FileSystemTileStore files;
+  private final PackedTileStore packs;
+
+  public RoutingTileStore(
+      final XyzConfiguration configuration,
+      final FileSystemTileStore files,
+      final PackedTileStore packs) {
+    this.configuration = configuration;
+    this.files = files;
+    this.packs = packs;
+  }
+
+  public boolean isPacked(final String layerId) {
+    return configuration.getPackedStorageLayers().contains(layerId);
+  }
+
+  @Override
+  public Optional<StoredTile> get(final Tile tile) throws IOException {
+    if (isPacked(tile.layerId())) {
+      Optional<StoredTile> packed = packs.get(tile);
+      if (packed.isPresent()) {
+        return packed;
+      }
+    }
+    return files.get(tile);
+  }
+
+  @Override
+  public boolean exists(final Tile tile) throws IOException {
+    return (isPacked(tile.layerId()) && packs.exists(tile)) || files.exists(tile);
+  }
+
+  @Override
+  public long put(final Tile tile, final byte[] data, final long writtenAt) throws IOException {
+    if (!isPacked(tile.layerId())) {
+      return files.put(tile, data, writtenAt);
+    }
+    long replaced = packs.put(tile, data, writtenAt);
+    // A file from before the layer was packed is now shadowed by the pack; drop it.
+    long legacy = files.delete(tile);
+    return replaced >= 0 ? replaced : legacy;
+  }
+
+  @Override
+  public long delete(final Tile tile) throws IOException {
+    long deleted = isPacked(tile.layerId()) ? packs.delete(tile) : -1;
+    long file = files.delete(tile);
+    return deleted >= 0 ? deleted : file;
+  }
+
+  @Override
+  public void deleteLayer(final String layerId) throws IOException {
+    packs.deleteLayer(layerId);
+    files.deleteLayer(layerId);
+  }
+
+  @Override
+  public void forEach(
+      final String layerId,
+      final int minZoom,
+      final int maxZoom,
+      @Nullable final BoundingBox bbox,
+      final Visitor visitor)
+      throws IOException {
+    if (isPacked(layerId)) {
+      packs.forEach(layerId, minZoom, maxZoom, bbox, visitor);
+    }
+    files.forEach(layerId, minZoom, maxZoom, bbox, visitor);
+  }
+
+  @Override
+  public Optional<Path> file(final Tile tile) throws IOException {
+    if (isPacked(tile.layerId()) && packs.exists(tile)) {
+      return Optional.empty();
+    }
+    return files.file(tile);
+  }
+}
@@ -1,21 +1,40 @@
 package org.lockard.xyztilecache.cache;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.springframework.lang.Nullable;
 
 /**
  * The upstream source is unavailable but an expired disk-cached tile exists. Thrown (rather than
- * returned) so the stale bytes are served to the client without being promoted into the in-memory
+ * returned) so the stale tile is served to the client without being promoted into the in-memory
  * cache — the next request retries the source instead of pinning stale data.
+ *
+ * <p>When this load started a background refresh of the tile (stale-while-revalidate), {@link
+ * #refresh} completes with the fresh tile, for the caller to put in the in-memory cache.
  */
 public class StaleTileException extends IOException {
-  private final transient byte[] staleData;
+  private final transient CachedTile staleTile;
+  @Nullable private final transient CompletableFuture<CachedTile> refresh;
 
-  public StaleTileException(byte[] staleData, Throwable cause) {
+  public StaleTileException(CachedTile staleTile, Throwable cause) {
+    this(staleTile, cause, null);
+  }
+
+  public StaleTileException(
+      CachedTile staleTile, Throwable cause, @Nullable CompletableFuture<CachedTile> refresh) {
     super("Serving stale tile: upstream unavailable", cause);
-    this.staleData = staleData;
+    this.staleTile = staleTile;
+    this.refresh = refresh;
+  }
+
+  public CachedTile staleTile() {
+    return staleTile;
   }
 
-  public byte[] staleData() {
-    return staleData;
+  /** The background refresh this load started, or null if it did not start one. */
+  @Nullable
+  public CompletableFuture<CachedTile> refresh() {
+    return refresh;
   }
 }
@@ -1,18 +1,20 @@
 package org.lockard.xyztilecache.cache;
 
+import org.lockard.xyztilecache.model.CachedTile;
+
 /**
  * A disk-cached tile exists but is older than the layer's {@code tileExpirationMinutes}. Carries
- * the stale bytes so the online loader can fall back to them when the source is unavailable.
+ * the stale tile so the online loader can fall back to it when the source is unavailable.
  */
 public class TileExpiredException extends Exception {
-  private final transient byte[] staleData;
+  private final transient CachedTile staleTile;
 
-  public TileExpiredException(byte[] staleData) {
+  public TileExpiredException(CachedTile staleTile) {
     super("Tile expired");
-    this.staleData = staleData;
+    this.staleTile = staleTile;
   }
 
-  public byte[] staleData() {
-    return staleData;
+  public CachedTile staleTile() {
+    return staleTile;
   }
 }
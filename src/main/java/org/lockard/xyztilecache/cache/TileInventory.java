@@ -0,0 +1,248 @@
+package org.lockard.xyztilecache.cache;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.Layer;
+import org.lockard.xyztilecache.model.LayerChangedEvent;
+import org.lockard.xyztilecache.model.LayerRuntimeState;
+import org.lockard.xyztilecache.store.LayerStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the layers' cached tile counts and bytes ({@link LayerRuntimeState}) across restarts
+ * without walking the whole disk cache on every startup. The totals are written to {@code
+ * {baseTileDirectory}/.tile-inventory} every {@code xyz.inventorySnapshotSeconds} (when they have
+ * changed) and at shutdown, and read back before the application starts serving.
+ *
+ * <p>A file written at a clean shutdown is trusted as is. After a crash, or for a layer the file
+ * does not know, the saved totals (if any) are used at first and the layer's tiles are walked
+ * through the {@link TileStore} in the background, one virtual thread per layer, to correct them.
+ * A tile written while a walk runs is counted once, whether the walk sees it before or after.
+ */
+@Component
+@DependsOn("layerStore")
+public class TileInventory {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileInventory.class);
+
+  static final String INVENTORY_FILE = ".tile-inventory";
+  private static final int MAGIC = 0x58595a49; // "XYZI"
+
+  private final XyzConfiguration configuration;
+  private final LayerStore layerStore;
+  private final TileStore tiles;
+
+  /** Layers whose restored totals still have to be checked against the store. */
+  private final Set<String> stale = ConcurrentHashMap.newKeySet();
+
+  private Map<String, Totals> lastWritten = Map.of();
+
+  private volatile boolean cleanStart;
+  private volatile boolean uncleanRestart;
+
+  public TileInventory(
+      final XyzConfiguration configuration, final LayerStore layerStore, final TileStore tiles) {
+    this.configuration = configuration;
+    this.layerStore = layerStore;
+    this.tiles = tiles;
+  }
+
+  /** A layer's totals as saved in the inventory file. */
+  record Totals(long tiles, long bytes) {}
+
+  /** The inventory file: whether it was written at a clean shutdown, and the totals. */
+  record Saved(boolean clean, Map<String, Totals> totals) {}
+
+  /** No inventory file, or none that could be read. */
+  private static final Saved NONE = new Saved(false, Map.of());
+
+  /**
+   * Sets every configured layer's totals from the inventory file and notes the layers that need a
+   * walk. The file is then rewritten as not clean, so a crash from here on is noticed.
+   */
+  @PostConstruct
+  void restore() {
+    Saved saved = NONE;
+    try (var in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(inventoryPath())))) {
+      saved = readInventory(in);
+    } catch (NoSuchFileException e) {
+      LOGGER.info("No tile inventory found; counting the cached tiles in the background.");
+    } catch (IOException e) {
+      LOGGER.warn("Failed to read the tile inventory; counting the cached tiles again.", e);
+    }
+    cleanStart = saved.clean();
+    uncleanRestart = saved != NONE && !saved.clean();
+    for (Layer layer : layerStore.getLayers().values()) {
+      String layerId = layer.effectiveId();
+      try {
+        Files.createDirectories(Paths.get(configuration.getBaseTileDirectory(), layerId));
+      } catch (IOException e) {
+        LOGGER.error("Failed to create the tile directory for {}.", layerId, e);
+      }
+      Totals totals = saved.totals().get(layerId);
+      if (totals != null) {
+        LayerRuntimeState state = layerStore.getRuntimeState(layerId);
+        state.setCachedTiles(totals.tiles());
+        state.setCachedTilesSize(totals.bytes());
+      }
+      if (!saved.clean() || totals == null) {
+        stale.add(layerId);
+      }
+    }
+    write(false);
+  }
+
+  /** Starts the walks once the context is up, so they never hold up startup. */
+  @EventListener(ApplicationStartedEvent.class)
+  void reconcileInBackground() {
+    for (String layerId : List.copyOf(stale)) {
+      Thread.ofVirtual().name("tile-inventory-" + layerId).start(() -> reconcile(layerId));
+    }
+  }
+
+  /** Whether {@link #restore} found a file written at a clean shutdown, i.e. not after a crash. */
+  boolean isCleanStart() {
+    return cleanStart;
+  }
+
+  /**
+   * Whether {@link #restore} found a file left by a run that did not shut down cleanly. False on a
+   * first start, or when the file could not be read: that says nothing about a crash.
+   */
+  boolean isUncleanRestart() {
+    return uncleanRestart;
+  }
+
+  /** Layers still waiting for, or in the middle of, a walk. */
+  Set<String> staleLayers() {
+    return Set.copyOf(stale);
+  }
+
+  /**
+   * Counts the layer's tiles in the store and makes that its totals, plus whatever was written or
+   * deleted while the walk ran; see {@link LayerRuntimeState.Recount}.
+   */
+  void reconcile(final String layerId) {
+    LayerRuntimeState.Recount recount = layerStore.getRuntimeState(layerId).startRecount();
+    try {
+      tiles.forEach(layerId, entry -> recount.visit(entry.tile(), entry.size()));
+    } catch (IOException e) {
+      recount.cancel();
+      LOGGER.error("Failed to inventory tile directory for {}.", layerId, e);
+      return;
+    }
+    recount.finish();
+    stale.remove(layerId);
+    LOGGER.info(
+        "Counted {} cached tile(s) ({} bytes) for layer {}.",
+        recount.tiles(),
+        recount.bytes(),
+        layerId);
+  }
+
+  /** A removed layer has nothing left to count, and a new source starts from an empty layer. */
+  @EventListener
+  void onLayerChanged(final LayerChangedEvent event) {
+    if (event.kind() == LayerChangedEvent.Kind.REMOVED
+        || event.kind() == LayerChangedEvent.Kind.UPDATED_SOURCE) {
+      stale.remove(event.layerName());
+    }
+  }
+
+  @Scheduled(
+      initialDelayString = "${xyz.inventorySnapshotSeconds:60}000",
+      fixedDelayString = "${xyz.inventorySnapshotSeconds:60}000")
+  void scheduledSnapshot() {
+    if (!currentTotals().equals(lastWritten)) {
+      write(false);
+    }
+  }
+
+  /** Marks the file clean, unless a walk is still out: then the next startup walks again. */
+  @PreDestroy
+  void snapshotOnShutdown() {
+    write(stale.isEmpty());
+  }
+
+  synchronized void write(final boolean clean) {
+    Map<String, Totals> totals = currentTotals();
+    Path file = inventoryPath();
+    Path tmp = file.resolveSibling(INVENTORY_FILE + ".tmp");
+    try {
+      Files.createDirectories(file.getParent());
+      try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        writeInventory(out, clean, totals);
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      lastWritten = totals;
+    } catch (IOException e) {
+      LOGGER.warn("Failed to write the tile inventory.", e);
+    }
+  }
+
+  private Map<String, Totals> currentTotals() {
+    Map<String, Totals> totals = new HashMap<>();
+    for (Layer layer : layerStore.getLayers().values()) {
+      LayerRuntimeState state = layerStore.getRuntimeState(layer.effectiveId());
+      totals.put(
+          layer.effectiveId(), new Totals(state.getCachedTiles(), state.getCachedTilesSize()));
+    }
+    return totals;
+  }
+
+  /**
+   * {@code int magic, boolean clean, int layerCount}, then per layer {@code UTF layerId, long
+   * tiles, long bytes}.
+   */
+  static void writeInventory(
+      final DataOutputStream out, final boolean clean, final Map<String, Totals> totals)
+      throws IOException {
+    out.writeInt(MAGIC);
+    out.writeBoolean(clean);
+    out.writeInt(totals.size());
+    for (Map.Entry<String, Totals> e : totals.entrySet()) {
+      out.writeUTF(e.getKey());
+      out.writeLong(e.getValue().tiles());
+      out.writeLong(e.getValue().bytes());
+    }
+  }
+
+  static Saved readInventory(final DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a tile inventory.");
+    }
+    boolean clean = in.readBoolean();
+    int count = in.readInt();
+    Map<String, Totals> totals = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      totals.put(in.readUTF(), new Totals(in.readLong(), in.readLong()));
+    }
+    return new Saved(clean, totals);
+  }
+
+  private Path inventoryPath() {
+    return Paths.get(configuration.getBaseTileDirectory(), INVENTORY_FILE);
+  }
+}
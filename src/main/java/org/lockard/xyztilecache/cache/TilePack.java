@@ -0,0 +1,560 @@
+package org.lockard.xyztilecache.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+
+/**
+ * One layer's tiles in a single append-only file, {@link #PACK_FILE}, plus an in-memory {@code
+ * tileId -> (offset, length)} index. A pack starts with {@code int magic, long generation}; every
+ * write appends a record {@code int magic, long tileId, long writtenAt, int length, int crc32c}
+ * followed by {@code length} bytes of tile data ({@code length == -1} deletes the tile). The CRC
+ * covers the record's tile id, timestamp, length and data.
+ *
+ * <p>The index is checkpointed to {@link #INDEX_FILE} (written to a temp file and moved into
+ * place) together with the pack length and generation it covers. Opening a pack loads the
+ * checkpoint if it matches the pack's generation and replays only the records appended after it;
+ * without a usable checkpoint the whole pack is replayed. Replay stops at the first record that is
+ * cut short or fails its CRC — the tail of a write interrupted by a crash — and truncates it away.
+ *
+ * <p>Reads are one positional read of a record (header and data) under a shared lock, so they
+ * never block each other. Appends are serialised. {@link #compact} copies the live records to a
+ * new pack with a new generation while appends carry on, then holds appends only to copy the
+ * records appended meanwhile and swap the new pack in under the exclusive lock. A closed pack
+ * reads as empty, so a reader still holding it when its layer is deleted sees no tiles.
+ */
+final class TilePack implements AutoCloseable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TilePack.class);
+
+  static final String PACK_FILE = ".tiles.pack";
+  static final String INDEX_FILE = ".tiles.idx";
+
+  private static final int PACK_MAGIC = 0x58545031; // "XTP1"
+  private static final int RECORD_MAGIC = 0x58545452; // "XTTR"
+  private static final int INDEX_MAGIC = 0x58544931; // "XTI1"
+  static final int FILE_HEADER_BYTES = 12;
+  static final int RECORD_HEADER_BYTES = 28;
+  private static final int TOMBSTONE = -1;
+
+  /** A live tile: where its record starts, the data length and when it was written. */
+  record Entry(long offset, int length, long writtenAt) {}
+
+  private final Path directory;
+  private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+  private final ReentrantLock appendLock = new ReentrantLock();
+  private final ReentrantLock compactLock = new ReentrantLock();
+
+  private FileChannel channel;
+  private Map<Long, Entry> index;
+  private long generation;
+  private long end;
+  private long deadBytes;
+
+  private TilePack(final Path directory) {
+    this.directory = directory;
+  }
+
+  /** Opens (or creates) the pack in {@code directory}, recovering its index. */
+  static TilePack open(final Path directory) throws IOException {
+    TilePack pack = new TilePack(directory);
+    pack.recover(true);
+    return pack;
+  }
+
+  /** Opens the pack in {@code directory} like {@link #open}; null if there is none. */
+  @Nullable
+  static TilePack openExisting(final Path directory) throws IOException {
+    TilePack pack = new TilePack(directory);
+    return pack.recover(false) ? pack : null;
+  }
+
+  // ── Reads ─────────────────────────────────────────────────────────────────
+
+  Optional<TileStore.StoredTile> get(final long tileId) throws IOException {
+    swapLock.readLock().lock();
+    try {
+      Entry entry = index.get(tileId);
+      if (entry == null || !channel.isOpen()) {
+        return Optional.empty();
+      }
+      ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + entry.length());
+      readFully(channel, record, entry.offset());
+      record.flip();
+      if (record.getInt() != RECORD_MAGIC || record.getLong() != tileId) {
+        throw new IOException("Corrupt record for tile %d in %s.".formatted(tileId, packPath()));
+      }
+      record.getLong(); // writtenAt, already in the entry
+      int length = record.getInt();
+      int crc = record.getInt();
+      byte[] data = new byte[length];
+      record.get(data);
+      if (crc != crc(tileId, entry.writtenAt(), length, data)) {
+        throw new IOException("Checksum mismatch for tile %d in %s.".formatted(tileId, packPath()));
+      }
+      return Optional.of(new TileStore.StoredTile(data, entry.writtenAt()));
+    } finally {
+      swapLock.readLock().unlock();
+    }
+  }
+
+  Optional<Entry> entry(final long tileId) {
+    swapLock.readLock().lock();
+    try {
+      return channel.isOpen() ? Optional.ofNullable(index.get(tileId)) : Optional.empty();
+    } finally {
+      swapLock.readLock().unlock();
+    }
+  }
+
+  /** A copy of the index, for inventories and iteration. */
+  Map<Long, Entry> entries() {
+    swapLock.readLock().lock();
+    try {
+      return channel.isOpen() ? Map.copyOf(index) : Map.of();
+    } finally {
+      swapLock.readLock().unlock();
+    }
+  }
+
+  /** The share of the pack taken up by replaced or deleted records. */
+  double garbageRatio() {
+    appendLock.lock();
+    try {
+      return end <= FILE_HEADER_BYTES ? 0 : (double) deadBytes / end;
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  // ── Writes ────────────────────────────────────────────────────────────────
+
+  /** Appends {@code data} as the tile's new version; returns the replaced length or -1. */
+  int put(final long tileId, final byte[] data, final long writtenAt) throws IOException {
+    return append(tileId, data, writtenAt);
+  }
+
+  /** Appends a deletion; returns the deleted tile's length or -1 if it was not in the pack. */
+  int delete(final long tileId) throws IOException {
+    if (entry(tileId).isEmpty()) {
+      return TOMBSTONE;
+    }
+    return append(tileId, null, System.currentTimeMillis());
+  }
+
+  private int append(final long tileId, final byte[] data, final long writtenAt)
+      throws IOException {
+    int length = data == null ? TOMBSTONE : data.length;
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + Math.max(length, 0));
+    record.putInt(RECORD_MAGIC).putLong(tileId).putLong(writtenAt).putInt(length);
+    record.putInt(crc(tileId, writtenAt, length, data));
+    if (data != null) {
+      record.put(data);
+    }
+    record.flip();
+    appendLock.lock();
+    swapLock.readLock().lock();
+    try {
+      long offset = end;
+      writeFully(channel, record, offset);
+      end = offset + record.limit();
+      Entry previous =
+          data == null
+              ? index.remove(tileId)
+              : index.put(tileId, new Entry(offset, length, writtenAt));
+      if (previous != null) {
+        deadBytes += RECORD_HEADER_BYTES + previous.length();
+      }
+      if (data == null) {
+        deadBytes += RECORD_HEADER_BYTES;
+      }
+      return previous != null ? previous.length() : TOMBSTONE;
+    } finally {
+      swapLock.readLock().unlock();
+      appendLock.unlock();
+    }
+  }
+
+  // ── Checkpoints and recovery ──────────────────────────────────────────────
+
+  /**
+   * Writes the index to {@link #INDEX_FILE}: {@code int magic, long generation, long packLength,
+   * int count}, per tile {@code long tileId, long offset, int length, long writtenAt}, then the
+   * CRC32C of everything before it as a {@code long}.
+   */
+  void checkpoint() throws IOException {
+    appendLock.lock();
+    try {
+      channel.force(false);
+      Path file = directory.resolve(INDEX_FILE);
+      Path tmp = directory.resolve(INDEX_FILE + ".tmp");
+      CRC32C crc = new CRC32C();
+      try (var out =
+          new DataOutputStream(
+              new CheckedOutputStream(
+                  new BufferedOutputStream(Files.newOutputStream(tmp)), crc))) {
+        out.writeInt(INDEX_MAGIC);
+        out.writeLong(generation);
+        out.writeLong(end);
+        out.writeInt(index.size());
+        for (Map.Entry<Long, Entry> e : index.entrySet()) {
+          out.writeLong(e.getKey());
+          out.writeLong(e.getValue().offset());
+          out.writeInt(e.getValue().length());
+          out.writeLong(e.getValue().writtenAt());
+        }
+        out.flush();
+        out.writeLong(crc.getValue());
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /** Opens the pack file, creating it only if {@code create}; false if there is none. */
+  private boolean recover(final boolean create) throws IOException {
+    Path pack = packPath();
+    if (create) {
+      Files.createDirectories(directory);
+      channel =
+          FileChannel.open(
+              pack, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } else {
+      try {
+        channel = FileChannel.open(pack, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      } catch (NoSuchFileException e) {
+        return false;
+      }
+    }
+    // Left behind by a compaction that did not finish; the old pack is still complete.
+    Files.deleteIfExists(directory.resolve(PACK_FILE + ".tmp"));
+    long size = channel.size();
+    if (size < FILE_HEADER_BYTES) {
+      generation = ThreadLocalRandom.current().nextLong();
+      channel.truncate(0);
+      writeFileHeader(channel, generation);
+      index = new ConcurrentHashMap<>();
+      end = FILE_HEADER_BYTES;
+      deadBytes = 0;
+      return true;
+    }
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+    readFully(channel, header, 0);
+    header.flip();
+    if (header.getInt() != PACK_MAGIC) {
+      throw new IOException("%s is not a tile pack.".formatted(pack));
+    }
+    generation = header.getLong();
+    index = new ConcurrentHashMap<>();
+    long from = readCheckpoint(size);
+    if (from < 0) {
+      index.clear();
+      from = FILE_HEADER_BYTES;
+    }
+    replay(from, size);
+    return true;
+  }
+
+  /** Loads a checkpoint that matches this pack; returns the pack offset it covers, or -1. */
+  private long readCheckpoint(final long packSize) {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(directory.resolve(INDEX_FILE));
+    } catch (NoSuchFileException e) {
+      return -1;
+    } catch (IOException e) {
+      LOGGER.warn("Failed to read tile pack index in {}; rebuilding it.", directory, e);
+      return -1;
+    }
+    if (bytes.length < 32) {
+      return -1;
+    }
+    ByteBuffer in = ByteBuffer.wrap(bytes);
+    CRC32C crc = new CRC32C();
+    crc.update(bytes, 0, bytes.length - Long.BYTES);
+    if (in.getLong(bytes.length - Long.BYTES) != crc.getValue()
+        || in.getInt() != INDEX_MAGIC
+        || in.getLong() != generation) {
+      LOGGER.warn("Tile pack index in {} is stale or damaged; rebuilding it.", directory);
+      return -1;
+    }
+    long covered = in.getLong();
+    int count = in.getInt();
+    if (covered > packSize || count < 0 || in.remaining() - Long.BYTES != count * 28L) {
+      return -1;
+    }
+    long live = 0;
+    for (int i = 0; i < count; i++) {
+      long tileId = in.getLong();
+      Entry entry = new Entry(in.getLong(), in.getInt(), in.getLong());
+      index.put(tileId, entry);
+      live += RECORD_HEADER_BYTES + entry.length();
+    }
+    deadBytes = covered - FILE_HEADER_BYTES - live;
+    return covered;
+  }
+
+  /** Applies the records in {@code [from, size)}, truncating a torn or corrupt tail. */
+  private void replay(final long from, final long size) throws IOException {
+    long position = from;
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+    int replayed = 0;
+    while (position < size) {
+      if (size - position < RECORD_HEADER_BYTES) {
+        break;
+      }
+      header.clear();
+      readFully(channel, header, position);
+      header.flip();
+      int magic = header.getInt();
+      long tileId = header.getLong();
+      long writtenAt = header.getLong();
+      int length = header.getInt();
+      int crc = header.getInt();
+      long dataLength = Math.max(length, 0);
+      if (magic != RECORD_MAGIC
+          || length < TOMBSTONE
+          || size - position - RECORD_HEADER_BYTES < dataLength) {
+        break;
+      }
+      byte[] data = null;
+      if (length >= 0) {
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(channel, body, position + RECORD_HEADER_BYTES);
+        data = body.array();
+      }
+      if (crc != crc(tileId, writtenAt, length, data)) {
+        break;
+      }
+      Entry previous =
+          length == TOMBSTONE
+              ? index.remove(tileId)
+              : index.put(tileId, new Entry(position, length, writtenAt));
+      if (previous != null) {
+        deadBytes += RECORD_HEADER_BYTES + previous.length();
+      }
+      if (length == TOMBSTONE) {
+        deadBytes += RECORD_HEADER_BYTES;
+      }
+      position += RECORD_HEADER_BYTES + dataLength;
+      replayed++;
+    }
+    if (position < size) {
+      LOGGER.warn(
+          "Truncating {} byte(s) of incomplete records from {}.", size - position, packPath());
+      channel.truncate(position);
+    }
+    end = position;
+    if (replayed > 0) {
+      LOGGER.debug("Replayed {} record(s) from {}.", replayed, packPath());
+    }
+  }
+
+  // ── Compaction ────────────────────────────────────────────────────────────
+
+  /**
+   * Copies the live records, in pack order, to a new pack and swaps it in. The bulk of the copy
+   * runs while appends go on; appends then wait only while the records they added meanwhile are
+   * copied after it, and reads only for the swap itself.
+   */
+  void compact() throws IOException {
+    compactLock.lock();
+    try {
+      List<Map.Entry<Long, Entry>> live;
+      long copiedUpTo;
+      appendLock.lock();
+      try {
+        live = new ArrayList<>(index.entrySet());
+        copiedUpTo = end;
+      } finally {
+        appendLock.unlock();
+      }
+      live.sort(Comparator.comparingLong(e -> e.getValue().offset()));
+      Path tmp = directory.resolve(PACK_FILE + ".tmp");
+      long newGeneration = ThreadLocalRandom.current().nextLong();
+      Map<Long, Entry> compacted = new ConcurrentHashMap<>();
+      FileChannel out =
+          FileChannel.open(
+              tmp,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.WRITE);
+      try {
+        writeFileHeader(out, newGeneration);
+        long position = FILE_HEADER_BYTES;
+        // Records below copiedUpTo are never rewritten, so they can be read without the lock.
+        for (Map.Entry<Long, Entry> e : live) {
+          Entry entry = e.getValue();
+          ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + entry.length());
+          readFully(channel, record, entry.offset());
+          record.flip();
+          writeFully(out, record, position);
+          compacted.put(e.getKey(), new Entry(position, entry.length(), entry.writtenAt()));
+          position += record.limit();
+        }
+        appendLock.lock();
+        try {
+          if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+          }
+          long tailDeadBytes = copyTail(copiedUpTo, out, position, compacted);
+          long newEnd = position + (end - copiedUpTo);
+          long reclaimed = end - newEnd;
+          out.force(true);
+          out.close();
+          swapLock.writeLock().lock();
+          try {
+            channel.close();
+            Files.move(
+                tmp,
+                packPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            channel =
+                FileChannel.open(packPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index = compacted;
+            generation = newGeneration;
+            end = newEnd;
+            deadBytes = tailDeadBytes;
+          } finally {
+            swapLock.writeLock().unlock();
+          }
+          checkpoint();
+          LOGGER.info("Compacted {}, reclaiming {} bytes.", packPath(), reclaimed);
+        } finally {
+          appendLock.unlock();
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      compactLock.unlock();
+    }
+  }
+
+  /**
+   * Copies the records in {@code [from, end)}, appended while a compaction copied the rest, to
+   * {@code out} at {@code position} and applies them to {@code compacted}; returns the bytes they
+   * leave dead. Called with the append lock held.
+   */
+  private long copyTail(
+      final long from, final FileChannel out, final long position, final Map<Long, Entry> compacted)
+      throws IOException {
+    long dead = 0;
+    long source = from;
+    long target = position;
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+    while (source < end) {
+      header.clear();
+      readFully(channel, header, source);
+      header.flip();
+      header.getInt(); // magic
+      long tileId = header.getLong();
+      long writtenAt = header.getLong();
+      int length = header.getInt();
+      ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + Math.max(length, 0));
+      readFully(channel, record, source);
+      record.flip();
+      writeFully(out, record, target);
+      Entry previous =
+          length == TOMBSTONE
+              ? compacted.remove(tileId)
+              : compacted.put(tileId, new Entry(target, length, writtenAt));
+      if (previous != null) {
+        dead += RECORD_HEADER_BYTES + previous.length();
+      }
+      if (length == TOMBSTONE) {
+        dead += RECORD_HEADER_BYTES;
+      }
+      source += record.limit();
+      target += record.limit();
+    }
+    return dead;
+  }
+
+  @Override
+  public void close() throws IOException {
+    appendLock.lock();
+    try {
+      if (channel.isOpen()) {
+        checkpoint();
+        // Waits for reads in flight; later ones find the pack closed and read nothing.
+        swapLock.writeLock().lock();
+        try {
+          channel.close();
+        } finally {
+          swapLock.writeLock().unlock();
+        }
+      }
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  // ── Helpers ───────────────────────────────────────────────────────────────
+
+  private Path packPath() {
+    return directory.resolve(PACK_FILE);
+  }
+
+  private static void writeFileHeader(final FileChannel out, final long generation)
+      throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+    header.putInt(PACK_MAGIC).putLong(generation).flip();
+    writeFully(out, header, 0);
+  }
+
+  private static int crc(
+      final long tileId, final long writtenAt, final int length, final byte[] data) {
+    CRC32C crc = new CRC32C();
+    ByteBuffer fields = ByteBuffer.allocate(20);
+    fields.putLong(tileId).putLong(writtenAt).putInt(length).flip();
+    crc.update(fields);
+    if (data != null) {
+      crc.update(data);
+    }
+    return (int) crc.getValue();
+  }
+
+  private static void readFully(final FileChannel in, final ByteBuffer buffer, final long position)
+      throws IOException {
+    long at = position;
+    while (buffer.hasRemaining()) {
+      int read = in.read(buffer, at);
+      if (read < 0) {
+        throw new IOException("Unexpected end of tile pack at offset %d.".formatted(at));
+      }
+      at += read;
+    }
+  }
+
+  private static void writeFully(
+      final FileChannel out, final ByteBuffer buffer, final long position) throws IOException {
+    long at = position;
+    while (buffer.hasRemaining()) {
+      at += out.write(buffer, at);
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package org.lockard.xyztilecache.cache;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.Layer;
+import org.lockard.xyztilecache.model.LayerChangedEvent;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.store.LayerStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Warms the tiles a client is likely to ask for next. Each served tile is compared with the same
+ * client's previous one: a pan on the same zoom prefetches the row and/or column ahead in the
+ * direction of travel, a zoom in (or a client's first tile) prefetches the four children. The
+ * tiles are loaded by the {@link OnlineCacheLoader} (disk first, then upstream) and put into the
+ * in-memory cache through its map view, so they land in memory and on disk without counting as
+ * cache requests: the hit rate stays that of the clients' own requests.
+ *
+ * <p>Purely speculative, so it gives way to everything else: a layer gets at most {@code
+ * xyz.prefetchMaxPerLayer} prefetches in flight, and nothing is prefetched for a layer whose
+ * breaker is not closed, whose upstream hosts are busy, or in offline mode.
+ */
+@Component
+public class TilePrefetcher {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TilePrefetcher.class);
+
+  static final String PREFETCHES = "xyz_prefetch_tiles";
+  private static final Duration CLIENT_IDLE = Duration.ofMinutes(2);
+  private static final int MAX_CLIENTS = 10_000;
+  /** A same-zoom jump further than this is a new view, not a pan. */
+  private static final int MAX_PAN_TILES = 2;
+  /** Disk reads in the loader block, so each prefetch gets a virtual thread. */
+  private static final Executor PREFETCH_EXECUTOR =
+      task -> Thread.ofVirtual().name("tile-prefetch").start(task);
+
+  private final AsyncLoadingCache<Tile, CachedTile> tileCache;
+  private final LayerStore layerStore;
+  private final NegativeTileCache negativeTiles;
+  private final XyzConfiguration configuration;
+  private final ObjectProvider<OnlineCacheLoader> onlineLoader;
+  private final MeterRegistry meterRegistry;
+
+  private final Cache<String, Tile> lastTileByClient =
+      Caffeine.newBuilder().expireAfterAccess(CLIENT_IDLE).maximumSize(MAX_CLIENTS).build();
+  private final Map<String, Semaphore> budgets = new ConcurrentHashMap<>();
+
+  public TilePrefetcher(
+      final AsyncLoadingCache<Tile, CachedTile> tileCache,
+      final LayerStore layerStore,
+      final NegativeTileCache negativeTiles,
+      final XyzConfiguration configuration,
+      final ObjectProvider<OnlineCacheLoader> onlineLoader,
+      final MeterRegistry meterRegistry) {
+    this.tileCache = tileCache;
+    this.layerStore = layerStore;
+    this.negativeTiles = negativeTiles;
+    this.configuration = configuration;
+    this.onlineLoader = onlineLoader;
+    this.meterRegistry = meterRegistry;
+  }
+
+  public boolean isEnabled() {
+    return configuration.getPrefetchMaxPerLayer() > 0 && !configuration.isOffline();
+  }
+
+  /** Notes that {@code client} was just served {@code z/x/y} and prefetches what may follow. */
+  public void tileServed(
+      final String client, final Layer layer, final int z, final int x, final int y) {
+    if (!isEnabled() || client == null || !hasUpstream(layer)) {
+      return;
+    }
+    String layerId = layer.effectiveId();
+    Tile current = new Tile(layerId, x, y, z, layerStore.getGeneration(layerId));
+    Tile previous = lastTileByClient.asMap().put(client, current);
+    if (current.equals(previous)) {
+      return;
+    }
+    List<Tile> next = predict(previous, current, layer.maxZoom());
+    if (next.isEmpty()
+        || layerStore.getRuntimeState(current.layerId()).requestStrategy()
+            != Layer.RequestStrategy.PROCEED) {
+      return;
+    }
+    OnlineCacheLoader loader = onlineLoader.getIfAvailable();
+    if (loader == null) {
+      return;
+    }
+    Semaphore budget =
+        budgets.computeIfAbsent(
+            current.layerId(), id -> new Semaphore(configuration.getPrefetchMaxPerLayer()));
+    for (Tile tile : next) {
+      if (tileCache.asMap().containsKey(tile) || negativeTiles.isKnownMissing(tile)) {
+        continue;
+      }
+      if (!loader.hasIdleCapacity(tile) || !budget.tryAcquire()) {
+        return;
+      }
+      // Claimed first, so a request for the tile meanwhile waits for this load instead of
+      // starting its own.
+      CompletableFuture<CachedTile> pending = new CompletableFuture<>();
+      if (tileCache.asMap().putIfAbsent(tile, pending) != null) {
+        budget.release();
+        continue;
+      }
+      prefetchCounter(tile.layerId()).increment();
+      loader
+          .asyncLoad(tile, PREFETCH_EXECUTOR)
+          .whenComplete(
+              (cached, error) -> {
+                budget.release();
+                if (error != null) {
+                  LOGGER.debug("Prefetch of tile {} failed: {}", tile, error.getMessage());
+                  pending.completeExceptionally(error);
+                  tileCache.asMap().remove(tile, pending);
+                } else {
+                  pending.complete(cached);
+                  // Put in again complete, so the cache weighs it and sets its expiry.
+                  tileCache
+                      .asMap()
+                      .replace(tile, pending, CompletableFuture.completedFuture(cached));
+                }
+              });
+    }
+  }
+
+  /**
+   * The tiles likely to follow {@code current}, given the same client's {@code previous} tile
+   * (null for the first): the three tiles ahead per axis of a short pan, or the four children
+   * after a zoom in. Tiles outside the world or past {@code maxZoom} are left out.
+   */
+  static List<Tile> predict(final Tile previous, final Tile current, final int maxZoom) {
+    int z = current.z();
+    int x = current.x();
+    int y = current.y();
+    long generation = current.generation();
+    Set<Tile> next = new LinkedHashSet<>();
+    if (previous != null && previous.layerId().equals(current.layerId()) && previous.z() == z) {
+      int dx = x - previous.x();
+      int dy = y - previous.y();
+      if (Math.abs(dx) > MAX_PAN_TILES || Math.abs(dy) > MAX_PAN_TILES) {
+        return List.of();
+      }
+      if (dx != 0) {
+        for (int i = -1; i <= 1; i++) {
+          next.add(new Tile(current.layerId(), x + Integer.signum(dx), y + i, z, generation));
+        }
+      }
+      if (dy != 0) {
+        for (int i = -1; i <= 1; i++) {
+          next.add(new Tile(current.layerId(), x + i, y + Integer.signum(dy), z, generation));
+        }
+      }
+    } else if ((previous == null
+            || !previous.layerId().equals(current.layerId())
+            || previous.z() < z)
+        && z < maxZoom) {
+      for (int i = 0; i < 4; i++) {
+        next.add(
+            new Tile(current.layerId(), 2 * x + (i & 1), 2 * y + (i >> 1), z + 1, generation));
+      }
+    }
+    List<Tile> inRange = new ArrayList<>(next.size());
+    for (Tile tile : next) {
+      long size = 1L << tile.z();
+      if (tile.x() >= 0 && tile.y() >= 0 && tile.x() < size && tile.y() < size) {
+        inRange.add(tile);
+      }
+    }
+    return inRange;
+  }
+
+  private static boolean hasUpstream(final Layer layer) {
+    return layer.sourceType() != Layer.SourceType.LOCAL
+        && layer.sourceType() != Layer.SourceType.VECTOR_PMTILES;
+  }
+
+  private Counter prefetchCounter(final String layerId) {
+    return Counter.builder(PREFETCHES)
+        .description("Tiles prefetched ahead of an expected client request.")
+        .tag("layer", layerId)
+        .register(meterRegistry);
+  }
+
+  /** A changed budget or source starts over; in-flight prefetches release into the old one. */
+  @EventListener
+  void onLayerChanged(final LayerChangedEvent event) {
+    if (event.kind() != LayerChangedEvent.Kind.UPDATED_ACL) {
+      budgets.remove(event.layerName());
+    }
+  }
+}
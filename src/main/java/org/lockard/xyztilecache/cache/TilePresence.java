@@ -0,0 +1,232 @@
+package org.lockard.xyztilecache.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.lockard.xyztilecache.model.Tile;
+
+/**
+ * Which tiles of each layer are on disk, so a miss is known without a {@code stat}. Per layer and
+ * zoom, tiles are numbered along a Z-order curve and split, roaring-bitmap style, into 256×256
+ * blocks of 65,536 tiles: a block holds a sorted array of the tiles present while it has up to
+ * {@value #ARRAY_MAX} of them (two bytes a tile), and a fixed 8 KiB bitmap beyond that. Blocks
+ * with no tiles take no space, so a sparse layer costs a few bytes per cached tile and a fully
+ * cached zoom level one bit per tile.
+ *
+ * <p>Only a layer marked complete — its tiles all added, by a walk or from a saved copy — answers
+ * {@link #isAbsent}; until then every tile may be present. Callers add a tile before writing it
+ * and remove it after deleting it, so a mistake only ever leaves a tile marked present that is
+ * not, which costs the {@code stat} this saves.
+ */
+final class TilePresence {
+
+  /** Tiles a block holds as a sorted array before switching to a bitmap. */
+  static final int ARRAY_MAX = 4096;
+
+  private static final int MAGIC = 0x58595a50; // "XYZP"
+  private static final int BITMAP_WORDS = 65_536 / 64;
+
+  private final Map<String, LayerIndex> layers = new ConcurrentHashMap<>();
+
+  private static final class LayerIndex {
+    final Map<Long, Block> blocks = new ConcurrentHashMap<>();
+    volatile boolean complete;
+  }
+
+  /** Whether the tile is known not to be on disk. */
+  boolean isAbsent(final Tile tile) {
+    LayerIndex index = layers.get(tile.layerId());
+    if (index == null || !index.complete) {
+      return false;
+    }
+    long position = position(tile);
+    Block block = index.blocks.get(blockKey(tile.z(), position));
+    return block == null || !block.contains((char) position);
+  }
+
+  void add(final Tile tile) {
+    long position = position(tile);
+    layers
+        .computeIfAbsent(tile.layerId(), id -> new LayerIndex())
+        .blocks
+        .computeIfAbsent(blockKey(tile.z(), position), key -> new Block())
+        .add((char) position);
+  }
+
+  void remove(final Tile tile) {
+    LayerIndex index = layers.get(tile.layerId());
+    if (index == null) {
+      return;
+    }
+    long position = position(tile);
+    Block block = index.blocks.get(blockKey(tile.z(), position));
+    if (block != null) {
+      block.remove((char) position);
+    }
+  }
+
+  /** Forgets the layer's tiles: it is known to have none. */
+  void clear(final String layerId) {
+    LayerIndex empty = new LayerIndex();
+    empty.complete = true;
+    layers.put(layerId, empty);
+  }
+
+  /**
+   * Forgets the layer's tiles and what is known about them: until it is marked complete again,
+   * every tile may be present. For a layer whose directory may have been filled behind our back.
+   */
+  void reset(final String layerId) {
+    layers.put(layerId, new LayerIndex());
+  }
+
+  /** From now on the layer's missing tiles are answered from memory. */
+  void markComplete(final String layerId) {
+    layers.computeIfAbsent(layerId, id -> new LayerIndex()).complete = true;
+  }
+
+  boolean isComplete(final String layerId) {
+    LayerIndex index = layers.get(layerId);
+    return index != null && index.complete;
+  }
+
+  /**
+   * {@code int magic, int blockCount}, then per block {@code long key, int count} followed by
+   * {@code count} chars, or by {@value #BITMAP_WORDS} longs when {@code count} is -1.
+   */
+  void write(final String layerId, final DataOutputStream out) throws IOException {
+    LayerIndex index = layers.get(layerId);
+    Map<Long, Block> blocks = index != null ? index.blocks : Map.of();
+    out.writeInt(MAGIC);
+    out.writeInt(blocks.size());
+    for (Map.Entry<Long, Block> e : blocks.entrySet()) {
+      out.writeLong(e.getKey());
+      e.getValue().write(out);
+    }
+  }
+
+  /** Adds the tiles written by {@link #write} to the layer; does not mark it complete. */
+  void read(final String layerId, final DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a tile presence index.");
+    }
+    LayerIndex index = layers.computeIfAbsent(layerId, id -> new LayerIndex());
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      index.blocks.computeIfAbsent(in.readLong(), key -> new Block()).read(in);
+    }
+  }
+
+  /** The block a tile falls in: its zoom, and its position along the curve bar the low 16 bits. */
+  private static long blockKey(final int z, final long position) {
+    return (long) z << 56 | position >>> 16;
+  }
+
+  /** The tile's position along the Z-order curve of its zoom level. */
+  static long position(final Tile tile) {
+    return spread(tile.x()) | spread(tile.y()) << 1;
+  }
+
+  /** The low 32 bits of {@code value} moved to the even bit positions. */
+  private static long spread(final int value) {
+    long v = value & 0xFFFFFFFFL;
+    v = (v | v << 16) & 0x0000FFFF0000FFFFL;
+    v = (v | v << 8) & 0x00FF00FF00FF00FFL;
+    v = (v | v << 4) & 0x0F0F0F0F0F0F0F0FL;
+    v = (v | v << 2) & 0x3333333333333333L;
+    v = (v | v << 1) & 0x5555555555555555L;
+    return v;
+  }
+
+  /** The tiles present in one 256×256 block, by the low 16 bits of their position. */
+  private static final class Block {
+    private char[] values = new char[4];
+    private int size;
+    private long[] bitmap;
+
+    synchronized boolean contains(final char low) {
+      if (bitmap != null) {
+        return (bitmap[low >>> 6] & 1L << low) != 0;
+      }
+      return Arrays.binarySearch(values, 0, size, low) >= 0;
+    }
+
+    synchronized void add(final char low) {
+      if (bitmap != null) {
+        bitmap[low >>> 6] |= 1L << low;
+        return;
+      }
+      int i = Arrays.binarySearch(values, 0, size, low);
+      if (i >= 0) {
+        return;
+      }
+      if (size == ARRAY_MAX) {
+        bitmap = new long[BITMAP_WORDS];
+        for (int j = 0; j < size; j++) {
+          bitmap[values[j] >>> 6] |= 1L << values[j];
+        }
+        bitmap[low >>> 6] |= 1L << low;
+        values = null;
+        return;
+      }
+      i = -i - 1;
+      if (size == values.length) {
+        values = Arrays.copyOf(values, Math.min(ARRAY_MAX, size * 2));
+      }
+      System.arraycopy(values, i, values, i + 1, size - i);
+      values[i] = low;
+      size++;
+    }
+
+    /** A block that became a bitmap stays one; blocks rarely lose most of their tiles. */
+    synchronized void remove(final char low) {
+      if (bitmap != null) {
+        bitmap[low >>> 6] &= ~(1L << low);
+        return;
+      }
+      int i = Arrays.binarySearch(values, 0, size, low);
+      if (i >= 0) {
+        System.arraycopy(values, i + 1, values, i, size - i - 1);
+        size--;
+      }
+    }
+
+    synchronized void write(final DataOutputStream out) throws IOException {
+      if (bitmap != null) {
+        out.writeInt(-1);
+        for (long word : bitmap) {
+          out.writeLong(word);
+        }
+        return;
+      }
+      out.writeInt(size);
+      for (int i = 0; i < size; i++) {
+        out.writeChar(values[i]);
+      }
+    }
+
+    synchronized void read(final DataInputStream in) throws IOException {
+      int count = in.readInt();
+      if (count == -1) {
+        for (int i = 0; i < BITMAP_WORDS; i++) {
+          long word = in.readLong();
+          for (int bit = 0; bit < 64; bit++) {
+            if ((word & 1L << bit) != 0) {
+              add((char) (i << 6 | bit));
+            }
+          }
+        }
+        return;
+      }
+      if (count < 0 || count > 65_536) {
+        throw new IOException("Corrupt tile presence index.");
+      }
+      for (int i = 0; i < count; i++) {
+        add(in.readChar());
+      }
+    }
+  }
+}
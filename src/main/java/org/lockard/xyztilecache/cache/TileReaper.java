@@ -0,0 +1,201 @@
+package org.lockard.xyztilecache.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Deletes whole tile trees without making anyone wait for it. {@link #purge} renames the tree into
+ * {@code {baseTileDirectory}/.purge/} (one atomic rename, so the old path is free again at once)
+ * and returns; the tree is then deleted in the background by {@code xyz.purgeThreads} threads, one
+ * top-level directory (zoom level) at a time each, at no more than {@code
+ * xyz.purgeDeletesPerSecond} files in total. Trees left in {@code .purge} by an interrupted run are
+ * picked up again on startup.
+ *
+ * <p>Progress is exported as {@value #DELETED} (files deleted) and {@value #PENDING} (trees not yet
+ * fully deleted).
+ */
+@Component
+public class TileReaper {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileReaper.class);
+
+  static final String PURGE_DIR = ".purge";
+  static final String DELETED = "xyz_purge_deleted_files";
+  static final String PENDING = "xyz_purge_pending_trees";
+
+  private final XyzConfiguration configuration;
+  private final ExecutorService workers;
+  private final Map<Path, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+  private final Counter deleted;
+  private final AtomicLong nextDeleteNanos = new AtomicLong(System.nanoTime());
+
+  public TileReaper(final XyzConfiguration configuration, final MeterRegistry meterRegistry) {
+    this.configuration = configuration;
+    this.workers =
+        Executors.newFixedThreadPool(
+            Math.max(1, configuration.getPurgeThreads()),
+            Thread.ofPlatform().daemon().name("tile-reaper-", 0).factory());
+    this.deleted =
+        Counter.builder(DELETED)
+            .description("Files deleted from purged tile trees.")
+            .register(meterRegistry);
+    Gauge.builder(PENDING, pending, Map::size)
+        .description("Purged tile trees still being deleted.")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Moves {@code dir} aside and deletes it in the background. The returned future completes once
+   * the tree is gone; it is already complete if {@code dir} does not exist.
+   */
+  public CompletableFuture<Void> purge(final Path dir) throws IOException {
+    if (!Files.exists(dir)) {
+      return CompletableFuture.completedFuture(null);
+    }
+    Path purgeRoot = purgeRoot();
+    Files.createDirectories(purgeRoot);
+    Path target = purgeRoot.resolve(dir.getFileName() + "." + UUID.randomUUID());
+    Files.move(dir, target, StandardCopyOption.ATOMIC_MOVE);
+    LOGGER.info("Moved {} aside to {} for deletion.", dir, target);
+    return reap(target);
+  }
+
+  /** Finishes whatever a previous run left in {@code .purge}. */
+  @EventListener(ApplicationStartedEvent.class)
+  void resume() {
+    for (Path tree : list(purgeRoot())) {
+      LOGGER.info("Resuming deletion of {}.", tree);
+      reap(tree);
+    }
+  }
+
+  @PreDestroy
+  void close() {
+    // Whatever is left stays in .purge and is picked up by the next run.
+    workers.shutdownNow();
+  }
+
+  private CompletableFuture<Void> reap(final Path tree) {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    CompletableFuture<Void> running = pending.putIfAbsent(tree, done);
+    if (running != null) {
+      return running;
+    }
+    CompletableFuture<?>[] parts =
+        list(tree).stream()
+            .map(child -> CompletableFuture.runAsync(() -> delete(child), workers))
+            .toArray(CompletableFuture[]::new);
+    CompletableFuture.allOf(parts)
+        .thenRunAsync(() -> delete(tree), workers)
+        .whenComplete(
+            (ignored, e) -> {
+              pending.remove(tree);
+              if (e != null) {
+                LOGGER.warn("Deletion of {} did not finish; it resumes on restart.", tree, e);
+                done.completeExceptionally(e);
+              } else {
+                LOGGER.info("Deleted {}.", tree);
+                done.complete(null);
+              }
+            });
+    return done;
+  }
+
+  /** Deletes {@code path} and everything below it, carrying on past files that will not go. */
+  private void delete(final Path path) {
+    try {
+      Files.walkFileTree(
+          path,
+          new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+              if (Thread.currentThread().isInterrupted()) {
+                return FileVisitResult.TERMINATE;
+              }
+              throttle();
+              deleteQuietly(file);
+              deleted.increment();
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException e) {
+              deleteQuietly(dir);
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } catch (IOException e) {
+      LOGGER.warn("Failed to delete {}.", path, e);
+    }
+  }
+
+  /** Spaces deletes out to at most {@code xyz.purgeDeletesPerSecond} across all workers. */
+  private void throttle() {
+    int rate = configuration.getPurgeDeletesPerSecond();
+    if (rate <= 0) {
+      return;
+    }
+    long interval = 1_000_000_000L / rate;
+    long slot =
+        nextDeleteNanos.getAndAccumulate(
+            interval, (next, step) -> Math.max(next, System.nanoTime()) + step);
+    long wait = slot - System.nanoTime();
+    if (wait > 0) {
+      LockSupport.parkNanos(wait);
+    }
+  }
+
+  private static void deleteQuietly(final Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      LOGGER.debug("Failed to delete {}.", path, e);
+    }
+  }
+
+  private static List<Path> list(final Path dir) {
+    try (Stream<Path> children = Files.list(dir)) {
+      return children.toList();
+    } catch (NoSuchFileException e) {
+      return List.of();
+    } catch (IOException e) {
+      LOGGER.warn("Failed to list {}.", dir, e);
+      return List.of();
+    }
+  }
+
+  private Path purgeRoot() {
+    return Paths.get(configuration.getBaseTileDirectory(), PURGE_DIR);
+  }
+}
@@ -0,0 +1,212 @@
+package org.lockard.xyztilecache.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.lockard.xyztilecache.model.Layer;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.store.LayerStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cleans up after a crash. Tile files are written to a temp file and renamed into place (see
+ * {@link FileSystemTileStore#put}), so a crash leaves temp files behind rather than half-written
+ * tiles; tiles written before that, or emptied by a power cut, may still be truncated. When the
+ * {@link TileInventory} finds that the last run did not shut down cleanly (not on a first start,
+ * with no inventory yet), every upstream-backed layer's tile files are checked in the background,
+ * one layer at a time: leftover temp files are deleted, and so is any PNG, JPEG, GIF or WebP tile
+ * whose header and trailer do not match up, so it is fetched again instead of being served broken;
+ * only a tile's first and last few bytes are read for this. Other formats are only checked for
+ * being empty. LOCAL and vector layers are left alone: their files are the source, not a cache.
+ * Packed layers carry a checksum per tile and are checked on their own when they are opened.
+ *
+ * <p>Removed files are counted in {@value #REMOVED}, tagged {@code kind=temp|truncated}.
+ */
+@Component
+public class TileScrubber {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileScrubber.class);
+
+  static final String REMOVED = "xyz_scrub_removed_files";
+
+  /** A temp file younger than this may belong to a write still in progress. */
+  private static final long TEMP_FILE_GRACE_MILLIS = 60_000;
+
+  /** The bytes read from the start of a tile: enough for a WebP file's RIFF header. */
+  private static final int HEADER_BYTES = 12;
+
+  /**
+   * The bytes read from the end of a tile: how far from the end a JPEG's end-of-image marker may
+   * be (some encoders pad after it), and more than any other format's trailer.
+   */
+  private static final int TRAILER_BYTES = 32;
+
+  private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G'};
+  private static final byte[] PNG_TRAILER = {
+    'I', 'E', 'N', 'D', (byte) 0xAE, (byte) 0x42, (byte) 0x60, (byte) 0x82
+  };
+  private static final byte[] GIF_SIGNATURE = {'G', 'I', 'F', '8'};
+  private static final byte[] RIFF_SIGNATURE = {'R', 'I', 'F', 'F'};
+
+  private final LayerStore layerStore;
+  private final FileSystemTileStore files;
+  private final TileInventory inventory;
+  private final Counter tempFiles;
+  private final Counter truncatedTiles;
+
+  public TileScrubber(
+      final LayerStore layerStore,
+      final FileSystemTileStore files,
+      final TileInventory inventory,
+      final MeterRegistry meterRegistry) {
+    this.layerStore = layerStore;
+    this.files = files;
+    this.inventory = inventory;
+    this.tempFiles = removedCounter(meterRegistry, "temp");
+    this.truncatedTiles = removedCounter(meterRegistry, "truncated");
+  }
+
+  @EventListener(ApplicationStartedEvent.class)
+  void scrubInBackground() {
+    List<String> layerIds = layersToScrub();
+    if (layerIds.isEmpty()) {
+      return;
+    }
+    Thread.ofVirtual()
+        .name("tile-scrubber")
+        .start(
+            () -> {
+              LOGGER.info("The last run did not shut down cleanly; checking the cached tiles.");
+              layerIds.forEach(this::scrub);
+            });
+  }
+
+  /**
+   * The upstream-backed layers, after a run that did not shut down cleanly; none on a first start
+   * or after a clean shutdown. A LOCAL or vector layer's files are its only copy, so a tile the
+   * heuristics get wrong is never deleted from them.
+   */
+  List<String> layersToScrub() {
+    if (!inventory.isUncleanRestart()) {
+      return List.of();
+    }
+    return layerStore.getLayers().values().stream()
+        .filter(
+            layer ->
+                layer.sourceType() != Layer.SourceType.LOCAL
+                    && layer.sourceType() != Layer.SourceType.VECTOR_PMTILES)
+        .map(Layer::effectiveId)
+        .toList();
+  }
+
+  /** Deletes the layer's leftover temp files and truncated tiles. */
+  void scrub(final String layerId) {
+    List<Tile> truncated = new ArrayList<>();
+    int temps;
+    try {
+      temps = files.deleteTempFiles(layerId, System.currentTimeMillis() - TEMP_FILE_GRACE_MILLIS);
+      files.forEach(
+          layerId,
+          entry -> {
+            long size = entry.size();
+            byte[] header = entry.read(0, HEADER_BYTES);
+            byte[] trailer = entry.read(Math.max(0, size - TRAILER_BYTES), TRAILER_BYTES);
+            if (isTruncated(header, trailer, size)) {
+              truncated.add(entry.tile());
+            }
+          });
+    } catch (IOException e) {
+      LOGGER.warn("Failed to check the cached tiles of layer {}.", layerId, e);
+      return;
+    }
+    tempFiles.increment(temps);
+    for (Tile tile : truncated) {
+      try {
+        long size = files.delete(tile);
+        if (size >= 0) {
+          layerStore.getRuntimeState(layerId).tileDeleted(tile, size);
+          truncatedTiles.increment();
+        }
+      } catch (IOException e) {
+        LOGGER.debug("Failed to delete truncated tile {}.", tile, e);
+      }
+    }
+    if (temps > 0 || !truncated.isEmpty()) {
+      LOGGER.info(
+          "Removed {} temp file(s) and {} truncated tile(s) from layer {}.",
+          temps,
+          truncated.size(),
+          layerId);
+    }
+  }
+
+  /** Whether {@code data} is an image cut short: its format's trailer is missing. */
+  static boolean isTruncated(final byte[] data) {
+    int n = data.length;
+    return isTruncated(
+        Arrays.copyOf(data, Math.min(n, HEADER_BYTES)),
+        Arrays.copyOfRange(data, Math.max(0, n - TRAILER_BYTES), n),
+        n);
+  }
+
+  /**
+   * Whether a tile of {@code size} bytes is an image cut short, from its first {@value
+   * #HEADER_BYTES} and last {@value #TRAILER_BYTES} bytes (or all of it, when shorter).
+   */
+  static boolean isTruncated(final byte[] header, final byte[] trailer, final long size) {
+    int t = trailer.length;
+    if (size == 0 || t == 0) {
+      return true;
+    }
+    if (startsWith(header, PNG_SIGNATURE)) {
+      return size < PNG_SIGNATURE.length + PNG_TRAILER.length
+          || t < PNG_TRAILER.length
+          || !Arrays.equals(trailer, t - PNG_TRAILER.length, t, PNG_TRAILER, 0, PNG_TRAILER.length);
+    }
+    if (header.length >= 2 && (header[0] & 0xff) == 0xFF && (header[1] & 0xff) == 0xD8) {
+      // The marker may not overlap the start-of-image one.
+      long trailerStart = size - t;
+      for (int i = t - 2; i >= 0 && trailerStart + i >= 2; i--) {
+        if ((trailer[i] & 0xff) == 0xFF && (trailer[i + 1] & 0xff) == 0xD9) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (startsWith(header, GIF_SIGNATURE)) {
+      return trailer[t - 1] != 0x3B;
+    }
+    if (header.length >= 12
+        && startsWith(header, RIFF_SIGNATURE)
+        && header[8] == 'W'
+        && header[9] == 'E'
+        && header[10] == 'B'
+        && header[11] == 'P') {
+      long riffSize =
+          (header[4] & 0xffL)
+              | (header[5] & 0xffL) << 8
+              | (header[6] & 0xffL) << 16
+              | (header[7] & 0xffL) << 24;
+      return size < riffSize + 8;
+    }
+    return false;
+  }
+
+  private static boolean startsWith(final byte[] data, final byte[] prefix) {
+    return data.length >= prefix.length
+        && Arrays.equals(data, 0, prefix.length, prefix, 0, prefix.length);
+  }
+
+  private static Counter removedCounter(final MeterRegistry registry, final String kind) {
+    return Counter.builder(REMOVED)
+        .description("Files removed from the disk cache after an unclean shutdown.")
+        .tag("kind", kind)
+        .register(registry);
+  }
+}
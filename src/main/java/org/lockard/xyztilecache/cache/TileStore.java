@@ -0,0 +1,94 @@
+package org.lockard.xyztilecache.cache;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import org.lockard.xyztilecache.model.BoundingBox;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.Tile;
+import org.springframework.lang.Nullable;
+
+/**
+ * Where tile bytes are kept between the in-memory cache and the upstream. The loaders, {@link
+ * TileWriter}, the vector tile cache, import/export and the disk cache bookkeeping all go through
+ * this interface, so the on-disk layout lives in one implementation per backend: {@link
+ * FileSystemTileStore} ({@code {layerId}/{z}/{x}/{y}.{ext}}, the default), {@link PackedTileStore}
+ * and {@link InMemoryTileStore}. {@link RoutingTileStore} picks the backend per layer.
+ *
+ * <p>Stores hold raw bytes only: expiry, statistics and free-space checks stay with the callers.
+ */
+public interface TileStore {
+
+  /** A stored tile's bytes and when they were written. */
+  record StoredTile(byte[] data, long writtenAt) {}
+
+  /** A tile met by {@link #forEach}; its bytes are only read when asked for. */
+  interface Entry {
+    Tile tile();
+
+    long size();
+
+    long writtenAt();
+
+    byte[] read() throws IOException;
+
+    /**
+     * Up to {@code length} bytes from {@code position} on, fewer where the tile ends sooner. Stores
+     * that can read part of a tile override this; the default reads it all.
+     */
+    default byte[] read(final long position, final int length) throws IOException {
+      byte[] data = read();
+      int from = (int) Math.min(position, data.length);
+      return Arrays.copyOfRange(data, from, (int) Math.min(data.length, from + (long) length));
+    }
+  }
+
+  @FunctionalInterface
+  interface Visitor {
+    void visit(Entry entry) throws IOException;
+  }
+
+  /** The tile, or empty if this store does not hold it. */
+  Optional<StoredTile> get(Tile tile) throws IOException;
+
+  boolean exists(Tile tile) throws IOException;
+
+  /**
+   * Stores {@code data} as the tile's current version, written at {@code writtenAt} (epoch millis,
+   * kept as its {@link StoredTile#writtenAt}); returns the replaced size or -1.
+   */
+  long put(Tile tile, byte[] data, long writtenAt) throws IOException;
+
+  /** Stores {@code data} as the tile's current version, written now. */
+  default long put(final Tile tile, final byte[] data) throws IOException {
+    return put(tile, data, CachedTile.fetchTime());
+  }
+
+  /** Deletes the tile; returns its size, or -1 if it was not stored. */
+  long delete(Tile tile) throws IOException;
+
+  /** Deletes every tile of the layer, along with whatever else the store keeps for it. */
+  void deleteLayer(String layerId) throws IOException;
+
+  /**
+   * Visits the layer's tiles from {@code minZoom} through {@code maxZoom}, limited to {@code bbox}
+   * when it is not null. The order is up to the store.
+   */
+  void forEach(
+      String layerId, int minZoom, int maxZoom, @Nullable BoundingBox bbox, Visitor visitor)
+      throws IOException;
+
+  /** Visits all of the layer's tiles. */
+  default void forEach(final String layerId, final Visitor visitor) throws IOException {
+    forEach(layerId, 0, Integer.MAX_VALUE, null, visitor);
+  }
+
+  /**
+   * The file holding the tile, for stores that keep one file per tile and have this one; callers
+   * use it to stream the tile straight from disk. Empty otherwise.
+   */
+  default Optional<Path> file(final Tile tile) throws IOException {
+    return Optional.empty();
+  }
+}
@@ -1,95 +1,283 @@
 package org.lockard.xyztilecache.cache;
 
-import jakarta.annotation.PostConstruct;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.annotation.PreDestroy;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
 import org.lockard.xyztilecache.model.LayerChangedEvent;
 import org.lockard.xyztilecache.model.Tile;
 import org.lockard.xyztilecache.store.LayerStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.DependsOn;
 import org.springframework.context.event.EventListener;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Component;
 
+/**
+ * Writes fetched tiles to the {@link TileStore} behind the request path. {@link #storeTile} only
+ * queues the tile; {@code xyz.writeThreads} threads write the queue out in batches, sorted so that
+ * tiles sharing a directory are written one after the other. A tile queued again before it was
+ * written only has its bytes replaced. At most {@code xyz.writeQueueCapacity} tiles wait: beyond
+ * that the write is dropped at once (the tile is still served from memory and simply fetched again
+ * later), since {@link #storeTile} runs on the threads completing upstream fetches and must not
+ * block them. Bulk producers call {@link #awaitRoom} first to slow down to the disk's pace.
+ *
+ * <p>Free disk space is sampled once a second rather than checked for every tile. Whatever is
+ * still queued at shutdown is written out first. Exported as {@value #QUEUED} (tiles waiting),
+ * {@value #LATENCY} (queued to written) and {@value #DROPPED}.
+ *
+ * <p>Depends on the {@link TileInventory} so that it is shut down first: the inventory is saved as
+ * clean on shutdown, and must count the tiles flushed here.
+ */
 @Component
-@DependsOn("layerStore")
+@DependsOn({"layerStore", "tileInventory"})
 public class TileWriter {
   private static final Logger LOGGER = LoggerFactory.getLogger(TileWriter.class);
 
+  static final String QUEUED = "xyz_tile_write_queue_size";
+  static final String LATENCY = "xyz_tile_write_latency";
+  static final String DROPPED = "xyz_tile_write_dropped";
+
+  private static final int BATCH_SIZE = 256;
+  private static final long FREE_SPACE_SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long FLUSH_TIMEOUT_MILLIS = 30_000;
+
+  /** Neighbouring tiles end up next to each other, in the same directory. */
+  private static final Comparator<Tile> WRITE_ORDER =
+      Comparator.comparing(Tile::layerId)
+          .thenComparingInt(Tile::z)
+          .thenComparingInt(Tile::x)
+          .thenComparingInt(Tile::y);
+
   private final XyzConfiguration configuration;
   private final LayerStore layerStore;
+  private final TileStore tiles;
+
+  private final BlockingQueue<Tile> queue;
+  private final Map<Tile, Queued> queued = new ConcurrentHashMap<>();
+  private final AtomicInteger writing = new AtomicInteger();
+  private final ExecutorService workers;
+  private final Timer latency;
+  private final Counter dropped;
+
+  private volatile boolean diskFull;
+  private volatile long nextFreeSpaceCheck = System.nanoTime();
+
+  /** A tile's bytes waiting to be written, and when they were queued. */
+  private record Queued(byte[] data, long writtenAt, long queuedAt) {}
 
   public TileWriter(final XyzConfiguration configuration, final LayerStore layerStore) {
+    this(configuration, layerStore, new FileSystemTileStore(configuration, layerStore));
+  }
+
+  public TileWriter(
+      final XyzConfiguration configuration,
+      final LayerStore layerStore,
+      final TileStore tiles) {
+    this(configuration, layerStore, tiles, new SimpleMeterRegistry());
+  }
+
+  @Autowired
+  public TileWriter(
+      final XyzConfiguration configuration,
+      final LayerStore layerStore,
+      final TileStore tiles,
+      final MeterRegistry meterRegistry) {
     this.configuration = configuration;
     this.layerStore = layerStore;
+    this.tiles = tiles;
+    this.queue = new LinkedBlockingQueue<>(Math.max(1, configuration.getWriteQueueCapacity()));
+    int threads = Math.max(1, configuration.getWriteThreads());
+    this.workers =
+        Executors.newFixedThreadPool(
+            threads, Thread.ofPlatform().daemon().name("tile-writer-", 0).factory());
+    for (int i = 0; i < threads; i++) {
+      workers.execute(this::drain);
+    }
+    Gauge.builder(QUEUED, queued, Map::size)
+        .description("Fetched tiles waiting to be written to disk.")
+        .register(meterRegistry);
+    this.latency =
+        Timer.builder(LATENCY)
+            .description("Time from a fetched tile being queued to it being on disk.")
+            .register(meterRegistry);
+    this.dropped =
+        Counter.builder(DROPPED)
+            .description("Fetched tiles not written to disk because the write queue was full.")
+            .register(meterRegistry);
   }
 
-  @PostConstruct
-  void inventoryExistingTiles() {
-    layerStore
-        .getLayers()
-        .values()
-        .forEach(
-            layer -> {
-              Path tileDir = Paths.get(configuration.getBaseTileDirectory(), layer.effectiveId());
-              try {
-                Files.createDirectories(tileDir);
-                try (var paths = Files.walk(tileDir)) {
-                  paths
-                      .filter(Files::isRegularFile)
-                      .forEach(
-                          f ->
-                              layerStore
-                                  .getRuntimeState(layer.effectiveId())
-                                  .addTileStats(f.toFile().length()));
-                }
-              } catch (IOException e) {
-                LOGGER.error("Failed to inventory tile directory for {}.", layer.effectiveId(), e);
-              }
-            });
+  /** Queues {@code tile} to be written, as fetched now. */
+  void storeTile(final Tile tile, final byte[] data) {
+    storeTile(tile, data, CachedTile.fetchTime());
   }
 
-  @Async
-  void storeTile(final Tile tile, final byte[] data) {
+  /**
+   * Queues {@code tile} to be written, without blocking; see the class comment for what happens
+   * when the queue is full. {@code fetchedAt} is stored as the tile's written-at time, so the
+   * copy on disk has the same ETag as the one served from memory.
+   */
+  void storeTile(final Tile tile, final byte[] data, final long fetchedAt) {
+    Queued entry = new Queued(data, fetchedAt, System.nanoTime());
+    if (queued.put(tile, entry) != null) {
+      // Already waiting: it goes out with these bytes instead.
+      return;
+    }
+    while (!queue.offer(tile)) {
+      if (queued.remove(tile, entry)) {
+        dropped.increment();
+        LOGGER.debug("Write queue is full; not persisting tile {}.", tile);
+        return;
+      }
+      // Newer bytes were swapped in meanwhile by a caller that counted on this tile being queued;
+      // try again with those. Nothing else takes the tile out of the map while it is not queued.
+      entry = queued.get(tile);
+    }
+  }
+
+  /**
+   * Waits until the write queue has room, for at most {@code timeoutMillis}. Returns whether it
+   * has.
+   */
+  public boolean awaitRoom(final long timeoutMillis) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (queue.remainingCapacity() == 0) {
+      if (System.nanoTime() > deadline) {
+        return false;
+      }
+      Thread.sleep(5);
+    }
+    return true;
+  }
+
+  /**
+   * Waits until every tile queued so far has been written, for at most {@code timeoutMillis}.
+   * Returns whether it got there.
+   */
+  boolean flush(final long timeoutMillis) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (!queued.isEmpty() || writing.get() > 0) {
+      if (System.nanoTime() > deadline) {
+        return false;
+      }
+      try {
+        Thread.sleep(5);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @PreDestroy
+  void close() {
+    if (!flush(FLUSH_TIMEOUT_MILLIS)) {
+      LOGGER.warn("Shut down with {} tile(s) still waiting to be written.", queued.size());
+    }
+    workers.shutdownNow();
+  }
+
+  private void drain() {
+    List<Tile> batch = new ArrayList<>(BATCH_SIZE);
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch, BATCH_SIZE - 1);
+      batch.sort(WRITE_ORDER);
+      for (Tile tile : batch) {
+        writing.incrementAndGet();
+        try {
+          Queued entry = queued.remove(tile);
+          if (entry != null) {
+            write(tile, entry.data(), entry.writtenAt());
+            latency.record(System.nanoTime() - entry.queuedAt(), TimeUnit.NANOSECONDS);
+          }
+        } finally {
+          writing.decrementAndGet();
+        }
+      }
+      batch.clear();
+    }
+  }
+
+  private void write(final Tile tile, final byte[] data, final long writtenAt) {
     var layer = layerStore.getLayers().get(tile.layerId());
     if (layer == null) {
       LOGGER.debug("Layer {} no longer configured; not persisting tile {}.", tile.layerId(), tile);
       return;
     }
+    if (tile.generation() != layerStore.getGeneration(tile.layerId())) {
+      // Loaded before the layer's source changed: writing it would bring back a stale tile.
+      LOGGER.debug(
+          "Layer {} changed while loading tile {}; not persisting it.", tile.layerId(), tile);
+      return;
+    }
+    if (isDiskFull()) {
+      return;
+    }
+
+    try {
+      // A refresh replaces the tile; count it once so the disk cache cap sees the real size.
+      long replaced = tiles.put(tile, data, writtenAt);
+      layerStore.getRuntimeState(tile.layerId()).tileStored(tile, replaced, data.length);
+      LOGGER.debug("Wrote tile {}.", tile);
+    } catch (IOException e) {
+      LOGGER.debug("Failed to write tile {}.", tile, e);
+    }
+  }
+
+  /** Whether free disk space was below {@code xyz.minFreeDiskBytes} at the last sample. */
+  private boolean isDiskFull() {
+    long now = System.nanoTime();
+    if (now - nextFreeSpaceCheck < 0) {
+      return diskFull;
+    }
+    nextFreeSpaceCheck = now + FREE_SPACE_SAMPLE_NANOS;
     try {
       long freeBytes =
           Files.getFileStore(Paths.get(configuration.getBaseTileDirectory())).getUsableSpace();
-      if (freeBytes < configuration.getMinFreeDiskBytes()) {
+      boolean full = freeBytes < configuration.getMinFreeDiskBytes();
+      if (full) {
         LOGGER.warn(
-            "Free disk space ({} MB) is below minimum ({} MB). Tile will not be stored.",
+            "Free disk space ({} MB) is below minimum ({} MB). Tiles will not be stored.",
             freeBytes / (1024 * 1024),
             configuration.getMinFreeDiskBytes() / (1024 * 1024));
-        return;
       }
+      diskFull = full;
     } catch (IOException e) {
-      LOGGER.warn("Could not check disk free space — proceeding with tile write.", e);
-    }
-
-    Path output = toPath(tile);
-    try {
-      Files.createDirectories(output.getParent());
-      Files.write(output, data);
-      layerStore.getRuntimeState(tile.layerId()).addTileStats(data.length);
-      LOGGER.debug("Wrote tile {} to {}.", tile, output);
-    } catch (IOException e) {
-      LOGGER.debug("Failed to write tile {} to {}.", tile, output, e);
+      LOGGER.warn("Could not check disk free space — proceeding with tile writes.", e);
+      diskFull = false;
     }
+    return diskFull;
   }
 
   /**
    * Removes the on-disk tile directory for a layer that has been removed from the config or whose
-   * source has changed (which makes previously-cached tiles stale).
+   * source has changed (which makes previously-cached tiles stale). The directory is moved aside
+   * and deleted by the {@link TileReaper}, so this does not hold up the event.
    */
   @EventListener
   void onLayerChanged(LayerChangedEvent event) {
@@ -97,22 +285,10 @@ public class TileWriter {
         && event.kind() != LayerChangedEvent.Kind.UPDATED_SOURCE) {
       return;
     }
-    Path layerDir = Paths.get(configuration.getBaseTileDirectory(), event.layerName());
-    if (Files.exists(layerDir)) {
-      try (var paths = Files.walk(layerDir)) {
-        paths
-            .sorted(Comparator.reverseOrder())
-            .forEach(
-                p -> {
-                  try {
-                    Files.delete(p);
-                  } catch (IOException e) {
-                    LOGGER.warn("Failed to delete {}", p, e);
-                  }
-                });
-      } catch (IOException e) {
-        LOGGER.warn("Failed to delete layer tile dir for {}", event.layerName(), e);
-      }
+    try {
+      tiles.deleteLayer(event.layerName());
+    } catch (IOException e) {
+      LOGGER.warn("Failed to delete layer tile dir for {}", event.layerName(), e);
     }
     if (event.kind() == LayerChangedEvent.Kind.UPDATED_SOURCE) {
       var state = layerStore.getRuntimeState(event.layerName());
@@ -120,15 +296,4 @@ public class TileWriter {
       state.setCachedTilesSize(0);
     }
   }
-
-  protected Path toPath(final Tile tile) {
-    var layer = layerStore.getLayers().get(tile.layerId());
-    String ext = layer != null ? layer.tileFileExtension() : "png";
-    return Paths.get(
-        configuration.getBaseTileDirectory(),
-        tile.layerId(),
-        String.valueOf(tile.z()),
-        String.valueOf(tile.x()),
-        tile.y() + "." + ext);
-  }
 }
@@ -0,0 +1,130 @@
+package org.lockard.xyztilecache.cache;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Caps the upstream fetches in flight to one host so a slow source cannot absorb every outbound
+ * request. Calls beyond {@code maxConcurrent} wait in a FIFO queue of at most {@code maxQueued};
+ * beyond that they fail fast with {@link UpstreamBulkheadFullException}.
+ *
+ * <p>Fetches are asynchronous, so a permit is held by a pending future rather than a thread: when
+ * one completes, its permit passes straight to the head of the queue. Cancelling a returned future
+ * cancels the underlying call, or drops it from the queue if it has not started.
+ */
+final class UpstreamBulkhead {
+  private final String host;
+  private final int maxConcurrent;
+  private final int maxQueued;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+  private int active;
+  private long rejections;
+
+  UpstreamBulkhead(final String host, final int maxConcurrent, final int maxQueued) {
+    this.host = host;
+    this.maxConcurrent = Math.max(1, maxConcurrent);
+    this.maxQueued = Math.max(0, maxQueued);
+  }
+
+  /** Runs {@code call} now if a permit is free, later if there is room to queue, else fails. */
+  <T> CompletableFuture<T> submit(final Supplier<CompletableFuture<T>> call) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    lock.lock();
+    try {
+      if (active >= maxConcurrent) {
+        if (queue.size() >= maxQueued) {
+          rejections++;
+          return CompletableFuture.failedFuture(
+              new UpstreamBulkheadFullException(
+                  "Too many pending requests to upstream host %s.".formatted(host)));
+        }
+        queue.add(() -> start(call, result));
+        return result;
+      }
+      active++;
+    } finally {
+      lock.unlock();
+    }
+    start(call, result);
+    return result;
+  }
+
+  int active() {
+    lock.lock();
+    try {
+      return active;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int queued() {
+    lock.lock();
+    try {
+      return queue.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long rejections() {
+    lock.lock();
+    try {
+      return rejections;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private <T> void start(
+      final Supplier<CompletableFuture<T>> call, final CompletableFuture<T> result) {
+    if (result.isDone()) {
+      // Cancelled while queued (e.g. a hedge that lost); don't spend the permit on it.
+      release();
+      return;
+    }
+    CompletableFuture<T> inFlight;
+    try {
+      inFlight = call.get();
+    } catch (RuntimeException e) {
+      inFlight = CompletableFuture.failedFuture(e);
+    }
+    final CompletableFuture<T> started = inFlight;
+    result.whenComplete(
+        (value, error) -> {
+          if (result.isCancelled()) {
+            started.cancel(true);
+          }
+        });
+    inFlight.whenComplete(
+        (value, error) -> {
+          // Hand the permit on before completing, so downstream work doesn't delay the next fetch.
+          release();
+          if (error != null) {
+            result.completeExceptionally(error);
+          } else {
+            result.complete(value);
+          }
+        });
+  }
+
+  private void release() {
+    Runnable next;
+    lock.lock();
+    try {
+      next = queue.poll();
+      if (next == null) {
+        active--;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (next != null) {
+      next.run();
+    }
+  }
+}
@@ -0,0 +1,12 @@
+package org.lockard.xyztilecache.cache;
+
+/**
+ * The per-host upstream bulkhead is saturated and its wait queue is full. Answered like a blocked
+ * source ({@code 503}, or the stale tile if there is one), but it says nothing about the source's
+ * health, so it never trips the circuit breaker.
+ */
+public class UpstreamBulkheadFullException extends UpstreamUnavailableException {
+  public UpstreamBulkheadFullException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,149 @@
+package org.lockard.xyztilecache.cache;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Mirror selection for upstream templates with a subdomain placeholder: {@code {s}} expands to
+ * {@code a}, {@code b} and {@code c} as in Leaflet/OpenLayers, {@code {s:1,2,3,4}} to the listed
+ * values — which may be whole host names, to spread a layer over unrelated mirrors.
+ *
+ * <p>Each endpoint of each layer tracks its own health and latency. A failing endpoint is skipped
+ * with exponential backoff (100 ms doubling to 60 s) while the layer's other endpoints keep
+ * serving, so the layer's circuit breaker only sees a failure once every endpoint has failed. Among
+ * healthy endpoints the first choice is the faster of two picked at random (power of two choices),
+ * which spreads load without piling onto whichever one was fastest a moment ago.
+ */
+final class UpstreamEndpoints {
+  private static final Pattern SUBDOMAINS = Pattern.compile("\\{s(?::([^}]*))?}");
+  private static final List<String> DEFAULT_SUBDOMAINS = List.of("a", "b", "c");
+  private static final long MIN_BLOCK_MILLIS = 100;
+  private static final long MAX_BLOCK_MILLIS = 60_000;
+  private static final double LATENCY_WEIGHT = 0.2;
+
+  /** One concrete upstream URL and the substitution it came from. */
+  record Candidate(String key, String url) {}
+
+  private final Clock clock;
+  private final Map<String, Map<String, Endpoint>> byLayer = new ConcurrentHashMap<>();
+
+  UpstreamEndpoints(final Clock clock) {
+    this.clock = clock;
+  }
+
+  /** Expands the subdomain placeholder of a built tile URL; a URL without one is returned as is. */
+  static List<Candidate> expand(final String url) {
+    Matcher matcher = SUBDOMAINS.matcher(url);
+    if (!matcher.find()) {
+      return List.of(new Candidate("", url));
+    }
+    List<String> values =
+        matcher.group(1) == null ? DEFAULT_SUBDOMAINS : List.of(matcher.group(1).split(","));
+    List<Candidate> candidates = new ArrayList<>(values.size());
+    for (String value : values) {
+      String key = value.strip();
+      if (!key.isEmpty()) {
+        candidates.add(
+            new Candidate(
+                key,
+                url.substring(0, matcher.start()) + key + url.substring(matcher.end())));
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Orders a fetch's candidates: the first pick among the healthy endpoints, the other healthy
+   * ones by latency as failovers, then the blocked ones soonest-to-recover first as a last resort.
+   */
+  List<Candidate> order(final String layerId, final List<Candidate> candidates) {
+    if (candidates.size() <= 1) {
+      return candidates;
+    }
+    long now = clock.millis();
+    Map<String, Endpoint> endpoints = layer(layerId);
+    List<Candidate> healthy = new ArrayList<>(candidates.size());
+    List<Candidate> blocked = new ArrayList<>();
+    for (Candidate candidate : candidates) {
+      Endpoint endpoint = endpoints.computeIfAbsent(candidate.key(), k -> new Endpoint());
+      (endpoint.isBlocked(now) ? blocked : healthy).add(candidate);
+    }
+    Comparator<Candidate> byLatency =
+        Comparator.comparingDouble(c -> endpoints.get(c.key()).latencyMillis());
+    if (healthy.size() >= 2) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int first = random.nextInt(healthy.size());
+      int second = random.nextInt(healthy.size() - 1);
+      if (second >= first) {
+        second++;
+      }
+      int pick =
+          byLatency.compare(healthy.get(first), healthy.get(second)) <= 0 ? first : second;
+      Candidate chosen = healthy.remove(pick);
+      healthy.sort(byLatency);
+      healthy.add(0, chosen);
+    }
+    blocked.sort(Comparator.comparingLong(c -> endpoints.get(c.key()).blockedUntil()));
+    healthy.addAll(blocked);
+    return Collections.unmodifiableList(healthy);
+  }
+
+  void succeeded(final String layerId, final String key, final long millis) {
+    layer(layerId).computeIfAbsent(key, k -> new Endpoint()).succeeded(millis);
+  }
+
+  void failed(final String layerId, final String key) {
+    layer(layerId).computeIfAbsent(key, k -> new Endpoint()).failed(clock.millis());
+  }
+
+  boolean isHealthy(final String layerId, final String key) {
+    Endpoint endpoint = layer(layerId).get(key);
+    return endpoint == null || !endpoint.isBlocked(clock.millis());
+  }
+
+  void forget(final String layerId) {
+    byLayer.remove(layerId);
+  }
+
+  private Map<String, Endpoint> layer(final String layerId) {
+    return byLayer.computeIfAbsent(layerId, id -> new ConcurrentHashMap<>());
+  }
+
+  private static final class Endpoint {
+    private int failures;
+    private long blockedUntil;
+    private double latencyMillis;
+
+    synchronized boolean isBlocked(final long now) {
+      return now < blockedUntil;
+    }
+
+    synchronized long blockedUntil() {
+      return blockedUntil;
+    }
+
+    synchronized double latencyMillis() {
+      return latencyMillis;
+    }
+
+    synchronized void succeeded(final long millis) {
+      failures = 0;
+      blockedUntil = 0;
+      latencyMillis =
+          latencyMillis == 0 ? millis : latencyMillis + LATENCY_WEIGHT * (millis - latencyMillis);
+    }
+
+    synchronized void failed(final long now) {
+      failures = Math.min(failures + 1, 30);
+      blockedUntil = now + Math.min(MAX_BLOCK_MILLIS, MIN_BLOCK_MILLIS << (failures - 1));
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package org.lockard.xyztilecache.cache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+
+/**
+ * Per-layer hedging policy for upstream fetches: how long to wait before sending a duplicate
+ * request, and whether the layer's hedge budget allows one.
+ *
+ * <p>The delay is {@code xyz.hedgeDelayMillisByLayer[layer]}, else {@code xyz.hedgeDelayMillis};
+ * 0 disables hedging and -1 derives it from the layer's own recent fetch latencies (their p95).
+ * The budget is a token bucket: every primary fetch earns {@code xyz.hedgeMaxPercent} hundredths
+ * of a hedge, so hedges stay within that share of the layer's traffic with a small burst allowance.
+ */
+final class UpstreamHedging {
+  static final long AUTO = -1;
+
+  private static final int SAMPLES = 128;
+  private static final int MIN_SAMPLES = 20;
+  private static final long MIN_AUTO_DELAY_MILLIS = 10;
+  private static final long TOKENS_PER_HEDGE = 100;
+  private static final long MAX_TOKENS = 10 * TOKENS_PER_HEDGE;
+
+  private final XyzConfiguration configuration;
+  private final Map<String, LayerHedging> layers = new ConcurrentHashMap<>();
+
+  UpstreamHedging(final XyzConfiguration configuration) {
+    this.configuration = configuration;
+  }
+
+  /** Millis to wait for the primary fetch before hedging, or 0 to never hedge this layer. */
+  long delayMillis(final String layerId) {
+    long configured = configuredDelay(layerId);
+    if (configured != AUTO) {
+      return Math.max(0, configured);
+    }
+    return layer(layerId).p95Millis();
+  }
+
+  /** Counts a primary fetch towards the layer's hedge budget. */
+  void primarySent(final String layerId) {
+    long earned = Math.max(0, configuration.getHedgeMaxPercent());
+    layer(layerId).tokens.updateAndGet(t -> Math.min(MAX_TOKENS, t + earned));
+  }
+
+  /** Takes one hedge from the layer's budget; false if it is spent. */
+  boolean tryAcquire(final String layerId) {
+    AtomicLong tokens = layer(layerId).tokens;
+    long current;
+    do {
+      current = tokens.get();
+      if (current < TOKENS_PER_HEDGE) {
+        return false;
+      }
+    } while (!tokens.compareAndSet(current, current - TOKENS_PER_HEDGE));
+    return true;
+  }
+
+  /** Feeds the latency of a successful fetch into the layer's automatic delay. */
+  void recordLatency(final String layerId, final long millis) {
+    if (configuredDelay(layerId) == AUTO) {
+      layer(layerId).record(millis);
+    }
+  }
+
+  void forget(final String layerId) {
+    layers.remove(layerId);
+  }
+
+  private long configuredDelay(final String layerId) {
+    return configuration
+        .getHedgeDelayMillisByLayer()
+        .getOrDefault(layerId, configuration.getHedgeDelayMillis());
+  }
+
+  private LayerHedging layer(final String layerId) {
+    return layers.computeIfAbsent(layerId, id -> new LayerHedging());
+  }
+
+  private static final class LayerHedging {
+    final AtomicLong tokens = new AtomicLong();
+    private final long[] latencies = new long[SAMPLES];
+    private int count;
+    private int next;
+    private volatile long p95Millis;
+
+    synchronized void record(final long millis) {
+      latencies[next] = millis;
+      next = (next + 1) % SAMPLES;
+      count = Math.min(SAMPLES, count + 1);
+      // Re-derive every few samples; sorting 128 longs per fetch would be wasted work.
+      if (count >= MIN_SAMPLES && next % 8 == 0) {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        p95Millis = Math.max(MIN_AUTO_DELAY_MILLIS, sorted[(int) (count * 0.95) - 1]);
+      }
+    }
+
+    long p95Millis() {
+      return p95Millis;
+    }
+  }
+}
@@ -1,6 +1,8 @@
 package org.lockard.xyztilecache.config;
 
+import java.net.http.HttpClient;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -17,6 +19,28 @@ public class XyzConfiguration {
 
   private long minFreeDiskBytes = 1_073_741_824L; // 1 GB default
 
+  private long maxDiskBytes = 0;
+
+  private Map<String, Long> maxDiskBytesByLayer = new HashMap<>();
+
+  private int diskEvictionSeconds = 60;
+
+  private List<String> packedStorageLayers = new ArrayList<>();
+
+  private int packCompactionSeconds = 300;
+
+  private int inventorySnapshotSeconds = 60;
+
+  private int purgeThreads = 2;
+
+  private int purgeDeletesPerSecond = 10_000;
+
+  private int writeThreads = 2;
+
+  private int writeQueueCapacity = 10_000;
+
+  private boolean presenceIndex = false;
+
   private long maxImportBytes = 10_737_418_240L; // 10 GiB cap on decompressed import size
 
   private boolean offline = false;
@@ -33,8 +57,52 @@ public class XyzConfiguration {
 
   private long tileCacheBytes = 256L * 1024 * 1024;
 
+  private long offHeapCacheBytes = 0;
+
+  private int tileCacheRefreshSeconds = 0;
+
+  private long hotSetBytes = 0;
+
+  private int hotSetSnapshotSeconds = 300;
+
   private int preloadConcurrency = 4;
 
+  private int negativeCacheMinutes = 60;
+
+  private long negativeCacheMaxTiles = 1_000_000L;
+
+  private boolean streamDiskTiles = false;
+
+  private boolean staleWhileRevalidate = false;
+
+  private int refreshConcurrency = 8;
+
+  private int upstreamMaxConcurrentPerHost = 32;
+
+  private int upstreamMaxQueuedPerHost = 256;
+
+  private HttpClient.Version upstreamHttpVersion = HttpClient.Version.HTTP_2;
+
+  private boolean prewarmUpstreamConnections = false;
+
+  private long hedgeDelayMillis = 0;
+
+  private Map<String, Long> hedgeDelayMillisByLayer = new HashMap<>();
+
+  private int hedgeMaxPercent = 5;
+
+  private int batchMaxTiles = 256;
+
+  private List<String> underzoomSynthesisLayers = new ArrayList<>();
+
+  private boolean underzoomSynthesisFromDisk = false;
+
+  private int overzoomFallbackLevels = 0;
+
+  private int overzoomFallbackMaxAgeSeconds = 60;
+
+  private int prefetchMaxPerLayer = 0;
+
   private boolean uiEnabled = true;
 
   private String adminRole = "admin";
@@ -69,6 +137,95 @@ public class XyzConfiguration {
     this.minFreeDiskBytes = minFreeDiskBytes;
   }
 
+  public long getMaxDiskBytes() {
+    return maxDiskBytes;
+  }
+
+  public void setMaxDiskBytes(long maxDiskBytes) {
+    this.maxDiskBytes = maxDiskBytes;
+  }
+
+  public Map<String, Long> getMaxDiskBytesByLayer() {
+    return maxDiskBytesByLayer;
+  }
+
+  public void setMaxDiskBytesByLayer(Map<String, Long> maxDiskBytesByLayer) {
+    this.maxDiskBytesByLayer = maxDiskBytesByLayer == null ? new HashMap<>() : maxDiskBytesByLayer;
+  }
+
+  public int getDiskEvictionSeconds() {
+    return diskEvictionSeconds;
+  }
+
+  public void setDiskEvictionSeconds(int diskEvictionSeconds) {
+    this.diskEvictionSeconds = diskEvictionSeconds;
+  }
+
+  public List<String> getPackedStorageLayers() {
+    return packedStorageLayers;
+  }
+
+  public void setPackedStorageLayers(List<String> packedStorageLayers) {
+    this.packedStorageLayers =
+        packedStorageLayers == null ? new ArrayList<>() : packedStorageLayers;
+  }
+
+  public int getPackCompactionSeconds() {
+    return packCompactionSeconds;
+  }
+
+  public void setPackCompactionSeconds(int packCompactionSeconds) {
+    this.packCompactionSeconds = packCompactionSeconds;
+  }
+
+  public int getInventorySnapshotSeconds() {
+    return inventorySnapshotSeconds;
+  }
+
+  public void setInventorySnapshotSeconds(int inventorySnapshotSeconds) {
+    this.inventorySnapshotSeconds = inventorySnapshotSeconds;
+  }
+
+  public int getPurgeThreads() {
+    return purgeThreads;
+  }
+
+  public void setPurgeThreads(int purgeThreads) {
+    this.purgeThreads = purgeThreads;
+  }
+
+  public int getPurgeDeletesPerSecond() {
+    return purgeDeletesPerSecond;
+  }
+
+  public void setPurgeDeletesPerSecond(int purgeDeletesPerSecond) {
+    this.purgeDeletesPerSecond = purgeDeletesPerSecond;
+  }
+
+  public int getWriteThreads() {
+    return writeThreads;
+  }
+
+  public void setWriteThreads(int writeThreads) {
+    this.writeThreads = writeThreads;
+  }
+
+  public int getWriteQueueCapacity() {
+    return writeQueueCapacity;
+  }
+
+  public void setWriteQueueCapacity(int writeQueueCapacity) {
+    this.writeQueueCapacity = writeQueueCapacity;
+  }
+
+  public boolean isPresenceIndex() {
+    return presenceIndex;
+  }
+
+  public void setPresenceIndex(boolean presenceIndex) {
+    this.presenceIndex = presenceIndex;
+  }
+
   public long getMaxImportBytes() {
     return maxImportBytes;
   }
@@ -117,6 +274,38 @@ public class XyzConfiguration {
     this.tileCacheBytes = tileCacheBytes;
   }
 
+  public long getOffHeapCacheBytes() {
+    return offHeapCacheBytes;
+  }
+
+  public void setOffHeapCacheBytes(long offHeapCacheBytes) {
+    this.offHeapCacheBytes = offHeapCacheBytes;
+  }
+
+  public int getTileCacheRefreshSeconds() {
+    return tileCacheRefreshSeconds;
+  }
+
+  public void setTileCacheRefreshSeconds(int tileCacheRefreshSeconds) {
+    this.tileCacheRefreshSeconds = tileCacheRefreshSeconds;
+  }
+
+  public long getHotSetBytes() {
+    return hotSetBytes;
+  }
+
+  public void setHotSetBytes(long hotSetBytes) {
+    this.hotSetBytes = hotSetBytes;
+  }
+
+  public int getHotSetSnapshotSeconds() {
+    return hotSetSnapshotSeconds;
+  }
+
+  public void setHotSetSnapshotSeconds(int hotSetSnapshotSeconds) {
+    this.hotSetSnapshotSeconds = hotSetSnapshotSeconds;
+  }
+
   public int getPreloadConcurrency() {
     return preloadConcurrency;
   }
@@ -125,6 +314,152 @@ public class XyzConfiguration {
     this.preloadConcurrency = preloadConcurrency;
   }
 
+  public int getNegativeCacheMinutes() {
+    return negativeCacheMinutes;
+  }
+
+  public void setNegativeCacheMinutes(int negativeCacheMinutes) {
+    this.negativeCacheMinutes = negativeCacheMinutes;
+  }
+
+  public long getNegativeCacheMaxTiles() {
+    return negativeCacheMaxTiles;
+  }
+
+  public void setNegativeCacheMaxTiles(long negativeCacheMaxTiles) {
+    this.negativeCacheMaxTiles = negativeCacheMaxTiles;
+  }
+
+  public boolean isStreamDiskTiles() {
+    return streamDiskTiles;
+  }
+
+  public void setStreamDiskTiles(boolean streamDiskTiles) {
+    this.streamDiskTiles = streamDiskTiles;
+  }
+
+  public boolean isStaleWhileRevalidate() {
+    return staleWhileRevalidate;
+  }
+
+  public void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+    this.staleWhileRevalidate = staleWhileRevalidate;
+  }
+
+  public int getRefreshConcurrency() {
+    return refreshConcurrency;
+  }
+
+  public void setRefreshConcurrency(int refreshConcurrency) {
+    this.refreshConcurrency = refreshConcurrency;
+  }
+
+  public int getUpstreamMaxConcurrentPerHost() {
+    return upstreamMaxConcurrentPerHost;
+  }
+
+  public void setUpstreamMaxConcurrentPerHost(int upstreamMaxConcurrentPerHost) {
+    this.upstreamMaxConcurrentPerHost = upstreamMaxConcurrentPerHost;
+  }
+
+  public int getUpstreamMaxQueuedPerHost() {
+    return upstreamMaxQueuedPerHost;
+  }
+
+  public void setUpstreamMaxQueuedPerHost(int upstreamMaxQueuedPerHost) {
+    this.upstreamMaxQueuedPerHost = upstreamMaxQueuedPerHost;
+  }
+
+  public HttpClient.Version getUpstreamHttpVersion() {
+    return upstreamHttpVersion;
+  }
+
+  public void setUpstreamHttpVersion(HttpClient.Version upstreamHttpVersion) {
+    this.upstreamHttpVersion = upstreamHttpVersion;
+  }
+
+  public boolean isPrewarmUpstreamConnections() {
+    return prewarmUpstreamConnections;
+  }
+
+  public void setPrewarmUpstreamConnections(boolean prewarmUpstreamConnections) {
+    this.prewarmUpstreamConnections = prewarmUpstreamConnections;
+  }
+
+  public long getHedgeDelayMillis() {
+    return hedgeDelayMillis;
+  }
+
+  public void setHedgeDelayMillis(long hedgeDelayMillis) {
+    this.hedgeDelayMillis = hedgeDelayMillis;
+  }
+
+  public Map<String, Long> getHedgeDelayMillisByLayer() {
+    return hedgeDelayMillisByLayer;
+  }
+
+  public void setHedgeDelayMillisByLayer(Map<String, Long> hedgeDelayMillisByLayer) {
+    this.hedgeDelayMillisByLayer =
+        hedgeDelayMillisByLayer == null ? new HashMap<>() : hedgeDelayMillisByLayer;
+  }
+
+  public int getHedgeMaxPercent() {
+    return hedgeMaxPercent;
+  }
+
+  public void setHedgeMaxPercent(int hedgeMaxPercent) {
+    this.hedgeMaxPercent = hedgeMaxPercent;
+  }
+
+  public int getBatchMaxTiles() {
+    return batchMaxTiles;
+  }
+
+  public void setBatchMaxTiles(int batchMaxTiles) {
+    this.batchMaxTiles = batchMaxTiles;
+  }
+
+  public List<String> getUnderzoomSynthesisLayers() {
+    return underzoomSynthesisLayers;
+  }
+
+  public void setUnderzoomSynthesisLayers(List<String> underzoomSynthesisLayers) {
+    this.underzoomSynthesisLayers =
+        underzoomSynthesisLayers == null ? new ArrayList<>() : underzoomSynthesisLayers;
+  }
+
+  public boolean isUnderzoomSynthesisFromDisk() {
+    return underzoomSynthesisFromDisk;
+  }
+
+  public void setUnderzoomSynthesisFromDisk(boolean underzoomSynthesisFromDisk) {
+    this.underzoomSynthesisFromDisk = underzoomSynthesisFromDisk;
+  }
+
+  public int getOverzoomFallbackLevels() {
+    return overzoomFallbackLevels;
+  }
+
+  public void setOverzoomFallbackLevels(int overzoomFallbackLevels) {
+    this.overzoomFallbackLevels = overzoomFallbackLevels;
+  }
+
+  public int getOverzoomFallbackMaxAgeSeconds() {
+    return overzoomFallbackMaxAgeSeconds;
+  }
+
+  public void setOverzoomFallbackMaxAgeSeconds(int overzoomFallbackMaxAgeSeconds) {
+    this.overzoomFallbackMaxAgeSeconds = overzoomFallbackMaxAgeSeconds;
+  }
+
+  public int getPrefetchMaxPerLayer() {
+    return prefetchMaxPerLayer;
+  }
+
+  public void setPrefetchMaxPerLayer(int prefetchMaxPerLayer) {
+    this.prefetchMaxPerLayer = prefetchMaxPerLayer;
+  }
+
   public boolean isUiEnabled() {
     return uiEnabled;
   }
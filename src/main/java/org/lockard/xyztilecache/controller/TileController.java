@@ -1,11 +1,25 @@
 package org.lockard.xyztilecache.controller;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.lockard.xyztilecache.XyzUtil;
+import org.lockard.xyztilecache.cache.TilePrefetcher;
 import org.lockard.xyztilecache.cache.UpstreamUnavailableException;
 import org.lockard.xyztilecache.config.XyzConfiguration;
 import org.lockard.xyztilecache.handler.TileNotFoundException;
 import org.lockard.xyztilecache.handler.TileSourceHandlerRegistry;
+import org.lockard.xyztilecache.model.BoundingBox;
 import org.lockard.xyztilecache.model.Layer;
 import org.lockard.xyztilecache.model.PreloadRequest;
 import org.lockard.xyztilecache.model.TileResult;
@@ -14,6 +28,7 @@ import org.lockard.xyztilecache.service.PreloadService;
 import org.lockard.xyztilecache.store.LayerStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -24,6 +39,9 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 @RestController
@@ -33,24 +51,29 @@ class TileController {
   private static final int COMPRESSION_GZIP = 2;
   private static final long IMMUTABLE_MAX_AGE_SECONDS = 31_536_000L;
   private static final int MAX_SUPPORTED_ZOOM = 30;
+  static final String BATCH_CONTENT_TYPE = "application/x-xyz-tile-batch";
+  static final byte[] BATCH_MAGIC = {'X', 'T', 'B', '1'};
 
   private final LayerStore layerStore;
   private final LayerAccessService layerAccessService;
   private final PreloadService preloadService;
   private final TileSourceHandlerRegistry handlerRegistry;
   private final XyzConfiguration configuration;
+  private final TilePrefetcher prefetcher;
 
   TileController(
       LayerStore layerStore,
       LayerAccessService layerAccessService,
       PreloadService preloadService,
       TileSourceHandlerRegistry handlerRegistry,
-      XyzConfiguration configuration) {
+      XyzConfiguration configuration,
+      TilePrefetcher prefetcher) {
     this.layerStore = layerStore;
     this.layerAccessService = layerAccessService;
     this.preloadService = preloadService;
     this.handlerRegistry = handlerRegistry;
     this.configuration = configuration;
+    this.prefetcher = prefetcher;
   }
 
   /** Legacy endpoint — prefer POST /preloads for new integrations. */
@@ -77,29 +100,290 @@ class TileController {
   }
 
   @GetMapping("/tilesZYX/{layer}/{z}/{y}/{x}.{ext}")
-  ResponseEntity<byte[]> tilesZYX(
+  ResponseEntity<?> tilesZYX(
       @PathVariable("layer") String layerName,
       @PathVariable("z") int z,
       @PathVariable("y") int y,
       @PathVariable("x") int x,
-      @PathVariable("ext") String ext) {
-    return serveTile(layerName, z, x, y);
+      @PathVariable("ext") String ext,
+      HttpServletRequest request) {
+    return serveTile(layerName, z, x, y, false, request);
   }
 
   @GetMapping("/tilesZXY/{layer}/{z}/{x}/{y}.{ext}")
-  ResponseEntity<byte[]> tilesZXY(
+  ResponseEntity<?> tilesZXY(
       @PathVariable("layer") String layerName,
       @PathVariable("z") int z,
       @PathVariable("x") int x,
       @PathVariable("y") int y,
-      @PathVariable("ext") String ext) {
-    return tilesZYX(layerName, z, y, x, ext);
+      @PathVariable("ext") String ext,
+      HttpServletRequest request) {
+    return tilesZYX(layerName, z, y, x, ext, request);
   }
 
-  private ResponseEntity<byte[]> serveTile(String layerName, int z, int x, int y) {
-    // Reject out-of-range coordinates before they reach the handlers: garbage requests must not
-    // generate upstream fetches (whose failures would feed the layer's circuit breaker).
-    if (z < 0 || z > MAX_SUPPORTED_ZOOM || x < 0 || y < 0 || x >= (1L << z) || y >= (1L << z)) {
+  /**
+   * HEAD answers from memory when it can — a tile already in the in-memory cache, or one known not
+   * to exist — and otherwise resolves the tile as GET would, without sending the body.
+   */
+  @RequestMapping(value = "/tilesZYX/{layer}/{z}/{y}/{x}.{ext}", method = RequestMethod.HEAD)
+  ResponseEntity<?> headTileZYX(
+      @PathVariable("layer") String layerName,
+      @PathVariable("z") int z,
+      @PathVariable("y") int y,
+      @PathVariable("x") int x,
+      @PathVariable("ext") String ext,
+      HttpServletRequest request) {
+    return serveTile(layerName, z, x, y, true, request);
+  }
+
+  @RequestMapping(value = "/tilesZXY/{layer}/{z}/{x}/{y}.{ext}", method = RequestMethod.HEAD)
+  ResponseEntity<?> headTileZXY(
+      @PathVariable("layer") String layerName,
+      @PathVariable("z") int z,
+      @PathVariable("x") int x,
+      @PathVariable("y") int y,
+      @PathVariable("ext") String ext,
+      HttpServletRequest request) {
+    return serveTile(layerName, z, x, y, true, request);
+  }
+
+  /**
+   * Resolves many tiles of one layer in a single request — {@code tiles=z/x/y,z/x/y,...} or
+   * {@code bbox=west,south,east,north&z=zoom} — so a client opening a view pays for dispatch, the
+   * filter chain and the ACL check once. Tiles resolve concurrently through the cache tiers and
+   * are written as each completes, in a length-prefixed stream: the magic {@code XTB1}, then per
+   * tile {@code int z, int x, int y, short status, byte flags (1 = gzip), byte typeLength, type,
+   * int length, bytes}, big-endian. {@code status} is the HTTP status the tile endpoint would have
+   * answered.
+   */
+  @GetMapping("/tilesBatch/{layer}")
+  void tilesBatch(
+      @PathVariable("layer") String layerName,
+      @RequestParam(value = "tiles", required = false) String tiles,
+      @RequestParam(value = "bbox", required = false) String bbox,
+      @RequestParam(value = "z", required = false) Integer zoom,
+      HttpServletResponse response)
+      throws IOException {
+    Layer layer = layerStore.getLayers().get(layerName);
+    if (layer == null) {
+      writeError(response, HttpStatus.BAD_REQUEST, "Layer " + layerName + " not configured");
+      return;
+    }
+    HttpStatus denied = accessDenied(layer);
+    if (denied != null) {
+      response.setStatus(denied.value());
+      return;
+    }
+    var handler = handlerRegistry.getHandler(layer.sourceType());
+    if (handler.isEmpty()) {
+      writeError(
+          response, HttpStatus.BAD_REQUEST, "No handler for layer type " + layer.sourceType());
+      return;
+    }
+    List<int[]> coordinates;
+    try {
+      coordinates = batchCoordinates(tiles, bbox, zoom);
+    } catch (IllegalArgumentException e) {
+      writeError(response, HttpStatus.BAD_REQUEST, e.getMessage());
+      return;
+    }
+
+    BlockingQueue<BatchTile> done = new LinkedBlockingQueue<>();
+    for (int[] zxy : coordinates) {
+      int z = zxy[0];
+      int x = zxy[1];
+      int y = zxy[2];
+      if (!isValidTile(z, x, y) || z > layer.maxZoom()) {
+        done.add(new BatchTile(z, x, y, HttpStatus.NOT_FOUND, null));
+        continue;
+      }
+      handler
+          .get()
+          .getTileAsync(layer, z, x, y)
+          .whenComplete(
+              (result, error) -> done.add(batchTile(layerName, z, x, y, result, error)));
+    }
+
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType(BATCH_CONTENT_TYPE);
+    response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+    var runtimeState = layerStore.getRuntimeState(layer.effectiveId());
+    DataOutputStream out = new DataOutputStream(response.getOutputStream());
+    out.write(BATCH_MAGIC);
+    for (int i = 0; i < coordinates.size(); i++) {
+      BatchTile tile;
+      try {
+        tile = done.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      if (tile.result() != null) {
+        runtimeState.incrementTilesServed();
+      }
+      writeBatchTile(out, tile);
+      // Hand each tile to the client as soon as it is ready rather than after the slowest one.
+      out.flush();
+    }
+  }
+
+  private int maxBatchTiles() {
+    return Math.max(1, configuration.getBatchMaxTiles());
+  }
+
+  private List<int[]> batchCoordinates(String tiles, String bbox, Integer zoom) {
+    List<int[]> coordinates = new ArrayList<>();
+    if (tiles != null && !tiles.isBlank()) {
+      for (String tile : tiles.split(",")) {
+        String[] parts = tile.strip().split("/");
+        if (parts.length != 3) {
+          throw new IllegalArgumentException("tiles must be a comma-separated list of z/x/y.");
+        }
+        try {
+          coordinates.add(
+              new int[] {
+                Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])
+              });
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Invalid tile coordinate: " + tile.strip());
+        }
+        if (coordinates.size() > maxBatchTiles()) {
+          throw new IllegalArgumentException(
+              "A batch may request at most " + maxBatchTiles() + " tiles.");
+        }
+      }
+      return coordinates;
+    }
+    if (bbox == null || zoom == null) {
+      throw new IllegalArgumentException("Either tiles or bbox and z are required.");
+    }
+    String[] edges = bbox.split(",");
+    if (edges.length != 4) {
+      throw new IllegalArgumentException("bbox must be west,south,east,north.");
+    }
+    if (zoom < 0 || zoom > MAX_SUPPORTED_ZOOM) {
+      throw new IllegalArgumentException("z is out of range.");
+    }
+    BoundingBox box = new BoundingBox();
+    try {
+      box.setWest(Double.parseDouble(edges[0].strip()));
+      box.setSouth(Double.parseDouble(edges[1].strip()));
+      box.setEast(Double.parseDouble(edges[2].strip()));
+      box.setNorth(Double.parseDouble(edges[3].strip()));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("bbox must be west,south,east,north.");
+    }
+    XyzUtil.TileRange range = XyzUtil.calculateTileRange(box, zoom);
+    if (range.count() > maxBatchTiles()) {
+      throw new IllegalArgumentException(
+          "bbox covers "
+              + range.count()
+              + " tiles; a batch may request at most "
+              + maxBatchTiles()
+              + ".");
+    }
+    for (int x = range.xMin(); x <= range.xMax(); x++) {
+      for (int y = range.yMin(); y <= range.yMax(); y++) {
+        coordinates.add(new int[] {zoom, x, y});
+      }
+    }
+    return coordinates;
+  }
+
+  /** One resolved tile of a batch: the tile endpoint's status, plus the tile on a 200. */
+  record BatchTile(int z, int x, int y, HttpStatus status, TileResult result) {}
+
+  private static BatchTile batchTile(
+      String layerName, int z, int x, int y, Optional<TileResult> result, Throwable error) {
+    if (error == null) {
+      return result.isPresent()
+          ? new BatchTile(z, x, y, HttpStatus.OK, result.get())
+          : new BatchTile(z, x, y, HttpStatus.NO_CONTENT, null);
+    }
+    Throwable cause =
+        error instanceof CompletionException && error.getCause() != null
+            ? error.getCause()
+            : error;
+    if (cause instanceof UpstreamUnavailableException) {
+      return new BatchTile(z, x, y, HttpStatus.SERVICE_UNAVAILABLE, null);
+    }
+    if (cause instanceof RuntimeException || cause instanceof Error) {
+      LOGGER.warn(
+          "Error reading tile for layer {} {}/{}/{}: {}", layerName, z, x, y, cause.getMessage());
+      return new BatchTile(z, x, y, HttpStatus.INTERNAL_SERVER_ERROR, null);
+    }
+    // Same as the single-tile endpoint: a load that failed for any other reason is a 404.
+    LOGGER.debug("Failed to retrieve tile {}/{}/{} for layer {}", z, x, y, layerName, cause);
+    return new BatchTile(z, x, y, HttpStatus.NOT_FOUND, null);
+  }
+
+  /**
+   * A tile streamed from disk is read in full before its frame is started: the file may have been
+   * replaced, evicted or purged since it was looked up, and the length prefix must match the bytes
+   * that follow. A file that can no longer be read is answered as a {@code 500} for that tile only.
+   */
+  static void writeBatchTile(DataOutputStream out, BatchTile tile) throws IOException {
+    HttpStatus status = tile.status();
+    TileResult result = tile.result();
+    byte[] data = null;
+    if (result != null) {
+      try {
+        data = result.isFile() ? Files.readAllBytes(result.file()) : result.data();
+      } catch (IOException e) {
+        LOGGER.debug(
+            "Tile {}/{}/{} went away before it was sent.", tile.z(), tile.x(), tile.y(), e);
+        status = HttpStatus.INTERNAL_SERVER_ERROR;
+        result = null;
+      }
+    }
+    out.writeInt(tile.z());
+    out.writeInt(tile.x());
+    out.writeInt(tile.y());
+    out.writeShort(status.value());
+    if (result == null) {
+      out.writeByte(0);
+      out.writeByte(0);
+      out.writeInt(0);
+      return;
+    }
+    out.writeByte(result.tileCompression() == COMPRESSION_GZIP ? 1 : 0);
+    byte[] type = result.contentType().getBytes(StandardCharsets.US_ASCII);
+    out.writeByte(type.length);
+    out.write(type);
+    out.writeInt(data.length);
+    out.write(data);
+  }
+
+  private static void writeError(HttpServletResponse response, HttpStatus status, String message)
+      throws IOException {
+    response.setStatus(status.value());
+    response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+    response.getWriter().write(message);
+  }
+
+  /**
+   * Reject out-of-range coordinates before they reach the handlers: garbage requests must not
+   * generate upstream fetches (whose failures would feed the layer's circuit breaker).
+   */
+  private static boolean isValidTile(int z, int x, int y) {
+    return z >= 0 && z <= MAX_SUPPORTED_ZOOM && x >= 0 && y >= 0 && x < (1L << z) && y < (1L << z);
+  }
+
+  /** 401 / 403 if the caller may not read {@code layer}, else null. */
+  private HttpStatus accessDenied(Layer layer) {
+    Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+    if (layerAccessService.canRead(layer, auth)) {
+      return null;
+    }
+    if (auth == null || !auth.isAuthenticated() || "anonymousUser".equals(auth.getPrincipal())) {
+      return HttpStatus.UNAUTHORIZED;
+    }
+    return HttpStatus.FORBIDDEN;
+  }
+
+  private ResponseEntity<?> serveTile(
+      String layerName, int z, int x, int y, boolean head, HttpServletRequest request) {
+    if (!isValidTile(z, x, y)) {
       return ResponseEntity.notFound().build();
     }
     Layer layer = layerStore.getLayers().get(layerName);
@@ -108,12 +392,9 @@ class TileController {
           .body(("Layer " + layerName + " not configured").getBytes());
     }
 
-    Authentication auth = SecurityContextHolder.getContext().getAuthentication();
-    if (!layerAccessService.canRead(layer, auth)) {
-      if (auth == null || !auth.isAuthenticated() || "anonymousUser".equals(auth.getPrincipal())) {
-        return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
-      }
-      return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+    HttpStatus denied = accessDenied(layer);
+    if (denied != null) {
+      return ResponseEntity.status(denied).build();
     }
 
     if (z > layer.maxZoom()) {
@@ -127,9 +408,24 @@ class TileController {
           .body(("No handler for layer type " + layer.sourceType()).getBytes());
     }
 
-    Optional<TileResult> result;
+    // A HEAD, or a conditional GET that likely ends in a 304, is answered from what is already
+    // known where possible: the validators of a tile in memory or on disk, without loading it.
+    Optional<TileResult> result = Optional.empty();
+    if (head || isConditional(request)) {
+      try {
+        result = handler.get().peekTile(layer, z, x, y);
+      } catch (TileNotFoundException e) {
+        return ResponseEntity.notFound().build();
+      }
+      if (head && result.isPresent()) {
+        return tileResponse(layer, result.get());
+      }
+    }
+
     try {
-      result = handler.get().getTile(layer, z, x, y);
+      if (result.isEmpty()) {
+        result = handler.get().getTile(layer, z, x, y);
+      }
     } catch (UpstreamUnavailableException e) {
       LOGGER.debug("Upstream blocked for layer {}: {}", layerName, e.getMessage());
       return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
@@ -146,16 +442,72 @@ class TileController {
     }
 
     layerStore.getRuntimeState(layer.effectiveId()).incrementTilesServed();
-    TileResult tile = result.get();
+    if (prefetcher.isEnabled()) {
+      prefetcher.tileServed(clientKey(request), layer, z, x, y);
+    }
+    return tileResponse(layer, result.get());
+  }
+
+  private ResponseEntity<?> tileResponse(Layer layer, TileResult tile) {
     HttpHeaders headers = new HttpHeaders();
     headers.add("Content-Type", tile.contentType());
-    headers.add(HttpHeaders.CACHE_CONTROL, cacheControlFor(layer));
+    headers.add(HttpHeaders.CACHE_CONTROL, cacheControlFor(layer, tile));
     if (tile.tileCompression() == COMPRESSION_GZIP) {
       headers.add("Content-Encoding", "gzip");
     }
+    // With a validator present, Spring answers If-None-Match / If-Modified-Since with a 304 and
+    // never writes (or, for a file, opens) the body.
+    if (tile.etag() != null) {
+      headers.setETag(tile.etag());
+    }
+    if (tile.lastModified() > 0) {
+      headers.setLastModified(tile.lastModified());
+    }
+    if (tile.isFile()) {
+      // Streamed from disk through the resource converter's small copy buffer rather than
+      // materialised as a byte[] first.
+      headers.setContentLength(tile.size());
+      return new ResponseEntity<>(new FileSystemResource(tile.file()), headers, HttpStatus.OK);
+    }
     return new ResponseEntity<>(tile.data(), headers, HttpStatus.OK);
   }
 
+  private static boolean isConditional(HttpServletRequest request) {
+    return request.getHeader(HttpHeaders.IF_NONE_MATCH) != null
+        || request.getHeader(HttpHeaders.IF_MODIFIED_SINCE) != null;
+  }
+
+  /**
+   * Who is panning, for the prefetcher: the HTTP session if the client has one, else the user and
+   * address it connects from.
+   */
+  private static String clientKey(HttpServletRequest request) {
+    HttpSession session = request.getSession(false);
+    if (session != null) {
+      return session.getId();
+    }
+    Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+    String user = auth != null && auth.isAuthenticated() ? auth.getName() : "";
+    return user + "@" + request.getRemoteAddr();
+  }
+
+  private String cacheControlFor(Layer layer, TileResult tile) {
+    if (tile.stale()) {
+      // Expired already: clients may show it, but must ask again before reusing it.
+      return (layer.isPublic() ? "public" : "private") + ", max-age=0, must-revalidate";
+    }
+    return tile.derived() ? derivedCacheControlFor(layer) : cacheControlFor(layer);
+  }
+
+  /** A stand-in tile is only worth keeping until the real one can be fetched. */
+  private String derivedCacheControlFor(Layer layer) {
+    int maxAge = configuration.getOverzoomFallbackMaxAgeSeconds();
+    if (maxAge <= 0) {
+      return "no-store";
+    }
+    return (layer.isPublic() ? "public" : "private") + ", max-age=" + maxAge;
+  }
+
   private String cacheControlFor(Layer layer) {
     String visibility = layer.isPublic() ? "public" : "private";
     Layer.SourceType type = layer.sourceType();
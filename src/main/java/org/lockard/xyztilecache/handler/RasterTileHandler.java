@@ -1,16 +1,33 @@
 package org.lockard.xyztilecache.handler;
 
-import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.EnumSet;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import javax.imageio.ImageIO;
+import org.lockard.xyztilecache.cache.DiskCacheEvictor;
+import org.lockard.xyztilecache.cache.NegativeTileCache;
+import org.lockard.xyztilecache.cache.OfflineCacheLoader;
 import org.lockard.xyztilecache.cache.StaleTileException;
+import org.lockard.xyztilecache.cache.TileExpiredException;
+import org.lockard.xyztilecache.cache.TileStore;
+import org.lockard.xyztilecache.cache.UpstreamTileNotFoundException;
 import org.lockard.xyztilecache.cache.UpstreamUnavailableException;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
 import org.lockard.xyztilecache.model.Layer;
 import org.lockard.xyztilecache.model.Tile;
 import org.lockard.xyztilecache.model.TileResult;
+import org.lockard.xyztilecache.store.LayerStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
@@ -26,10 +43,26 @@ public class RasterTileHandler implements TileSourceHandler {
           Layer.SourceType.WMTS_KVP,
           Layer.SourceType.LOCAL);
 
-  private final LoadingCache<Tile, byte[]> tileCache;
+  private final AsyncLoadingCache<Tile, CachedTile> tileCache;
+  private final NegativeTileCache negativeTiles;
+  private final DiskCacheEvictor diskCache;
+  private final XyzConfiguration configuration;
+  private final LayerStore layerStore;
+  private final OfflineCacheLoader diskTiles;
 
-  public RasterTileHandler(LoadingCache<Tile, byte[]> tileCache) {
+  public RasterTileHandler(
+      AsyncLoadingCache<Tile, CachedTile> tileCache,
+      NegativeTileCache negativeTiles,
+      DiskCacheEvictor diskCache,
+      XyzConfiguration configuration,
+      LayerStore layerStore,
+      TileStore tiles) {
     this.tileCache = tileCache;
+    this.negativeTiles = negativeTiles;
+    this.diskCache = diskCache;
+    this.configuration = configuration;
+    this.layerStore = layerStore;
+    this.diskTiles = new OfflineCacheLoader(configuration, layerStore, tiles);
   }
 
   @Override
@@ -40,22 +73,11 @@ public class RasterTileHandler implements TileSourceHandler {
   @Override
   public Optional<TileResult> getTile(Layer layer, int z, int x, int y) throws IOException {
     try {
-      byte[] data = tileCache.get(new Tile(layer.effectiveId(), x, y, z));
-      return Optional.of(new TileResult(data, 0, detectContentType(data)));
+      // Request threads are virtual (spring.threads.virtual.enabled), so joining parks the
+      // request without pinning a carrier thread while the load is in flight.
+      return getTileAsync(layer, z, x, y).join();
     } catch (CompletionException e) {
       Throwable cause = e.getCause();
-      if (cause instanceof StaleTileException stale) {
-        // Upstream is down but an expired disk tile exists; serve it without promoting the
-        // stale bytes into the in-memory cache so the next request retries the source.
-        LOGGER.debug(
-            "Serving stale tile {}/{}/{} for layer {} (upstream unavailable).",
-            z,
-            x,
-            y,
-            layer.effectiveId());
-        return Optional.of(
-            new TileResult(stale.staleData(), 0, detectContentType(stale.staleData())));
-      }
       if (cause instanceof UpstreamUnavailableException uu) {
         throw uu;
       }
@@ -65,33 +87,227 @@ public class RasterTileHandler implements TileSourceHandler {
     }
   }
 
-  static String detectContentType(byte[] data) {
-    if (data.length >= 3
-        && (data[0] & 0xff) == 0xff
-        && (data[1] & 0xff) == 0xd8
-        && (data[2] & 0xff) == 0xff) {
-      return "image/jpeg";
+  @Override
+  public CompletableFuture<Optional<TileResult>> getTileAsync(Layer layer, int z, int x, int y) {
+    String layerId = layer.effectiveId();
+    Tile tile = new Tile(layerId, x, y, z, layerStore.getGeneration(layerId));
+    diskCache.recordAccess(tile);
+    if (negativeTiles.isKnownMissing(tile)) {
+      // A recent load established the tile doesn't exist; skip the disk and the upstream.
+      if (configuration.isOffline()) {
+        Optional<TileResult> ancestor = overzoomAncestor(tile);
+        if (ancestor.isPresent()) {
+          return CompletableFuture.completedFuture(ancestor);
+        }
+      }
+      return CompletableFuture.failedFuture(
+          new UpstreamTileNotFoundException("Tile %s is known to be missing.".formatted(tile)));
+    }
+    // Peeked through the map view, which records no statistics: the get below counts the request.
+    if (configuration.isStreamDiskTiles() && tileCache.asMap().get(tile) == null) {
+      Optional<TileResult> onDisk = streamFromDisk(tile);
+      if (onDisk.isPresent()) {
+        return CompletableFuture.completedFuture(onDisk);
+      }
+    }
+    return tileCache
+        .get(tile)
+        .handle(
+            (cached, error) -> {
+              if (error == null) {
+                return Optional.of(toResult(cached));
+              }
+              Throwable cause =
+                  error instanceof CompletionException && error.getCause() != null
+                      ? error.getCause()
+                      : error;
+              if (cause instanceof StaleTileException stale) {
+                // An expired disk tile exists and upstream is down or the tile is being refreshed
+                // in the background; serve it without promoting the stale bytes into the
+                // in-memory cache so the next request picks up the refreshed tile.
+                LOGGER.debug(
+                    "Serving stale tile {}/{}/{} for layer {}: {}",
+                    z,
+                    x,
+                    y,
+                    layer.effectiveId(),
+                    stale.getCause() != null ? stale.getCause().getMessage() : "");
+                if (stale.refresh() != null) {
+                  stale
+                      .refresh()
+                      .thenAccept(
+                          fresh -> tileCache.put(tile, CompletableFuture.completedFuture(fresh)));
+                }
+                return Optional.of(toResult(stale.staleTile()).asStale());
+              }
+              if (cause instanceof UpstreamUnavailableException
+                  || (configuration.isOffline() && cause instanceof IOException)) {
+                Optional<TileResult> ancestor = overzoomAncestor(tile);
+                if (ancestor.isPresent()) {
+                  return ancestor;
+                }
+              }
+              throw new CompletionException(cause);
+            });
+  }
+
+  /**
+   * A tile already loaded into the in-memory cache is answered as is, and a fresh tile on disk as a
+   * reference to its file, whose size and mtime are its ETag and {@code Last-Modified}: enough for
+   * a 304 without reading the body. A tile that cannot be had is a 404: one the negative cache
+   * knows is missing, or — offline or for a LOCAL layer, where the disk is the only source — one
+   * that is not on disk, which with {@code xyz.presenceIndex} is known without a {@code stat}. Not
+   * while an overzoomed ancestor would stand in for it.
+   */
+  @Override
+  public Optional<TileResult> peekTile(Layer layer, int z, int x, int y) {
+    String layerId = layer.effectiveId();
+    Tile tile = new Tile(layerId, x, y, z, layerStore.getGeneration(layerId));
+    // Through the map view, which records no statistics: a request answered here is no cache hit.
+    CompletableFuture<CachedTile> cached = tileCache.asMap().get(tile);
+    if (cached != null && cached.isDone() && !cached.isCompletedExceptionally()) {
+      return Optional.of(toResult(cached.join()));
     }
-    if (data.length >= 6
-        && data[0] == 'G'
-        && data[1] == 'I'
-        && data[2] == 'F'
-        && data[3] == '8'
-        && (data[4] == '7' || data[4] == '9')
-        && data[5] == 'a') {
-      return "image/gif";
+    boolean overzooms = configuration.isOffline() && configuration.getOverzoomFallbackLevels() > 0;
+    if (cached != null || overzooms) {
+      // Still loading, or a missing tile may yet be answered from its ancestor.
+      return Optional.empty();
     }
-    if (data.length >= 12
-        && data[0] == 'R'
-        && data[1] == 'I'
-        && data[2] == 'F'
-        && data[3] == 'F'
-        && data[8] == 'W'
-        && data[9] == 'E'
-        && data[10] == 'B'
-        && data[11] == 'P') {
-      return "image/webp";
+    if (negativeTiles.isKnownMissing(tile)) {
+      throw new TileNotFoundException();
     }
-    return "image/png";
+    if (configuration.isOffline() || layer.sourceType() == Layer.SourceType.LOCAL) {
+      try {
+        if (!diskTiles.exists(tile)) {
+          throw new TileNotFoundException();
+        }
+      } catch (IOException e) {
+        LOGGER.debug("Failed to check tile {} on disk.", tile, e);
+      }
+    }
+    return streamFromDisk(tile);
+  }
+
+  /**
+   * Serves a fresh disk hit as a file reference so the controller can stream it straight to the
+   * socket. The bytes are deliberately not promoted into {@code tileCache}: the OS page cache
+   * already holds hot files, and copying every large disk tile onto the heap is what streaming
+   * mode exists to avoid. Missing or expired files fall through to the loader as before.
+   */
+  private Optional<TileResult> streamFromDisk(Tile tile) {
+    try {
+      return diskTiles
+          .peek(tile)
+          .map(
+              disk ->
+                  TileResult.ofFile(
+                      disk.path(),
+                      disk.size(),
+                      CachedTile.detectContentType(disk.header()),
+                      CachedTile.etag(disk.size(), disk.lastModified()),
+                      disk.lastModified()));
+    } catch (IOException | IllegalArgumentException e) {
+      LOGGER.debug("Failed to stat tile {} on disk, falling back to the loader.", tile, e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * With {@code xyz.overzoomFallbackLevels} set, a tile that cannot be had — the upstream is
+   * blocked, or offline and not on disk — is answered with the matching quarter (sixteenth, …) of
+   * the nearest ancestor already in memory or on disk, upscaled to full size. The ancestor may be
+   * stale: old imagery beats a blank area. The result is marked derived so it is served with a
+   * short {@code Cache-Control} and is never cached or written to disk here.
+   */
+  private Optional<TileResult> overzoomAncestor(Tile tile) {
+    int maxLevels = Math.min(configuration.getOverzoomFallbackLevels(), tile.z());
+    for (int levels = 1; levels <= maxLevels; levels++) {
+      Tile ancestor =
+          new Tile(
+              tile.layerId(),
+              tile.x() >> levels,
+              tile.y() >> levels,
+              tile.z() - levels,
+              tile.generation());
+      try {
+        byte[] data = ancestorBytes(ancestor);
+        if (data == null) {
+          continue;
+        }
+        boolean jpeg = "image/jpeg".equals(CachedTile.detectContentType(data));
+        byte[] upscaled = overzoom(data, levels, tile.x(), tile.y(), jpeg);
+        if (upscaled == null) {
+          return Optional.empty();
+        }
+        LOGGER.debug("Serving tile {} upscaled from its ancestor at z{}.", tile, ancestor.z());
+        return Optional.of(TileResult.derived(upscaled, jpeg ? "image/jpeg" : "image/png"));
+      } catch (IOException | RuntimeException e) {
+        LOGGER.debug("Could not derive tile {} from ancestor {}.", tile, ancestor, e);
+        return Optional.empty();
+      }
+    }
+    return Optional.empty();
+  }
+
+  /** The ancestor's bytes from the in-memory cache (without triggering a load) or disk, or null. */
+  private byte[] ancestorBytes(Tile ancestor) throws IOException {
+    CompletableFuture<CachedTile> cached = tileCache.getIfPresent(ancestor);
+    if (cached != null && cached.isDone() && !cached.isCompletedExceptionally()) {
+      return cached.join().data();
+    }
+    try {
+      return diskTiles.load(ancestor).data();
+    } catch (TileExpiredException e) {
+      return e.staleTile().data();
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Crops the {@code 1/2^levels} square of {@code ancestor} covering tile {@code x}/{@code y} and
+   * scales it back up to the ancestor's size with bilinear filtering. Null if the ancestor can't
+   * be decoded or the crop would be less than one pixel wide.
+   */
+  static byte[] overzoom(byte[] ancestor, int levels, int x, int y, boolean jpeg)
+      throws IOException {
+    BufferedImage source = ImageIO.read(new ByteArrayInputStream(ancestor));
+    if (source == null) {
+      return null;
+    }
+    int width = source.getWidth();
+    int height = source.getHeight();
+    int cropWidth = width >> levels;
+    int cropHeight = height >> levels;
+    if (cropWidth < 1 || cropHeight < 1) {
+      return null;
+    }
+    int mask = (1 << levels) - 1;
+    BufferedImage crop =
+        source.getSubimage((x & mask) * cropWidth, (y & mask) * cropHeight, cropWidth, cropHeight);
+    BufferedImage target =
+        new BufferedImage(
+            width, height, jpeg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+    Graphics2D graphics = target.createGraphics();
+    try {
+      graphics.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.drawImage(crop, 0, 0, width, height, null);
+    } finally {
+      graphics.dispose();
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (!ImageIO.write(target, jpeg ? "jpeg" : "png", out)) {
+      return null;
+    }
+    return out.toByteArray();
+  }
+
+  private static TileResult toResult(CachedTile cached) {
+    return new TileResult(cached.data(), cached.contentType(), cached.etag(), cached.fetchedAt());
   }
 }
@@ -3,6 +3,7 @@ package org.lockard.xyztilecache.handler;
 import java.io.IOException;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import org.lockard.xyztilecache.model.Layer;
 import org.lockard.xyztilecache.model.TileResult;
 
@@ -10,4 +11,26 @@ public interface TileSourceHandler {
   Set<Layer.SourceType> sourceTypes();
 
   Optional<TileResult> getTile(Layer layer, int z, int x, int y) throws IOException;
+
+  /**
+   * Answers a HEAD or conditional request from what is already known where it can: the tile if it
+   * is in memory (or, for a file, its size and mtime), {@link TileNotFoundException} if it is known
+   * not to exist, and empty if only {@link #getTile} can tell. Never loads the tile. The default
+   * always answers empty.
+   */
+  default Optional<TileResult> peekTile(Layer layer, int z, int x, int y) {
+    return Optional.empty();
+  }
+
+  /**
+   * Non-blocking variant of {@link #getTile}. Handlers backed by an asynchronous cache override
+   * this; the default simply completes with the synchronous result.
+   */
+  default CompletableFuture<Optional<TileResult>> getTileAsync(Layer layer, int z, int x, int y) {
+    try {
+      return CompletableFuture.completedFuture(getTile(layer, z, x, y));
+    } catch (IOException | RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
 }
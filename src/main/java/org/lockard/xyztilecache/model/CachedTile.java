@@ -0,0 +1,87 @@
+package org.lockard.xyztilecache.model;
+
+import java.time.Duration;
+
+/**
+ * A raster tile as held by the in-memory cache: the bytes plus everything the serving path would
+ * otherwise recompute on each hit. Built once when the tile is loaded, so a hit is a plain lookup —
+ * no magic-byte sniffing and no {@code stat()}.
+ *
+ * @param fetchedAt epoch millis the bytes were obtained from the source (the file's mtime for a
+ *     disk load); served as {@code Last-Modified}
+ * @param etag quoted strong validator, {@link #etag(long, long)} of the size and {@code fetchedAt}
+ * @param expiresAt epoch millis after which the tile is stale, or 0 if it never expires
+ */
+public record CachedTile(
+    byte[] data, String contentType, long fetchedAt, String etag, long expiresAt) {
+
+  private static final Duration FOREVER = Duration.ofNanos(Long.MAX_VALUE);
+
+  /**
+   * Builds an entry for {@code data} fetched at {@code fetchedAt} that expires after {@code
+   * expirationMinutes} (0 = never).
+   */
+  public static CachedTile of(byte[] data, long fetchedAt, int expirationMinutes) {
+    long expiresAt = expirationMinutes > 0 ? fetchedAt + expirationMinutes * 60_000L : 0;
+    return new CachedTile(
+        data, detectContentType(data), fetchedAt, etag(data.length, fetchedAt), expiresAt);
+  }
+
+  /**
+   * Now, truncated to whole seconds: the finest mtime every filesystem keeps. Fetch times are taken
+   * from here, so a tile has the same ETag and {@code Last-Modified} in memory as on disk.
+   */
+  public static long fetchTime() {
+    long now = System.currentTimeMillis();
+    return now - now % 1000;
+  }
+
+  public boolean isExpired(long now) {
+    return expiresAt > 0 && now >= expiresAt;
+  }
+
+  /** How long the tile stays fresh from {@code now}; effectively forever if it never expires. */
+  public Duration timeToLive(long now) {
+    return expiresAt > 0 ? Duration.ofMillis(Math.max(0, expiresAt - now)) : FOREVER;
+  }
+
+  /**
+   * The one validator for a tile, in memory or on disk: its size and when it was written (the
+   * file's mtime on disk). A stored tile is only ever replaced whole, with a new written-at time,
+   * so a file can be answered 304 from one {@code stat} and gets the same ETag once loaded.
+   */
+  public static String etag(long size, long writtenAt) {
+    return "\"" + Long.toHexString(size) + "-" + Long.toHexString(writtenAt) + "\"";
+  }
+
+  /** Content type from the leading magic bytes; anything unrecognised is served as PNG. */
+  public static String detectContentType(byte[] data) {
+    if (data.length >= 3
+        && (data[0] & 0xff) == 0xff
+        && (data[1] & 0xff) == 0xd8
+        && (data[2] & 0xff) == 0xff) {
+      return "image/jpeg";
+    }
+    if (data.length >= 6
+        && data[0] == 'G'
+        && data[1] == 'I'
+        && data[2] == 'F'
+        && data[3] == '8'
+        && (data[4] == '7' || data[4] == '9')
+        && data[5] == 'a') {
+      return "image/gif";
+    }
+    if (data.length >= 12
+        && data[0] == 'R'
+        && data[1] == 'I'
+        && data[2] == 'F'
+        && data[3] == 'F'
+        && data[8] == 'W'
+        && data[9] == 'E'
+        && data[10] == 'B'
+        && data[11] == 'P') {
+      return "image/webp";
+    }
+    return "image/png";
+  }
+}
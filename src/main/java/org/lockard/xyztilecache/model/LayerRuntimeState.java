@@ -1,6 +1,8 @@
 package org.lockard.xyztilecache.model;
 
 import java.time.Clock;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
@@ -16,6 +18,11 @@ public class LayerRuntimeState {
   private final AtomicLong tilesServed = new AtomicLong();
   private final AtomicReference<Block> sourceBlock = new AtomicReference<>();
 
+  /** Orders tile writes and deletes against a {@link Recount}. */
+  private final Object statsLock = new Object();
+
+  private Recount recount; // guarded by statsLock
+
   // ── Stats ─────────────────────────────────────────────────────────────────
 
   public long getCachedTiles() {
@@ -47,6 +54,111 @@ public class LayerRuntimeState {
     cachedTilesSize.addAndGet(tileSize);
   }
 
+  /** Undoes {@link #addTileStats} for a tile deleted from disk. */
+  public void removeTileStats(long tileSize) {
+    cachedTiles.updateAndGet(n -> Math.max(0, n - 1));
+    cachedTilesSize.updateAndGet(n -> Math.max(0, n - tileSize));
+  }
+
+  /** Counts {@code tile} as written to disk over a stored copy of {@code replaced} bytes, or -1. */
+  public void tileStored(Tile tile, long replaced, long tileSize) {
+    synchronized (statsLock) {
+      if (recount != null) {
+        recount.changed(tile, replaced);
+      }
+      if (replaced >= 0) {
+        removeTileStats(replaced);
+      }
+      addTileStats(tileSize);
+    }
+  }
+
+  /** Uncounts {@code tile}, {@code tileSize} bytes, deleted from disk. */
+  public void tileDeleted(Tile tile, long tileSize) {
+    synchronized (statsLock) {
+      if (recount != null) {
+        recount.changed(tile, tileSize);
+      }
+      removeTileStats(tileSize);
+    }
+  }
+
+  /**
+   * Starts counting the layer's stored tiles over: {@link Recount#visit} each one, then {@link
+   * Recount#finish}. Replaces a recount already running.
+   */
+  public Recount startRecount() {
+    synchronized (statsLock) {
+      recount = new Recount(cachedTiles.get(), cachedTilesSize.get());
+      return recount;
+    }
+  }
+
+  /**
+   * A walk over the layer's stored tiles that corrects its totals. The totals already count a tile
+   * written while the walk runs, and the walk may or may not see the new version; so the walk
+   * counts such a tile as it was when the walk started.
+   */
+  public final class Recount {
+    private final long tilesBefore;
+    private final long bytesBefore;
+    /** Tiles changed since the start, with their size then (-1 if not stored). */
+    private final Map<Tile, Long> changed = new HashMap<>();
+
+    private long tiles;
+    private long bytes;
+
+    private Recount(long tilesBefore, long bytesBefore) {
+      this.tilesBefore = tilesBefore;
+      this.bytesBefore = bytesBefore;
+    }
+
+    private void changed(Tile tile, long sizeBefore) {
+      changed.putIfAbsent(tile.withGeneration(0), sizeBefore);
+    }
+
+    /** Counts a stored tile the walk came across. */
+    public void visit(Tile tile, long tileSize) {
+      synchronized (statsLock) {
+        long size = changed.getOrDefault(tile.withGeneration(0), tileSize);
+        if (size >= 0) {
+          tiles++;
+          bytes += size;
+        }
+      }
+    }
+
+    public long tiles() {
+      synchronized (statsLock) {
+        return tiles;
+      }
+    }
+
+    public long bytes() {
+      synchronized (statsLock) {
+        return bytes;
+      }
+    }
+
+    /** Makes what the walk counted, plus what changed since it started, the layer's totals. */
+    public void finish() {
+      synchronized (statsLock) {
+        cachedTiles.set(Math.max(0, tiles + cachedTiles.get() - tilesBefore));
+        cachedTilesSize.set(Math.max(0, bytes + cachedTilesSize.get() - bytesBefore));
+        cancel();
+      }
+    }
+
+    /** Stops tracking changes for a walk that failed; the totals are left as they are. */
+    public void cancel() {
+      synchronized (statsLock) {
+        if (recount == this) {
+          recount = null;
+        }
+      }
+    }
+  }
+
   // ── Circuit breaker ───────────────────────────────────────────────────────
 
   public void sourceFailed() {
@@ -4,5 +4,20 @@ package org.lockard.xyztilecache.model;
  * Cache key for the in-memory tile cache. Keyed by the layer's effective id — not the {@link Layer}
  * record itself — so layer updates (ACLs, attribution, …) don't orphan existing cache entries.
  * Consumers resolve the current {@link Layer} from the {@code LayerStore} at load time.
+ *
+ * <p>{@code generation} is the layer's generation ({@code LayerStore#getGeneration}) when the key
+ * was made. A source change or removal moves the layer to a new generation, so every key made
+ * before it stops matching at once and the old entries age out of the caches by normal eviction.
+ * Tile stores address tiles by layer and position only and ignore it.
  */
-public record Tile(String layerId, int x, int y, int z) {}
+public record Tile(String layerId, int x, int y, int z, long generation) {
+
+  /** A key at generation 0, the generation of every layer that has not changed since startup. */
+  public Tile(String layerId, int x, int y, int z) {
+    this(layerId, x, y, z, 0);
+  }
+
+  public Tile withGeneration(long generation) {
+    return generation == this.generation ? this : new Tile(layerId, x, y, z, generation);
+  }
+}
@@ -1,3 +1,59 @@
 package org.lockard.xyztilecache.model;
 
-public record TileResult(byte[] data, int tileCompression, String contentType) {}
+import java.nio.file.Path;
+
+/**
+ * A tile ready to be written to the client: either in-memory {@code data}, or — for disk hits
+ * served in streaming mode — a {@code file} of {@code size} bytes that the controller streams
+ * without reading it into the heap first.
+ *
+ * <p>{@code etag} (a quoted strong validator) and {@code lastModified} (epoch millis) are optional;
+ * null / 0 means the source has none and the response carries no validator.
+ *
+ * <p>{@code derived} marks a stand-in built from another tile (an upscaled ancestor) rather than
+ * the tile itself; it is served with a short-lived {@code Cache-Control} so clients come back for
+ * the real one.
+ *
+ * <p>{@code stale} marks an expired tile served because the source could not (yet) replace it; it
+ * is served with {@code max-age=0, must-revalidate} so clients do not keep it for another full
+ * expiry period.
+ */
+public record TileResult(
+    byte[] data,
+    int tileCompression,
+    String contentType,
+    Path file,
+    long size,
+    String etag,
+    long lastModified,
+    boolean derived,
+    boolean stale) {
+
+  public TileResult(byte[] data, int tileCompression, String contentType) {
+    this(data, tileCompression, contentType, null, data.length, null, 0, false, false);
+  }
+
+  public TileResult(byte[] data, String contentType, String etag, long lastModified) {
+    this(data, 0, contentType, null, data.length, etag, lastModified, false, false);
+  }
+
+  public static TileResult ofFile(
+      Path file, long size, String contentType, String etag, long lastModified) {
+    return new TileResult(null, 0, contentType, file, size, etag, lastModified, false, false);
+  }
+
+  /** A stand-in tile derived from another one; carries no validators. */
+  public static TileResult derived(byte[] data, String contentType) {
+    return new TileResult(data, 0, contentType, null, data.length, null, 0, true, false);
+  }
+
+  /** This tile, marked as expired. */
+  public TileResult asStale() {
+    return new TileResult(
+        data, tileCompression, contentType, file, size, etag, lastModified, derived, true);
+  }
+
+  public boolean isFile() {
+    return file != null;
+  }
+}
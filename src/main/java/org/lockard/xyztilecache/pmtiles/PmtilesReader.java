@@ -216,11 +216,45 @@ public class PmtilesReader implements Closeable {
 
   // ── Hilbert curve tile ID ─────────────────────────────────────────────────
 
-  static long tileId(int z, int x, int y) {
+  public static long tileId(int z, int x, int y) {
     long faceOffset = ((1L << (2 * z)) - 1) / 3; // (4^z - 1) / 3
     return faceOffset + xyToHilbert(1 << z, x, y);
   }
 
+  /** The inverse of {@link #tileId}: {@code {z, x, y}}. */
+  public static int[] tileCoordinates(long tileId) {
+    int z = 0;
+    long faceOffset = 0;
+    while (z < 31) {
+      long faceSize = 1L << (2 * z);
+      if (tileId < faceOffset + faceSize) {
+        break;
+      }
+      faceOffset += faceSize;
+      z++;
+    }
+    long d = tileId - faceOffset;
+    int x = 0;
+    int y = 0;
+    for (long s = 1; s < (1L << z); s *= 2) {
+      int rx = (int) (1 & (d / 2));
+      int ry = (int) (1 & (d ^ rx));
+      if (ry == 0) {
+        if (rx == 1) {
+          x = (int) (s - 1 - x);
+          y = (int) (s - 1 - y);
+        }
+        int t = x;
+        x = y;
+        y = t;
+      }
+      x += (int) (s * rx);
+      y += (int) (s * ry);
+      d /= 4;
+    }
+    return new int[] {z, x, y};
+  }
+
   private static long xyToHilbert(int n, int x, int y) {
     long d = 0;
     for (int s = n / 2; s > 0; s /= 2) {
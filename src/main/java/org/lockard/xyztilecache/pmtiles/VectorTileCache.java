@@ -4,7 +4,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
+import org.lockard.xyztilecache.cache.TileStore;
 import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.Tile;
 import org.lockard.xyztilecache.model.TileResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,24 +15,27 @@ public class VectorTileCache {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(VectorTileCache.class);
 
-  private final Path cacheDir;
+  private final String layerId;
+  private final TileStore tiles;
   private final XyzConfiguration xyzConfig;
 
-  public VectorTileCache(Path cacheDir, XyzConfiguration xyzConfig) {
-    this.cacheDir = cacheDir;
+  public VectorTileCache(String layerId, TileStore tiles, XyzConfiguration xyzConfig) {
+    this.layerId = layerId;
+    this.tiles = tiles;
     this.xyzConfig = xyzConfig;
   }
 
   public Optional<TileResult> get(int z, int x, int y) {
-    Path path = cachePath(z, x, y);
-    if (!Files.exists(path)) {
-      return Optional.empty();
-    }
     try {
-      byte[] data = Files.readAllBytes(path);
-      int compression =
-          isGzip(data) ? PmtilesHeader.COMPRESSION_GZIP : PmtilesHeader.COMPRESSION_NONE;
-      return Optional.of(new TileResult(data, compression, "application/x-protobuf"));
+      return tiles
+          .get(new Tile(layerId, x, y, z))
+          .map(
+              stored -> {
+                byte[] data = stored.data();
+                int compression =
+                    isGzip(data) ? PmtilesHeader.COMPRESSION_GZIP : PmtilesHeader.COMPRESSION_NONE;
+                return new TileResult(data, compression, "application/x-protobuf");
+              });
     } catch (IOException e) {
       LOGGER.debug("Failed to read cached vector tile {}/{}/{}: {}", z, x, y, e.getMessage());
       return Optional.empty();
@@ -39,7 +44,9 @@ public class VectorTileCache {
 
   public void store(int z, int x, int y, TileResult result) {
     try {
-      long freeBytes = Files.getFileStore(existingAncestor(cacheDir)).getUsableSpace();
+      long freeBytes =
+          Files.getFileStore(existingAncestor(Path.of(xyzConfig.getBaseTileDirectory())))
+              .getUsableSpace();
       if (freeBytes < xyzConfig.getMinFreeDiskBytes()) {
         LOGGER.warn(
             "Free disk space ({} MB) below minimum; vector tile {}/{}/{} not cached.",
@@ -53,20 +60,14 @@ public class VectorTileCache {
       LOGGER.warn("Could not check disk space — proceeding with vector tile cache write.", e);
     }
 
-    Path path = cachePath(z, x, y);
     try {
-      Files.createDirectories(path.getParent());
-      Files.write(path, result.data());
+      tiles.put(new Tile(layerId, x, y, z), result.data());
       LOGGER.debug("Cached remote vector tile {}/{}/{}", z, x, y);
     } catch (IOException e) {
       LOGGER.debug("Failed to cache vector tile {}/{}/{}: {}", z, x, y, e.getMessage());
     }
   }
 
-  public Path cachePath(int z, int x, int y) {
-    return cacheDir.resolve(String.valueOf(z)).resolve(String.valueOf(x)).resolve(y + ".pbf");
-  }
-
   private static Path existingAncestor(Path path) {
     Path p = path.toAbsolutePath();
     while (p != null && !Files.exists(p)) {
@@ -1,17 +1,18 @@
 package org.lockard.xyztilecache.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import java.awt.Point;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -21,11 +22,13 @@ import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
-import org.lockard.xyztilecache.XyzUtil;
+import org.lockard.xyztilecache.cache.NegativeTileCache;
+import org.lockard.xyztilecache.cache.TileStore;
 import org.lockard.xyztilecache.config.XyzConfiguration;
 import org.lockard.xyztilecache.model.BoundingBox;
 import org.lockard.xyztilecache.model.ImportSummary;
 import org.lockard.xyztilecache.model.Layer;
+import org.lockard.xyztilecache.model.Tile;
 import org.lockard.xyztilecache.store.LayerStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,18 +59,24 @@ public class ImportExportService {
   private final LayerStore layerStore;
   private final ObjectMapper objectMapper;
   private final LayerAccessService layerAccessService;
+  private final NegativeTileCache negativeTiles;
+  private final TileStore tileStore;
 
   public ImportExportService(
       XyzConfiguration configuration,
       VectorPmtilesManager vectorPmtilesManager,
       LayerStore layerStore,
       ObjectMapper objectMapper,
-      LayerAccessService layerAccessService) {
+      LayerAccessService layerAccessService,
+      NegativeTileCache negativeTiles,
+      TileStore tileStore) {
     this.configuration = configuration;
     this.vectorPmtilesManager = vectorPmtilesManager;
     this.layerStore = layerStore;
     this.objectMapper = objectMapper;
     this.layerAccessService = layerAccessService;
+    this.negativeTiles = negativeTiles;
+    this.tileStore = tileStore;
   }
 
   /**
@@ -100,14 +109,14 @@ public class ImportExportService {
         if (layer.sourceType() == Layer.SourceType.VECTOR_PMTILES) {
           addPmtilesLayer(zos, layerId, layerDir, bbox, minZoom, maxZoom, layer);
         } else if (bbox == null) {
-          addAllRasterTiles(zos, layerId, layerDir);
+          addStoredTiles(zos, layer, 0, Integer.MAX_VALUE, null);
         } else {
           int effectiveMax = Math.min(layer.maxZoom(), bbox.getMaxZoom());
           if (maxZoom != null) {
             effectiveMax = Math.min(effectiveMax, maxZoom);
           }
           int start = minZoom != null ? Math.max(0, minZoom) : 0;
-          addRasterBboxTilesFromDir(zos, layerDir, layerId + "/", bbox, start, effectiveMax);
+          addStoredTiles(zos, layer, start, effectiveMax, bbox);
         }
       }
     }
@@ -131,22 +140,7 @@ public class ImportExportService {
       for (Path p : pmtilesFiles) {
         writeEntry(zos, layerId + "/" + p.getFileName().toString(), p);
       }
-      try (var paths = Files.walk(layerDir)) {
-        paths
-            .filter(Files::isRegularFile)
-            .filter(p -> p.getFileName().toString().endsWith(".pbf"))
-            .forEach(
-                p -> {
-                  String rel = layerDir.relativize(p).toString().replace('\\', '/');
-                  try {
-                    writeEntry(zos, layerId + "/" + rel, p);
-                  } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                  }
-                });
-      } catch (UncheckedIOException e) {
-        throw e.getCause();
-      }
+      addStoredTiles(zos, layer, 0, Integer.MAX_VALUE, null);
     } else {
       int effectiveMax = Math.min(layer.maxZoom(), bbox.getMaxZoom());
       if (maxZoom != null) effectiveMax = Math.min(effectiveMax, maxZoom);
@@ -156,7 +150,7 @@ public class ImportExportService {
         extractAndAddPmtiles(zos, layerId, pmtilesPath, bbox, start, effectiveMax);
       }
 
-      addBboxTilesFromDir(zos, layerDir, layerId + "/", ".pbf", bbox, start, effectiveMax);
+      addStoredTiles(zos, layer, start, effectiveMax, bbox);
     }
   }
 
@@ -228,127 +222,43 @@ public class ImportExportService {
     }
   }
 
-  private void addAllRasterTiles(ZipOutputStream zos, String layerId, Path layerDir)
-      throws IOException {
-    try (var paths = Files.walk(layerDir)) {
-      paths
-          .filter(Files::isRegularFile)
-          .filter(p -> RASTER_TILE_EXTS.contains(fileExtension(p.getFileName().toString())))
-          .forEach(
-              p -> {
-                String rel = layerDir.relativize(p).toString().replace('\\', '/');
-                try {
-                  writeEntry(zos, layerId + "/" + rel, p);
-                } catch (IOException e) {
-                  throw new UncheckedIOException(e);
-                }
-              });
-    } catch (UncheckedIOException e) {
-      throw e.getCause();
-    }
-  }
-
-  private static String fileExtension(String fileName) {
-    int dot = fileName.lastIndexOf('.');
-    return dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
-  }
-
-  private void addRasterBboxTilesFromDir(
-      ZipOutputStream zos, Path tileDir, String entryPrefix, BoundingBox bbox, int startZ, int endZ)
+  /**
+   * Adds the layer's individually stored tiles from {@code startZ} through {@code endZ} (within
+   * {@code bbox} unless it is null) as {@code <layerId>/<z>/<x>/<y>.<ext>}: {@code .pbf} for
+   * VECTOR_PMTILES layers, the layer's own raster extension otherwise.
+   */
+  private void addStoredTiles(
+      ZipOutputStream zos, Layer layer, int startZ, int endZ, BoundingBox bbox)
       throws IOException {
-    for (int z = startZ; z <= endZ; z++) {
-      Path zDir = tileDir.resolve(Integer.toString(z));
-      if (!Files.isDirectory(zDir)) continue;
-      Point ul = XyzUtil.getTileNumber(bbox.getNorth(), bbox.getWest(), z);
-      int xMin = ul.x;
-      int xMax = XyzUtil.getTileNumber(bbox.getNorth(), bbox.getEast(), z).x;
-      int yMin = ul.y;
-      int yMax = XyzUtil.getTileNumber(bbox.getSouth(), bbox.getWest(), z).y;
-      List<Path> xDirs;
-      try (Stream<Path> s = Files.list(zDir)) {
-        xDirs = s.filter(Files::isDirectory).toList();
-      }
-      for (Path xDir : xDirs) {
-        int x;
-        try {
-          x = Integer.parseInt(xDir.getFileName().toString());
-        } catch (NumberFormatException e) {
-          continue;
-        }
-        if (x < xMin || x > xMax) continue;
-        List<Path> yFiles;
-        try (Stream<Path> s = Files.list(xDir)) {
-          yFiles =
-              s.filter(Files::isRegularFile)
-                  .filter(p -> RASTER_TILE_EXTS.contains(fileExtension(p.getFileName().toString())))
-                  .toList();
-        }
-        for (Path yFile : yFiles) {
-          String fname = yFile.getFileName().toString();
-          int dot = fname.lastIndexOf('.');
-          if (dot <= 0) continue;
-          int y;
+    String layerId = layer.effectiveId();
+    String ext = exportExtension(layer);
+    tileStore.forEach(
+        layerId,
+        startZ,
+        endZ,
+        bbox,
+        entry -> {
+          Tile tile = entry.tile();
+          byte[] data;
           try {
-            y = Integer.parseInt(fname.substring(0, dot));
-          } catch (NumberFormatException e) {
-            continue;
+            data = entry.read();
+          } catch (NoSuchFileException e) {
+            return; // evicted or replaced since it was listed
           }
-          if (y < yMin || y > yMax) continue;
-          writeEntry(zos, entryPrefix + z + "/" + x + "/" + fname, yFile);
-        }
-      }
-    }
+          zos.putNextEntry(
+              new ZipEntry(
+                  layerId + "/" + tile.z() + "/" + tile.x() + "/" + tile.y() + "." + ext));
+          zos.write(data);
+          zos.closeEntry();
+        });
   }
 
-  private void addBboxTilesFromDir(
-      ZipOutputStream zos,
-      Path tileDir,
-      String entryPrefix,
-      String ext,
-      BoundingBox bbox,
-      int startZ,
-      int endZ)
-      throws IOException {
-    for (int z = startZ; z <= endZ; z++) {
-      Path zDir = tileDir.resolve(Integer.toString(z));
-      if (!Files.isDirectory(zDir)) continue;
-      Point ul = XyzUtil.getTileNumber(bbox.getNorth(), bbox.getWest(), z);
-      int xMin = ul.x;
-      int xMax = XyzUtil.getTileNumber(bbox.getNorth(), bbox.getEast(), z).x;
-      int yMin = ul.y;
-      int yMax = XyzUtil.getTileNumber(bbox.getSouth(), bbox.getWest(), z).y;
-      List<Path> xDirs;
-      try (Stream<Path> s = Files.list(zDir)) {
-        xDirs = s.filter(Files::isDirectory).toList();
-      }
-      for (Path xDir : xDirs) {
-        int x;
-        try {
-          x = Integer.parseInt(xDir.getFileName().toString());
-        } catch (NumberFormatException e) {
-          continue;
-        }
-        if (x < xMin || x > xMax) continue;
-        List<Path> yFiles;
-        try (Stream<Path> s = Files.list(xDir)) {
-          yFiles =
-              s.filter(Files::isRegularFile)
-                  .filter(p -> p.getFileName().toString().endsWith(ext))
-                  .toList();
-        }
-        for (Path yFile : yFiles) {
-          String fname = yFile.getFileName().toString();
-          int y;
-          try {
-            y = Integer.parseInt(fname.substring(0, fname.length() - ext.length()));
-          } catch (NumberFormatException e) {
-            continue;
-          }
-          if (y < yMin || y > yMax) continue;
-          writeEntry(zos, entryPrefix + z + "/" + x + "/" + y + ext, yFile);
-        }
-      }
+  private static String exportExtension(Layer layer) {
+    if (layer.sourceType() == Layer.SourceType.VECTOR_PMTILES) {
+      return "pbf";
     }
+    String ext = layer.tileFileExtension().toLowerCase(Locale.ROOT);
+    return RASTER_TILE_EXTS.contains(ext) ? ext : "png";
   }
 
   private static void writeEntry(ZipOutputStream zos, String entryName, Path file)
@@ -393,11 +303,49 @@ public class ImportExportService {
     }
   }
 
+  /**
+   * Reads one zip entry into memory under the same guardrails as {@link #copyEntry}: the entry
+   * counts against {@code budget}, and nothing is read if free disk space is already below {@code
+   * minFreeDiskBytes}.
+   */
+  private byte[] readEntry(InputStream in, Path baseDir, long[] budget) throws IOException {
+    long freeBytes = Files.getFileStore(baseDir).getUsableSpace();
+    if (freeBytes < configuration.getMinFreeDiskBytes()) {
+      throw new IOException("Insufficient free disk space to import; aborting.");
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      if (read > budget[0]) {
+        throw new IOException(
+            "Import exceeds maximum decompressed size of "
+                + configuration.getMaxImportBytes()
+                + " bytes.");
+      }
+      budget[0] -= read;
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  /** Stores a {@code <z>/<x>/<y>.<ext>} entry through the {@link TileStore}. */
+  private void importTile(
+      ZipInputStream zis, String layerId, String tail, Path baseDir, long[] budget)
+      throws IOException {
+    String[] zxy = tail.substring(0, tail.lastIndexOf('.')).split("/");
+    Tile tile =
+        new Tile(
+            layerId, Integer.parseInt(zxy[1]), Integer.parseInt(zxy[2]), Integer.parseInt(zxy[0]));
+    tileStore.put(tile, readEntry(zis, baseDir, budget));
+  }
+
   /**
    * Ingests a zip in the same shape produced by {@link #streamExport}. For each top-level layer
    * directory: {@code layer.json} is registered with the {@link LayerStore} only if no layer with
-   * that id exists; raster tile files ({@code .png}) and pmtiles files ({@code .pmtiles}) overwrite
-   * any existing files on disk. Path traversal attempts are rejected.
+   * that id exists; raster and cached vector tiles replace any stored version through the {@link
+   * TileStore}, and pmtiles files ({@code .pmtiles}) are written next to them. Path traversal
+   * attempts are rejected.
    */
   public ImportSummary importZip(InputStream in, Authentication auth) throws IOException {
     Path baseDir = Paths.get(configuration.getBaseTileDirectory()).toAbsolutePath().normalize();
@@ -408,6 +356,7 @@ public class ImportExportService {
     long tilesWritten = 0L;
     long pmtilesImported = 0L;
     Map<String, Boolean> layerAccess = new HashMap<>();
+    Set<String> layersWithTiles = new HashSet<>();
     long[] budget = {configuration.getMaxImportBytes()};
 
     try (ZipInputStream zis = new ZipInputStream(in)) {
@@ -446,12 +395,11 @@ public class ImportExportService {
         if ("layer.json".equals(tail)) {
           handleLayerJson(zis, layerId, added, skipped);
         } else if (TILE_TAIL.matcher(tail).matches()) {
-          Files.createDirectories(target.getParent());
-          copyEntry(zis, target, baseDir, budget);
+          importTile(zis, layerId, tail, baseDir, budget);
+          layersWithTiles.add(layerId);
           tilesWritten++;
         } else if (CACHED_TILE_TAIL.matcher(tail).matches()) {
-          Files.createDirectories(target.getParent());
-          copyEntry(zis, target, baseDir, budget);
+          importTile(zis, layerId, tail, baseDir, budget);
           tilesWritten++;
         } else if (tail.endsWith(".pmtiles")) {
           if (!SAFE_PMTILES_NAME.matcher(tail).matches()) {
@@ -475,6 +423,8 @@ public class ImportExportService {
       }
     }
 
+    // Imported tiles may fill in coordinates that were recorded as missing.
+    layersWithTiles.forEach(negativeTiles::clearLayer);
     return new ImportSummary(added, skipped, tilesWritten, pmtilesImported);
   }
 
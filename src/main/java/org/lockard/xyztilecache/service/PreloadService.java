@@ -23,8 +23,10 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import org.lockard.xyztilecache.XyzUtil;
+import org.lockard.xyztilecache.cache.TileWriter;
 import org.lockard.xyztilecache.config.XyzConfiguration;
 import org.lockard.xyztilecache.model.BoundingBox;
+import org.lockard.xyztilecache.model.CachedTile;
 import org.lockard.xyztilecache.model.Layer;
 import org.lockard.xyztilecache.model.Preload;
 import org.lockard.xyztilecache.model.PreloadProgress;
@@ -44,8 +46,11 @@ public class PreloadService {
 
   static final String INFLIGHT_GAUGE = "xyz_preload_inflight";
 
+  private static final long WRITE_ROOM_POLL_MILLIS = 1_000;
+
   private final LayerStore layerStore;
-  private final LoadingCache<Tile, byte[]> tileCache;
+  private final LoadingCache<Tile, CachedTile> tileCache;
+  private final TileWriter tileWriter;
   private final PreloadStore preloadStore;
   private final PmtilesDownloader pmtilesDownloader;
   private final MeterRegistry meterRegistry;
@@ -70,13 +75,15 @@ public class PreloadService {
 
   public PreloadService(
       LayerStore layerStore,
-      LoadingCache<Tile, byte[]> tileCache,
+      LoadingCache<Tile, CachedTile> tileCache,
+      TileWriter tileWriter,
       PreloadStore preloadStore,
       PmtilesDownloader pmtilesDownloader,
       MeterRegistry meterRegistry,
       XyzConfiguration configuration) {
     this.layerStore = layerStore;
     this.tileCache = tileCache;
+    this.tileWriter = tileWriter;
     this.preloadStore = preloadStore;
     this.pmtilesDownloader = pmtilesDownloader;
     this.meterRegistry = meterRegistry;
@@ -347,7 +354,12 @@ public class PreloadService {
           for (int x = range.xMin(); x <= range.xMax(); x++) {
             for (int y = range.yMin(); y <= range.yMax(); y++) {
               if (cancelled.get()) break enumerate;
-              Tile tile = new Tile(layerId, x, y, range.zoom());
+              Tile tile = new Tile(layerId, x, y, range.zoom(), layerStore.getGeneration(layerId));
+              // Fetches don't wait for the disk, so wait here: with the write queue full, every
+              // tile fetched now would only have its write dropped.
+              while (!cancelled.get() && !tileWriter.awaitRoom(WRITE_ROOM_POLL_MILLIS)) {
+                LOGGER.debug("Write queue is full; holding the preload of layer {} back.", layerId);
+              }
               permits.acquire();
               xyzExecutor.submit(
                   () -> {
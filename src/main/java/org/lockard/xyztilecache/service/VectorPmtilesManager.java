@@ -18,6 +18,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import org.lockard.xyztilecache.cache.TileStore;
 import org.lockard.xyztilecache.config.XyzConfiguration;
 import org.lockard.xyztilecache.model.Layer;
 import org.lockard.xyztilecache.model.LayerChangedEvent;
@@ -38,6 +39,7 @@ public class VectorPmtilesManager {
 
   private final LayerStore layerStore;
   private final XyzConfiguration xyzConfig;
+  private final TileStore tileStore;
 
   private final ConcurrentHashMap<String, List<PmtilesReader>> localReaders =
       new ConcurrentHashMap<>();
@@ -47,9 +49,11 @@ public class VectorPmtilesManager {
 
   private final ExecutorService cacheWriter = Executors.newVirtualThreadPerTaskExecutor();
 
-  public VectorPmtilesManager(LayerStore layerStore, XyzConfiguration xyzConfig) {
+  public VectorPmtilesManager(
+      LayerStore layerStore, XyzConfiguration xyzConfig, TileStore tileStore) {
     this.layerStore = layerStore;
     this.xyzConfig = xyzConfig;
+    this.tileStore = tileStore;
   }
 
   @PostConstruct
@@ -65,7 +69,7 @@ public class VectorPmtilesManager {
 
     Path layerDir = layerDir(layerId);
     List<Path> pmtilesFiles = new ArrayList<>(findAllPmtiles(layerDir));
-    caches.put(layerId, new VectorTileCache(layerDir, xyzConfig));
+    caches.put(layerId, new VectorTileCache(layerId, tileStore, xyzConfig));
 
     if (source == null || source.isBlank()) {
       openLocalReaders(layerId, pmtilesFiles);
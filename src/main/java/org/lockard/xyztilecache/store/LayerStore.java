@@ -11,6 +11,7 @@ import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.lockard.xyztilecache.config.XyzConfiguration;
 import org.lockard.xyztilecache.model.Layer;
 import org.lockard.xyztilecache.model.LayerChangedEvent;
@@ -40,6 +41,14 @@ public class LayerStore extends JsonFileStore<Layer> {
   private final Map<String, Layer> layers = new ConcurrentHashMap<>();
   private final Map<String, LayerRuntimeState> runtimeStates = new ConcurrentHashMap<>();
 
+  /**
+   * Cache generation per layer id. Kept after a layer is removed and drawn from one counter, so a
+   * generation is never handed out twice, not even to a layer re-added under the same id.
+   */
+  private final Map<String, Long> generations = new ConcurrentHashMap<>();
+
+  private final AtomicLong lastGeneration = new AtomicLong();
+
   public LayerStore(
       XyzConfiguration configuration,
       ObjectMapper objectMapper,
@@ -66,6 +75,15 @@ public class LayerStore extends JsonFileStore<Layer> {
     return runtimeStates.computeIfAbsent(id, k -> new LayerRuntimeState());
   }
 
+  /**
+   * The layer's current cache generation, for {@link org.lockard.xyztilecache.model.Tile} keys. It
+   * moves on before every {@link LayerChangedEvent} other than {@code UPDATED_ACL} is published, so
+   * listeners already see the new one; a layer that has not changed since startup is at 0.
+   */
+  public long getGeneration(String id) {
+    return generations.getOrDefault(id, 0L);
+  }
+
   public Optional<Layer> getLayer(String id) {
     if (id == null) return Optional.empty();
     return Optional.ofNullable(this.layers.get(id));
@@ -82,7 +100,7 @@ public class LayerStore extends JsonFileStore<Layer> {
           this.layers.put(id, layer);
         });
     logger.info("Added layer '{}'.", id);
-    eventPublisher.publishEvent(new LayerChangedEvent(id, LayerChangedEvent.Kind.ADDED));
+    publish(new LayerChangedEvent(id, LayerChangedEvent.Kind.ADDED));
   }
 
   public void updateLayer(String id, Layer layer) throws IOException {
@@ -102,7 +120,7 @@ public class LayerStore extends JsonFileStore<Layer> {
                   : LayerChangedEvent.Kind.UPDATED_SOURCE;
         });
     logger.info("Updated layer '{}'.", id);
-    eventPublisher.publishEvent(new LayerChangedEvent(id, kindHolder[0]));
+    publish(new LayerChangedEvent(id, kindHolder[0]));
   }
 
   public void removeLayer(String id) throws IOException {
@@ -114,7 +132,7 @@ public class LayerStore extends JsonFileStore<Layer> {
           this.runtimeStates.remove(id);
         });
     logger.info("Removed layer '{}'.", id);
-    eventPublisher.publishEvent(new LayerChangedEvent(id, LayerChangedEvent.Kind.REMOVED));
+    publish(new LayerChangedEvent(id, LayerChangedEvent.Kind.REMOVED));
   }
 
   // ── JsonFileStore hooks ───────────────────────────────────────────────────
@@ -159,17 +177,23 @@ public class LayerStore extends JsonFileStore<Layer> {
         (name, old) -> {
           Layer updated = this.layers.get(name);
           if (updated == null) {
-            eventPublisher.publishEvent(
-                new LayerChangedEvent(name, LayerChangedEvent.Kind.REMOVED));
+            publish(new LayerChangedEvent(name, LayerChangedEvent.Kind.REMOVED));
           } else if (!sameSource(old, updated)) {
-            eventPublisher.publishEvent(
-                new LayerChangedEvent(name, LayerChangedEvent.Kind.UPDATED_SOURCE));
+            publish(new LayerChangedEvent(name, LayerChangedEvent.Kind.UPDATED_SOURCE));
           }
         });
   }
 
   // ── Helpers ───────────────────────────────────────────────────────────────
 
+  /** Moves the layer to a new generation unless only its ACL changed, then publishes. */
+  private void publish(LayerChangedEvent event) {
+    if (event.kind() != LayerChangedEvent.Kind.UPDATED_ACL) {
+      generations.put(event.layerName(), lastGeneration.incrementAndGet());
+    }
+    eventPublisher.publishEvent(event);
+  }
+
   private static boolean sameSource(Layer a, Layer b) {
     return Objects.equals(a.urlTemplate(), b.urlTemplate()) && a.sourceType() == b.sourceType();
   }
@@ -0,0 +1,111 @@
+package org.lockard.xyztilecache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lockard.xyztilecache.config.LayerProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+
+/** {@link XyzTileCacheApplicationOfflineTests}, with disk tiles streamed from their files. */
+@SpringBootTest
+@AutoConfigureMockMvc
+class XyzTileCacheApplicationOfflineStreamingTests {
+
+  @TempDir static File tileDir;
+
+  @DynamicPropertySource
+  static void testProperties(final DynamicPropertyRegistry registry) {
+    registry.add("xyz.offline", () -> true);
+    registry.add("xyz.streamDiskTiles", () -> true);
+    registry.add("xyz.baseTileDirectory", () -> tileDir.getAbsolutePath());
+    registry.add(
+        "xyz.layers",
+        () -> {
+          final var layer = new LayerProperties();
+          layer.setName("test");
+          layer.setUrlTemplate("http://localhost/{z}/{y}/{x}");
+          return List.of(layer);
+        });
+  }
+
+  @Test
+  void streamTileFromDisk(@Autowired final MockMvc mvc) throws Exception {
+    final var xFolder = tileDir.toPath().resolve("test/3/1");
+    if (!xFolder.toFile().mkdirs()) {
+      fail("Unable to create the tile directory.");
+    }
+    Files.write(xFolder.resolve("2.png"), new byte[] {3, 2, 1});
+    mvc.perform(MockMvcRequestBuilders.get("/tilesZYX/test/3/2/1.png"))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.content().bytes(new byte[] {3, 2, 1}))
+        .andExpect(MockMvcResultMatchers.header().longValue("Content-Length", 3));
+  }
+
+  @Test
+  void conditionalRequestForUnchangedStreamedTileReturns304(@Autowired final MockMvc mvc)
+      throws Exception {
+    final var xFolder = tileDir.toPath().resolve("test/4/1");
+    if (!xFolder.toFile().mkdirs()) {
+      fail("Unable to create the tile directory.");
+    }
+    Files.write(xFolder.resolve("2.png"), new byte[] {7, 8, 9});
+    final String etag =
+        mvc.perform(MockMvcRequestBuilders.get("/tilesZYX/test/4/2/1.png"))
+            .andExpect(MockMvcResultMatchers.status().isOk())
+            .andExpect(MockMvcResultMatchers.header().exists("Last-Modified"))
+            .andReturn()
+            .getResponse()
+            .getHeader("ETag");
+    assertThat(etag).isNotNull();
+
+    mvc.perform(
+            MockMvcRequestBuilders.get("/tilesZYX/test/4/2/1.png").header("If-None-Match", etag))
+        .andExpect(MockMvcResultMatchers.status().isNotModified())
+        .andExpect(MockMvcResultMatchers.content().bytes(new byte[0]));
+  }
+
+  @Test
+  void return404WhenTileNotOnDisk(@Autowired final MockMvc mvc) throws Exception {
+    mvc.perform(MockMvcRequestBuilders.get("/tilesZYX/test/9/8/7.png"))
+        .andExpect(MockMvcResultMatchers.status().isNotFound());
+  }
+
+  @Test
+  void batchStreamsTilesFromDisk(@Autowired final MockMvc mvc) throws Exception {
+    final var xFolder = tileDir.toPath().resolve("test/5/1");
+    if (!xFolder.toFile().mkdirs()) {
+      fail("Unable to create the tile directory.");
+    }
+    Files.write(xFolder.resolve("2.png"), new byte[] {1, 2});
+
+    final byte[] body =
+        mvc.perform(MockMvcRequestBuilders.get("/tilesBatch/test").param("tiles", "5/1/2"))
+            .andExpect(MockMvcResultMatchers.status().isOk())
+            .andReturn()
+            .getResponse()
+            .getContentAsByteArray();
+
+    try (var in = new DataInputStream(new ByteArrayInputStream(body))) {
+      in.skipNBytes(4 + 3 * 4);
+      assertThat(in.readShort()).isEqualTo((short) 200);
+      in.readByte();
+      in.skipNBytes(in.readUnsignedByte());
+      assertThat(in.readNBytes(in.readInt())).containsExactly(1, 2);
+      assertThat(in.read()).isEqualTo(-1);
+    }
+  }
+}
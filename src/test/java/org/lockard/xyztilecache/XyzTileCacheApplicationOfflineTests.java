@@ -1,13 +1,20 @@
 package org.lockard.xyztilecache;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.lockard.xyztilecache.config.LayerProperties;
+import org.lockard.xyztilecache.model.CachedTile;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -53,6 +60,39 @@ class XyzTileCacheApplicationOfflineTests {
         .andExpect(MockMvcResultMatchers.content().bytes(new byte[] {3, 2, 1}));
   }
 
+  @Test
+  void conditionalRequestForUnchangedTileReturns304(@Autowired final MockMvc mvc)
+      throws Exception {
+    final var xFolder = tileDir.toPath().resolve("test/4/1");
+    if (!xFolder.toFile().mkdirs()) {
+      fail("Unable to create the tile directory.");
+    }
+    final var tileFile = xFolder.resolve("2.png");
+    Files.write(tileFile, new byte[] {7, 8, 9});
+    final String etag = CachedTile.etag(3, Files.getLastModifiedTime(tileFile).toMillis());
+
+    // Not in memory yet: answered from the file's size and mtime.
+    mvc.perform(
+            MockMvcRequestBuilders.get("/tilesZYX/test/4/2/1.png").header("If-None-Match", etag))
+        .andExpect(MockMvcResultMatchers.status().isNotModified())
+        .andExpect(MockMvcResultMatchers.content().bytes(new byte[0]));
+    mvc.perform(
+            MockMvcRequestBuilders.get("/tilesZYX/test/4/2/1.png")
+                .header("If-None-Match", "\"0-0\""))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.header().string("ETag", etag))
+        .andExpect(MockMvcResultMatchers.content().bytes(new byte[] {7, 8, 9}));
+
+    // Loaded into memory, with the same validators.
+    mvc.perform(MockMvcRequestBuilders.get("/tilesZYX/test/4/2/1.png"))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.header().string("ETag", etag))
+        .andExpect(MockMvcResultMatchers.header().exists("Last-Modified"));
+    mvc.perform(
+            MockMvcRequestBuilders.get("/tilesZYX/test/4/2/1.png").header("If-None-Match", etag))
+        .andExpect(MockMvcResultMatchers.status().isNotModified());
+  }
+
   @Test
   void return404WhenTileNotCached(@Autowired final MockMvc mvc) throws Exception {
     mvc.perform(MockMvcRequestBuilders.get("/tilesZYX/test/9/8/7.png"))
@@ -76,4 +116,56 @@ class XyzTileCacheApplicationOfflineTests {
         .andExpect(MockMvcResultMatchers.status().isOk())
         .andExpect(MockMvcResultMatchers.content().bytes(new byte[] {4, 5, 6}));
   }
+
+  @Test
+  void batchStreamsEveryRequestedTileWithItsStatus(@Autowired final MockMvc mvc)
+      throws Exception {
+    final var xFolder = tileDir.toPath().resolve("test/5/1");
+    if (!xFolder.toFile().mkdirs()) {
+      fail("Unable to create the tile directory.");
+    }
+    Files.write(xFolder.resolve("2.png"), new byte[] {1, 2});
+    Files.write(xFolder.resolve("3.png"), new byte[] {3});
+
+    final byte[] body =
+        mvc.perform(
+                MockMvcRequestBuilders.get("/tilesBatch/test")
+                    .param("tiles", "5/1/2,5/1/3,5/0/0"))
+            .andExpect(MockMvcResultMatchers.status().isOk())
+            .andExpect(MockMvcResultMatchers.content().contentType("application/x-xyz-tile-batch"))
+            .andReturn()
+            .getResponse()
+            .getContentAsByteArray();
+
+    final Map<String, byte[]> tiles = new HashMap<>();
+    final Map<String, Integer> statuses = new HashMap<>();
+    try (var in = new DataInputStream(new ByteArrayInputStream(body))) {
+      assertThat(in.readNBytes(4)).isEqualTo("XTB1".getBytes(StandardCharsets.US_ASCII));
+      for (int i = 0; i < 3; i++) {
+        final String key = in.readInt() + "/" + in.readInt() + "/" + in.readInt();
+        statuses.put(key, (int) in.readShort());
+        in.readByte();
+        in.skipNBytes(in.readUnsignedByte());
+        tiles.put(key, in.readNBytes(in.readInt()));
+      }
+      assertThat(in.read()).isEqualTo(-1);
+    }
+    assertThat(statuses).containsEntry("5/1/2", 200).containsEntry("5/1/3", 200);
+    assertThat(statuses).containsEntry("5/0/0", 404);
+    assertThat(tiles.get("5/1/2")).containsExactly(1, 2);
+    assertThat(tiles.get("5/1/3")).containsExactly(3);
+  }
+
+  @Test
+  void batchRejectsMalformedOrOversizedRequests(@Autowired final MockMvc mvc) throws Exception {
+    mvc.perform(MockMvcRequestBuilders.get("/tilesBatch/test").param("tiles", "5/1"))
+        .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    mvc.perform(MockMvcRequestBuilders.get("/tilesBatch/test"))
+        .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    mvc.perform(
+            MockMvcRequestBuilders.get("/tilesBatch/test")
+                .param("bbox", "-180,-85,180,85")
+                .param("z", "10"))
+        .andExpect(MockMvcResultMatchers.status().isBadRequest());
+  }
 }
@@ -0,0 +1,202 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.LayerRuntimeState;
+import org.lockard.xyztilecache.model.LocalLayer;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.model.XyzLayer;
+import org.lockard.xyztilecache.store.LayerStore;
+
+class DiskCacheEvictorTest {
+
+  @TempDir Path tempDir;
+
+  private XyzConfiguration configuration;
+  private LayerStore layerStore;
+  private AsyncLoadingCache<Tile, CachedTile> tileCache;
+  private SimpleMeterRegistry meterRegistry;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() throws Exception {
+    configuration = new XyzConfiguration();
+    configuration.setBaseTileDirectory(tempDir.toString());
+    configuration.installLayers(
+        List.of(
+            new XyzLayer(
+                "test",
+                "test",
+                "https://example.com/{z}/{x}/{y}.png",
+                null,
+                22,
+                0,
+                0,
+                List.of(),
+                List.of(),
+                Map.of(),
+                null),
+            new LocalLayer("local", "local", null, 22, 0, 0, List.of(), List.of())));
+    layerStore = new LayerStore(configuration, new ObjectMapper(), event -> {});
+    layerStore.init();
+    tileCache =
+        Caffeine.newBuilder()
+            .recordStats()
+            .buildAsync(
+                tile -> {
+                  throw new UnsupportedOperationException();
+                });
+    meterRegistry = new SimpleMeterRegistry();
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    layerStore.close();
+  }
+
+  @Test
+  void layerOverCap_evictsLeastRecentlyUsedUntilUnderLowWaterMark() throws Exception {
+    configuration.setMaxDiskBytesByLayer(Map.of("test", 15L));
+    Tile oldest = new Tile("test", 0, 0, 1);
+    Tile older = new Tile("test", 1, 0, 1);
+    Tile newest = new Tile("test", 0, 1, 1);
+    writeTile(oldest, 10, 1_000);
+    writeTile(older, 10, 2_000);
+    writeTile(newest, 10, 3_000);
+
+    evictor().evict();
+
+    assertThat(file(oldest)).doesNotExist();
+    assertThat(file(older)).doesNotExist();
+    assertThat(file(newest)).exists();
+    LayerRuntimeState state = layerStore.getRuntimeState("test");
+    assertThat(state.getCachedTiles()).isEqualTo(1);
+    assertThat(state.getCachedTilesSize()).isEqualTo(10);
+    assertThat(meterRegistry.get(DiskCacheEvictor.EVICTIONS).counter().count()).isEqualTo(2);
+  }
+
+  @Test
+  void recentAccess_outranksOlderWriteTime() throws Exception {
+    configuration.setMaxDiskBytes(15);
+    Tile requested = new Tile("test", 0, 0, 1);
+    Tile idle = new Tile("test", 1, 0, 1);
+    writeTile(requested, 10, 1_000);
+    writeTile(idle, 10, 2_000);
+    DiskCacheEvictor evictor = evictor();
+
+    evictor.recordAccess(requested);
+    evictor.evict();
+
+    assertThat(file(requested)).exists();
+    assertThat(file(idle)).doesNotExist();
+  }
+
+  @Test
+  void tileInMemory_isNotEvicted() throws Exception {
+    configuration.setMaxDiskBytes(5);
+    Tile hot = new Tile("test", 0, 0, 1);
+    writeTile(hot, 10, 1_000);
+    tileCache.put(hot, CompletableFuture.completedFuture(CachedTile.of(new byte[10], 0, 0)));
+
+    evictor().evict();
+
+    assertThat(file(hot)).exists();
+    // Scanning the disk is not a cache request.
+    assertThat(tileCache.synchronous().stats().requestCount()).isZero();
+  }
+
+  @Test
+  void localLayers_areNeverEvicted() throws Exception {
+    configuration.setMaxDiskBytes(1);
+    Tile tile = new Tile("local", 0, 0, 1);
+    writeTile(tile, 10, 1_000);
+
+    evictor().evict();
+
+    assertThat(file(tile)).exists();
+  }
+
+  @Test
+  void underCap_deletesNothing() throws Exception {
+    configuration.setMaxDiskBytes(100);
+    Tile tile = new Tile("test", 0, 0, 1);
+    writeTile(tile, 10, 1_000);
+
+    evictor().evict();
+
+    assertThat(file(tile)).exists();
+  }
+
+  @Test
+  void tilesOutsideTheFileLayout_areEvictedThroughTheStore() throws Exception {
+    configuration.setMaxDiskBytes(15);
+    InMemoryTileStore store = new InMemoryTileStore();
+    Tile first = new Tile("test", 0, 0, 1);
+    Tile second = new Tile("test", 1, 0, 1);
+    store.put(first, new byte[10]);
+    store.put(second, new byte[10]);
+    layerStore.getRuntimeState("test").addTileStats(10);
+    layerStore.getRuntimeState("test").addTileStats(10);
+
+    new DiskCacheEvictor(configuration, layerStore, tileCache, store, meterRegistry).evict();
+
+    assertThat(store.exists(first) && store.exists(second)).isFalse();
+    assertThat(layerStore.getRuntimeState("test").getCachedTilesSize()).isEqualTo(10);
+  }
+
+  @Test
+  void candidates_keepOnlyTheOldestTilesThatFreeEnough() {
+    DiskCacheEvictor.Candidates candidates = new DiskCacheEvictor.Candidates(25);
+    // Offered newest and oldest interleaved; ten bytes each.
+    for (int i = 0; i < 100; i++) {
+      long lastUsed = i % 2 == 0 ? 1_000 + i : 1_000 - i;
+      candidates.offer(new DiskCacheEvictor.Candidate(new Tile("test", i, 0, 8), 10, lastUsed));
+    }
+
+    assertThat(candidates.oldestFirst())
+        .extracting(DiskCacheEvictor.Candidate::lastUsed)
+        .containsExactly(901L, 903L, 905L);
+  }
+
+  private DiskCacheEvictor evictor() {
+    return new DiskCacheEvictor(
+        configuration,
+        layerStore,
+        tileCache,
+        new FileSystemTileStore(configuration, layerStore),
+        meterRegistry);
+  }
+
+  private void writeTile(Tile tile, int size, long mtime) throws Exception {
+    Path file = file(tile);
+    Files.createDirectories(file.getParent());
+    Files.write(file, new byte[size]);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(mtime));
+    layerStore.getRuntimeState(tile.layerId()).addTileStats(size);
+  }
+
+  private Path file(Tile tile) {
+    return tempDir.resolve(
+        Path.of(
+            tile.layerId(),
+            String.valueOf(tile.z()),
+            String.valueOf(tile.x()),
+            tile.y() + ".png"));
+  }
+}
@@ -0,0 +1,244 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.BoundingBox;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.LayerChangedEvent;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.model.XyzLayer;
+import org.lockard.xyztilecache.store.LayerStore;
+
+class FileSystemTileStoreTest {
+
+  @TempDir Path tempDir;
+
+  private XyzConfiguration configuration;
+  private LayerStore layerStore;
+  private FileSystemTileStore store;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    configuration = new XyzConfiguration();
+    configuration.setBaseTileDirectory(tempDir.toString());
+    configuration.installLayers(List.of(layer("https://example.com/{z}/{x}/{y}.png")));
+    layerStore = new LayerStore(configuration, new ObjectMapper(), event -> {});
+    layerStore.init();
+    store = new FileSystemTileStore(configuration, layerStore);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    layerStore.close();
+  }
+
+  private static XyzLayer layer(String urlTemplate) {
+    return new XyzLayer(
+        "test", "test", urlTemplate, null, 22, 0, 0, List.of(), List.of(), Map.of(), null);
+  }
+
+  @Test
+  void toPath_constructsLayerZXYPath() {
+    assertThat(store.toPath(new Tile("test", 1, 2, 3)))
+        .isEqualTo(tempDir.resolve(Path.of("test", "3", "1", "2.png")));
+  }
+
+  @Test
+  void toPath_fallsBackToPngFileWrittenBeforeExtensionChanged() throws Exception {
+    Tile tile = new Tile("test", 1, 2, 3);
+    store.put(tile, new byte[] {1});
+    layerStore.getLayers().put("test", layer("https://example.com/{z}/{x}/{y}.jpg"));
+
+    assertThat(store.toPath(tile)).hasFileName("2.png");
+    assertThat(store.get(tile).orElseThrow().data()).containsExactly(1);
+    assertThat(store.toPath(new Tile("test", 0, 0, 3))).hasFileName("0.jpg");
+  }
+
+  @Test
+  void put_returnsReplacedSize_andDeleteReturnsDeletedSize() throws Exception {
+    Tile tile = new Tile("test", 1, 2, 3);
+
+    assertThat(store.put(tile, new byte[] {1, 2, 3})).isEqualTo(-1);
+    assertThat(store.put(tile, new byte[] {4, 5})).isEqualTo(3);
+    assertThat(store.delete(tile)).isEqualTo(2);
+    assertThat(store.delete(tile)).isEqualTo(-1);
+    assertThat(store.get(tile)).isEmpty();
+  }
+
+  @Test
+  void put_keepsWrittenAt_soTheTileHasTheSameEtagInEveryTier() throws Exception {
+    Tile tile = new Tile("test", 1, 2, 3);
+    CachedTile fetched = CachedTile.of(new byte[] {1, 2, 3}, 1_700_000_000_123L, 0);
+
+    store.put(tile, fetched.data(), fetched.fetchedAt());
+
+    TileStore.StoredTile stored = store.get(tile).orElseThrow();
+    assertThat(stored.writtenAt()).isEqualTo(fetched.fetchedAt());
+    assertThat(CachedTile.etag(Files.size(store.toPath(tile)), stored.writtenAt()))
+        .isEqualTo(fetched.etag());
+  }
+
+  @Test
+  void put_renamesIntoPlace_leavingNoTempFileBehind() throws Exception {
+    Tile tile = new Tile("test", 1, 2, 3);
+
+    store.put(tile, new byte[] {1});
+    store.put(tile, new byte[] {2});
+
+    try (var siblings = Files.list(store.toPath(tile).getParent())) {
+      assertThat(siblings).containsExactly(store.toPath(tile));
+    }
+    assertThat(store.get(tile).orElseThrow().data()).containsExactly(2);
+  }
+
+  @Test
+  void forEach_visitsOnlyTilesInZoomAndBboxRange() throws Exception {
+    store.put(new Tile("test", 0, 0, 1), new byte[] {1});
+    store.put(new Tile("test", 1, 1, 1), new byte[] {2});
+    store.put(new Tile("test", 0, 0, 2), new byte[] {3});
+    Files.write(tempDir.resolve(Path.of("test", "1", "0", ".tombstone")), new byte[] {9});
+    // The north-west quadrant only.
+    BoundingBox bbox = new BoundingBox();
+    bbox.setNorth(80);
+    bbox.setSouth(1);
+    bbox.setWest(-179);
+    bbox.setEast(-1);
+
+    List<Tile> visited = new ArrayList<>();
+    store.forEach("test", 1, 1, bbox, entry -> visited.add(entry.tile()));
+
+    assertThat(visited).containsExactly(new Tile("test", 0, 0, 1));
+  }
+
+  @Test
+  void forEach_entryReadsPartOfTheFile_cutShortAtItsEnd() throws Exception {
+    store.put(new Tile("test", 0, 0, 1), new byte[] {1, 2, 3, 4, 5});
+
+    List<byte[]> parts = new ArrayList<>();
+    store.forEach(
+        "test",
+        entry -> {
+          parts.add(entry.read(0, 2));
+          parts.add(entry.read(3, 32));
+          parts.add(entry.read(5, 32));
+        });
+
+    assertThat(parts).containsExactly(new byte[] {1, 2}, new byte[] {4, 5}, new byte[0]);
+  }
+
+  @Test
+  void deleteLayer_removesLayerDirectory() throws Exception {
+    store.put(new Tile("test", 1, 2, 3), new byte[] {1});
+
+    store.deleteLayer("test");
+
+    assertThat(tempDir.resolve("test")).doesNotExist();
+  }
+
+  @Test
+  void presenceIndex_answersMissesFromMemory_onceTheLayerIsLoaded() throws Exception {
+    Tile onDisk = new Tile("test", 1, 2, 3);
+    Tile copiedIn = new Tile("test", 1, 4, 3);
+    store.put(onDisk, new byte[] {1});
+    configuration.setPresenceIndex(true);
+    FileSystemTileStore indexed = new FileSystemTileStore(configuration, layerStore);
+
+    // Not loaded yet: everything goes to the disk.
+    Files.write(store.toPath(copiedIn), new byte[] {2});
+    assertThat(indexed.exists(copiedIn)).isTrue();
+
+    indexed.loadPresence("test");
+    Files.delete(store.toPath(copiedIn));
+    Files.write(tempDir.resolve(Path.of("test", "3", "1", "3.png")), new byte[] {3});
+
+    assertThat(indexed.exists(onDisk)).isTrue();
+    // Written behind the store's back after loading: not seen, which is why it is opt-in.
+    assertThat(indexed.exists(new Tile("test", 1, 3, 3))).isFalse();
+    Tile written = new Tile("test", 5, 5, 3);
+    assertThat(indexed.put(written, new byte[] {4})).isEqualTo(-1);
+    assertThat(indexed.get(written)).isPresent();
+    assertThat(indexed.delete(onDisk)).isEqualTo(1);
+    assertThat(indexed.get(onDisk)).isEmpty();
+    assertThat(indexed.file(onDisk)).isEmpty();
+  }
+
+  @Test
+  void presenceIndex_isSavedAtShutdown_andLoadedOnceAtStartup() throws Exception {
+    configuration.setPresenceIndex(true);
+    FileSystemTileStore indexed = new FileSystemTileStore(configuration, layerStore);
+    indexed.loadPresence("test");
+    Tile tile = new Tile("test", 1, 2, 3);
+    indexed.put(tile, new byte[] {1});
+
+    indexed.savePresence();
+    Path saved = tempDir.resolve(Path.of("test", FileSystemTileStore.PRESENCE_FILE));
+    assertThat(saved).exists();
+
+    FileSystemTileStore restarted = new FileSystemTileStore(configuration, layerStore);
+    restarted.loadPresence("test");
+    assertThat(saved).doesNotExist();
+    assertThat(restarted.exists(tile)).isTrue();
+    assertThat(restarted.exists(new Tile("test", 2, 2, 3))).isFalse();
+  }
+
+  @Test
+  void presenceIndex_deletedLayerIsKnownEmpty() throws Exception {
+    configuration.setPresenceIndex(true);
+    FileSystemTileStore indexed = new FileSystemTileStore(configuration, layerStore);
+    Tile tile = new Tile("test", 1, 2, 3);
+    indexed.put(tile, new byte[] {1});
+
+    indexed.deleteLayer("test");
+    assertThat(indexed.exists(tile)).isFalse();
+
+    indexed.put(tile, new byte[] {2});
+    assertThat(indexed.get(tile).orElseThrow().data()).containsExactly(2);
+    assertThat(indexed.exists(new Tile("test", 1, 3, 3))).isFalse();
+  }
+
+  @Test
+  void presenceIndex_layerAddedAgainWithTilesOnDisk_isNotReportedEmpty() throws Exception {
+    configuration.setPresenceIndex(true);
+    FileSystemTileStore indexed = new FileSystemTileStore(configuration, layerStore);
+    Tile tile = new Tile("test", 1, 2, 3);
+    indexed.put(tile, new byte[] {1});
+    indexed.onLayerChanged(new LayerChangedEvent("test", LayerChangedEvent.Kind.REMOVED));
+    indexed.deleteLayer("test");
+
+    // Tiled again outside the store (gdal2tiles, an import), then the layer is added back.
+    Files.createDirectories(indexed.toPath(tile).getParent());
+    Files.write(indexed.toPath(tile), new byte[] {2});
+    indexed.onLayerChanged(new LayerChangedEvent("test", LayerChangedEvent.Kind.ADDED));
+
+    // Whether or not the walk has finished yet.
+    assertThat(indexed.exists(tile)).isTrue();
+    indexed.loadPresence("test");
+    assertThat(indexed.get(tile).orElseThrow().data()).containsExactly(2);
+    assertThat(indexed.exists(new Tile("test", 1, 3, 3))).isFalse();
+  }
+
+  @Test
+  void toTile_parsesOnlyTilePaths() {
+    Path layerDir = tempDir.resolve("test");
+
+    assertThat(FileSystemTileStore.toTile("test", layerDir, layerDir.resolve("3/1/2.png")))
+        .isEqualTo(new Tile("test", 1, 2, 3));
+    assertThat(FileSystemTileStore.toTile("test", layerDir, layerDir.resolve(".tombstones")))
+        .isNull();
+    assertThat(FileSystemTileStore.toTile("test", layerDir, layerDir.resolve("3/1/.x.png")))
+        .isNull();
+    assertThat(FileSystemTileStore.toTile("test", layerDir, layerDir.resolve("a/1/2.png")))
+        .isNull();
+  }
+}
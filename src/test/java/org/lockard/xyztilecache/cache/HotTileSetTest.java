@@ -0,0 +1,157 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.model.XyzLayer;
+import org.lockard.xyztilecache.store.LayerStore;
+import org.springframework.boot.actuate.health.Status;
+
+class HotTileSetTest {
+
+  @TempDir Path tempDir;
+
+  private XyzConfiguration configuration;
+  private LayerStore layerStore;
+  private TileStore tileStore;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    configuration = new XyzConfiguration();
+    configuration.setBaseTileDirectory(tempDir.toString());
+    configuration.setHotSetBytes(1024);
+    configuration.installLayers(
+        List.of(
+            new XyzLayer(
+                "test",
+                "test",
+                "https://example.com/{z}/{x}/{y}.png",
+                null,
+                22,
+                0,
+                0,
+                List.of(),
+                List.of(),
+                Map.of(),
+                null)));
+    layerStore = new LayerStore(configuration, new ObjectMapper(), event -> {});
+    layerStore.init();
+    tileStore = new FileSystemTileStore(configuration, layerStore);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    layerStore.close();
+  }
+
+  @Test
+  void snapshotFormat_roundTrips() throws Exception {
+    List<Tile> tiles =
+        List.of(new Tile("a", 1, 2, 3), new Tile("b", 4, 5, 6), new Tile("a", 7, 8, 9));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    HotTileSet.writeSnapshot(new DataOutputStream(bytes), tiles);
+
+    assertThat(
+            HotTileSet.readSnapshot(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))))
+        .containsExactlyElementsOf(tiles);
+  }
+
+  @Test
+  void snapshotThenRestore_warmsNewCacheFromDisk() throws Exception {
+    Tile hot = new Tile("test", 1, 2, 3);
+    writeTile(hot, new byte[] {1, 2, 3});
+    AsyncLoadingCache<Tile, CachedTile> before = newCache();
+    before.get(hot).join();
+    new HotTileSet(before, configuration, layerStore, tileStore).snapshot();
+    assertThat(tempDir.resolve(HotTileSet.SNAPSHOT_FILE)).exists();
+
+    AsyncLoadingCache<Tile, CachedTile> after = newCache();
+    HotTileSet restarted = new HotTileSet(after, configuration, layerStore, tileStore);
+    assertThat(restarted.health().getStatus()).isEqualTo(Status.OUT_OF_SERVICE);
+    restarted.restore();
+
+    assertThat(after.getIfPresent(hot)).isNotNull();
+    assertThat(after.getIfPresent(hot).join().data()).containsExactly(1, 2, 3);
+    assertThat(restarted.health().getStatus()).isEqualTo(Status.UP);
+  }
+
+  @Test
+  void restore_skipsTilesNoLongerOnDiskAndStopsAtBudget() throws Exception {
+    configuration.setHotSetBytes(4);
+    Tile first = new Tile("test", 0, 0, 1);
+    Tile gone = new Tile("test", 1, 0, 1);
+    Tile second = new Tile("test", 0, 1, 1);
+    Tile third = new Tile("test", 1, 1, 1);
+    writeTile(first, new byte[] {1, 2, 3});
+    writeTile(second, new byte[] {4, 5});
+    writeTile(third, new byte[] {6});
+    try (var out = new DataOutputStream(Files.newOutputStream(snapshotFile()))) {
+      HotTileSet.writeSnapshot(out, List.of(first, gone, second, third));
+    }
+    AsyncLoadingCache<Tile, CachedTile> cache = newCache();
+
+    new HotTileSet(cache, configuration, layerStore, tileStore).restore();
+
+    assertThat(cache.synchronous().stats().requestCount()).isZero();
+    assertThat(cache.getIfPresent(first)).isNotNull();
+    assertThat(cache.getIfPresent(gone)).isNull();
+    assertThat(cache.getIfPresent(second)).isNotNull();
+    assertThat(cache.getIfPresent(third)).isNull();
+  }
+
+  @Test
+  void disabled_isReadyAndWritesNothing() {
+    configuration.setHotSetBytes(0);
+    HotTileSet hotTiles = new HotTileSet(newCache(), configuration, layerStore, tileStore);
+
+    hotTiles.snapshot();
+
+    assertThat(hotTiles.health().getStatus()).isEqualTo(Status.UP);
+    assertThat(snapshotFile()).doesNotExist();
+  }
+
+  private AsyncLoadingCache<Tile, CachedTile> newCache() {
+    OfflineCacheLoader disk = new OfflineCacheLoader(configuration, layerStore);
+    return Caffeine.newBuilder()
+        .maximumWeight(1 << 20)
+        .recordStats()
+        .<Tile, CachedTile>weigher((k, v) -> v.data().length)
+        .executor(Runnable::run)
+        .buildAsync((tile, executor) -> CompletableFuture.completedFuture(disk.load(tile)));
+  }
+
+  private void writeTile(Tile tile, byte[] data) throws Exception {
+    Path file =
+        tempDir.resolve(
+            Path.of(
+                tile.layerId(),
+                String.valueOf(tile.z()),
+                String.valueOf(tile.x()),
+                tile.y() + ".png"));
+    Files.createDirectories(file.getParent());
+    Files.write(file, data);
+  }
+
+  private Path snapshotFile() {
+    return tempDir.resolve(HotTileSet.SNAPSHOT_FILE);
+  }
+}
@@ -0,0 +1,182 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.LayerChangedEvent;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.model.XyzLayer;
+import org.lockard.xyztilecache.store.LayerStore;
+
+class NegativeTileCacheTest {
+
+  @TempDir Path tempDir;
+
+  private XyzConfiguration configuration;
+  private LayerStore layerStore;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    configuration = new XyzConfiguration();
+    configuration.setBaseTileDirectory(tempDir.toString());
+    configuration.installLayers(
+        List.of(
+            new XyzLayer(
+                "test",
+                "test",
+                "https://example.com/{z}/{x}/{y}.png",
+                null,
+                22,
+                0,
+                0,
+                List.of(),
+                List.of(),
+                Map.of(),
+                null)));
+    layerStore = new LayerStore(configuration, new ObjectMapper(), event -> {});
+    layerStore.init();
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    if (layerStore != null) {
+      layerStore.close();
+    }
+  }
+
+  @Test
+  void recordMissing_marksOnlyThatTile() {
+    NegativeTileCache cache = new NegativeTileCache(configuration, layerStore);
+    cache.recordMissing(new Tile("test", 1, 2, 3));
+
+    assertThat(cache.isKnownMissing(new Tile("test", 1, 2, 3))).isTrue();
+    assertThat(cache.isKnownMissing(new Tile("test", 2, 1, 3))).isFalse();
+    assertThat(cache.size("test")).isEqualTo(1);
+  }
+
+  @Test
+  void tombstones_surviveRestart() {
+    new NegativeTileCache(configuration, layerStore).recordMissing(new Tile("test", 1, 2, 3));
+    assertThat(tempDir.resolve(Path.of("test", NegativeTileCache.TOMBSTONE_FILE))).exists();
+
+    NegativeTileCache restarted = new NegativeTileCache(configuration, layerStore);
+    restarted.loadTombstones();
+
+    assertThat(restarted.isKnownMissing(new Tile("test", 1, 2, 3))).isTrue();
+  }
+
+  @Test
+  void expiredTombstones_areDroppedOnLoad() throws Exception {
+    Path file = tempDir.resolve(Path.of("test", NegativeTileCache.TOMBSTONE_FILE));
+    Files.createDirectories(file.getParent());
+    try (var out = new java.io.DataOutputStream(Files.newOutputStream(file))) {
+      out.writeLong(0L);
+      out.writeLong(System.currentTimeMillis() - 1);
+    }
+
+    NegativeTileCache cache = new NegativeTileCache(configuration, layerStore);
+    cache.loadTombstones();
+
+    assertThat(cache.isKnownMissing(new Tile("test", 0, 0, 0))).isFalse();
+    assertThat(Files.size(file)).isZero();
+  }
+
+  @Test
+  void recordMissing_keepsAtMostMaxTilesPerLayer() {
+    configuration.setNegativeCacheMaxTiles(100);
+    NegativeTileCache cache = new NegativeTileCache(configuration, layerStore);
+
+    for (int x = 0; x < 1000; x++) {
+      cache.recordMissing(new Tile("test", x, 0, 10));
+    }
+
+    assertThat(cache.size("test")).isBetween(1L, 100L);
+    assertThat(cache.isKnownMissing(new Tile("test", 999, 0, 10))).isTrue();
+  }
+
+  @Test
+  void tombstoneLog_isCompactedOnceMostOfItIsDead() throws Exception {
+    configuration.setNegativeCacheMaxTiles(100);
+    NegativeTileCache cache = new NegativeTileCache(configuration, layerStore);
+
+    for (int x = 0; x < 5000; x++) {
+      cache.recordMissing(new Tile("test", x, 0, 13));
+    }
+    cache.close();
+
+    Path file = tempDir.resolve(Path.of("test", NegativeTileCache.TOMBSTONE_FILE));
+    assertThat(Files.size(file)).isLessThan((100 + NegativeTileCache.COMPACT_MIN_RECORDS) * 16L);
+    NegativeTileCache restarted = new NegativeTileCache(configuration, layerStore);
+    restarted.loadTombstones();
+    assertThat(restarted.isKnownMissing(new Tile("test", 4999, 0, 13))).isTrue();
+    assertThat(restarted.size("test")).isEqualTo(cache.size("test"));
+  }
+
+  @Test
+  void isKnownMissing_seesEveryRecordedTile_whileTheTableGrows() throws Exception {
+    NegativeTileCache cache = new NegativeTileCache(configuration, layerStore);
+    AtomicInteger recorded = new AtomicInteger(-1);
+    AtomicInteger missed = new AtomicInteger();
+    Thread reader =
+        Thread.ofPlatform()
+            .start(
+                () -> {
+                  while (recorded.get() < 19_999) {
+                    int x = recorded.get();
+                    if (x >= 0 && !cache.isKnownMissing(new Tile("test", x, 0, 15))) {
+                      missed.incrementAndGet();
+                    }
+                  }
+                });
+
+    for (int x = 0; x < 20_000; x++) {
+      cache.recordMissing(new Tile("test", x, 0, 15));
+      recorded.set(x);
+    }
+    reader.join(10_000);
+
+    assertThat(missed).hasValue(0);
+    assertThat(cache.size("test")).isEqualTo(20_000);
+  }
+
+  @Test
+  void disabled_recordsNothing() {
+    configuration.setNegativeCacheMinutes(0);
+    NegativeTileCache cache = new NegativeTileCache(configuration, layerStore);
+    cache.recordMissing(new Tile("test", 1, 2, 3));
+
+    assertThat(cache.isKnownMissing(new Tile("test", 1, 2, 3))).isFalse();
+  }
+
+  @Test
+  void sourceChange_clearsLayer() {
+    NegativeTileCache cache = new NegativeTileCache(configuration, layerStore);
+    cache.recordMissing(new Tile("test", 1, 2, 3));
+
+    cache.onLayerChanged(new LayerChangedEvent("test", LayerChangedEvent.Kind.UPDATED_SOURCE));
+
+    assertThat(cache.isKnownMissing(new Tile("test", 1, 2, 3))).isFalse();
+    assertThat(tempDir.resolve(Path.of("test", NegativeTileCache.TOMBSTONE_FILE)))
+        .doesNotExist();
+  }
+
+  @Test
+  void aclChange_keepsEntries() {
+    NegativeTileCache cache = new NegativeTileCache(configuration, layerStore);
+    cache.recordMissing(new Tile("test", 1, 2, 3));
+
+    cache.onLayerChanged(new LayerChangedEvent("test", LayerChangedEvent.Kind.UPDATED_ACL));
+
+    assertThat(cache.isKnownMissing(new Tile("test", 1, 2, 3))).isTrue();
+  }
+}
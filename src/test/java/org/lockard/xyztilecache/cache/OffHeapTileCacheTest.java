@@ -0,0 +1,201 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.Tile;
+
+class OffHeapTileCacheTest {
+
+  private XyzConfiguration configuration;
+  private OffHeapTileCache cache;
+
+  @BeforeEach
+  void setUp() {
+    configuration = new XyzConfiguration();
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (cache != null) {
+      cache.close();
+    }
+  }
+
+  @Test
+  void putThenGet_returnsCopyOfBytes() {
+    cache = newCache(2);
+    byte[] data = {1, 2, 3};
+    cache.put(new Tile("test", 1, 2, 3), entry(data));
+    data[0] = 9;
+
+    assertThat(cache.get(new Tile("test", 1, 2, 3)).data()).containsExactly(1, 2, 3);
+    assertThat(cache.get(new Tile("test", 2, 1, 3))).isNull();
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.usedBytes()).isEqualTo(3);
+  }
+
+  @Test
+  void put_sameTileReplacesPreviousBytes() {
+    cache = newCache(2);
+    Tile tile = new Tile("test", 1, 2, 3);
+    cache.put(tile, entry(new byte[] {1}));
+    cache.put(tile, entry(new byte[2000]));
+
+    assertThat(cache.get(tile).data()).hasSize(2000);
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.usedBytes()).isEqualTo(2000);
+  }
+
+  @Test
+  void fullSizeClass_evictsUnreferencedTileFirst() {
+    cache = newCache(1);
+    int eightMiBClass = OffHeapTileCache.SLAB_BYTES / 2 - 1;
+    Tile a = new Tile("test", 0, 0, 1);
+    Tile b = new Tile("test", 1, 0, 1);
+    Tile c = new Tile("test", 0, 1, 1);
+    cache.put(a, entry(new byte[eightMiBClass]));
+    cache.put(b, entry(new byte[eightMiBClass]));
+    assertThat(cache.get(a)).isNotNull();
+
+    cache.put(c, entry(new byte[eightMiBClass]));
+
+    assertThat(cache.get(a)).isNotNull();
+    assertThat(cache.get(b)).isNull();
+    assertThat(cache.get(c)).isNotNull();
+  }
+
+  @Test
+  void sizeClassWithoutSlab_stealsOneFromAnotherClass() {
+    cache = newCache(1);
+    Tile small = new Tile("test", 0, 0, 1);
+    Tile large = new Tile("test", 1, 0, 1);
+    cache.put(small, entry(new byte[100]));
+
+    cache.put(large, entry(new byte[5 << 20]));
+
+    assertThat(cache.get(small)).isNull();
+    assertThat(cache.get(large).data()).hasSize(5 << 20);
+    assertThat(cache.usedBytes()).isEqualTo(5 << 20);
+  }
+
+  @Test
+  void newGeneration_missesOldEntries_whichAreEvictedFirst() {
+    cache = newCache(1);
+    Tile old = new Tile("test", 1, 2, 3);
+    Tile other = new Tile("other", 1, 2, 3);
+    cache.put(old, entry(new byte[5 << 20]));
+    cache.put(other, entry(new byte[5 << 20]));
+
+    assertThat(cache.get(old.withGeneration(1))).isNull();
+    assertThat(cache.get(other)).isNotNull();
+    // The 8 MiB class has two slots; the orphaned one goes, not the one still being read.
+    cache.put(old.withGeneration(1), entry(new byte[5 << 20]));
+
+    assertThat(cache.get(old)).isNull();
+    assertThat(cache.get(other)).isNotNull();
+    assertThat(cache.get(old.withGeneration(1))).isNotNull();
+  }
+
+  @Test
+  void tiered_servesSecondLoadFromOffHeap() throws Exception {
+    cache = newCache(1);
+    AtomicInteger loads = new AtomicInteger();
+    AsyncCacheLoader<Tile, CachedTile> loader =
+        (tile, executor) -> {
+          loads.incrementAndGet();
+          return CompletableFuture.completedFuture(entry(new byte[] {7}));
+        };
+    AsyncCacheLoader<Tile, CachedTile> tiered = cache.tiered(loader);
+    Tile tile = new Tile("test", 1, 2, 3);
+
+    assertThat(tiered.asyncLoad(tile, Runnable::run).join().data()).containsExactly(7);
+    assertThat(tiered.asyncLoad(tile, Runnable::run).join().data()).containsExactly(7);
+    assertThat(loads).hasValue(1);
+  }
+
+  @Test
+  void tiered_reloadBypassesOffHeapAndStoresRefreshedTile() throws Exception {
+    cache = newCache(1);
+    AsyncCacheLoader<Tile, CachedTile> loader =
+        new AsyncCacheLoader<>() {
+          @Override
+          public CompletableFuture<CachedTile> asyncLoad(Tile tile, Executor executor) {
+            return CompletableFuture.completedFuture(entry(new byte[] {1}));
+          }
+
+          @Override
+          public CompletableFuture<CachedTile> asyncReload(
+              Tile tile, CachedTile oldValue, Executor executor) {
+            return CompletableFuture.completedFuture(entry(new byte[] {2}));
+          }
+        };
+    AsyncCacheLoader<Tile, CachedTile> tiered = cache.tiered(loader);
+    Tile tile = new Tile("test", 1, 2, 3);
+    CachedTile first = tiered.asyncLoad(tile, Runnable::run).join();
+
+    assertThat(tiered.asyncReload(tile, first, Runnable::run).join().data()).containsExactly(2);
+    assertThat(cache.get(tile).data()).containsExactly(2);
+  }
+
+  @Test
+  void disabled_returnsLoaderUnchanged() {
+    cache = newCache(0);
+    AsyncCacheLoader<Tile, CachedTile> loader =
+        (tile, executor) -> CompletableFuture.completedFuture(entry(new byte[0]));
+
+    assertThat(cache.isEnabled()).isFalse();
+    assertThat(cache.tiered(loader)).isSameAs(loader);
+  }
+
+  @Test
+  void sizeClass_roundsUpToPowerOfTwoSlots() {
+    assertThat(OffHeapTileCache.sizeClass(0)).isZero();
+    assertThat(OffHeapTileCache.sizeClass(OffHeapTileCache.MIN_SLOT_BYTES)).isZero();
+    assertThat(OffHeapTileCache.sizeClass(OffHeapTileCache.MIN_SLOT_BYTES + 1)).isEqualTo(1);
+    assertThat(OffHeapTileCache.sizeClass(OffHeapTileCache.SLAB_BYTES)).isEqualTo(15);
+  }
+
+  @Test
+  void expiredEntry_isAMiss() {
+    cache = newCache(1);
+    Tile tile = new Tile("test", 1, 2, 3);
+    cache.put(tile, CachedTile.of(new byte[] {1}, System.currentTimeMillis() - 120_000L, 1));
+
+    assertThat(cache.get(tile)).isNull();
+  }
+
+  @Test
+  void hit_keepsEntryMetadata() {
+    cache = newCache(1);
+    Tile tile = new Tile("test", 1, 2, 3);
+    CachedTile stored =
+        CachedTile.of(new byte[] {(byte) 0xff, (byte) 0xd8, (byte) 0xff}, 1000, 0);
+    cache.put(tile, stored);
+
+    CachedTile hit = cache.get(tile);
+
+    assertThat(hit.contentType()).isEqualTo("image/jpeg");
+    assertThat(hit.etag()).isEqualTo(stored.etag());
+    assertThat(hit.fetchedAt()).isEqualTo(1000);
+    assertThat(hit.expiresAt()).isZero();
+  }
+
+  private OffHeapTileCache newCache(int slabs) {
+    configuration.setOffHeapCacheBytes((long) slabs * OffHeapTileCache.SLAB_BYTES);
+    return new OffHeapTileCache(configuration, new SimpleMeterRegistry());
+  }
+
+  private static CachedTile entry(byte[] data) {
+    return CachedTile.of(data, System.currentTimeMillis(), 0);
+  }
+}
@@ -53,37 +53,25 @@ class OfflineCacheLoaderTest {
     return new Tile("test", 1, 2, 3);
   }
 
-  @Test
-  void toFile_constructsCorrectPath() {
-    Tile tile = tile(0);
-    File file = loader.toFile(tile);
-    assertThat(file.getAbsolutePath())
-        .endsWith(
-            File.separator
-                + "test"
-                + File.separator
-                + "3"
-                + File.separator
-                + "1"
-                + File.separator
-                + "2.png");
+  private File toFile(Tile tile) {
+    return new FileSystemTileStore(configuration, layerStore).toPath(tile).toFile();
   }
 
   @Test
   void load_returnsBytesFromExistingFile() throws Exception {
     Tile tile = tile(0);
-    File file = loader.toFile(tile);
+    File file = toFile(tile);
     file.getParentFile().mkdirs();
     byte[] expected = {1, 2, 3};
     Files.write(file.toPath(), expected);
 
-    assertThat(loader.load(tile)).isEqualTo(expected);
+    assertThat(loader.load(tile).data()).isEqualTo(expected);
   }
 
   @Test
   void load_throwsWhenTileIsExpired() throws Exception {
     Tile tile = tile(1);
-    File file = loader.toFile(tile);
+    File file = toFile(tile);
     file.getParentFile().mkdirs();
     Files.write(file.toPath(), new byte[] {1});
     // Age the file to 2 minutes in the past
@@ -95,12 +83,28 @@ class OfflineCacheLoaderTest {
   @Test
   void load_doesNotExpireWhenWithinExpirationWindow() throws Exception {
     Tile tile = tile(60);
-    File file = loader.toFile(tile);
+    File file = toFile(tile);
     file.getParentFile().mkdirs();
     byte[] expected = {4, 5, 6};
     Files.write(file.toPath(), expected);
 
-    assertThat(loader.load(tile)).isEqualTo(expected);
+    assertThat(loader.load(tile).data()).isEqualTo(expected);
+  }
+
+  @Test
+  void load_stampsEntryWithFileMtimeAndExpiry() throws Exception {
+    Tile tile = tile(60);
+    File file = toFile(tile);
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), new byte[] {(byte) 0xff, (byte) 0xd8, (byte) 0xff});
+    long mtime = (System.currentTimeMillis() - 60_000L) / 1000 * 1000;
+    file.setLastModified(mtime);
+
+    var cached = loader.load(tile);
+
+    assertThat(cached.fetchedAt()).isEqualTo(mtime);
+    assertThat(cached.expiresAt()).isEqualTo(mtime + 60 * 60_000L);
+    assertThat(cached.contentType()).isEqualTo("image/jpeg");
   }
 
   @Test
@@ -112,12 +116,12 @@ class OfflineCacheLoaderTest {
   @Test
   void load_skipsExpirationCheckWhenExpirationIsZero() throws Exception {
     Tile tile = tile(0);
-    File file = loader.toFile(tile);
+    File file = toFile(tile);
     file.getParentFile().mkdirs();
     byte[] expected = {7, 8, 9};
     Files.write(file.toPath(), expected);
     file.setLastModified(0L);
 
-    assertThat(loader.load(tile)).isEqualTo(expected);
+    assertThat(loader.load(tile).data()).isEqualTo(expected);
   }
 }
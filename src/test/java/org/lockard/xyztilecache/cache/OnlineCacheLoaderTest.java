@@ -1,31 +1,55 @@
 package org.lockard.xyztilecache.cache;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.ok;
+import static com.github.tomakehurst.wiremock.client.WireMock.serverError;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
 import org.junit.jupiter.api.io.TempDir;
 import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.Layer;
 import org.lockard.xyztilecache.model.LocalLayer;
 import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.model.XyzLayer;
 import org.lockard.xyztilecache.store.LayerStore;
+import org.mockito.AdditionalMatchers;
 import org.mockito.Mockito;
 
 class OnlineCacheLoaderTest {
 
+  @RegisterExtension
+  static WireMockExtension wireMock =
+      WireMockExtension.newInstance().options(wireMockConfig().dynamicPort()).build();
+
   @TempDir File tempDir;
 
   private XyzConfiguration configuration;
   private LayerStore layerStore;
   private TileWriter tileWriter;
+  private NegativeTileCache negativeTiles;
+  private SimpleMeterRegistry meterRegistry;
   private OnlineCacheLoader loader;
 
   @BeforeEach
@@ -33,14 +57,22 @@ class OnlineCacheLoaderTest {
     configuration = new XyzConfiguration();
     configuration.setBaseTileDirectory(tempDir.getAbsolutePath());
     configuration.setTileTimeoutSeconds(1);
-    configuration.installLayers(List.of(localLayer()));
+    configuration.installLayers(List.of(localLayer(), expiringLayer(), mirroredLayer()));
 
     layerStore = new LayerStore(configuration, new ObjectMapper(), event -> {});
     layerStore.init();
 
     tileWriter = Mockito.mock(TileWriter.class);
+    negativeTiles = new NegativeTileCache(configuration, layerStore);
+    meterRegistry = new SimpleMeterRegistry();
     loader =
-        new OnlineCacheLoader(configuration, tileWriter, layerStore, new SimpleMeterRegistry());
+        new OnlineCacheLoader(
+            configuration,
+            tileWriter,
+            layerStore,
+            meterRegistry,
+            negativeTiles,
+            new FileSystemTileStore(configuration, layerStore));
   }
 
   @AfterEach
@@ -54,6 +86,48 @@ class OnlineCacheLoaderTest {
     return new LocalLayer("local-layer", "local-layer", null, 22, 0, 0, List.of(), List.of());
   }
 
+  private static XyzLayer expiringLayer() {
+    return new XyzLayer(
+        "exp",
+        "exp",
+        wireMock.baseUrl() + "/{z}/{x}/{y}",
+        null,
+        22,
+        0,
+        1,
+        List.of(),
+        List.of(),
+        Map.of(),
+        null);
+  }
+
+  private static XyzLayer mirroredLayer() {
+    return new XyzLayer(
+        "mirrored",
+        "mirrored",
+        "http://{s:localhost,127.0.0.1}:" + wireMock.getPort() + "/{z}/{x}/{y}",
+        null,
+        22,
+        0,
+        0,
+        List.of(),
+        List.of(),
+        Map.of(),
+        null);
+  }
+
+  private Tile expiredTileOnDisk(int z) throws IOException {
+    Tile tile = new Tile("exp", 1, 2, z);
+    File file =
+        new File(
+            tempDir,
+            "exp" + File.separator + z + File.separator + "1" + File.separator + "2.png");
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), new byte[] {1});
+    file.setLastModified(System.currentTimeMillis() - 10 * 60_000L);
+    return tile;
+  }
+
   @Test
   void load_returnsBytesFromDiskForLocalLayer() throws Exception {
     Tile tile = new Tile("local-layer", 1, 2, 3);
@@ -64,16 +138,172 @@ class OnlineCacheLoaderTest {
     file.getParentFile().mkdirs();
     Files.write(file.toPath(), new byte[] {9, 9, 9});
 
-    assertThat(loader.load(tile)).isEqualTo(new byte[] {9, 9, 9});
+    assertThat(loader.asyncLoad(tile, Runnable::run).join().data())
+        .isEqualTo(new byte[] {9, 9, 9});
     Mockito.verifyNoInteractions(tileWriter);
   }
 
   @Test
   void load_throwsWithoutHttpFetchWhenLocalLayerMissesTile() {
     Tile tile = new Tile("local-layer", 1, 2, 99);
-    assertThatThrownBy(() -> loader.load(tile))
+    assertThatThrownBy(() -> loader.asyncLoad(tile, Runnable::run).join())
+        .isInstanceOf(CompletionException.class)
+        .cause()
         .isInstanceOf(IOException.class)
         .hasMessageContaining("LOCAL");
     Mockito.verifyNoInteractions(tileWriter);
   }
+
+  @Test
+  void load_recordsLocalLayerMissInNegativeCache() {
+    Tile tile = new Tile("local-layer", 1, 2, 98);
+    assertThatThrownBy(() -> loader.asyncLoad(tile, Runnable::run).join())
+        .isInstanceOf(CompletionException.class);
+    assertThat(negativeTiles.isKnownMissing(tile)).isTrue();
+  }
+
+  @Test
+  void load_expiredTileWaitsForRefreshByDefault() throws Exception {
+    Tile tile = expiredTileOnDisk(4);
+    wireMock.stubFor(get("/4/1/2").willReturn(ok().withBody(new byte[] {5, 5})));
+
+    assertThat(loader.asyncLoad(tile, Runnable::run).join().data()).containsExactly(5, 5);
+  }
+
+  @Test
+  void load_fetchedTileIsStampedInWholeSeconds_likeItsFileOnDisk() throws Exception {
+    Tile tile = expiredTileOnDisk(9);
+    wireMock.stubFor(get("/9/1/2").willReturn(ok().withBody(new byte[] {5, 5})));
+
+    CachedTile fetched = loader.asyncLoad(tile, Runnable::run).join();
+
+    assertThat(fetched.fetchedAt() % 1000).isZero();
+    Mockito.verify(tileWriter).storeTile(tile, fetched.data(), fetched.fetchedAt());
+  }
+
+  @Test
+  void load_staleWhileRevalidate_servesExpiredTileAndRefreshesOnce() throws Exception {
+    configuration.setStaleWhileRevalidate(true);
+    Tile tile = expiredTileOnDisk(5);
+    wireMock.stubFor(
+        get("/5/1/2").willReturn(ok().withBody(new byte[] {6, 6}).withFixedDelay(200)));
+
+    List<StaleTileException> stale = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      assertThatThrownBy(() -> loader.asyncLoad(tile, Runnable::run).join())
+          .cause()
+          .isInstanceOfSatisfying(
+              StaleTileException.class,
+              e -> {
+                assertThat(e.staleTile().data()).containsExactly(1);
+                stale.add(e);
+              });
+    }
+
+    // Only the load that started the refresh hands it out, with the fresh tile.
+    assertThat(stale.get(0).refresh().get(5, TimeUnit.SECONDS).data()).containsExactly(6, 6);
+    assertThat(stale.get(1).refresh()).isNull();
+    assertThat(stale.get(2).refresh()).isNull();
+    Mockito.verify(tileWriter, Mockito.timeout(5_000))
+        .storeTile(
+            Mockito.eq(tile),
+            AdditionalMatchers.aryEq(new byte[] {6, 6}),
+            Mockito.eq(stale.get(0).refresh().join().fetchedAt()));
+    wireMock.verify(1, getRequestedFor(urlPathEqualTo("/5/1/2")));
+  }
+
+  @Test
+  void reload_fetchesExpiringTileFromUpstream() {
+    Tile tile = new Tile("exp", 1, 2, 6);
+    wireMock.stubFor(get("/6/1/2").willReturn(ok().withBody(new byte[] {8})));
+    CachedTile old = CachedTile.of(new byte[] {1}, CachedTile.fetchTime(), 1);
+
+    CachedTile reloaded = loader.asyncReload(tile, old, Runnable::run).join();
+
+    assertThat(reloaded.data()).containsExactly(8);
+    assertThat(reloaded.expiresAt()).isGreaterThanOrEqualTo(old.expiresAt());
+  }
+
+  @Test
+  void reload_keepsOldValueWhenUpstreamFailsOrTileNeverExpires() {
+    Tile tile = new Tile("exp", 1, 2, 7);
+    wireMock.stubFor(get("/7/1/2").willReturn(serverError()));
+    CachedTile expiring = CachedTile.of(new byte[] {1}, System.currentTimeMillis(), 1);
+    CachedTile permanent = CachedTile.of(new byte[] {2}, System.currentTimeMillis(), 0);
+
+    assertThat(loader.asyncReload(tile, expiring, Runnable::run).join()).isSameAs(expiring);
+    assertThat(loader.asyncReload(tile, permanent, Runnable::run).join()).isSameAs(permanent);
+    wireMock.verify(1, getRequestedFor(urlPathEqualTo("/7/1/2")));
+  }
+
+  @Test
+  void load_fullBulkheadFailsFastWithoutTrippingBreaker() {
+    configuration.setUpstreamMaxConcurrentPerHost(1);
+    configuration.setUpstreamMaxQueuedPerHost(0);
+    wireMock.stubFor(get("/8/1/2").willReturn(ok().withBody(new byte[] {1}).withFixedDelay(300)));
+    wireMock.stubFor(get("/8/1/3").willReturn(ok().withBody(new byte[] {2})));
+
+    var slow = loader.asyncLoad(new Tile("exp", 1, 2, 8), Runnable::run);
+    assertThatThrownBy(() -> loader.asyncLoad(new Tile("exp", 1, 3, 8), Runnable::run).join())
+        .cause()
+        .isInstanceOf(UpstreamBulkheadFullException.class);
+
+    assertThat(slow.join().data()).containsExactly(1);
+    assertThat(layerStore.getRuntimeState("exp").requestStrategy())
+        .isEqualTo(Layer.RequestStrategy.PROCEED);
+  }
+
+  @Test
+  void load_slowPrimaryIsHedgedAndFasterResponseWins() {
+    configuration.setHedgeDelayMillis(100);
+    configuration.setHedgeMaxPercent(100);
+    wireMock.stubFor(
+        get("/9/1/2")
+            .inScenario("hedge")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willReturn(ok().withBody(new byte[] {1}).withFixedDelay(800))
+            .willSetStateTo("hedged"));
+    wireMock.stubFor(
+        get("/9/1/2")
+            .inScenario("hedge")
+            .whenScenarioStateIs("hedged")
+            .willReturn(ok().withBody(new byte[] {2})));
+
+    assertThat(loader.asyncLoad(new Tile("exp", 1, 2, 9), Runnable::run).join().data())
+        .containsExactly(2);
+    assertThat(
+            meterRegistry
+                .counter(OnlineCacheLoader.HEDGES, "layer", "exp", "outcome", "won")
+                .count())
+        .isEqualTo(1);
+  }
+
+  @Test
+  void load_failingMirrorFailsOverToTheNextOne() {
+    wireMock.stubFor(
+        get("/10/1/2").withHeader("Host", containing("localhost")).willReturn(serverError()));
+    wireMock.stubFor(
+        get("/10/1/2")
+            .withHeader("Host", containing("127.0.0.1"))
+            .willReturn(ok().withBody(new byte[] {3})));
+
+    for (int i = 0; i < 5; i++) {
+      assertThat(loader.asyncLoad(new Tile("mirrored", 1, 2, 10), Runnable::run).join().data())
+          .containsExactly(3);
+    }
+    assertThat(layerStore.getRuntimeState("mirrored").requestStrategy())
+        .isEqualTo(Layer.RequestStrategy.PROCEED);
+  }
+
+  @Test
+  void hasIdleCapacity_isFalseOnceEveryMirrorIsBackingOff() {
+    wireMock.stubFor(get("/11/1/2").willReturn(serverError()));
+    Tile tile = new Tile("mirrored", 1, 2, 11);
+    assertThat(loader.hasIdleCapacity(tile)).isTrue();
+
+    assertThatThrownBy(() -> loader.asyncLoad(tile, Runnable::run).join());
+
+    assertThat(loader.hasIdleCapacity(tile)).isFalse();
+    assertThat(loader.hasIdleCapacity(new Tile("exp", 1, 2, 11))).isTrue();
+  }
 }
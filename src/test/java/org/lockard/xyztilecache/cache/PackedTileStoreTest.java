@@ -0,0 +1,268 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.model.XyzLayer;
+import org.lockard.xyztilecache.store.LayerStore;
+
+class PackedTileStoreTest {
+
+  @TempDir Path tempDir;
+
+  private XyzConfiguration configuration;
+  private LayerStore layerStore;
+  private PackedTileStore store;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    configuration = new XyzConfiguration();
+    configuration.setBaseTileDirectory(tempDir.toString());
+    configuration.setPackedStorageLayers(List.of("test"));
+    configuration.installLayers(
+        List.of(
+            new XyzLayer(
+                "test",
+                "test",
+                "https://example.com/{z}/{x}/{y}.png",
+                null,
+                22,
+                0,
+                0,
+                List.of(),
+                List.of(),
+                Map.of(),
+                null)));
+    layerStore = new LayerStore(configuration, new ObjectMapper(), event -> {});
+    layerStore.init();
+    store = new PackedTileStore(configuration);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    store.close();
+    layerStore.close();
+  }
+
+  @Test
+  void put_thenGet_returnsLatestVersion() throws Exception {
+    Tile tile = new Tile("test", 1, 2, 3);
+
+    assertThat(store.put(tile, new byte[] {1, 2, 3})).isEqualTo(-1);
+    assertThat(store.put(tile, new byte[] {4, 5})).isEqualTo(3);
+
+    assertThat(store.get(tile).orElseThrow().data()).containsExactly(4, 5);
+    assertThat(store.get(new Tile("test", 2, 2, 3))).isEmpty();
+    assertThat(sizes(store)).containsExactly(2L);
+  }
+
+  @Test
+  void delete_removesTile() throws Exception {
+    Tile tile = new Tile("test", 1, 2, 3);
+    store.put(tile, new byte[] {1, 2, 3});
+
+    assertThat(store.delete(tile)).isEqualTo(3);
+    assertThat(store.exists(tile)).isFalse();
+    assertThat(store.delete(tile)).isEqualTo(-1);
+  }
+
+  @Test
+  void reopen_afterCleanShutdown_usesCheckpoint() throws Exception {
+    Tile tile = new Tile("test", 1, 2, 3);
+    store.put(tile, new byte[] {1, 2, 3});
+    store.close();
+
+    assertThat(packDir().resolve(TilePack.INDEX_FILE)).exists();
+    assertThat(new PackedTileStore(configuration).get(tile)).isPresent();
+  }
+
+  @Test
+  void reopen_afterCrash_replaysRecordsPastCheckpointAndDropsTornTail() throws Exception {
+    Tile first = new Tile("test", 0, 0, 1);
+    Tile second = new Tile("test", 1, 0, 1);
+    Tile torn = new Tile("test", 0, 1, 1);
+    store.put(first, new byte[] {1});
+    store.maintain(); // checkpoint covering only the first tile
+    store.put(second, new byte[] {2, 2});
+    store.put(torn, new byte[] {3, 3, 3, 3});
+    Path pack = packDir().resolve(TilePack.PACK_FILE);
+    long size = Files.size(pack);
+    // Simulate a crash: nothing closed, and the last record only half written.
+    try (FileChannel channel = FileChannel.open(pack, StandardOpenOption.WRITE)) {
+      channel.truncate(size - 2);
+    }
+
+    PackedTileStore recovered = new PackedTileStore(configuration);
+
+    assertThat(recovered.get(first)).isPresent();
+    assertThat(recovered.get(second).orElseThrow().data()).containsExactly(2, 2);
+    assertThat(recovered.exists(torn)).isFalse();
+    assertThat(Files.size(pack)).isEqualTo(size - TilePack.RECORD_HEADER_BYTES - 4);
+    recovered.put(torn, new byte[] {4});
+    assertThat(recovered.get(torn)).isPresent();
+    recovered.close();
+  }
+
+  @Test
+  void maintain_compactsMostlyGarbagePack() throws Exception {
+    Tile tile = new Tile("test", 1, 2, 3);
+    Tile other = new Tile("test", 2, 2, 3);
+    for (int i = 0; i < 10; i++) {
+      store.put(tile, new byte[100]);
+    }
+    store.put(other, new byte[] {7});
+    Path pack = packDir().resolve(TilePack.PACK_FILE);
+    long before = Files.size(pack);
+
+    store.maintain();
+
+    assertThat(Files.size(pack))
+        .isEqualTo(TilePack.FILE_HEADER_BYTES + 2L * TilePack.RECORD_HEADER_BYTES + 101)
+        .isLessThan(before);
+    assertThat(store.get(tile).orElseThrow().data()).hasSize(100);
+    assertThat(store.get(other).orElseThrow().data()).containsExactly(7);
+    store.close();
+    assertThat(sizes(new PackedTileStore(configuration))).containsExactlyInAnyOrder(100L, 1L);
+  }
+
+  @Test
+  void tileWriter_andOfflineLoader_usePackForPackedLayers() throws Exception {
+    FileSystemTileStore files = new FileSystemTileStore(configuration, layerStore);
+    RoutingTileStore tiles = new RoutingTileStore(configuration, files, store);
+    TileWriter writer = new TileWriter(configuration, layerStore, tiles);
+    OfflineCacheLoader loader = new OfflineCacheLoader(configuration, layerStore, tiles);
+    Tile tile = new Tile("test", 1, 2, 3);
+    Path legacy = files.toPath(tile);
+    Files.createDirectories(legacy.getParent());
+    Files.write(legacy, new byte[] {9, 9});
+    new TileInventory(configuration, layerStore, tiles).reconcile("test");
+
+    writer.storeTile(tile, new byte[] {1, 2, 3});
+    writer.close();
+
+    assertThat(legacy).doesNotExist();
+    CachedTile loaded = loader.load(tile);
+    assertThat(loaded.data()).containsExactly(1, 2, 3);
+    assertThat(loader.peek(tile)).isEmpty();
+    assertThat(layerStore.getRuntimeState("test").getCachedTiles()).isEqualTo(1);
+    assertThat(layerStore.getRuntimeState("test").getCachedTilesSize()).isEqualTo(3);
+  }
+
+  @Test
+  void deleteLayer_removesPackAndIndex() throws Exception {
+    store.put(new Tile("test", 1, 2, 3), new byte[] {1});
+    store.maintain();
+
+    store.deleteLayer("test");
+
+    assertThat(packDir().resolve(TilePack.PACK_FILE)).doesNotExist();
+    assertThat(packDir().resolve(TilePack.INDEX_FILE)).doesNotExist();
+  }
+
+  @Test
+  void readsAndDeletes_inLayerWithoutPack_createNothing() throws Exception {
+    Tile tile = new Tile("test", 1, 2, 3);
+
+    assertThat(store.get(tile)).isEmpty();
+    assertThat(store.exists(tile)).isFalse();
+    assertThat(store.delete(tile)).isEqualTo(-1);
+    assertThat(sizes(store)).isEmpty();
+
+    assertThat(packDir()).doesNotExist();
+  }
+
+  @Test
+  void closedPack_readsAsEmpty() throws Exception {
+    TilePack pack = TilePack.open(packDir());
+    pack.put(1, new byte[] {1}, 0);
+
+    pack.close();
+
+    assertThat(pack.get(1)).isEmpty();
+    assertThat(pack.entry(1)).isEmpty();
+    assertThat(pack.entries()).isEmpty();
+  }
+
+  @Test
+  void compact_keepsTilesWrittenWhileItCopies() throws Exception {
+    TilePack pack = TilePack.open(packDir());
+    int tiles = 200;
+    for (int i = 0; i < tiles; i++) {
+      pack.put(i, new byte[100], 0);
+    }
+    AtomicBoolean done = new AtomicBoolean();
+    Thread writer =
+        Thread.ofPlatform()
+            .start(
+                () -> {
+                  try {
+                    for (int round = 1; round <= 50; round++) {
+                      for (int i = 0; i < tiles; i++) {
+                        if (i % 7 == round % 7) {
+                          pack.delete(i);
+                        } else {
+                          pack.put(i, new byte[] {(byte) round}, round);
+                        }
+                      }
+                    }
+                  } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                  } finally {
+                    done.set(true);
+                  }
+                });
+    while (!done.get()) {
+      pack.compact();
+    }
+    writer.join();
+    pack.compact();
+
+    Map<Long, TilePack.Entry> expected = pack.entries();
+    assertThat(expected).hasSize(tiles - (tiles + 6) / 7);
+    for (long id : expected.keySet()) {
+      assertThat(pack.get(id).orElseThrow().data()).containsExactly(50);
+    }
+    pack.close();
+    TilePack reopened = TilePack.open(packDir());
+    assertThat(reopened.entries()).isEqualTo(expected);
+    reopened.close();
+  }
+
+  @Test
+  void forEach_visitsTilesInZoomRange() throws Exception {
+    store.put(new Tile("test", 1, 2, 3), new byte[] {1});
+    store.put(new Tile("test", 0, 0, 0), new byte[] {2});
+
+    List<Tile> visited = new ArrayList<>();
+    store.forEach("test", 1, 22, null, entry -> visited.add(entry.tile()));
+
+    assertThat(visited).containsExactly(new Tile("test", 1, 2, 3));
+  }
+
+  private static List<Long> sizes(PackedTileStore packed) throws Exception {
+    List<Long> sizes = new ArrayList<>();
+    packed.forEach("test", entry -> sizes.add(entry.size()));
+    return sizes;
+  }
+
+  private Path packDir() {
+    return tempDir.resolve("test");
+  }
+}
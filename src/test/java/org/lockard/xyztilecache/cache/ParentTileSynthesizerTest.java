@@ -0,0 +1,219 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.LocalLayer;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.store.LayerStore;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.ObjectProvider;
+
+class ParentTileSynthesizerTest {
+
+  @TempDir Path tempDir;
+
+  private XyzConfiguration configuration;
+  private LayerStore layerStore;
+  private TileWriter tileWriter;
+  private final AsyncLoadingCache<Tile, CachedTile> tileCache =
+      Caffeine.newBuilder()
+          .recordStats()
+          .buildAsync(
+              (tile, executor) -> CompletableFuture.failedFuture(new IllegalStateException()));
+  private final AtomicInteger loads = new AtomicInteger();
+  private final AsyncCacheLoader<Tile, CachedTile> fallback =
+      (tile, executor) -> {
+        loads.incrementAndGet();
+        return CompletableFuture.failedFuture(new FileNotFoundException());
+      };
+
+  @BeforeEach
+  void setUp() throws Exception {
+    configuration = new XyzConfiguration();
+    configuration.setBaseTileDirectory(tempDir.toString());
+    configuration.installLayers(
+        List.of(
+            new LocalLayer("local", "local", null, 22, 0, 0, List.of(), List.of()),
+            new LocalLayer("plain", "plain", null, 22, 0, 0, List.of(), List.of())));
+    configuration.setUnderzoomSynthesisLayers(List.of("local"));
+    configuration.setUnderzoomSynthesisFromDisk(true);
+    layerStore = new LayerStore(configuration, new ObjectMapper(), event -> {});
+    layerStore.init();
+    tileWriter = Mockito.mock(TileWriter.class);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    layerStore.close();
+  }
+
+  @Test
+  void missingParent_isBuiltFromItsFourChildren() throws Exception {
+    writeChild("local", 4, 6, Color.RED);
+    writeChild("local", 5, 6, Color.GREEN);
+    writeChild("local", 4, 7, Color.BLUE);
+    writeChild("local", 5, 7, Color.WHITE);
+    Tile parent = new Tile("local", 2, 3, 3);
+
+    CachedTile tile =
+        synthesizer().synthesizing(fallback).asyncLoad(parent, Runnable::run).join();
+
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(tile.data()));
+    assertThat(image.getWidth()).isEqualTo(8);
+    assertThat(new Color(image.getRGB(1, 1))).isEqualTo(Color.RED);
+    assertThat(new Color(image.getRGB(6, 1))).isEqualTo(Color.GREEN);
+    assertThat(new Color(image.getRGB(1, 6))).isEqualTo(Color.BLUE);
+    assertThat(new Color(image.getRGB(6, 6))).isEqualTo(Color.WHITE);
+    assertThat(tile.contentType()).isEqualTo("image/png");
+    assertThat(loads).hasValue(0);
+    Mockito.verify(tileWriter).storeTile(parent, tile.data(), tile.fetchedAt());
+  }
+
+  @Test
+  void missingChild_fallsThroughToLoader() throws Exception {
+    writeChild("local", 4, 6, Color.RED);
+    writeChild("local", 5, 6, Color.GREEN);
+    writeChild("local", 4, 7, Color.BLUE);
+
+    var result =
+        synthesizer().synthesizing(fallback).asyncLoad(new Tile("local", 2, 3, 3), Runnable::run);
+
+    assertThat(result).isCompletedExceptionally();
+    assertThat(loads).hasValue(1);
+    Mockito.verifyNoInteractions(tileWriter);
+  }
+
+  @Test
+  void childrenInMemory_areUsedWithoutReadingDisk() throws Exception {
+    configuration.setUnderzoomSynthesisFromDisk(false);
+    cacheChild(4, 6, Color.RED);
+    cacheChild(5, 6, Color.GREEN);
+    cacheChild(4, 7, Color.BLUE);
+    cacheChild(5, 7, Color.WHITE);
+    TileStore tiles = Mockito.mock(TileStore.class);
+
+    CachedTile tile =
+        synthesizer(tiles)
+            .synthesizing(fallback)
+            .asyncLoad(new Tile("local", 2, 3, 3), Runnable::run)
+            .join();
+
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(tile.data()));
+    assertThat(new Color(image.getRGB(1, 1))).isEqualTo(Color.RED);
+    assertThat(new Color(image.getRGB(6, 6))).isEqualTo(Color.WHITE);
+    assertThat(loads).hasValue(0);
+    assertThat(tileCache.synchronous().stats().requestCount()).isZero();
+    Mockito.verify(tiles, Mockito.never()).get(Mockito.any());
+  }
+
+  @Test
+  void childrenOnlyOnDisk_areNotReadUnlessConfigured() throws Exception {
+    configuration.setUnderzoomSynthesisFromDisk(false);
+    writeChild("local", 4, 6, Color.RED);
+    writeChild("local", 5, 6, Color.GREEN);
+    writeChild("local", 4, 7, Color.BLUE);
+    cacheChild(5, 7, Color.WHITE);
+
+    var result =
+        synthesizer().synthesizing(fallback).asyncLoad(new Tile("local", 2, 3, 3), Runnable::run);
+
+    assertThat(result).isCompletedExceptionally();
+    assertThat(loads).hasValue(1);
+    Mockito.verifyNoInteractions(tileWriter);
+  }
+
+  @Test
+  void failedAttempt_isNotRetriedRightAway() throws Exception {
+    writeChild("local", 4, 6, Color.RED);
+    writeChild("local", 5, 6, Color.GREEN);
+    writeChild("local", 4, 7, Color.BLUE);
+    Tile parent = new Tile("local", 2, 3, 3);
+    var synthesizing = synthesizer().synthesizing(fallback);
+    assertThat(synthesizing.asyncLoad(parent, Runnable::run)).isCompletedExceptionally();
+
+    writeChild("local", 5, 7, Color.WHITE);
+    var result = synthesizing.asyncLoad(parent, Runnable::run);
+
+    assertThat(result).isCompletedExceptionally();
+    assertThat(loads).hasValue(2);
+    Mockito.verifyNoInteractions(tileWriter);
+  }
+
+  @Test
+  void layerNotListed_isNeverSynthesized() throws Exception {
+    writeChild("plain", 0, 0, Color.RED);
+    writeChild("plain", 1, 0, Color.RED);
+    writeChild("plain", 0, 1, Color.RED);
+    writeChild("plain", 1, 1, Color.RED);
+
+    var result =
+        synthesizer().synthesizing(fallback).asyncLoad(new Tile("plain", 0, 0, 0), Runnable::run);
+
+    assertThat(result).isCompletedExceptionally();
+    assertThat(loads).hasValue(1);
+  }
+
+  @Test
+  void noListedLayers_returnsLoaderUnchanged() {
+    configuration.setUnderzoomSynthesisLayers(List.of());
+
+    assertThat(synthesizer().synthesizing(fallback)).isSameAs(fallback);
+  }
+
+  private ParentTileSynthesizer synthesizer() {
+    return synthesizer(new FileSystemTileStore(configuration, layerStore));
+  }
+
+  @SuppressWarnings("unchecked")
+  private ParentTileSynthesizer synthesizer(TileStore tiles) {
+    ObjectProvider<AsyncLoadingCache<Tile, CachedTile>> provider =
+        Mockito.mock(ObjectProvider.class);
+    Mockito.when(provider.getIfAvailable()).thenReturn(tileCache);
+    return new ParentTileSynthesizer(configuration, layerStore, tileWriter, tiles, provider);
+  }
+
+  private void cacheChild(int x, int y, Color color) throws Exception {
+    tileCache.put(
+        new Tile("local", x, y, 4),
+        CompletableFuture.completedFuture(CachedTile.of(png(color), CachedTile.fetchTime(), 0)));
+  }
+
+  private void writeChild(String layer, int x, int y, Color color) throws Exception {
+    int z = layer.equals("local") ? 4 : 1;
+    Path file = tempDir.resolve(Path.of(layer, String.valueOf(z), String.valueOf(x), y + ".png"));
+    Files.createDirectories(file.getParent());
+    Files.write(file, png(color));
+  }
+
+  private static byte[] png(Color color) throws Exception {
+    BufferedImage image = new BufferedImage(8, 8, BufferedImage.TYPE_INT_ARGB);
+    var graphics = image.createGraphics();
+    graphics.setColor(color);
+    graphics.fillRect(0, 0, 8, 8);
+    graphics.dispose();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", out);
+    return out.toByteArray();
+  }
+}
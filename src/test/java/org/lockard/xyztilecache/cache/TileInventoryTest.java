@@ -0,0 +1,176 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.BoundingBox;
+import org.lockard.xyztilecache.model.LayerRuntimeState;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.model.XyzLayer;
+import org.lockard.xyztilecache.store.LayerStore;
+
+class TileInventoryTest {
+
+  @TempDir Path tempDir;
+
+  private XyzConfiguration configuration;
+  private LayerStore layerStore;
+  private FileSystemTileStore tiles;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    configuration = new XyzConfiguration();
+    configuration.setBaseTileDirectory(tempDir.toString());
+    configuration.installLayers(
+        List.of(
+            new XyzLayer(
+                "test",
+                "test",
+                "https://example.com/{z}/{x}/{y}.png",
+                null,
+                22,
+                0,
+                0,
+                List.of(),
+                List.of(),
+                Map.of(),
+                null)));
+    layerStore = newLayerStore();
+    tiles = new FileSystemTileStore(configuration, layerStore);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    layerStore.close();
+  }
+
+  @Test
+  void missingFile_marksLayersStale_andReconcileCountsTheTiles() throws Exception {
+    tiles.put(new Tile("test", 1, 2, 3), new byte[] {1, 2, 3, 4, 5});
+    TileInventory inventory = new TileInventory(configuration, layerStore, tiles);
+
+    inventory.restore();
+    assertThat(inventory.staleLayers()).containsExactly("test");
+    inventory.reconcile("test");
+
+    LayerRuntimeState state = layerStore.getRuntimeState("test");
+    assertThat(state.getCachedTiles()).isEqualTo(1);
+    assertThat(state.getCachedTilesSize()).isEqualTo(5);
+    assertThat(inventory.staleLayers()).isEmpty();
+  }
+
+  @Test
+  void reconcile_replacesStaleTotalsWithWhatIsStored() throws Exception {
+    tiles.put(new Tile("test", 1, 2, 3), new byte[] {1, 2, 3});
+    TileInventory inventory = new TileInventory(configuration, layerStore, tiles);
+    inventory.restore();
+    // As if loaded from an inventory file written before a crash.
+    LayerRuntimeState state = layerStore.getRuntimeState("test");
+    state.setCachedTiles(10);
+    state.setCachedTilesSize(100);
+
+    inventory.reconcile("test");
+
+    assertThat(state.getCachedTiles()).isEqualTo(1);
+    assertThat(state.getCachedTilesSize()).isEqualTo(3);
+  }
+
+  @Test
+  void reconcile_countsTilesChangedWhileItWalks_once() throws Exception {
+    Tile a = new Tile("test", 0, 0, 3);
+    Tile b = new Tile("test", 1, 0, 3);
+    Tile c = new Tile("test", 2, 0, 3);
+    Tile d = new Tile("test", 3, 0, 3);
+    LayerRuntimeState state = layerStore.getRuntimeState("test");
+    InMemoryTileStore store =
+        new InMemoryTileStore() {
+          @Override
+          public void forEach(
+              String layerId, int minZoom, int maxZoom, BoundingBox bbox, Visitor visitor)
+              throws IOException {
+            // Written before the walk gets to them, so it sees the new versions...
+            state.tileStored(b, put(b, new byte[7]), 7);
+            state.tileStored(d, put(d, new byte[4]), 4);
+            super.forEach(layerId, minZoom, maxZoom, bbox, visitor);
+            // ...and deleted after it counted it.
+            state.tileDeleted(c, delete(c));
+          }
+        };
+    store.put(a, new byte[3]);
+    store.put(b, new byte[5]);
+    store.put(c, new byte[2]);
+    TileInventory inventory = new TileInventory(configuration, layerStore, store);
+    inventory.restore();
+    // As if loaded from an inventory file written before a crash.
+    state.setCachedTiles(10);
+    state.setCachedTilesSize(100);
+
+    inventory.reconcile("test");
+
+    assertThat(state.getCachedTiles()).isEqualTo(3);
+    assertThat(state.getCachedTilesSize()).isEqualTo(3 + 7 + 4);
+  }
+
+  @Test
+  void cleanShutdown_restoresTotalsWithoutWalking() throws Exception {
+    layerStore.getRuntimeState("test").addTileStats(42);
+    TileInventory inventory = new TileInventory(configuration, layerStore, tiles);
+    inventory.snapshotOnShutdown();
+    layerStore.close();
+    layerStore = newLayerStore();
+
+    TileInventory restarted = new TileInventory(configuration, layerStore, tiles);
+    restarted.restore();
+
+    LayerRuntimeState state = layerStore.getRuntimeState("test");
+    assertThat(state.getCachedTiles()).isEqualTo(1);
+    assertThat(state.getCachedTilesSize()).isEqualTo(42);
+    assertThat(restarted.staleLayers()).isEmpty();
+    assertThat(restarted.isCleanStart()).isTrue();
+    assertThat(restarted.isUncleanRestart()).isFalse();
+  }
+
+  @Test
+  void crashAfterRestore_restoresTotalsButWalksAgain() throws Exception {
+    layerStore.getRuntimeState("test").addTileStats(42);
+    new TileInventory(configuration, layerStore, tiles).snapshotOnShutdown();
+    new TileInventory(configuration, layerStore, tiles).restore(); // then no clean shutdown
+    layerStore.close();
+    layerStore = newLayerStore();
+
+    TileInventory restarted = new TileInventory(configuration, layerStore, tiles);
+    restarted.restore();
+
+    assertThat(layerStore.getRuntimeState("test").getCachedTilesSize()).isEqualTo(42);
+    assertThat(restarted.staleLayers()).containsExactly("test");
+    assertThat(restarted.isCleanStart()).isFalse();
+    assertThat(restarted.isUncleanRestart()).isTrue();
+  }
+
+  @Test
+  void corruptFile_isTreatedAsMissing() throws Exception {
+    Files.write(tempDir.resolve(TileInventory.INVENTORY_FILE), new byte[] {1, 2, 3});
+    TileInventory inventory = new TileInventory(configuration, layerStore, tiles);
+
+    inventory.restore();
+
+    assertThat(inventory.staleLayers()).containsExactly("test");
+    assertThat(inventory.isUncleanRestart()).isFalse();
+  }
+
+  private LayerStore newLayerStore() throws Exception {
+    LayerStore store = new LayerStore(configuration, new ObjectMapper(), event -> {});
+    store.init();
+    return store;
+  }
+}
@@ -0,0 +1,200 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
+import org.lockard.xyztilecache.model.Layer;
+import org.lockard.xyztilecache.model.LayerRuntimeState;
+import org.lockard.xyztilecache.model.LocalLayer;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.model.XyzLayer;
+import org.lockard.xyztilecache.store.LayerStore;
+import org.springframework.beans.factory.ObjectProvider;
+
+class TilePrefetcherTest {
+
+  private static final Layer LAYER =
+      new XyzLayer(
+          "test",
+          "test",
+          "https://example.com/{z}/{x}/{y}.png",
+          null,
+          10,
+          0,
+          0,
+          List.of(),
+          List.of(),
+          Map.of(),
+          null);
+
+  private XyzConfiguration configuration;
+  private AsyncLoadingCache<Tile, CachedTile> tileCache;
+  private OnlineCacheLoader onlineLoader;
+  private LayerRuntimeState runtimeState;
+
+  @BeforeEach
+  void setUp() {
+    configuration = new XyzConfiguration();
+    configuration.setPrefetchMaxPerLayer(16);
+    tileCache =
+        Caffeine.newBuilder()
+            .recordStats()
+            .buildAsync(
+                tile -> {
+                  throw new UnsupportedOperationException();
+                });
+    onlineLoader = mock(OnlineCacheLoader.class);
+    when(onlineLoader.hasIdleCapacity(any())).thenReturn(true);
+    when(onlineLoader.asyncLoad(any(), any())).thenReturn(new CompletableFuture<>());
+    runtimeState = new LayerRuntimeState();
+  }
+
+  // ── predictions ───────────────────────────────────────────────────────────
+
+  @Test
+  void predict_panRight_returnsColumnAhead() {
+    assertThat(TilePrefetcher.predict(tile(5, 4, 4), tile(5, 5, 4), 10))
+        .containsExactly(tile(5, 6, 3), tile(5, 6, 4), tile(5, 6, 5));
+  }
+
+  @Test
+  void predict_diagonalPan_returnsRowAndColumnAheadOnce() {
+    assertThat(TilePrefetcher.predict(tile(5, 4, 4), tile(5, 5, 5), 10))
+        .containsExactlyInAnyOrder(
+            tile(5, 6, 4), tile(5, 6, 5), tile(5, 6, 6), tile(5, 4, 6), tile(5, 5, 6));
+  }
+
+  @Test
+  void predict_zoomIn_returnsChildren() {
+    assertThat(TilePrefetcher.predict(tile(4, 2, 2), tile(5, 4, 4), 10))
+        .containsExactly(tile(6, 8, 8), tile(6, 9, 8), tile(6, 8, 9), tile(6, 9, 9));
+    assertThat(TilePrefetcher.predict(null, tile(10, 4, 4), 10)).isEmpty();
+  }
+
+  @Test
+  void predict_jumpOrZoomOut_returnsNothing() {
+    assertThat(TilePrefetcher.predict(tile(5, 0, 0), tile(5, 9, 9), 10)).isEmpty();
+    assertThat(TilePrefetcher.predict(tile(6, 4, 4), tile(5, 2, 2), 10)).isEmpty();
+  }
+
+  @Test
+  void predict_dropsTilesOutsideTheWorld() {
+    assertThat(TilePrefetcher.predict(tile(1, 0, 0), tile(1, 1, 0), 10)).isEmpty();
+    assertThat(TilePrefetcher.predict(tile(1, 0, 1), tile(1, 0, 0), 10)).isEmpty();
+    assertThat(TilePrefetcher.predict(tile(2, 0, 0), tile(2, 1, 0), 10))
+        .containsExactly(tile(2, 2, 0), tile(2, 2, 1));
+  }
+
+  // ── prefetching ───────────────────────────────────────────────────────────
+
+  @Test
+  void tileServed_loadsPredictedTilesIntoTheCache_withoutCountingRequests() {
+    CachedTile fetched = CachedTile.of(new byte[] {1}, 0, 0);
+    when(onlineLoader.asyncLoad(eq(tile(6, 8, 8)), any()))
+        .thenReturn(CompletableFuture.completedFuture(fetched));
+
+    prefetcher().tileServed("client", LAYER, 5, 4, 4);
+
+    verify(onlineLoader).asyncLoad(eq(tile(6, 9, 9)), any());
+    assertThat(tileCache.asMap()).containsKeys(tile(6, 9, 9));
+    assertThat(tileCache.asMap().get(tile(6, 8, 8)).join()).isSameAs(fetched);
+    assertThat(tileCache.synchronous().stats().requestCount()).isZero();
+  }
+
+  @Test
+  void tileServed_failedPrefetch_leavesNothingInTheCache() {
+    when(onlineLoader.asyncLoad(eq(tile(6, 8, 8)), any()))
+        .thenReturn(CompletableFuture.failedFuture(new IOException("gone")));
+
+    prefetcher().tileServed("client", LAYER, 5, 4, 4);
+
+    assertThat(tileCache.asMap()).doesNotContainKey(tile(6, 8, 8));
+  }
+
+  @Test
+  void tileServed_skipsTilesAlreadyInMemory() {
+    CachedTile cached = CachedTile.of(new byte[] {1}, 0, 0);
+    tileCache.put(tile(6, 8, 8), CompletableFuture.completedFuture(cached));
+
+    prefetcher().tileServed("client", LAYER, 5, 4, 4);
+
+    verify(onlineLoader, never()).asyncLoad(eq(tile(6, 8, 8)), any());
+    verify(onlineLoader, times(3)).asyncLoad(any(), any());
+  }
+
+  @Test
+  void tileServed_stopsAtLayerBudget() {
+    configuration.setPrefetchMaxPerLayer(2);
+    TilePrefetcher prefetcher = prefetcher();
+    prefetcher.tileServed("client", LAYER, 5, 4, 4);
+
+    verify(onlineLoader, times(2)).asyncLoad(any(), any());
+  }
+
+  @Test
+  void tileServed_breakerNotClosed_prefetchesNothing() {
+    runtimeState.sourceFailed();
+    prefetcher().tileServed("client", LAYER, 5, 4, 4);
+
+    verify(onlineLoader, never()).asyncLoad(any(), any());
+  }
+
+  @Test
+  void tileServed_busyUpstream_prefetchesNothing() {
+    when(onlineLoader.hasIdleCapacity(any())).thenReturn(false);
+    prefetcher().tileServed("client", LAYER, 5, 4, 4);
+
+    verify(onlineLoader, never()).asyncLoad(any(), any());
+  }
+
+  @Test
+  void tileServed_localLayer_prefetchesNothing() {
+    Layer local = new LocalLayer("test", "test", null, 10, 0, 0, List.of(), List.of());
+    prefetcher().tileServed("client", local, 5, 4, 4);
+
+    verify(onlineLoader, never()).asyncLoad(any(), any());
+  }
+
+  @Test
+  void zeroBudget_isDisabled() {
+    configuration.setPrefetchMaxPerLayer(0);
+
+    assertThat(prefetcher().isEnabled()).isFalse();
+  }
+
+  @SuppressWarnings("unchecked")
+  private TilePrefetcher prefetcher() {
+    LayerStore layerStore = mock(LayerStore.class);
+    when(layerStore.getRuntimeState("test")).thenReturn(runtimeState);
+    ObjectProvider<OnlineCacheLoader> provider = mock(ObjectProvider.class);
+    when(provider.getIfAvailable()).thenReturn(onlineLoader);
+    return new TilePrefetcher(
+        tileCache,
+        layerStore,
+        mock(NegativeTileCache.class),
+        configuration,
+        provider,
+        new SimpleMeterRegistry());
+  }
+
+  private static Tile tile(int z, int x, int y) {
+    return new Tile("test", x, y, z);
+  }
+}
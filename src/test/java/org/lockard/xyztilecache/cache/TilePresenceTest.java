@@ -0,0 +1,96 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import org.junit.jupiter.api.Test;
+import org.lockard.xyztilecache.model.Tile;
+
+class TilePresenceTest {
+
+  private final TilePresence presence = new TilePresence();
+
+  @Test
+  void isAbsent_onlyOnceTheLayerIsComplete() {
+    Tile tile = new Tile("a", 3, 5, 4);
+    presence.add(new Tile("a", 3, 4, 4));
+
+    assertThat(presence.isAbsent(tile)).isFalse();
+    presence.markComplete("a");
+    assertThat(presence.isAbsent(tile)).isTrue();
+    assertThat(presence.isAbsent(new Tile("a", 3, 4, 4))).isFalse();
+    assertThat(presence.isAbsent(new Tile("b", 3, 4, 4))).isFalse();
+
+    presence.add(tile);
+    assertThat(presence.isAbsent(tile)).isFalse();
+    presence.remove(tile);
+    assertThat(presence.isAbsent(tile)).isTrue();
+  }
+
+  @Test
+  void zoomLevelsAreKeptApart() {
+    presence.add(new Tile("a", 0, 0, 1));
+    presence.markComplete("a");
+
+    assertThat(presence.isAbsent(new Tile("a", 0, 0, 2))).isTrue();
+    assertThat(presence.isAbsent(new Tile("a", 0, 0, 1))).isFalse();
+  }
+
+  @Test
+  void denseBlock_switchesToBitmap_andKeepsEveryTile() {
+    // z8 is exactly one 256x256 block; fill every other tile, well past the array limit.
+    for (int x = 0; x < 256; x++) {
+      for (int y = 0; y < 256; y += 2) {
+        presence.add(new Tile("a", x, y, 8));
+      }
+    }
+    presence.markComplete("a");
+    presence.remove(new Tile("a", 7, 8, 8));
+
+    assertThat(presence.isAbsent(new Tile("a", 255, 254, 8))).isFalse();
+    assertThat(presence.isAbsent(new Tile("a", 255, 255, 8))).isTrue();
+    assertThat(presence.isAbsent(new Tile("a", 7, 8, 8))).isTrue();
+  }
+
+  @Test
+  void clear_leavesTheLayerKnownEmpty() {
+    presence.add(new Tile("a", 1, 1, 5));
+
+    presence.clear("a");
+
+    assertThat(presence.isComplete("a")).isTrue();
+    assertThat(presence.isAbsent(new Tile("a", 1, 1, 5))).isTrue();
+  }
+
+  @Test
+  void reset_afterClear_makesEveryTileMaybePresentAgain() {
+    presence.clear("a");
+
+    presence.reset("a");
+
+    assertThat(presence.isComplete("a")).isFalse();
+    assertThat(presence.isAbsent(new Tile("a", 1, 1, 5))).isFalse();
+  }
+
+  @Test
+  void writeThenRead_restoresArrayAndBitmapBlocks() throws Exception {
+    presence.add(new Tile("a", 1_000_000, 2_000_000, 21));
+    for (int i = 0; i < TilePresence.ARRAY_MAX + 1; i++) {
+      presence.add(new Tile("a", i % 256, i / 256, 8));
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    presence.write("a", new DataOutputStream(bytes));
+
+    TilePresence restored = new TilePresence();
+    restored.read("a", new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    restored.markComplete("a");
+
+    assertThat(restored.isAbsent(new Tile("a", 1_000_000, 2_000_000, 21))).isFalse();
+    assertThat(restored.isAbsent(new Tile("a", 1_000_001, 2_000_000, 21))).isTrue();
+    assertThat(restored.isAbsent(new Tile("a", 0, 16, 8))).isFalse();
+    assertThat(restored.isAbsent(new Tile("a", 1, 16, 8))).isTrue();
+  }
+}
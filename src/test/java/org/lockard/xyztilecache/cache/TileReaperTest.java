@@ -0,0 +1,91 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+
+class TileReaperTest {
+
+  @TempDir Path tempDir;
+
+  private XyzConfiguration configuration;
+  private SimpleMeterRegistry meterRegistry;
+  private TileReaper reaper;
+
+  @BeforeEach
+  void setUp() {
+    configuration = new XyzConfiguration();
+    configuration.setBaseTileDirectory(tempDir.toString());
+    configuration.setPurgeDeletesPerSecond(0);
+    meterRegistry = new SimpleMeterRegistry();
+    reaper = new TileReaper(configuration, meterRegistry);
+  }
+
+  @AfterEach
+  void tearDown() {
+    reaper.close();
+  }
+
+  @Test
+  void purge_movesTreeAsideAtOnce_thenDeletesIt() throws Exception {
+    Path layerDir = tempDir.resolve("layer");
+    writeTiles(layerDir, 3);
+
+    var done = reaper.purge(layerDir);
+
+    assertThat(layerDir).doesNotExist();
+    done.get(10, TimeUnit.SECONDS);
+    assertThat(tempDir.resolve(TileReaper.PURGE_DIR)).isEmptyDirectory();
+    assertThat(meterRegistry.get(TileReaper.DELETED).counter().count()).isEqualTo(6);
+    assertThat(meterRegistry.get(TileReaper.PENDING).gauge().value()).isZero();
+  }
+
+  @Test
+  void purge_missingDirectory_isDoneImmediately() throws Exception {
+    assertThat(reaper.purge(tempDir.resolve("nothing"))).isCompleted();
+  }
+
+  @Test
+  void resume_deletesTreesLeftByAnInterruptedRun() throws Exception {
+    Path leftOver = tempDir.resolve(TileReaper.PURGE_DIR).resolve("layer.1234");
+    writeTiles(leftOver, 2);
+
+    reaper.resume();
+
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (Files.exists(leftOver) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(leftOver).doesNotExist();
+  }
+
+  @Test
+  void throttle_capsDeleteRate() throws Exception {
+    configuration.setPurgeDeletesPerSecond(20);
+    Path layerDir = tempDir.resolve("layer");
+    writeTiles(layerDir, 5); // 10 files
+
+    long start = System.nanoTime();
+    reaper.purge(layerDir).get(10, TimeUnit.SECONDS);
+
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThan(400);
+  }
+
+  /** Two files in each of {@code zooms} zoom directories. */
+  private static void writeTiles(Path layerDir, int zooms) throws Exception {
+    for (int z = 0; z < zooms; z++) {
+      Path xDir = layerDir.resolve(Path.of(String.valueOf(z), "0"));
+      Files.createDirectories(xDir);
+      Files.write(xDir.resolve("0.png"), new byte[] {1});
+      Files.write(xDir.resolve("1.png"), new byte[] {2});
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.LocalLayer;
+import org.lockard.xyztilecache.model.Tile;
+import org.lockard.xyztilecache.model.XyzLayer;
+import org.lockard.xyztilecache.store.LayerStore;
+
+class TileScrubberTest {
+
+  private static final byte[] PNG = {
+    (byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0, 0, 0, 0,
+    'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82
+  };
+
+  @TempDir Path tempDir;
+
+  private XyzConfiguration configuration;
+  private LayerStore layerStore;
+  private FileSystemTileStore files;
+  private SimpleMeterRegistry meterRegistry;
+  private TileInventory inventory;
+  private TileScrubber scrubber;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    configuration = new XyzConfiguration();
+    configuration.setBaseTileDirectory(tempDir.toString());
+    configuration.installLayers(
+        List.of(
+            new XyzLayer(
+                "test",
+                "test",
+                "https://example.com/{z}/{x}/{y}.png",
+                null,
+                22,
+                0,
+                0,
+                List.of(),
+                List.of(),
+                Map.of(),
+                null),
+            new LocalLayer("local", "local", null, 22, 0, 0, List.of(), List.of())));
+    layerStore = new LayerStore(configuration, new ObjectMapper(), event -> {});
+    layerStore.init();
+    files = new FileSystemTileStore(configuration, layerStore);
+    meterRegistry = new SimpleMeterRegistry();
+    inventory = new TileInventory(configuration, layerStore, files);
+    scrubber = new TileScrubber(layerStore, files, inventory, meterRegistry);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    layerStore.close();
+  }
+
+  @Test
+  void layersToScrub_firstStartWithoutInventory_isNone() {
+    inventory.restore();
+
+    assertThat(scrubber.layersToScrub()).isEmpty();
+  }
+
+  @Test
+  void layersToScrub_afterCleanShutdown_isNone() {
+    inventory.snapshotOnShutdown();
+    inventory.restore();
+
+    assertThat(scrubber.layersToScrub()).isEmpty();
+  }
+
+  @Test
+  void layersToScrub_afterCrash_isOnlyTheUpstreamBackedLayers() {
+    new TileInventory(configuration, layerStore, files).restore(); // then no clean shutdown
+    inventory.restore();
+
+    assertThat(scrubber.layersToScrub()).containsExactly("test");
+  }
+
+  @Test
+  void scrub_removesTruncatedTilesAndOldTempFiles_only() throws Exception {
+    Tile complete = new Tile("test", 0, 0, 1);
+    Tile truncated = new Tile("test", 1, 0, 1);
+    files.put(complete, PNG);
+    files.put(truncated, Arrays.copyOf(PNG, 12));
+    layerStore.getRuntimeState("test").addTileStats(PNG.length);
+    layerStore.getRuntimeState("test").addTileStats(12);
+    Path column = files.toPath(complete).getParent();
+    Path oldTemp = column.resolve(".0.png.1234" + FileSystemTileStore.TEMP_SUFFIX);
+    Path newTemp = column.resolve(".0.png.5678" + FileSystemTileStore.TEMP_SUFFIX);
+    Files.write(oldTemp, new byte[] {1});
+    Files.setLastModifiedTime(
+        oldTemp, FileTime.fromMillis(System.currentTimeMillis() - 3_600_000));
+    Files.write(newTemp, new byte[] {1});
+
+    scrubber.scrub("test");
+
+    assertThat(files.toPath(complete)).exists();
+    assertThat(files.toPath(truncated)).doesNotExist();
+    assertThat(oldTemp).doesNotExist();
+    assertThat(newTemp).exists();
+    assertThat(layerStore.getRuntimeState("test").getCachedTiles()).isEqualTo(1);
+    assertThat(meterRegistry.get(TileScrubber.REMOVED).tag("kind", "temp").counter().count())
+        .isEqualTo(1);
+    assertThat(meterRegistry.get(TileScrubber.REMOVED).tag("kind", "truncated").counter().count())
+        .isEqualTo(1);
+  }
+
+  @Test
+  void scrub_readsOnlyTheEndsOfALargeTile() throws Exception {
+    byte[] jpeg = new byte[1 << 20];
+    jpeg[0] = (byte) 0xFF;
+    jpeg[1] = (byte) 0xD8;
+    // An end-of-image marker in the middle does not make a cut-short tile whole.
+    jpeg[jpeg.length / 2] = (byte) 0xFF;
+    jpeg[jpeg.length / 2 + 1] = (byte) 0xD9;
+    byte[] complete = jpeg.clone();
+    complete[complete.length - 2] = (byte) 0xFF;
+    complete[complete.length - 1] = (byte) 0xD9;
+    Tile whole = new Tile("test", 0, 0, 1);
+    Tile cutShort = new Tile("test", 1, 0, 1);
+    files.put(whole, complete);
+    files.put(cutShort, jpeg);
+    layerStore.getRuntimeState("test").addTileStats(complete.length);
+    layerStore.getRuntimeState("test").addTileStats(jpeg.length);
+
+    scrubber.scrub("test");
+
+    assertThat(files.toPath(whole)).exists();
+    assertThat(files.toPath(cutShort)).doesNotExist();
+    assertThat(layerStore.getRuntimeState("test").getCachedTiles()).isEqualTo(1);
+  }
+
+  @Test
+  void isTruncated_checksTheTrailerOfEachImageFormat() {
+    assertThat(TileScrubber.isTruncated(new byte[0])).isTrue();
+    assertThat(TileScrubber.isTruncated(PNG)).isFalse();
+    assertThat(TileScrubber.isTruncated(Arrays.copyOf(PNG, PNG.length - 1))).isTrue();
+    assertThat(TileScrubber.isTruncated(new byte[] {(byte) 0xFF, (byte) 0xD8, 1, 2}))
+        .isTrue();
+    assertThat(
+            TileScrubber.isTruncated(
+                new byte[] {(byte) 0xFF, (byte) 0xD8, 1, (byte) 0xFF, (byte) 0xD9, 0, 0}))
+        .isFalse();
+    assertThat(TileScrubber.isTruncated(new byte[] {'G', 'I', 'F', '8', '9', 'a', 0x3B}))
+        .isFalse();
+    byte[] webp = {'R', 'I', 'F', 'F', 8, 0, 0, 0, 'W', 'E', 'B', 'P', 1, 2, 3, 4};
+    assertThat(TileScrubber.isTruncated(webp)).isFalse();
+    assertThat(TileScrubber.isTruncated(Arrays.copyOf(webp, 14))).isTrue();
+    // A vector tile has no trailer to check.
+    assertThat(TileScrubber.isTruncated(new byte[] {0x1a, 0x02})).isFalse();
+  }
+}
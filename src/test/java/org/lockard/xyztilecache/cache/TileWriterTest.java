@@ -3,10 +3,13 @@ package org.lockard.xyztilecache.cache;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -26,6 +29,7 @@ class TileWriterTest {
   private XyzConfiguration configuration;
   private LayerStore layerStore;
   private Layer layer;
+  private TileWriter writer;
 
   @BeforeEach
   void setUp() throws Exception {
@@ -49,86 +53,179 @@ class TileWriterTest {
 
     layerStore = new LayerStore(configuration, new ObjectMapper(), event -> {});
     layerStore.init();
+    writer = new TileWriter(configuration, layerStore);
   }
 
   @AfterEach
   void tearDown() throws Exception {
+    writer.close();
     if (layerStore != null) {
       layerStore.close();
     }
   }
 
-  @Test
-  void toPath_constructsLayerZXYPath() {
-    TileWriter writer = new TileWriter(configuration, layerStore);
-    Tile tile = new Tile("test", 1, 2, 3);
-    assertThat(writer.toPath(tile)).isEqualTo(tempDir.resolve(Path.of("test", "3", "1", "2.png")));
+  private Path toPath(Tile tile) {
+    return new FileSystemTileStore(configuration, layerStore).toPath(tile);
   }
 
   @Test
   void storeTile_writesBytesToDisk() throws IOException {
-    TileWriter writer = new TileWriter(configuration, layerStore);
     Tile tile = new Tile("test", 1, 2, 3);
     byte[] data = {10, 20, 30};
 
     writer.storeTile(tile, data);
+    writer.flush(5_000);
+
+    assertThat(toPath(tile)).exists();
+    assertThat(Files.readAllBytes(toPath(tile))).isEqualTo(data);
+  }
+
+  @Test
+  void storeTile_keepsTheFetchTimeAsTheFilesMtime() throws IOException {
+    Tile tile = new Tile("test", 1, 2, 3);
+
+    writer.storeTile(tile, new byte[] {1}, 1_700_000_000_123L);
+    writer.flush(5_000);
 
-    assertThat(writer.toPath(tile)).exists();
-    assertThat(Files.readAllBytes(writer.toPath(tile))).isEqualTo(data);
+    assertThat(Files.getLastModifiedTime(toPath(tile)).toMillis()).isEqualTo(1_700_000_000_123L);
   }
 
   @Test
   void storeTile_updatesLayerStats() {
-    TileWriter writer = new TileWriter(configuration, layerStore);
     Tile tile = new Tile("test", 1, 2, 3);
     byte[] data = {10, 20, 30};
 
     writer.storeTile(tile, data);
+    writer.flush(5_000);
 
     LayerRuntimeState state = layerStore.getRuntimeState(layer.effectiveId());
     assertThat(state.getCachedTiles()).isEqualTo(1);
     assertThat(state.getCachedTilesSize()).isEqualTo(data.length);
   }
 
+  @Test
+  void storeTile_replacingTileCountsItOnce() {
+    Tile tile = new Tile("test", 1, 2, 3);
+
+    writer.storeTile(tile, new byte[] {1, 2, 3});
+    writer.flush(5_000);
+    writer.storeTile(tile, new byte[] {4, 5});
+    writer.flush(5_000);
+
+    LayerRuntimeState state = layerStore.getRuntimeState(layer.effectiveId());
+    assertThat(state.getCachedTiles()).isEqualTo(1);
+    assertThat(state.getCachedTilesSize()).isEqualTo(2);
+  }
+
+  @Test
+  void storeTile_dropsTileLoadedBeforeSourceChanged() throws IOException {
+    Tile tile = new Tile("test", 1, 2, 3, layerStore.getGeneration("test"));
+    layerStore.updateLayer(
+        "test",
+        new XyzLayer(
+            "test",
+            "test",
+            "https://other.example.com/{z}/{x}/{y}.png",
+            null,
+            22,
+            0,
+            0,
+            List.of(),
+            List.of(),
+            java.util.Map.of(),
+            null));
+
+    writer.storeTile(tile, new byte[] {1, 2, 3});
+    writer.flush(5_000);
+
+    assertThat(toPath(tile)).doesNotExist();
+    writer.storeTile(tile.withGeneration(layerStore.getGeneration("test")), new byte[] {4});
+    writer.flush(5_000);
+    assertThat(toPath(tile)).exists();
+  }
+
   @Test
   void storeTile_writesToPreexistingDirectory() throws IOException {
     Path dir = tempDir.resolve(Path.of("test", "3", "1"));
     Files.createDirectories(dir);
-    TileWriter writer = new TileWriter(configuration, layerStore);
     Tile tile = new Tile("test", 1, 2, 3);
     byte[] data = {7, 8, 9};
 
     writer.storeTile(tile, data);
+    writer.flush(5_000);
 
     assertThat(dir.resolve("2.png")).exists();
     assertThat(Files.readAllBytes(dir.resolve("2.png"))).isEqualTo(data);
   }
 
   @Test
-  void inventoryExistingTiles_countsPreExistingTilesInLayerStats() throws IOException {
-    Path tileFile = tempDir.resolve(Path.of("test", "3", "1", "2.png"));
-    Files.createDirectories(tileFile.getParent());
-    byte[] existing = {1, 2, 3, 4, 5};
-    Files.write(tileFile, existing);
+  void storeTile_skipsWhenFreeDiskBelowMinimum() {
+    // Setting minFreeDiskBytes to Long.MAX_VALUE guarantees the threshold is never met
+    configuration.setMinFreeDiskBytes(Long.MAX_VALUE);
+    Tile tile = new Tile("test", 1, 2, 3);
 
-    TileWriter writer = new TileWriter(configuration, layerStore);
-    writer.inventoryExistingTiles();
+    writer.storeTile(tile, new byte[] {1, 2, 3});
+    writer.flush(5_000);
 
-    LayerRuntimeState state = layerStore.getRuntimeState(layer.effectiveId());
-    assertThat(state.getCachedTiles()).isEqualTo(1);
-    assertThat(state.getCachedTilesSize()).isEqualTo(existing.length);
+    assertThat(toPath(tile)).doesNotExist();
   }
 
   @Test
-  void storeTile_skipsWhenFreeDiskBelowMinimum() {
-    // Setting minFreeDiskBytes to Long.MAX_VALUE guarantees the threshold is never met
-    configuration.setMinFreeDiskBytes(Long.MAX_VALUE);
-    TileWriter writer = new TileWriter(configuration, layerStore);
+  void storeTile_coalescesQueuedTile_andDropsAtOnceWhenQueueIsFull() throws Exception {
+    configuration.setWriteThreads(1);
+    configuration.setWriteQueueCapacity(1);
+    CountDownLatch release = new CountDownLatch(1);
+    InMemoryTileStore store =
+        new InMemoryTileStore() {
+          @Override
+          public long put(final Tile tile, final byte[] data) {
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return super.put(tile, data);
+          }
+        };
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    TileWriter blocked = new TileWriter(configuration, layerStore, store, meterRegistry);
+    Tile first = new Tile("test", 0, 0, 1);
+    Tile second = new Tile("test", 1, 0, 1);
+    try {
+      blocked.storeTile(first, new byte[] {1});
+      // The worker has taken the first tile and is stuck writing it.
+      while (meterRegistry.get(TileWriter.QUEUED).gauge().value() > 0) {
+        Thread.sleep(5);
+      }
+      blocked.storeTile(second, new byte[] {2});
+      blocked.storeTile(second, new byte[] {3});
+
+      long start = System.nanoTime();
+      blocked.storeTile(new Tile("test", 0, 1, 1), new byte[] {4});
+
+      assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(500);
+      assertThat(meterRegistry.get(TileWriter.DROPPED).counter().count()).isEqualTo(1);
+      assertThat(blocked.awaitRoom(50)).isFalse();
+      release.countDown();
+      assertThat(blocked.awaitRoom(5_000)).isTrue();
+      assertThat(blocked.flush(5_000)).isTrue();
+      assertThat(store.get(second).orElseThrow().data()).containsExactly(3);
+      assertThat(store.exists(new Tile("test", 0, 1, 1))).isFalse();
+      assertThat(meterRegistry.get(TileWriter.LATENCY).timer().count()).isEqualTo(2);
+    } finally {
+      release.countDown();
+      blocked.close();
+    }
+  }
+
+  @Test
+  void close_writesOutWhatIsStillQueued() {
     Tile tile = new Tile("test", 1, 2, 3);
 
     writer.storeTile(tile, new byte[] {1, 2, 3});
+    writer.close();
 
-    assertThat(writer.toPath(tile)).doesNotExist();
+    assertThat(toPath(tile)).exists();
   }
 
   @Test
@@ -138,7 +235,6 @@ class TileWriterTest {
     Files.createDirectories(tileFile.getParent());
     Files.write(tileFile, new byte[] {1, 2, 3});
 
-    TileWriter writer = new TileWriter(configuration, layerStore);
     writer.onLayerChanged(new LayerChangedEvent("ghost", LayerChangedEvent.Kind.REMOVED));
 
     assertThat(layerDir).doesNotExist();
@@ -153,7 +249,6 @@ class TileWriterTest {
     LayerRuntimeState state = layerStore.getRuntimeState("test");
     state.addTileStats(3);
 
-    TileWriter writer = new TileWriter(configuration, layerStore);
     writer.onLayerChanged(new LayerChangedEvent("test", LayerChangedEvent.Kind.UPDATED_SOURCE));
 
     assertThat(layerDir).doesNotExist();
@@ -170,7 +265,6 @@ class TileWriterTest {
     LayerRuntimeState state = layerStore.getRuntimeState("test");
     state.addTileStats(3);
 
-    TileWriter writer = new TileWriter(configuration, layerStore);
     writer.onLayerChanged(new LayerChangedEvent("test", LayerChangedEvent.Kind.UPDATED_ACL));
 
     assertThat(tileFile).exists();
@@ -185,7 +279,6 @@ class TileWriterTest {
     Files.createDirectories(tileFile.getParent());
     Files.write(tileFile, new byte[] {1, 2, 3});
 
-    TileWriter writer = new TileWriter(configuration, layerStore);
     writer.onLayerChanged(new LayerChangedEvent("test", LayerChangedEvent.Kind.ADDED));
 
     assertThat(tileFile).exists();
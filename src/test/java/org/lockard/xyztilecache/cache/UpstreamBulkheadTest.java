@@ -0,0 +1,90 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+class UpstreamBulkheadTest {
+
+  private final List<CompletableFuture<String>> started = new ArrayList<>();
+
+  private CompletableFuture<String> call() {
+    CompletableFuture<String> future = new CompletableFuture<>();
+    started.add(future);
+    return future;
+  }
+
+  @Test
+  void submit_runsUpToMaxConcurrentThenQueuesThenRejects() {
+    UpstreamBulkhead bulkhead = new UpstreamBulkhead("example.com", 2, 1);
+
+    CompletableFuture<String> first = bulkhead.submit(this::call);
+    CompletableFuture<String> second = bulkhead.submit(this::call);
+    CompletableFuture<String> queued = bulkhead.submit(this::call);
+    CompletableFuture<String> rejected = bulkhead.submit(this::call);
+
+    assertThat(started).hasSize(2);
+    assertThat(bulkhead.active()).isEqualTo(2);
+    assertThat(bulkhead.queued()).isEqualTo(1);
+    assertThat(rejected)
+        .failsWithin(Duration.ZERO)
+        .withThrowableThat()
+        .withCauseInstanceOf(UpstreamBulkheadFullException.class);
+    assertThat(bulkhead.rejections()).isEqualTo(1);
+    assertThat(first).isNotDone();
+    assertThat(second).isNotDone();
+    assertThat(queued).isNotDone();
+  }
+
+  @Test
+  void completion_handsPermitToQueuedCall() {
+    UpstreamBulkhead bulkhead = new UpstreamBulkhead("example.com", 1, 1);
+    CompletableFuture<String> first = bulkhead.submit(this::call);
+    CompletableFuture<String> queued = bulkhead.submit(this::call);
+
+    started.get(0).complete("a");
+
+    assertThat(first).isCompletedWithValue("a");
+    assertThat(started).hasSize(2);
+    assertThat(bulkhead.active()).isEqualTo(1);
+    assertThat(bulkhead.queued()).isZero();
+
+    started.get(1).completeExceptionally(new IllegalStateException("boom"));
+
+    assertThat(queued).isCompletedExceptionally();
+    assertThat(bulkhead.active()).isZero();
+  }
+
+  @Test
+  void callThatThrows_releasesItsPermit() {
+    UpstreamBulkhead bulkhead = new UpstreamBulkhead("example.com", 1, 0);
+
+    CompletableFuture<String> failed =
+        bulkhead.submit(
+            () -> {
+              throw new IllegalStateException("boom");
+            });
+
+    assertThat(failed).isCompletedExceptionally();
+    assertThat(bulkhead.active()).isZero();
+  }
+
+  @Test
+  void cancel_propagatesToRunningCallAndSkipsQueuedOne() {
+    UpstreamBulkhead bulkhead = new UpstreamBulkhead("example.com", 1, 1);
+    CompletableFuture<String> running = bulkhead.submit(this::call);
+    CompletableFuture<String> queued = bulkhead.submit(this::call);
+
+    queued.cancel(true);
+    running.cancel(true);
+
+    assertThat(started).hasSize(1);
+    assertThat(started.get(0)).isCancelled();
+    assertThat(bulkhead.active()).isZero();
+    assertThat(bulkhead.queued()).isZero();
+  }
+}
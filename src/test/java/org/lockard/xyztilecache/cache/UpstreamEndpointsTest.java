@@ -0,0 +1,77 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.lockard.xyztilecache.cache.UpstreamEndpoints.Candidate;
+
+class UpstreamEndpointsTest {
+
+  private final UpstreamEndpoints endpoints =
+      new UpstreamEndpoints(Clock.fixed(Instant.ofEpochMilli(1_000_000), ZoneOffset.UTC));
+
+  @Test
+  void expand_defaultSubdomains() {
+    assertThat(UpstreamEndpoints.expand("https://{s}.tile.example.com/1/2/3.png"))
+        .containsExactly(
+            new Candidate("a", "https://a.tile.example.com/1/2/3.png"),
+            new Candidate("b", "https://b.tile.example.com/1/2/3.png"),
+            new Candidate("c", "https://c.tile.example.com/1/2/3.png"));
+  }
+
+  @Test
+  void expand_explicitMirrorHosts() {
+    assertThat(UpstreamEndpoints.expand("https://{s:one.example.com, two.example.net}/1/2/3"))
+        .extracting(Candidate::url)
+        .containsExactly("https://one.example.com/1/2/3", "https://two.example.net/1/2/3");
+  }
+
+  @Test
+  void expand_withoutPlaceholder_isSingleCandidate() {
+    assertThat(UpstreamEndpoints.expand("https://example.com/1/2/3"))
+        .containsExactly(new Candidate("", "https://example.com/1/2/3"));
+  }
+
+  @Test
+  void order_putsFailedEndpointLastUntilItSucceeds() {
+    List<Candidate> candidates = UpstreamEndpoints.expand("https://{s}.example.com/t");
+    endpoints.failed("layer", "b");
+
+    for (int i = 0; i < 20; i++) {
+      assertThat(endpoints.order("layer", candidates).getLast().key()).isEqualTo("b");
+    }
+    assertThat(endpoints.isHealthy("layer", "b")).isFalse();
+
+    endpoints.succeeded("layer", "b", 10);
+    assertThat(endpoints.isHealthy("layer", "b")).isTrue();
+  }
+
+  @Test
+  void order_spreadsFirstPickAcrossHealthyEndpoints() {
+    List<Candidate> candidates = UpstreamEndpoints.expand("https://{s}.example.com/t");
+    Set<String> firstPicks = new HashSet<>();
+
+    for (int i = 0; i < 200; i++) {
+      List<Candidate> ordered = endpoints.order("layer", candidates);
+      assertThat(ordered).hasSize(3).containsExactlyInAnyOrderElementsOf(candidates);
+      firstPicks.add(ordered.getFirst().key());
+    }
+
+    assertThat(firstPicks).containsExactlyInAnyOrder("a", "b", "c");
+  }
+
+  @Test
+  void order_prefersFasterOfTwoRandomPicks() {
+    List<Candidate> candidates = UpstreamEndpoints.expand("https://{s:fast,slow}.example.com/t");
+    endpoints.succeeded("layer", "fast", 10);
+    endpoints.succeeded("layer", "slow", 500);
+
+    assertThat(endpoints.order("layer", candidates).getFirst().key()).isEqualTo("fast");
+  }
+}
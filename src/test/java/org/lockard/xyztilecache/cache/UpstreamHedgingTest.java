@@ -0,0 +1,72 @@
+package org.lockard.xyztilecache.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+
+class UpstreamHedgingTest {
+
+  private XyzConfiguration configuration;
+  private UpstreamHedging hedging;
+
+  @BeforeEach
+  void setUp() {
+    configuration = new XyzConfiguration();
+    hedging = new UpstreamHedging(configuration);
+  }
+
+  @Test
+  void delay_perLayerOverridesGlobalAndZeroDisables() {
+    configuration.setHedgeDelayMillis(200);
+    configuration.setHedgeDelayMillisByLayer(Map.of("fast", 0L));
+
+    assertThat(hedging.delayMillis("slow")).isEqualTo(200);
+    assertThat(hedging.delayMillis("fast")).isZero();
+  }
+
+  @Test
+  void budget_allowsConfiguredShareOfPrimaries() {
+    configuration.setHedgeMaxPercent(5);
+
+    for (int i = 0; i < 19; i++) {
+      hedging.primarySent("layer");
+    }
+    assertThat(hedging.tryAcquire("layer")).isFalse();
+
+    hedging.primarySent("layer");
+    assertThat(hedging.tryAcquire("layer")).isTrue();
+    assertThat(hedging.tryAcquire("layer")).isFalse();
+  }
+
+  @Test
+  void autoDelay_tracksRecentP95OnceEnoughSamples() {
+    configuration.setHedgeDelayMillis(UpstreamHedging.AUTO);
+
+    for (int i = 1; i <= 8; i++) {
+      hedging.recordLatency("layer", 50);
+    }
+    assertThat(hedging.delayMillis("layer")).isZero();
+
+    for (int i = 1; i <= 92; i++) {
+      hedging.recordLatency("layer", 50);
+    }
+    for (int i = 1; i <= 28; i++) {
+      hedging.recordLatency("layer", 1_000);
+    }
+
+    assertThat(hedging.delayMillis("layer")).isEqualTo(1_000);
+  }
+
+  @Test
+  void forget_dropsLearnedState() {
+    configuration.setHedgeMaxPercent(100);
+    hedging.primarySent("layer");
+
+    hedging.forget("layer");
+
+    assertThat(hedging.tryAcquire("layer")).isFalse();
+  }
+}
@@ -0,0 +1,62 @@
+package org.lockard.xyztilecache.controller;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lockard.xyztilecache.model.TileResult;
+import org.springframework.http.HttpStatus;
+
+class TileControllerTest {
+
+  @TempDir Path tempDir;
+
+  @Test
+  void writeBatchTile_fileReplacedAfterStat_prefixesTheBytesActuallySent() throws Exception {
+    Path file = Files.write(tempDir.resolve("2.png"), new byte[] {1, 2, 3});
+    TileResult stat = TileResult.ofFile(file, 3, "image/png", null, 0);
+    // Renamed over by a refresh between the lookup and the write.
+    Path replacement = Files.write(tempDir.resolve(".2.png.tmp"), new byte[] {4, 5, 6, 7, 8});
+    Files.move(replacement, file, StandardCopyOption.REPLACE_EXISTING);
+
+    DataInputStream in = write(new TileController.BatchTile(3, 1, 2, HttpStatus.OK, stat));
+
+    assertThat(in.readInt()).isEqualTo(3);
+    assertThat(in.readInt()).isEqualTo(1);
+    assertThat(in.readInt()).isEqualTo(2);
+    assertThat(in.readShort()).isEqualTo((short) 200);
+    assertThat(in.readByte()).isZero();
+    in.skipNBytes(in.readByte());
+    assertThat(in.readInt()).isEqualTo(5);
+    assertThat(in.readAllBytes()).containsExactly(4, 5, 6, 7, 8);
+  }
+
+  @Test
+  void writeBatchTile_fileDeletedAfterStat_writesAnErrorFrameAndCarriesOn() throws Exception {
+    Path file = Files.write(tempDir.resolve("2.png"), new byte[] {1, 2, 3});
+    TileResult stat = TileResult.ofFile(file, 3, "image/png", null, 0);
+    Files.delete(file);
+
+    DataInputStream in = write(new TileController.BatchTile(3, 1, 2, HttpStatus.OK, stat));
+
+    in.skipNBytes(12);
+    assertThat(in.readShort()).isEqualTo((short) 500);
+    assertThat(in.readByte()).isZero();
+    assertThat(in.readByte()).isZero();
+    assertThat(in.readInt()).isZero();
+    assertThat(in.available()).isZero();
+  }
+
+  private static DataInputStream write(TileController.BatchTile tile) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    TileController.writeBatchTile(new DataOutputStream(bytes), tile);
+    return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+}
@@ -2,161 +2,456 @@ package org.lockard.xyztilecache.handler;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
-import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.imageio.ImageIO;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lockard.xyztilecache.cache.DiskCacheEvictor;
+import org.lockard.xyztilecache.cache.FileSystemTileStore;
+import org.lockard.xyztilecache.cache.NegativeTileCache;
+import org.lockard.xyztilecache.cache.StaleTileException;
+import org.lockard.xyztilecache.cache.TileStore;
+import org.lockard.xyztilecache.cache.UpstreamUnavailableException;
+import org.lockard.xyztilecache.config.XyzConfiguration;
+import org.lockard.xyztilecache.model.CachedTile;
 import org.lockard.xyztilecache.model.Layer;
 import org.lockard.xyztilecache.model.Tile;
 import org.lockard.xyztilecache.model.TileResult;
+import org.lockard.xyztilecache.store.LayerStore;
 
 class RasterTileHandlerTest {
 
-  // ── detectContentType ─────────────────────────────────────────────────────
+  @TempDir Path tempDir;
 
-  @Test
-  void detectContentType_pngMagic_returnsPng() {
-    byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
-    assertThat(RasterTileHandler.detectContentType(png)).isEqualTo("image/png");
-  }
+  // ── sourceTypes / getTile ─────────────────────────────────────────────────
 
   @Test
-  void detectContentType_jpegMagic_returnsJpeg() {
-    byte[] jpeg = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 0x10};
-    assertThat(RasterTileHandler.detectContentType(jpeg)).isEqualTo("image/jpeg");
+  void sourceTypes_includesAllRasterTypes() {
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    RasterTileHandler handler = handler(cache, mock(NegativeTileCache.class));
+    assertThat(handler.sourceTypes())
+        .containsExactlyInAnyOrder(
+            Layer.SourceType.XYZ,
+            Layer.SourceType.WMTS_REST,
+            Layer.SourceType.WMTS_KVP,
+            Layer.SourceType.LOCAL);
   }
 
   @Test
-  void detectContentType_gif87aMagic_returnsGif() {
-    byte[] gif = {'G', 'I', 'F', '8', '7', 'a'};
-    assertThat(RasterTileHandler.detectContentType(gif)).isEqualTo("image/gif");
-  }
+  void getTile_cacheHit_returnsStoredContentTypeAndValidators() throws Exception {
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    byte[] jpegBytes = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, 0x00};
+    Layer layer = testLayer();
+    when(cache.get(new Tile("test", 1, 2, 3)))
+        .thenReturn(CompletableFuture.completedFuture(CachedTile.of(jpegBytes, 1000, 0)));
 
-  @Test
-  void detectContentType_gif89aMagic_returnsGif() {
-    byte[] gif = {'G', 'I', 'F', '8', '9', 'a'};
-    assertThat(RasterTileHandler.detectContentType(gif)).isEqualTo("image/gif");
+    RasterTileHandler handler = handler(cache, mock(NegativeTileCache.class));
+    Optional<TileResult> result = handler.getTile(layer, 3, 1, 2);
+
+    assertThat(result).isPresent();
+    assertThat(result.get().contentType()).isEqualTo("image/jpeg");
+    assertThat(result.get().data()).isEqualTo(jpegBytes);
+    assertThat(result.get().etag()).isNotNull();
+    assertThat(result.get().lastModified()).isEqualTo(1000);
   }
 
   @Test
-  void detectContentType_webpMagic_returnsWebp() {
-    byte[] webp = {'R', 'I', 'F', 'F', 0x10, 0, 0, 0, 'W', 'E', 'B', 'P', 'V', 'P'};
-    assertThat(RasterTileHandler.detectContentType(webp)).isEqualTo("image/webp");
+  void getTile_cacheMiss_throwsTileNotFoundWithCause() throws Exception {
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    Layer layer = testLayer();
+    RuntimeException cause = new RuntimeException("upstream 404");
+    when(cache.get(new Tile("test", 1, 2, 3))).thenReturn(CompletableFuture.failedFuture(cause));
+
+    RasterTileHandler handler = handler(cache, mock(NegativeTileCache.class));
+
+    assertThatThrownBy(() -> handler.getTile(layer, 3, 1, 2))
+        .isInstanceOf(TileNotFoundException.class)
+        .hasCause(cause);
   }
 
   @Test
-  void detectContentType_unrecognized_returnsPngFallback() {
-    byte[] junk = {0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c};
-    assertThat(RasterTileHandler.detectContentType(junk)).isEqualTo("image/png");
+  void getTile_staleTile_servesStaleBytes() throws Exception {
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    byte[] stale = {1, 2, 3};
+    when(cache.get(new Tile("test", 1, 2, 3)))
+        .thenReturn(
+            CompletableFuture.failedFuture(
+                new StaleTileException(
+                    CachedTile.of(stale, 0, 0), new IOException("upstream down"))));
+
+    RasterTileHandler handler = handler(cache, mock(NegativeTileCache.class));
+    Optional<TileResult> result = handler.getTile(testLayer(), 3, 1, 2);
+
+    assertThat(result).isPresent();
+    assertThat(result.get().data()).isEqualTo(stale);
+    assertThat(result.get().stale()).isTrue();
   }
 
   @Test
-  void detectContentType_empty_returnsPngFallback() {
-    assertThat(RasterTileHandler.detectContentType(new byte[0])).isEqualTo("image/png");
+  void getTile_staleTileBeingRefreshed_putsTheFreshTileInMemory() throws Exception {
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    Tile tile = new Tile("test", 1, 2, 3);
+    CompletableFuture<CachedTile> refresh = new CompletableFuture<>();
+    when(cache.get(tile))
+        .thenReturn(
+            CompletableFuture.failedFuture(
+                new StaleTileException(
+                    CachedTile.of(new byte[] {1}, 0, 0), new IOException("refreshing"), refresh)));
+
+    RasterTileHandler handler = handler(cache, mock(NegativeTileCache.class));
+    handler.getTile(testLayer(), 3, 1, 2);
+    verify(cache, never()).put(any(), any());
+
+    CachedTile fresh = CachedTile.of(new byte[] {2}, System.currentTimeMillis(), 60);
+    refresh.complete(fresh);
+    verify(cache).put(eq(tile), argThat(put -> put.join() == fresh));
   }
 
   @Test
-  void detectContentType_tooShortForJpeg_fallsThrough() {
-    // Only two bytes — JPEG check requires 3
-    byte[] data = {(byte) 0xff, (byte) 0xd8};
-    assertThat(RasterTileHandler.detectContentType(data)).isEqualTo("image/png");
+  void getTile_upstreamUnavailable_propagates() {
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    when(cache.get(new Tile("test", 1, 2, 3)))
+        .thenReturn(CompletableFuture.failedFuture(new UpstreamUnavailableException("blocked")));
+
+    RasterTileHandler handler = handler(cache, mock(NegativeTileCache.class));
+
+    assertThatThrownBy(() -> handler.getTile(testLayer(), 3, 1, 2))
+        .isInstanceOf(UpstreamUnavailableException.class);
   }
 
   @Test
-  void detectContentType_jpegSecondByteWrong_fallsThrough() {
-    byte[] data = {(byte) 0xff, 0x00, (byte) 0xff};
-    assertThat(RasterTileHandler.detectContentType(data)).isEqualTo("image/png");
+  void getTile_knownMissing_throwsWithoutTouchingCache() {
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    NegativeTileCache negativeTiles = mock(NegativeTileCache.class);
+    when(negativeTiles.isKnownMissing(new Tile("test", 1, 2, 3))).thenReturn(true);
+
+    RasterTileHandler handler = handler(cache, negativeTiles);
+
+    assertThatThrownBy(() -> handler.getTile(testLayer(), 3, 1, 2))
+        .isInstanceOf(TileNotFoundException.class);
+    verifyNoInteractions(cache);
   }
 
+  // ── peekTile (HEAD) ───────────────────────────────────────────────────────
+
   @Test
-  void detectContentType_jpegThirdByteWrong_fallsThrough() {
-    byte[] data = {(byte) 0xff, (byte) 0xd8, 0x00};
-    assertThat(RasterTileHandler.detectContentType(data)).isEqualTo("image/png");
+  void peekTile_inMemory_answersWithoutLoading() {
+    byte[] png = {(byte) 0x89, 'P', 'N', 'G'};
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    when(cache.asMap())
+        .thenReturn(
+            new ConcurrentHashMap<>(
+                Map.of(
+                    new Tile("test", 1, 2, 3),
+                    CompletableFuture.completedFuture(CachedTile.of(png, 1000, 0)))));
+
+    Optional<TileResult> result =
+        handler(cache, mock(NegativeTileCache.class)).peekTile(testLayer(), 3, 1, 2);
+
+    assertThat(result).isPresent();
+    assertThat(result.get().contentType()).isEqualTo("image/png");
+    verify(cache, never()).get(any());
+    verify(cache, never()).getIfPresent(any());
   }
 
   @Test
-  void detectContentType_gifTooShort_fallsThrough() {
-    byte[] data = {'G', 'I', 'F', '8', '9'};
-    assertThat(RasterTileHandler.detectContentType(data)).isEqualTo("image/png");
+  void peekTile_freshOnDisk_answersWithFileValidatorsWithoutReadingIt() throws Exception {
+    byte[] png = {(byte) 0x89, 'P', 'N', 'G', 1, 2, 3};
+    Path file = tempDir.resolve(Path.of("test", "3", "1", "2.png"));
+    Files.createDirectories(file.getParent());
+    Files.write(file, png);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(1_700_000_000_000L));
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+
+    Optional<TileResult> result = streamingHandler(cache).peekTile(testLayer(), 3, 1, 2);
+
+    assertThat(result).isPresent();
+    assertThat(result.get().isFile()).isTrue();
+    assertThat(result.get().lastModified()).isEqualTo(1_700_000_000_000L);
+    assertThat(result.get().etag()).isEqualTo(CachedTile.of(png, 1_700_000_000_000L, 0).etag());
+    verify(cache, never()).get(any());
   }
 
   @Test
-  void detectContentType_gifWrongFourthByte_fallsThrough() {
-    byte[] data = {'G', 'I', 'F', 'X', '9', 'a'};
-    assertThat(RasterTileHandler.detectContentType(data)).isEqualTo("image/png");
+  void peekTile_offlineAndNotOnDisk_isNotFound_onlineIsUnknown() throws Exception {
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    when(cache.asMap()).thenReturn(new ConcurrentHashMap<>());
+    TileStore tiles = mock(TileStore.class);
+    XyzConfiguration configuration = new XyzConfiguration();
+    RasterTileHandler handler =
+        new RasterTileHandler(
+            cache,
+            mock(NegativeTileCache.class),
+            mock(DiskCacheEvictor.class),
+            configuration,
+            mock(LayerStore.class),
+            tiles);
+
+    assertThat(handler.peekTile(testLayer(), 3, 1, 2)).isEmpty();
+
+    configuration.setOffline(true);
+    assertThatThrownBy(() -> handler.peekTile(testLayer(), 3, 1, 2))
+        .isInstanceOf(TileNotFoundException.class);
+    when(tiles.exists(new Tile("test", 1, 2, 3))).thenReturn(true);
+    assertThat(handler.peekTile(testLayer(), 3, 1, 2)).isEmpty();
+    verify(cache, never()).get(any());
   }
 
+  // ── streamDiskTiles ───────────────────────────────────────────────────────
+
   @Test
-  void detectContentType_gifWrongFifthByte_fallsThrough() {
-    byte[] data = {'G', 'I', 'F', '8', '8', 'a'};
-    assertThat(RasterTileHandler.detectContentType(data)).isEqualTo("image/png");
+  void getTile_streaming_servesDiskHitAsFileWithoutLoading() throws Exception {
+    byte[] jpeg = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 0x10, 1, 2, 3, 4, 5, 6};
+    Path file = tempDir.resolve(Path.of("test", "3", "1", "2.png"));
+    Files.createDirectories(file.getParent());
+    Files.write(file, jpeg);
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+
+    Optional<TileResult> result = streamingHandler(cache).getTile(testLayer(), 3, 1, 2);
+
+    assertThat(result).isPresent();
+    assertThat(result.get().isFile()).isTrue();
+    assertThat(result.get().file()).isEqualTo(file);
+    assertThat(result.get().size()).isEqualTo(jpeg.length);
+    assertThat(result.get().contentType()).isEqualTo("image/jpeg");
+    assertThat(result.get().lastModified()).isEqualTo(Files.getLastModifiedTime(file).toMillis());
+    assertThat(result.get().etag())
+        .isEqualTo(CachedTile.of(jpeg, result.get().lastModified(), 0).etag());
+    verify(cache, never()).get(any());
   }
 
   @Test
-  void detectContentType_gifWrongTrailingByte_fallsThrough() {
-    byte[] data = {'G', 'I', 'F', '8', '9', 'b'};
-    assertThat(RasterTileHandler.detectContentType(data)).isEqualTo("image/png");
+  void getTile_streaming_prefersInMemoryTile() throws Exception {
+    byte[] png = {(byte) 0x89, 'P', 'N', 'G'};
+    Tile tile = new Tile("test", 1, 2, 3);
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    CompletableFuture<CachedTile> cached =
+        CompletableFuture.completedFuture(CachedTile.of(png, 0, 0));
+    when(cache.asMap()).thenReturn(new ConcurrentHashMap<>(Map.of(tile, cached)));
+    when(cache.get(tile)).thenReturn(cached);
+
+    Optional<TileResult> result = streamingHandler(cache).getTile(testLayer(), 3, 1, 2);
+
+    assertThat(result).isPresent();
+    assertThat(result.get().isFile()).isFalse();
+    assertThat(result.get().data()).isEqualTo(png);
+    // Only the get counts towards the hit rate.
+    verify(cache, never()).getIfPresent(any());
   }
 
   @Test
-  void detectContentType_webpTooShort_fallsThrough() {
-    byte[] data = {'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B'};
-    assertThat(RasterTileHandler.detectContentType(data)).isEqualTo("image/png");
+  void getTile_streaming_diskMissFallsThroughToLoader() throws Exception {
+    byte[] png = {(byte) 0x89, 'P', 'N', 'G'};
+    Tile tile = new Tile("test", 1, 2, 3);
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    when(cache.get(tile)).thenReturn(CompletableFuture.completedFuture(CachedTile.of(png, 0, 0)));
+
+    Optional<TileResult> result = streamingHandler(cache).getTile(testLayer(), 3, 1, 2);
+
+    assertThat(result).isPresent();
+    assertThat(result.get().data()).isEqualTo(png);
   }
 
   @Test
-  void detectContentType_riffButNotWebp_fallsThrough() {
-    byte[] data = {'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'A', 'V', 'E'};
-    assertThat(RasterTileHandler.detectContentType(data)).isEqualTo("image/png");
+  void getTile_streaming_expiredDiskTileFallsThroughToLoader() throws Exception {
+    Path file = tempDir.resolve(Path.of("test", "3", "1", "2.png"));
+    Files.createDirectories(file.getParent());
+    Files.write(file, new byte[] {1, 2, 3});
+    Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+    byte[] fresh = {(byte) 0x89, 'P', 'N', 'G'};
+    Tile tile = new Tile("test", 1, 2, 3);
+    @SuppressWarnings("unchecked")
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    when(cache.get(tile)).thenReturn(CompletableFuture.completedFuture(CachedTile.of(fresh, 0, 0)));
+
+    Optional<TileResult> result =
+        streamingHandler(cache, expiringLayer()).getTile(expiringLayer(), 3, 1, 2);
+
+    assertThat(result).isPresent();
+    assertThat(result.get().data()).isEqualTo(fresh);
   }
 
-  // ── sourceTypes / getTile ─────────────────────────────────────────────────
+  // ── overzoom fallback ─────────────────────────────────────────────────────
 
   @Test
-  void sourceTypes_includesAllRasterTypes() {
+  void getTile_upstreamUnavailable_servesUpscaledAncestorFromDisk() throws Exception {
+    Path file = tempDir.resolve(Path.of("test", "2", "0", "1.png"));
+    Files.createDirectories(file.getParent());
+    Files.write(file, quadrants(Color.RED, Color.GREEN, Color.BLUE, Color.WHITE));
     @SuppressWarnings("unchecked")
-    LoadingCache<Tile, byte[]> cache = mock(LoadingCache.class);
-    RasterTileHandler handler = new RasterTileHandler(cache);
-    assertThat(handler.sourceTypes())
-        .containsExactlyInAnyOrder(
-            Layer.SourceType.XYZ,
-            Layer.SourceType.WMTS_REST,
-            Layer.SourceType.WMTS_KVP,
-            Layer.SourceType.LOCAL);
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    when(cache.get(new Tile("test", 1, 2, 3)))
+        .thenReturn(CompletableFuture.failedFuture(new UpstreamUnavailableException("blocked")));
+
+    Optional<TileResult> result = overzoomHandler(cache, 2).getTile(testLayer(), 3, 1, 2);
+
+    assertThat(result).isPresent();
+    assertThat(result.get().derived()).isTrue();
+    assertThat(result.get().etag()).isNull();
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(result.get().data()));
+    assertThat(image.getWidth()).isEqualTo(8);
+    // z3 x1 y2 is the top-right quarter of z2 x0 y1.
+    assertThat(new Color(image.getRGB(4, 4))).isEqualTo(Color.GREEN);
   }
 
   @Test
-  void getTile_cacheHit_returnsTileWithDetectedContentType() throws Exception {
+  void getTile_upstreamUnavailable_prefersNearestAncestorInMemory() throws Exception {
+    Tile parent = new Tile("test", 0, 1, 2);
     @SuppressWarnings("unchecked")
-    LoadingCache<Tile, byte[]> cache = mock(LoadingCache.class);
-    byte[] jpegBytes = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, 0x00};
-    Layer layer = testLayer();
-    when(cache.get(new Tile("test", 1, 2, 3))).thenReturn(jpegBytes);
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    when(cache.get(new Tile("test", 1, 2, 3)))
+        .thenReturn(CompletableFuture.failedFuture(new UpstreamUnavailableException("blocked")));
+    when(cache.getIfPresent(parent))
+        .thenReturn(
+            CompletableFuture.completedFuture(
+                CachedTile.of(quadrants(Color.RED, Color.BLUE, Color.BLUE, Color.BLUE), 0, 0)));
 
-    RasterTileHandler handler = new RasterTileHandler(cache);
-    Optional<TileResult> result = handler.getTile(layer, 3, 1, 2);
+    Optional<TileResult> result = overzoomHandler(cache, 1).getTile(testLayer(), 3, 1, 2);
 
-    assertThat(result).isPresent();
-    assertThat(result.get().contentType()).isEqualTo("image/jpeg");
-    assertThat(result.get().data()).isEqualTo(jpegBytes);
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(result.orElseThrow().data()));
+    assertThat(new Color(image.getRGB(4, 4))).isEqualTo(Color.BLUE);
   }
 
   @Test
-  void getTile_cacheMiss_throwsTileNotFoundWithCause() throws Exception {
+  void getTile_upstreamUnavailable_noAncestorWithinLevels_propagates() throws Exception {
+    Path grandparent = tempDir.resolve(Path.of("test", "1", "0", "0.png"));
+    Files.createDirectories(grandparent.getParent());
+    Files.write(grandparent, quadrants(Color.RED, Color.RED, Color.RED, Color.RED));
     @SuppressWarnings("unchecked")
-    LoadingCache<Tile, byte[]> cache = mock(LoadingCache.class);
-    Layer layer = testLayer();
-    RuntimeException cause = new RuntimeException("upstream 404");
-    when(cache.get(new Tile("test", 1, 2, 3))).thenThrow(new CompletionException(cause));
+    AsyncLoadingCache<Tile, CachedTile> cache = mock(AsyncLoadingCache.class);
+    when(cache.get(new Tile("test", 1, 2, 3)))
+        .thenReturn(CompletableFuture.failedFuture(new UpstreamUnavailableException("blocked")));
 
-    RasterTileHandler handler = new RasterTileHandler(cache);
+    assertThatThrownBy(() -> overzoomHandler(cache, 1).getTile(testLayer(), 3, 1, 2))
+        .isInstanceOf(UpstreamUnavailableException.class);
+  }
 
-    assertThatThrownBy(() -> handler.getTile(layer, 3, 1, 2))
-        .isInstanceOf(TileNotFoundException.class)
-        .hasCause(cause);
+  @Test
+  void overzoom_cropsTheMatchingSquare() throws Exception {
+    byte[] ancestor = quadrants(Color.RED, Color.GREEN, Color.BLUE, Color.WHITE);
+
+    BufferedImage bottomLeft =
+        ImageIO.read(
+            new ByteArrayInputStream(RasterTileHandler.overzoom(ancestor, 1, 4, 7, false)));
+
+    assertThat(bottomLeft.getWidth()).isEqualTo(8);
+    assertThat(new Color(bottomLeft.getRGB(0, 0))).isEqualTo(Color.BLUE);
+    assertThat(new Color(bottomLeft.getRGB(7, 7))).isEqualTo(Color.BLUE);
+    assertThat(RasterTileHandler.overzoom(ancestor, 4, 0, 0, false)).isNull();
+  }
+
+  private RasterTileHandler overzoomHandler(AsyncLoadingCache<Tile, CachedTile> cache, int levels) {
+    XyzConfiguration configuration = new XyzConfiguration();
+    configuration.setBaseTileDirectory(tempDir.toString());
+    configuration.setOverzoomFallbackLevels(levels);
+    LayerStore layerStore = mock(LayerStore.class);
+    when(layerStore.getLayers()).thenReturn(Map.of("test", testLayer()));
+    return new RasterTileHandler(
+        cache,
+        mock(NegativeTileCache.class),
+        mock(DiskCacheEvictor.class),
+        configuration,
+        layerStore,
+        new FileSystemTileStore(configuration, layerStore));
+  }
+
+  /** An 8x8 PNG whose quarters are filled top-left, top-right, bottom-left, bottom-right. */
+  private static byte[] quadrants(Color... colors) throws IOException {
+    BufferedImage image = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = image.createGraphics();
+    for (int i = 0; i < 4; i++) {
+      graphics.setColor(colors[i]);
+      graphics.fillRect((i & 1) * 4, (i >> 1) * 4, 4, 4);
+    }
+    graphics.dispose();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", out);
+    return out.toByteArray();
+  }
+
+  private RasterTileHandler streamingHandler(AsyncLoadingCache<Tile, CachedTile> cache) {
+    return streamingHandler(cache, testLayer());
+  }
+
+  private RasterTileHandler streamingHandler(
+      AsyncLoadingCache<Tile, CachedTile> cache, Layer layer) {
+    XyzConfiguration configuration = new XyzConfiguration();
+    configuration.setBaseTileDirectory(tempDir.toString());
+    configuration.setStreamDiskTiles(true);
+    if (cache.asMap() == null) {
+      // Nothing in memory unless the test put it there.
+      when(cache.asMap()).thenReturn(new ConcurrentHashMap<>());
+    }
+    LayerStore layerStore = mock(LayerStore.class);
+    when(layerStore.getLayers()).thenReturn(Map.of(layer.effectiveId(), layer));
+    return new RasterTileHandler(
+        cache,
+        mock(NegativeTileCache.class),
+        mock(DiskCacheEvictor.class),
+        configuration,
+        layerStore,
+        new FileSystemTileStore(configuration, layerStore));
+  }
+
+  private static RasterTileHandler handler(
+      AsyncLoadingCache<Tile, CachedTile> cache, NegativeTileCache negativeTiles) {
+    return new RasterTileHandler(
+        cache,
+        negativeTiles,
+        mock(DiskCacheEvictor.class),
+        new XyzConfiguration(),
+        mock(LayerStore.class),
+        mock(TileStore.class));
+  }
+
+  private static Layer expiringLayer() {
+    return new org.lockard.xyztilecache.model.XyzLayer(
+        "test",
+        "test",
+        "http://example.com/{z}/{x}/{y}.png",
+        null,
+        22,
+        0,
+        60,
+        java.util.List.of(),
+        java.util.List.of(),
+        java.util.Map.of(),
+        null);
   }
 
   private static Layer testLayer() {
@@ -0,0 +1,151 @@
+package org.lockard.xyztilecache.model;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+class CachedTileTest {
+
+  // ── of / isExpired ────────────────────────────────────────────────────────
+
+  @Test
+  void of_withoutExpiration_neverExpires() {
+    CachedTile tile = CachedTile.of(new byte[] {1}, 1000, 0);
+    assertThat(tile.expiresAt()).isZero();
+    assertThat(tile.isExpired(Long.MAX_VALUE)).isFalse();
+  }
+
+  @Test
+  void of_withExpiration_expiresAfterThatManyMinutes() {
+    CachedTile tile = CachedTile.of(new byte[] {1}, 1000, 2);
+    assertThat(tile.expiresAt()).isEqualTo(1000 + 120_000L);
+    assertThat(tile.isExpired(1000 + 119_999L)).isFalse();
+    assertThat(tile.isExpired(1000 + 120_000L)).isTrue();
+  }
+
+  @Test
+  void timeToLive_countsDownToExpiryAndNeverGoesNegative() {
+    CachedTile tile = CachedTile.of(new byte[] {1}, 1000, 2);
+    assertThat(tile.timeToLive(1000)).isEqualTo(Duration.ofMinutes(2));
+    assertThat(tile.timeToLive(1000 + 200_000L)).isZero();
+    assertThat(CachedTile.of(new byte[] {1}, 1000, 0).timeToLive(Long.MAX_VALUE))
+        .isGreaterThan(Duration.ofDays(365 * 100));
+  }
+
+  @Test
+  void of_computesContentTypeAndEtagOnce() {
+    byte[] gif = {'G', 'I', 'F', '8', '9', 'a'};
+    CachedTile tile = CachedTile.of(gif, 1000, 0);
+    assertThat(tile.contentType()).isEqualTo("image/gif");
+    assertThat(tile.etag()).isEqualTo(CachedTile.etag(gif.length, 1000));
+    assertThat(tile.fetchedAt()).isEqualTo(1000);
+  }
+
+  @Test
+  void etag_isQuotedAndChangesWithSizeOrWrittenAt() {
+    String etag = CachedTile.etag(10, 1000);
+    assertThat(etag).startsWith("\"").endsWith("\"");
+    assertThat(CachedTile.etag(10, 1000)).isEqualTo(etag);
+    assertThat(CachedTile.etag(10, 1001)).isNotEqualTo(etag);
+    assertThat(CachedTile.etag(11, 1000)).isNotEqualTo(etag);
+  }
+
+  // ── detectContentType ─────────────────────────────────────────────────────
+
+  @Test
+  void detectContentType_pngMagic_returnsPng() {
+    byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    assertThat(CachedTile.detectContentType(png)).isEqualTo("image/png");
+  }
+
+  @Test
+  void detectContentType_jpegMagic_returnsJpeg() {
+    byte[] jpeg = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 0x10};
+    assertThat(CachedTile.detectContentType(jpeg)).isEqualTo("image/jpeg");
+  }
+
+  @Test
+  void detectContentType_gif87aMagic_returnsGif() {
+    byte[] gif = {'G', 'I', 'F', '8', '7', 'a'};
+    assertThat(CachedTile.detectContentType(gif)).isEqualTo("image/gif");
+  }
+
+  @Test
+  void detectContentType_gif89aMagic_returnsGif() {
+    byte[] gif = {'G', 'I', 'F', '8', '9', 'a'};
+    assertThat(CachedTile.detectContentType(gif)).isEqualTo("image/gif");
+  }
+
+  @Test
+  void detectContentType_webpMagic_returnsWebp() {
+    byte[] webp = {'R', 'I', 'F', 'F', 0x10, 0, 0, 0, 'W', 'E', 'B', 'P', 'V', 'P'};
+    assertThat(CachedTile.detectContentType(webp)).isEqualTo("image/webp");
+  }
+
+  @Test
+  void detectContentType_unrecognized_returnsPngFallback() {
+    byte[] junk = {0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c};
+    assertThat(CachedTile.detectContentType(junk)).isEqualTo("image/png");
+  }
+
+  @Test
+  void detectContentType_empty_returnsPngFallback() {
+    assertThat(CachedTile.detectContentType(new byte[0])).isEqualTo("image/png");
+  }
+
+  @Test
+  void detectContentType_tooShortForJpeg_fallsThrough() {
+    // Only two bytes — JPEG check requires 3
+    byte[] data = {(byte) 0xff, (byte) 0xd8};
+    assertThat(CachedTile.detectContentType(data)).isEqualTo("image/png");
+  }
+
+  @Test
+  void detectContentType_jpegSecondByteWrong_fallsThrough() {
+    byte[] data = {(byte) 0xff, 0x00, (byte) 0xff};
+    assertThat(CachedTile.detectContentType(data)).isEqualTo("image/png");
+  }
+
+  @Test
+  void detectContentType_jpegThirdByteWrong_fallsThrough() {
+    byte[] data = {(byte) 0xff, (byte) 0xd8, 0x00};
+    assertThat(CachedTile.detectContentType(data)).isEqualTo("image/png");
+  }
+
+  @Test
+  void detectContentType_gifTooShort_fallsThrough() {
+    byte[] data = {'G', 'I', 'F', '8', '9'};
+    assertThat(CachedTile.detectContentType(data)).isEqualTo("image/png");
+  }
+
+  @Test
+  void detectContentType_gifWrongFourthByte_fallsThrough() {
+    byte[] data = {'G', 'I', 'F', 'X', '9', 'a'};
+    assertThat(CachedTile.detectContentType(data)).isEqualTo("image/png");
+  }
+
+  @Test
+  void detectContentType_gifWrongFifthByte_fallsThrough() {
+    byte[] data = {'G', 'I', 'F', '8', '8', 'a'};
+    assertThat(CachedTile.detectContentType(data)).isEqualTo("image/png");
+  }
+
+  @Test
+  void detectContentType_gifWrongTrailingByte_fallsThrough() {
+    byte[] data = {'G', 'I', 'F', '8', '9', 'b'};
+    assertThat(CachedTile.detectContentType(data)).isEqualTo("image/png");
+  }
+
+  @Test
+  void detectContentType_webpTooShort_fallsThrough() {
+    byte[] data = {'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B'};
+    assertThat(CachedTile.detectContentType(data)).isEqualTo("image/png");
+  }
+
+  @Test
+  void detectContentType_riffButNotWebp_fallsThrough() {
+    byte[] data = {'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'A', 'V', 'E'};
+    assertThat(CachedTile.detectContentType(data)).isEqualTo("image/png");
+  }
+}
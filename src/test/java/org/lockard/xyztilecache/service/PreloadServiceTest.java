@@ -4,8 +4,11 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
@@ -21,9 +24,11 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.lockard.xyztilecache.cache.TileWriter;
 import org.lockard.xyztilecache.config.LayerProperties;
 import org.lockard.xyztilecache.config.XyzConfiguration;
 import org.lockard.xyztilecache.model.BoundingBox;
+import org.lockard.xyztilecache.model.CachedTile;
 import org.lockard.xyztilecache.model.Layer;
 import org.lockard.xyztilecache.model.Preload;
 import org.lockard.xyztilecache.model.PreloadProgress;
@@ -34,16 +39,20 @@ import org.mockito.ArgumentCaptor;
 
 class PreloadServiceTest {
 
+  private static final CachedTile TILE = CachedTile.of(new byte[] {1}, 0, 0);
+
   @SuppressWarnings("unchecked")
-  private final LoadingCache<Tile, byte[]> tileCache = mock(LoadingCache.class);
+  private final LoadingCache<Tile, CachedTile> tileCache = mock(LoadingCache.class);
 
+  private final TileWriter tileWriter = mock(TileWriter.class);
   private LayerStore layerStore;
   private PreloadStore preloadStore;
   private PmtilesDownloader pmtilesDownloader;
   private PreloadService service;
 
   @BeforeEach
-  void setUp() {
+  void setUp() throws Exception {
+    when(tileWriter.awaitRoom(anyLong())).thenReturn(true);
     layerStore = mock(LayerStore.class);
     preloadStore = mock(PreloadStore.class);
     pmtilesDownloader = mock(PmtilesDownloader.class);
@@ -55,6 +64,7 @@ class PreloadServiceTest {
         new PreloadService(
             layerStore,
             tileCache,
+            tileWriter,
             preloadStore,
             pmtilesDownloader,
             new SimpleMeterRegistry(),
@@ -247,7 +257,7 @@ class PreloadServiceTest {
   void rasterPreload_tracksProgressAndTimestampsThroughDone() throws Exception {
     Layer layer = xyzLayer("test");
     when(layerStore.getLayers()).thenReturn(Map.of("test", layer));
-    when(tileCache.get(any())).thenReturn(new byte[] {1});
+    when(tileCache.get(any())).thenReturn(TILE);
 
     // maxZoom 0 → exactly one tile, so the counters are deterministic.
     Preload result = service.submit("t", bbox(), 0, Set.of("test"), null, null);
@@ -295,7 +305,7 @@ class PreloadServiceTest {
         .thenAnswer(
             invocation -> {
               releaseRaster.await();
-              return new byte[] {1};
+              return TILE;
             });
 
     Preload result = service.submit("t", bbox(), 0, Set.of("test", "vec"), null, null);
@@ -316,7 +326,7 @@ class PreloadServiceTest {
     Layer raster = xyzLayer("test");
     Layer vec = vectorLayer("vec", "https://example.com/tiles.pmtiles");
     when(layerStore.getLayers()).thenReturn(Map.of("test", raster, "vec", vec));
-    when(tileCache.get(any())).thenReturn(new byte[] {1});
+    when(tileCache.get(any())).thenReturn(TILE);
     CompletableFuture<Void> download = new CompletableFuture<>();
     when(pmtilesDownloader.startDownload(any(), eq(vec), eq(false))).thenReturn(download);
 
@@ -335,7 +345,7 @@ class PreloadServiceTest {
     Layer raster = xyzLayer("test");
     Layer vec = vectorLayer("vec", "https://example.com/tiles.pmtiles");
     when(layerStore.getLayers()).thenReturn(Map.of("test", raster, "vec", vec));
-    when(tileCache.get(any())).thenReturn(new byte[] {1});
+    when(tileCache.get(any())).thenReturn(TILE);
     when(pmtilesDownloader.startDownload(any(), eq(vec), eq(false)))
         .thenReturn(
             CompletableFuture.failedFuture(new IllegalStateException("pmtiles extract failed")));
@@ -354,7 +364,7 @@ class PreloadServiceTest {
     Layer raster = xyzLayer("test");
     Layer vec = vectorLayer("vec", "https://example.com/tiles.pmtiles");
     when(layerStore.getLayers()).thenReturn(Map.of("test", raster, "vec", vec));
-    when(tileCache.get(any())).thenReturn(new byte[] {1});
+    when(tileCache.get(any())).thenReturn(TILE);
     // Racy path: nothing was downloading at validation time, but something is by the time the
     // download is actually started.
     when(pmtilesDownloader.startDownload(any(), eq(vec), eq(false)))
@@ -446,7 +456,7 @@ class PreloadServiceTest {
               fetched.incrementAndGet();
               fetchStarted.countDown();
               releaseFetches.await();
-              return new byte[] {1};
+              return TILE;
             });
 
     // A global bbox to zoom 8 is tens of thousands of tiles: far more than can slip through.
@@ -495,7 +505,7 @@ class PreloadServiceTest {
   void cancel_finishedPreload_returnsFalse() throws Exception {
     Layer layer = xyzLayer("test");
     when(layerStore.getLayers()).thenReturn(Map.of("test", layer));
-    when(tileCache.get(any())).thenReturn(new byte[] {1});
+    when(tileCache.get(any())).thenReturn(TILE);
 
     Preload result = service.submit("t", bbox(), 0, Set.of("test"), null, null);
     awaitTerminal(result);
@@ -513,6 +523,19 @@ class PreloadServiceTest {
     verifyNoInteractions(tileCache);
   }
 
+  @Test
+  void preloadXyzTiles_waitsForRoomInTheWriteQueue() throws Exception {
+    when(layerStore.getLayers()).thenReturn(Map.of("test", xyzLayer("test")));
+    when(tileWriter.awaitRoom(anyLong())).thenReturn(false, false, true);
+    when(tileCache.get(any())).thenReturn(TILE);
+
+    service.preloadXyzTiles(Set.of("test"), bbox());
+
+    var order = inOrder(tileWriter, tileCache);
+    order.verify(tileWriter, times(3)).awaitRoom(anyLong());
+    order.verify(tileCache).get(any());
+  }
+
   @Test
   void preloadXyzTiles_vectorPmtilesLayer_skipped() {
     Layer vec = vectorLayer("vec", "/some/file.pmtiles");
@@ -6,6 +6,7 @@ import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import org.junit.jupiter.api.AfterEach;
@@ -146,6 +147,28 @@ class LayerStoreTest {
         .isInstanceOf(NoSuchElementException.class);
   }
 
+  @Test
+  void generation_movesOnBeforeSourceChangeOrRemovalIsPublished() throws Exception {
+    List<Long> published = new ArrayList<>();
+    layerStore =
+        new LayerStore(
+            configuration, objectMapper, event -> published.add(layerStore.getGeneration("base")));
+    layerStore.init();
+    assertThat(layerStore.getGeneration("base")).isZero();
+
+    LayerProperties aclOnly = layerProperties("base");
+    aclOnly.setMaxZoom(10);
+    layerStore.updateLayer("base", aclOnly.toLayer());
+    LayerProperties newSource = layerProperties("base");
+    newSource.setUrlTemplate("https://other.example.com/{z}/{x}/{y}.png");
+    layerStore.updateLayer("base", newSource.toLayer());
+    layerStore.removeLayer("base");
+    layerStore.addLayer(layer("base"));
+
+    // Never reused, not even by a layer re-added under the same id.
+    assertThat(published).containsExactly(0L, 1L, 2L, 3L);
+  }
+
   @Test
   void syncLayers_noopWhenFileUnchanged() throws Exception {
     storeAndInit();